@@ -0,0 +1,101 @@
+/**************************************************************
+ This file is part of Kinect Sensor Architecture Development Project.
+
+    Kinect Sensor Architecture Development Project is free software:
+	you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Kinect Sensor Architecture Development Project is distributed in
+	the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with Kinect Sensor Architecture Development Project.  If
+	not, see <http://www.gnu.org/licenses/>.
+**************************************************************/
+/**************************************************************
+The work was done in joint collaboration with Cisco Systems Inc.
+Copyright © 2012, Cisco Systems, Inc. and UCLA
+*************************************************************/
+
+package UnifyingAPI;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * Packed channels the decoding and reading benchmarks start from.
+ */
+final class BenchmarkChannels {
+	/**
+	 * Depth values are below this, like the samples' histogram size.
+	 */
+	static final int MAX_DEPTH = 10000;
+	
+	private BenchmarkChannels() {}
+	
+	/**
+	 * Packs a depth channel of 2 byte integers. One value in eight is 0, 
+	 * the others are between 500 and <code>MAX_DEPTH</code>.
+	 * @param numTuples the number of tuples
+	 * @param random the source of the values
+	 * @return the channel packet, positioned at its header
+	 */
+	static ByteBuffer packDepth(int numTuples, Random random)
+	{
+		final short[] depth = new short[numTuples];
+		for (int i = 0; i < depth.length; ++i)
+		{
+			depth[i] = (random.nextInt(8) == 0) ? 0 : (short) (500 + random.nextInt(MAX_DEPTH - 500));
+		}
+		UniChannelHeader header = new UniChannelHeader(numTuples, 30, 
+				new UniElementDescriptor[] { new UniElementDescriptor(true, true, (byte) 2) }, "Depth");
+		return packChannel(header, new UniDataPacker()
+		{
+			public void writeDataIntoByteBuffer(ByteBuffer buffer)
+			{
+				buffer.asShortBuffer().put(depth);
+			}
+		});
+	}
+	
+	/**
+	 * Packs a channel of 3 byte signed and 5 byte unsigned integers, both of
+	 * which are widened when the channel is decoded.
+	 * @param numTuples the number of tuples
+	 * @param random the source of the values
+	 * @return the channel packet, positioned at its header
+	 */
+	static ByteBuffer packWide(int numTuples, Random random)
+	{
+		UniChannelHeader header = new UniChannelHeader(numTuples, 30, new UniElementDescriptor[] {
+				new UniElementDescriptor(true, true, (byte) 3), 
+				new UniElementDescriptor(true, true, true, (byte) 5) }, "Wide");
+		final byte[] wide = new byte[(int) header.getPackedDataSize()];
+		random.nextBytes(wide);
+		return packChannel(header, new UniDataPacker()
+		{
+			public void writeDataIntoByteBuffer(ByteBuffer buffer)
+			{
+				buffer.put(wide);
+			}
+		});
+	}
+	
+	/**
+	 * Packs a channel on its own into a direct buffer, like a packet read 
+	 * from a device or a socket.
+	 */
+	private static ByteBuffer packChannel(UniChannelHeader header, UniDataPacker packer)
+	{
+		UniChannel channel = new UniChannel(header, packer);
+		ByteBuffer buffer = ByteBuffer.allocateDirect((int) channel.getPackedSize());
+		channel.packIntoByteBuffer(buffer);
+		buffer.clear();
+		return buffer;
+	}
+}
@@ -0,0 +1,79 @@
+/**************************************************************
+ This file is part of Kinect Sensor Architecture Development Project.
+
+    Kinect Sensor Architecture Development Project is free software:
+	you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Kinect Sensor Architecture Development Project is distributed in
+	the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with Kinect Sensor Architecture Development Project.  If
+	not, see <http://www.gnu.org/licenses/>.
+**************************************************************/
+/**************************************************************
+The work was done in joint collaboration with Cisco Systems Inc.
+Copyright © 2012, Cisco Systems, Inc. and UCLA
+*************************************************************/
+
+package UnifyingAPI;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Decodes a <code>Channel</code> from a channel packet. An aligned layout 
+ * (2 byte depth) is viewed in place, a widened layout (3 and 5 byte 
+ * integers) is copied into a new buffer with its elements widened.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ChannelDecodeBenchmark {
+	private static final long SEED = 42;
+	
+	@Param({ "aligned", "widened" })
+	public String layout;
+	
+	@Param({ "19200", "76800", "307200" })
+	public int numTuples;
+	
+	private ByteBuffer packet;
+	
+	@Setup
+	public void setUp()
+	{
+		Random random = new Random(SEED);
+		packet = layout.equals("aligned") ? BenchmarkChannels.packDepth(numTuples, random) :
+			BenchmarkChannels.packWide(numTuples, random);
+	}
+	
+	@Benchmark
+	public Channel decode()
+	{
+		packet.rewind();
+		return new Channel(new UniChannel(packet));
+	}
+}
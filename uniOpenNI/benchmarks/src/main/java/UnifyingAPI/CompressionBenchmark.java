@@ -0,0 +1,191 @@
+/**************************************************************
+ This file is part of Kinect Sensor Architecture Development Project.
+
+    Kinect Sensor Architecture Development Project is free software:
+	you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Kinect Sensor Architecture Development Project is distributed in
+	the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with Kinect Sensor Architecture Development Project.  If
+	not, see <http://www.gnu.org/licenses/>.
+**************************************************************/
+/**************************************************************
+The work was done in joint collaboration with Cisco Systems Inc.
+Copyright © 2012, Cisco Systems, Inc. and UCLA
+*************************************************************/
+
+package UnifyingAPI;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the channel codecs on the depth, RGB and skeleton payloads of 
+ * <code>UniSyntheticDevice</code>: block compression, delta encoding and 
+ * both, each way, against copying the data as an uncompressed channel is.
+ * The payload is the data of every channel of one frame, the delta is 
+ * taken from the frame before it. The compression ratios are printed when
+ * the payload is built. A delta that would not be smaller than the data is
+ * sent as a keyframe, so decoding it is a copy.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CompressionBenchmark {
+	private static final int WIDTH = 640;
+	private static final int HEIGHT = 480;
+	private static final int SKIPPED_FRAMES = 30;	// the object moves, so frames differ
+	
+	@Param({ "depth", "rgb", "skeleton" })
+	public String payload;
+	
+	private UniBlockCompressor compressor;
+	private ByteBuffer reference;	// the previous frame
+	private ByteBuffer data;		// the frame to encode
+	private ByteBuffer delta;
+	private int deltaSize;			// -1 if the frame is sent as a keyframe
+	private ByteBuffer compressed;
+	private int compressedSize;
+	private ByteBuffer compressedDelta;
+	private ByteBuffer output;
+	
+	@Setup
+	public void setUp()
+	{
+		UniSyntheticDevice device = new UniSyntheticDevice(WIDTH, HEIGHT, 30);
+		device.setPaced(false);
+		device.setDepthEnabled(payload.equals("depth"));
+		device.setRGBEnabled(payload.equals("rgb"));
+		device.setNumberOfUsers(payload.equals("skeleton") ? UniSyntheticDevice.MAX_USERS : 0);
+		for (int i = 0; i < SKIPPED_FRAMES; ++i)
+		{
+			device.releaseSensorPacket(device.getSensorPacket());
+		}
+		reference = getChannelData(device);
+		data = getChannelData(device);
+		int dataSize = data.limit();
+		
+		compressor = new UniBlockCompressor();
+		delta = ByteBuffer.allocate(dataSize);
+		deltaSize = UniDeltaCodec.encode(data, reference, delta);
+		compressed = ByteBuffer.allocate(UniBlockCompressor.getMaxCompressedSize(dataSize));
+		compressedSize = compressor.compress(data.array(), 0, dataSize, compressed.array(), 0);
+		compressedDelta = ByteBuffer.allocate(compressed.capacity());
+		int compressedDeltaSize = (deltaSize < 0) ? compressedSize :
+				compressor.compress(delta.array(), 0, deltaSize, compressedDelta.array(), 0);
+		output = ByteBuffer.allocate(dataSize);
+		
+		System.out.printf("%n%s: %d bytes, compressed %.2fx, delta %.2fx, delta+compressed %.2fx%n", 
+				payload, dataSize, (double) dataSize / compressedSize, 
+				(double) dataSize / ((deltaSize < 0) ? dataSize : deltaSize),
+				(double) dataSize / compressedDeltaSize);
+	}
+	
+	/**
+	 * Builds a packet and concatenates the data of its channels.
+	 */
+	private static ByteBuffer getChannelData(UniSyntheticDevice device)
+	{
+		ByteBuffer packet = device.getSensorPacket();
+		ByteBuffer buffer = packet.duplicate();
+		UniSensorHeader sensorHeader = new UniSensorHeader(buffer);
+		buffer.position(sensorHeader.getPackedSize());
+		ByteBuffer[] slices = new ByteBuffer[sensorHeader.getNumChannels()];
+		int dataSize = 0;
+		for (int channel = 0; channel < slices.length; ++channel)
+		{
+			UniChannelHeader header = new UniChannelHeader(buffer);
+			slices[channel] = buffer.slice();
+			slices[channel].limit((int) header.getPackedDataSize());
+			dataSize += slices[channel].limit();
+			buffer.position(buffer.position() + slices[channel].limit());
+		}
+		
+		// Sized exactly, since the codecs reset limits to the capacity
+		ByteBuffer channelData = ByteBuffer.allocate(dataSize);
+		for (ByteBuffer slice : slices)
+		{
+			channelData.put(slice);
+		}
+		device.releaseSensorPacket(packet);
+		channelData.flip();
+		return channelData;
+	}
+	
+	/**
+	 * What an uncompressed channel costs: its data is copied once.
+	 */
+	@Benchmark
+	public ByteBuffer copy()
+	{
+		UniDeltaCodec.copy(data, 0, output, 0, data.limit());
+		return output;
+	}
+	
+	@Benchmark
+	public int compress()
+	{
+		return compressor.compress(data.array(), 0, data.limit(), compressed.array(), 0);
+	}
+	
+	@Benchmark
+	public ByteBuffer decompress()
+	{
+		UniBlockCompressor.decompress(compressed, 0, compressedSize, output.array(), 0, data.limit());
+		return output;
+	}
+	
+	@Benchmark
+	public int deltaEncode()
+	{
+		return UniDeltaCodec.encode(data, reference, delta);
+	}
+	
+	@Benchmark
+	public ByteBuffer deltaDecode()
+	{
+		if (deltaSize < 0)
+		{
+			UniDeltaCodec.copy(data, 0, output, 0, data.limit());
+			return output;
+		}
+		ByteBuffer encoded = delta.duplicate();
+		encoded.limit(deltaSize);
+		UniDeltaCodec.decode(encoded, reference, output);
+		return output;
+	}
+	
+	@Benchmark
+	public int deltaEncodeCompressed()
+	{
+		int size = UniDeltaCodec.encode(data, reference, delta);
+		if (size < 0)
+		{
+			return compressor.compress(data.array(), 0, data.limit(), compressedDelta.array(), 0);
+		}
+		return compressor.compress(delta.array(), 0, size, compressedDelta.array(), 0);
+	}
+}
@@ -0,0 +1,134 @@
+/**************************************************************
+ This file is part of Kinect Sensor Architecture Development Project.
+
+    Kinect Sensor Architecture Development Project is free software:
+	you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Kinect Sensor Architecture Development Project is distributed in
+	the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with Kinect Sensor Architecture Development Project.  If
+	not, see <http://www.gnu.org/licenses/>.
+**************************************************************/
+/**************************************************************
+The work was done in joint collaboration with Cisco Systems Inc.
+Copyright © 2012, Cisco Systems, Inc. and UCLA
+*************************************************************/
+
+package UnifyingAPI;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Packs and parses the headers of a sensor packet: the sensor header, and 
+ * the channel headers of a one-element depth channel and of a skeleton 
+ * channel with four elements.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class HeaderBenchmark {
+	private UniSensorHeader sensorHeader;
+	private ByteBuffer packedSensorHeader;
+	private ByteBuffer buffer;
+	
+	/**
+	 * The channel header of a channel with the given name.
+	 */
+	@State(Scope.Thread)
+	public static class ChannelHeader {
+		@Param({ "depth", "skeleton" })
+		public String channel;
+		
+		private UniChannelHeader header;
+		private ByteBuffer packed;
+		private ByteBuffer buffer;
+		
+		@Setup
+		public void setUp()
+		{
+			UniElementDescriptor[] descriptors;
+			if (channel.equals("depth"))
+			{
+				descriptors = new UniElementDescriptor[] { new UniElementDescriptor(true, true, (byte) 2) };
+				header = new UniChannelHeader(640 * 480, 30, descriptors, "Depth");
+			}
+			else
+			{
+				UniElementDescriptor coordinate = new UniElementDescriptor(false, true, (byte) 4);
+				descriptors = new UniElementDescriptor[] { coordinate, coordinate, coordinate, coordinate };
+				header = new UniChannelHeader(15, 30, descriptors, "User1");
+			}
+			packed = ByteBuffer.allocate(header.getPackedSize());
+			header.packIntoByteBuffer(packed);
+			packed.flip();
+			buffer = ByteBuffer.allocate(header.getPackedSize());
+		}
+	}
+	
+	@Setup
+	public void setUp()
+	{
+		sensorHeader = new UniSensorHeader((byte) 1, (short) 0x045e, (short) 0x02ae, 
+				(short) 3, System.currentTimeMillis(), 30, 0);
+		packedSensorHeader = ByteBuffer.allocate(sensorHeader.getPackedSize());
+		sensorHeader.packIntoByteBuffer(packedSensorHeader);
+		packedSensorHeader.flip();
+		buffer = ByteBuffer.allocate(sensorHeader.getPackedSize());
+	}
+	
+	@Benchmark
+	public int packSensorHeader()
+	{
+		buffer.clear();
+		sensorHeader.packIntoByteBuffer(buffer);
+		return buffer.position();
+	}
+	
+	@Benchmark
+	public short parseSensorHeader()
+	{
+		packedSensorHeader.rewind();
+		return new UniSensorHeader(packedSensorHeader).getNumChannels();
+	}
+	
+	@Benchmark
+	public int packChannelHeader(ChannelHeader channelHeader)
+	{
+		ByteBuffer buffer = channelHeader.buffer;
+		buffer.clear();
+		channelHeader.header.packIntoByteBuffer(buffer);
+		return buffer.position();
+	}
+	
+	@Benchmark
+	public long parseChannelHeader(ChannelHeader channelHeader)
+	{
+		ByteBuffer packed = channelHeader.packed;
+		packed.rewind();
+		return new UniChannelHeader(packed).getNumberTuples();
+	}
+}
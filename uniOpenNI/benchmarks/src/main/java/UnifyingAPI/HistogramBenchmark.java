@@ -0,0 +1,134 @@
+/**************************************************************
+ This file is part of Kinect Sensor Architecture Development Project.
+
+    Kinect Sensor Architecture Development Project is free software:
+	you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Kinect Sensor Architecture Development Project is distributed in
+	the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with Kinect Sensor Architecture Development Project.  If
+	not, see <http://www.gnu.org/licenses/>.
+**************************************************************/
+/**************************************************************
+The work was done in joint collaboration with Cisco Systems Inc.
+Copyright © 2012, Cisco Systems, Inc. and UCLA
+*************************************************************/
+
+package UnifyingAPI;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Builds the cumulative depth histogram of a frame like the samples' 
+ * <code>calcHist</code>. The frame is read from the depth channel tuple by
+ * tuple with <code>getTuple</code>, with a <code>TupleCursor</code>, or in
+ * bulk with <code>readShorts</code>.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class HistogramBenchmark {
+	private static final long SEED = 42;
+	
+	@Param({ "19200", "76800", "307200" })
+	public int numTuples;
+	
+	private Channel depthChannel;
+	private short[] frame;
+	private float[] histogram;
+	
+	@Setup
+	public void setUp()
+	{
+		depthChannel = new Channel(new UniChannel(BenchmarkChannels.packDepth(numTuples, new Random(SEED))));
+		frame = new short[numTuples];
+		histogram = new float[BenchmarkChannels.MAX_DEPTH];
+	}
+	
+	@Benchmark
+	public int getTuple() throws Exception
+	{
+		for (int i = 0; i < frame.length; ++i)
+		{
+			frame[i] = depthChannel.getTuple(i).getElementShort(0);
+		}
+		return calcHist();
+	}
+	
+	@Benchmark
+	public int cursor() throws Exception
+	{
+		TupleCursor cursor = depthChannel.cursor();
+		int i = 0;
+		while (cursor.next())
+		{
+			frame[i++] = cursor.getElementShort(0);
+		}
+		return calcHist();
+	}
+	
+	@Benchmark
+	public int readShorts()
+	{
+		depthChannel.readShorts(frame, 0);
+		return calcHist();
+	}
+	
+	/**
+	 * Builds the cumulative histogram of the frame.
+	 * @return the number of valid pixels
+	 */
+	private int calcHist()
+	{
+		for (int i = 0; i < histogram.length; ++i)
+		{
+			histogram[i] = 0;
+		}
+		int points = 0;
+		for (int i = 0; i < frame.length; ++i)
+		{
+			short value = frame[i];
+			if (value != 0)
+			{
+				histogram[value]++;
+				points++;
+			}
+		}
+		for (int i = 1; i < histogram.length; i++)
+		{
+			histogram[i] += histogram[i - 1];
+		}
+		if (points > 0)
+		{
+			for (int i = 1; i < histogram.length; i++)
+			{
+				histogram[i] = 1.0f - (histogram[i] / (float) points);
+			}
+		}
+		return points;
+	}
+}
@@ -0,0 +1,139 @@
+/**************************************************************
+ This file is part of Kinect Sensor Architecture Development Project.
+
+    Kinect Sensor Architecture Development Project is free software:
+	you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Kinect Sensor Architecture Development Project is distributed in
+	the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with Kinect Sensor Architecture Development Project.  If
+	not, see <http://www.gnu.org/licenses/>.
+**************************************************************/
+/**************************************************************
+The work was done in joint collaboration with Cisco Systems Inc.
+Copyright © 2012, Cisco Systems, Inc. and UCLA
+*************************************************************/
+
+package UnifyingAPI;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures how parsing a snapshot whose channels need widening scales with
+ * the number of decode threads. One packet with a VGA depth channel and 
+ * several VGA channels of 3 and 5 byte integers is built once and parsed 
+ * over and over, on the calling thread (0 threads) or with 
+ * <code>Sensor.setParallelDecoding</code> on a pool of the given size. The
+ * speedup is bounded by the number of processors of the machine.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ParallelDecodeBenchmark {
+	private static final int WIDTH = 640;
+	private static final int HEIGHT = 480;
+	private static final long THRESHOLD = 1 << 20;
+	
+	@Param({ "0", "1", "2", "4" })
+	public int threads;
+	
+	@Param({ "4" })
+	public int wideChannels;
+	
+	private ExecutorService executor;
+	private Sensor sensor;
+	
+	@Setup
+	public void setUp()
+	{
+		UniSyntheticDevice device = new UniSyntheticDevice(WIDTH, HEIGHT, 30);
+		device.setPaced(false);
+		device.setRGBEnabled(false);
+		device.setNumberOfUsers(0);
+		device.setExtraChannels(wideChannels, WIDTH * HEIGHT, 
+				new UniElementDescriptor(true, true, (byte) 3), new UniElementDescriptor(true, true, (byte) 5));
+		ReplaySource source = new ReplaySource(device.getSensorHeader(), device.getSensorPacket());
+		
+		executor = (threads > 0) ? Executors.newFixedThreadPool(threads) : null;
+		sensor = new Sensor(source);
+		sensor.setParallelDecoding(executor, THRESHOLD);
+	}
+	
+	@TearDown
+	public void tearDown()
+	{
+		if (executor != null)
+		{
+			executor.shutdown();
+		}
+	}
+	
+	@Benchmark
+	public long parse()
+	{
+		SensorSnapshot snapshot = sensor.getSensorSnapshot();
+		long value = snapshot.getChannel("Extra1").getTuple(0).getElementCastToLong(1);
+		snapshot.release();
+		return value;
+	}
+	
+	/**
+	 * Returns the same sensor packet every time, so only parsing is measured.
+	 */
+	private static class ReplaySource implements UniPacketSource {
+		private byte[] sensorHeader;
+		private ByteBuffer packet;
+		
+		ReplaySource(byte[] sensorHeader, ByteBuffer packet)
+		{
+			this.sensorHeader = sensorHeader;
+			this.packet = ByteBuffer.allocateDirect(packet.remaining());
+			this.packet.put(packet).flip();
+		}
+		
+		public byte[] getSensorHeader() { return sensorHeader; }
+		
+		public ByteBuffer getSensorPacket() { return packet.duplicate(); }
+		
+		public void releaseSensorPacket(ByteBuffer sensorPacket) { }
+		
+		public void setSubscription(UniSubscription subscription) { }
+		
+		public void setLayoutIdsEnabled(boolean enabled) { }
+		
+		public void resetLayoutIds() { }
+		
+		public void setDeltaEncoding(int keyframeInterval) { }
+		
+		public void setCompression(String channelName, boolean compress) { }
+		
+		public void requestKeyframe() { }
+	}
+}
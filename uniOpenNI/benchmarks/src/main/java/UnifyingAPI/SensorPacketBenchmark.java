@@ -0,0 +1,120 @@
+/**************************************************************
+ This file is part of Kinect Sensor Architecture Development Project.
+
+    Kinect Sensor Architecture Development Project is free software:
+	you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Kinect Sensor Architecture Development Project is distributed in
+	the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with Kinect Sensor Architecture Development Project.  If
+	not, see <http://www.gnu.org/licenses/>.
+**************************************************************/
+/**************************************************************
+The work was done in joint collaboration with Cisco Systems Inc.
+Copyright © 2012, Cisco Systems, Inc. and UCLA
+*************************************************************/
+
+package UnifyingAPI;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Builds sensor packets with <code>UniDevice.getSensorPacket</code> from a
+ * device with a depth and an RGB channel of the given number of tuples,
+ * i.e. QQVGA, QVGA and VGA frames. The channel data is prepared once, so 
+ * only assembling the packet in a pooled buffer is measured.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SensorPacketBenchmark {
+	private static final long SEED = 42;
+	
+	@Param({ "19200", "76800", "307200" })
+	public int numTuples;
+	
+	private FixtureDevice device;
+	
+	@Setup
+	public void setUp()
+	{
+		device = new FixtureDevice(numTuples, new Random(SEED));
+	}
+	
+	@Benchmark
+	public int getSensorPacket()
+	{
+		ByteBuffer packet = device.getSensorPacket();
+		int size = packet.remaining();
+		device.releaseSensorPacket(packet);
+		return size;
+	}
+	
+	/**
+	 * A device producing depth and RGB channels from fixed frames.
+	 */
+	private static class FixtureDevice extends UniDevice {
+		private UniChannel depthChannel;
+		private UniChannel rgbChannel;
+		
+		FixtureDevice(int numTuples, Random random)
+		{
+			super((short) 0, (short) 0, 30);
+			setPacketPool(new UniPacketPool(4, true));
+			final byte[] depth = new byte[numTuples * 2];
+			final byte[] rgb = new byte[numTuples * 3];
+			random.nextBytes(depth);
+			random.nextBytes(rgb);
+			UniElementDescriptor byteElement = new UniElementDescriptor(true, true, (byte) 1);
+			this.depthChannel = new UniChannel(new UniChannelHeader(numTuples, 30, 
+					new UniElementDescriptor[] { new UniElementDescriptor(true, true, (byte) 2) }, "Depth"),
+					new UniDataPacker()
+					{
+						public void writeDataIntoByteBuffer(ByteBuffer buffer)
+						{
+							buffer.put(depth);
+						}
+					});
+			this.rgbChannel = new UniChannel(new UniChannelHeader(numTuples, 30, 
+					new UniElementDescriptor[] { byteElement, byteElement, byteElement }, "RGB"),
+					new UniDataPacker()
+					{
+						public void writeDataIntoByteBuffer(ByteBuffer buffer)
+						{
+							buffer.put(rgb);
+						}
+					});
+		}
+		
+		protected void updateChannels()
+		{
+			addChannel(depthChannel);
+			addChannel(rgbChannel);
+		}
+	}
+}
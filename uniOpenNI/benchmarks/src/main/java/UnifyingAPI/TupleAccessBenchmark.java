@@ -0,0 +1,141 @@
+/**************************************************************
+ This file is part of Kinect Sensor Architecture Development Project.
+
+    Kinect Sensor Architecture Development Project is free software:
+	you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Kinect Sensor Architecture Development Project is distributed in
+	the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with Kinect Sensor Architecture Development Project.  If
+	not, see <http://www.gnu.org/licenses/>.
+**************************************************************/
+/**************************************************************
+The work was done in joint collaboration with Cisco Systems Inc.
+Copyright © 2012, Cisco Systems, Inc. and UCLA
+*************************************************************/
+
+package UnifyingAPI;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Reads tuples at random indices through <code>getTuple</code> with the 
+ * <code>getElement</code> and <code>getElementCastTo</code> getters, and 
+ * through a <code>TupleCursor</code>. The depth channel is viewed in place,
+ * the channel of 3 and 5 byte integers is widened. Scores are per tuple read.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class TupleAccessBenchmark {
+	private static final int NUM_INDICES = 4096;
+	private static final long SEED = 42;
+	
+	@Param({ "19200", "76800", "307200" })
+	public int numTuples;
+	
+	private Channel depthChannel;
+	private Channel wideChannel;
+	private int[] indices;
+	
+	@Setup
+	public void setUp()
+	{
+		Random random = new Random(SEED);
+		depthChannel = new Channel(new UniChannel(BenchmarkChannels.packDepth(numTuples, random)));
+		wideChannel = new Channel(new UniChannel(BenchmarkChannels.packWide(numTuples, random)));
+		indices = new int[NUM_INDICES];
+		for (int i = 0; i < indices.length; ++i)
+		{
+			indices[i] = random.nextInt(numTuples);
+		}
+	}
+	
+	@Benchmark
+	@OperationsPerInvocation(NUM_INDICES)
+	public long getElementShort() throws Exception
+	{
+		long result = 0;
+		for (int i = 0; i < NUM_INDICES; ++i)
+		{
+			result += depthChannel.getTuple(indices[i]).getElementShort(0);
+		}
+		return result;
+	}
+	
+	@Benchmark
+	@OperationsPerInvocation(NUM_INDICES)
+	public long getElementCastToInt()
+	{
+		long result = 0;
+		for (int i = 0; i < NUM_INDICES; ++i)
+		{
+			result += depthChannel.getTuple(indices[i]).getElementCastToInt(0);
+		}
+		return result;
+	}
+	
+	@Benchmark
+	@OperationsPerInvocation(NUM_INDICES)
+	public long getElementIntLongWidened() throws Exception
+	{
+		long result = 0;
+		for (int i = 0; i < NUM_INDICES; ++i)
+		{
+			Tuple tuple = wideChannel.getTuple(indices[i]);
+			result += tuple.getElementInt(0) + tuple.getElementLong(1);
+		}
+		return result;
+	}
+	
+	@Benchmark
+	@OperationsPerInvocation(NUM_INDICES)
+	public float getElementCastToFloatWidened()
+	{
+		float result = 0;
+		for (int i = 0; i < NUM_INDICES; ++i)
+		{
+			Tuple tuple = wideChannel.getTuple(indices[i]);
+			result += tuple.getElementCastToFloat(0) + tuple.getElementCastToFloat(1);
+		}
+		return result;
+	}
+	
+	@Benchmark
+	@OperationsPerInvocation(NUM_INDICES)
+	public long cursorGetElementShort() throws Exception
+	{
+		TupleCursor cursor = depthChannel.cursor();
+		long result = 0;
+		for (int i = 0; i < NUM_INDICES; ++i)
+		{
+			result += cursor.moveTo(indices[i]).getElementShort(0);
+		}
+		return result;
+	}
+}
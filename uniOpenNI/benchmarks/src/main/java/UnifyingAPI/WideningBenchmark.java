@@ -0,0 +1,161 @@
+/**************************************************************
+ This file is part of Kinect Sensor Architecture Development Project.
+
+    Kinect Sensor Architecture Development Project is free software:
+	you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Kinect Sensor Architecture Development Project is distributed in
+	the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with Kinect Sensor Architecture Development Project.  If
+	not, see <http://www.gnu.org/licenses/>.
+**************************************************************/
+/**************************************************************
+The work was done in joint collaboration with Cisco Systems Inc.
+Copyright © 2012, Cisco Systems, Inc. and UCLA
+*************************************************************/
+
+package UnifyingAPI;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares <code>ElementWidener</code> with the per-element loop 
+ * <code>Channel</code> used to widen 3, 5, 6 and 7 byte integers before it,
+ * on a VGA-sized channel of each layout. The widener is measured from a heap
+ * and from a direct buffer, as packets from a device and from a socket 
+ * arrive in either. The outputs of the three are checked to be identical 
+ * before measuring.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class WideningBenchmark {
+	private static final int NUM_TUPLES = 640 * 480;
+	private static final long SEED = 42;
+	
+	/**
+	 * Sizes in bytes of the elements of a tuple, separated by <code>+</code>.
+	 */
+	@Param({ "3", "3+5", "6+6+6", "7+2" })
+	public String layout;
+	
+	private int[] packedSizes;
+	private ElementMetaData[] elementMetaData;
+	private ElementWidener widener;
+	private ByteBuffer heapSrc;
+	private ByteBuffer directSrc;
+	private ByteBuffer dst;
+	
+	@Setup
+	public void setUp()
+	{
+		String[] sizes = layout.split("\\+");
+		packedSizes = new int[sizes.length];
+		UniElementDescriptor[] descriptors = new UniElementDescriptor[sizes.length];
+		for (int i = 0; i < sizes.length; ++i)
+		{
+			packedSizes[i] = Integer.parseInt(sizes[i]);
+			descriptors[i] = new UniElementDescriptor(true, true, true, (byte) packedSizes[i]);
+		}
+		UniChannelHeader header = new UniChannelHeader(NUM_TUPLES, 30, descriptors, "Wide");
+		ChannelDecodePlan plan = new ChannelDecodePlan(header);
+		elementMetaData = plan.getElementMetaData();
+		widener = new ElementWidener(descriptors, elementMetaData);
+		
+		byte[] packed = new byte[(int) header.getPackedDataSize()];
+		new Random(SEED).nextBytes(packed);
+		heapSrc = ByteBuffer.wrap(packed);
+		directSrc = ByteBuffer.allocateDirect(packed.length);
+		directSrc.put(packed).clear();
+		dst = ByteBuffer.allocate(widener.getWidenedTupleSize() * NUM_TUPLES);
+		
+		widener.widen(heapSrc, dst, 0, NUM_TUPLES);
+		byte[] expected = dst.array().clone();
+		widener.widen(directSrc, dst, 0, NUM_TUPLES);
+		boolean sameDirect = Arrays.equals(expected, dst.array());
+		perElementLoop();
+		if (!sameDirect || !Arrays.equals(expected, dst.array()))
+		{
+			throw new IllegalStateException(layout + ": the widening paths disagree");
+		}
+	}
+	
+	/**
+	 * The widening loop <code>Channel</code> used before 
+	 * <code>ElementWidener</code>: a slice, a put of the null bytes and a put
+	 * of the element for every element of every tuple.
+	 */
+	@Benchmark
+	public ByteBuffer perElementLoop()
+	{
+		byte[][] nullBytes = new byte[elementMetaData.length][];
+		for (int i = 0; i < elementMetaData.length; ++i)
+		{
+			nullBytes[i] = new byte[elementMetaData[i].getSize() - packedSizes[i]];
+		}
+		
+		int bytesRead = 0;
+		int bytesWritten = 0;
+		for (int tupleCount = 0; tupleCount < NUM_TUPLES; ++tupleCount)
+		{
+			for (int elementCount = 0; elementCount < elementMetaData.length; ++elementCount)
+			{
+				heapSrc.position(bytesRead);
+				dst.position(bytesWritten);
+				
+				ByteBuffer element = heapSrc.slice();
+				int packedSize = packedSizes[elementCount];
+				element.limit(packedSize);
+				
+				dst.put(nullBytes[elementCount]);
+				dst.put(element);
+				
+				bytesRead += packedSize;
+				bytesWritten += elementMetaData[elementCount].getSize();
+			}
+		}
+		heapSrc.rewind();
+		dst.rewind();
+		return dst;
+	}
+	
+	@Benchmark
+	public ByteBuffer widenerHeap()
+	{
+		widener.widen(heapSrc, dst, 0, NUM_TUPLES);
+		return dst;
+	}
+	
+	@Benchmark
+	public ByteBuffer widenerDirect()
+	{
+		widener.widen(directSrc, dst, 0, NUM_TUPLES);
+		return dst;
+	}
+}
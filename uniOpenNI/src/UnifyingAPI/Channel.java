@@ -25,14 +25,20 @@ Copyright © 2012, Cisco Systems, Inc. and UCLA
 package UnifyingAPI;
 
 import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
 
 /**
- * A data channel. Created by parsing a channel packet.
+ * A data channel. Created by parsing a channel packet. Any number of threads
+ * may read from a <code>Channel</code> at the same time.
  *
  * @author Greg Clark
  */
 public class Channel {
-	private ByteBuffer data;	// The parsed data, tuple elements are byte-aligned
+	private ByteBuffer data;	// The parsed data, tuple elements are byte-aligned. 
+								// May be a read-only view of the sensor packet
 	private int[] dimensions;	// The dimensions of how to interpret data. ex: [640; 480] for VGA
 	private int[] dimProducts;	/* Used for quickly calculating index. 
 									dimProducts[dimProducts.length-1] = tupleSize
@@ -42,12 +48,27 @@ public class Channel {
 	private ElementMetaData[] elementMetaData;	// metadata used when accessing elements in a tuple
 	private double frequency;	// Frequency in Hz at which this channel can update
 	private String name;
+	private ElementWidener widener;	// null if data is a view of the packed data
+	private ByteBuffer packedData;	// the packed data the elements are widened from
 	
 	/**
 	 * Retrieves the channel's dimensions.
-	 * @return the channel's dimensions
+	 * @return a copy of the channel's dimensions
 	 */
-	public int[] getDimensions() { return dimensions; }
+	public int[] getDimensions() { return dimensions.clone(); }
+	
+	/**
+	 * Retrieves the number of dimensions of the channel.
+	 * @return the number of dimensions
+	 */
+	public int getNumberOfDimensions() { return dimensions.length; }
+	
+	/**
+	 * Retrieves the size of one of the channel's dimensions.
+	 * @param dimension the 0-based index of the dimension
+	 * @return the size of the dimension
+	 */
+	public int getDimension(int dimension) { return dimensions[dimension]; }
 	
 	/**
 	 * Retrieves the size of a tuple in this channel in bytes.
@@ -63,9 +84,22 @@ public class Channel {
 	
 	/**
 	 * Retrieves an array of the metadata of the elements in a tuple.
-	 * @return the array of metadata objects per element in a tuple
+	 * @return a copy of the array of metadata objects per element in a tuple
+	 */
+	public ElementMetaData[] getElementMetaData() { return elementMetaData.clone(); }
+	
+	/**
+	 * Retrieves the metadata of one element of a tuple.
+	 * @param element the 0-based index of the element in a tuple
+	 * @return the element's metadata
 	 */
-	public ElementMetaData[] getElementMetaData() { return elementMetaData; }
+	public ElementMetaData getElementMetaData(int element) { return elementMetaData[element]; }
+	
+	/**
+	 * Retrieves the number of elements in a tuple.
+	 * @return the number of elements
+	 */
+	public int getNumberOfElements() { return elementMetaData.length; }
 	
 	/**
 	 * Retrieves the frequency in Hz at which this channel can be updated.
@@ -80,78 +114,79 @@ public class Channel {
 	public String getName() { return name; }
 	
 	/**
-	 * Constructs a Channel from a {@link UnifyingAPI.UniChannel <code>UniChannel</code>}
+	 * Constructs a Channel from a {@link UnifyingAPI.UniChannel <code>UniChannel</code>}.
+	 * If no element needs to be widened into a primitive type, the <code>Channel</code>
+	 * is a read-only view of the <code>UniChannel</code>'s data and nothing is copied.
 	 * @param uniChannel the <code>UniChannel</code> from which to construct a <code>Channel</code>
 	 */
 	public Channel(UniChannel uniChannel) {
-		UniChannelHeader header = uniChannel.getHeader();
-		UniElementDescriptor descriptors[] = header.getElementDescriptors();
-		
+		this(uniChannel, true);
+	}
+	
+	/**
+	 * Constructs a Channel from a {@link UnifyingAPI.UniChannel <code>UniChannel</code>},
+	 * optionally leaving the widening of its elements to later calls to 
+	 * {@link #widen(int, int)}.
+	 * @param uniChannel the <code>UniChannel</code> from which to construct a <code>Channel</code>
+	 * @param widenNow true to widen every tuple before returning
+	 */
+	Channel(UniChannel uniChannel, boolean widenNow) {
+		this(uniChannel, new ChannelDecodePlan(uniChannel.getHeader()), widenNow);
+	}
+	
+	/**
+	 * Constructs a Channel from a {@link UnifyingAPI.UniChannel <code>UniChannel</code>}
+	 * using a decode plan built for its header, optionally leaving the widening 
+	 * of its elements to later calls to {@link #widen(int, int)}.
+	 * @param uniChannel the <code>UniChannel</code> from which to construct a <code>Channel</code>
+	 * @param plan the decode plan for the <code>UniChannel</code>'s header
+	 * @param widenNow true to widen every tuple before returning
+	 */
+	Channel(UniChannel uniChannel, ChannelDecodePlan plan, boolean widenNow) {
+		UniChannelHeader header = plan.getHeader();
 		
 		this.frequency = header.getFrequency();
 		this.numTuples = header.getNumberTuples();
-		this.name = header.getName();
+		this.name = plan.getName();
+		this.elementMetaData = plan.getElementMetaData();
+		this.tupleSize = plan.getTupleSize();
+		this.dimensions = plan.getDimensions();
+		this.dimProducts = plan.getDimensionProducts();
+		this.widener = plan.getWidener();
 		
-		// Set element metadata
-		elementMetaData = new ElementMetaData[descriptors.length];
-		int bufferIndex = 0;
-		for (int i = 0; i < descriptors.length; ++i)
+		// The packed data already has the parsed layout
+		if (widener == null)
 		{
-			elementMetaData[i] = new ElementMetaData(descriptors[i], bufferIndex);
-			bufferIndex += elementMetaData[i].getSize();
+			this.data = uniChannel.getData().slice().asReadOnlyBuffer();
+			return;
 		}
 		
-		// Set tupleSize
-		this.tupleSize = bufferIndex;
-		
-		// Set 1D dimension
-		// TODO: only takes int for dimension. ByteBuffer can only allocate 2GB anyway
-		this.dimensions = new int[1];
-		this.dimensions[0] = (int) this.numTuples;
-		this.dimProducts = new int[1];
-		this.dimProducts[0] = this.tupleSize;
-		
 		// Parse data
-		// assuming given sensor packet is byte aligned per element
 		// need to convert 3, 5, 6, and 7 byte integers into primitives
-		
-		// Create null byte arrays
-		byte[][] nullBytes = new byte[elementMetaData.length][];
-		for (int i = 0; i < elementMetaData.length; ++i)
-		{
-			int packedSize = descriptors[i].getSize();
-			int numNullBytes = elementMetaData[i].getSize() - packedSize;
-			nullBytes[i] = new byte[numNullBytes];
-		}
-		
 		this.data = ByteBuffer.allocate((int) (tupleSize * numTuples));
-		int bytesRead = 0;
-		int bytesWritten = 0;
-		ByteBuffer originalData = uniChannel.getData();
-		for (int tupleCount = 0; tupleCount < numTuples; ++tupleCount)
-		{
-			for (int elementCount = 0; elementCount < elementMetaData.length; ++elementCount)
-			{
-				originalData.position(bytesRead);
-				this.data.position(bytesWritten);
-				
-				// Create element ByteBuffer
-				ByteBuffer element = originalData.slice();
-				int packedSize = descriptors[elementCount].getSize();
-				element.limit(packedSize);
-				
-				// Write null bytes to highest order bytes
-				this.data.put(nullBytes[elementCount]);
-				
-				// Write element to parsed data buffer
-				this.data.put(element);
-				
-				// Increment byte counts
-				bytesRead += packedSize;
-				bytesWritten += elementMetaData[elementCount].getSize();
-			}
+		this.packedData = uniChannel.getData();
+		if (widenNow)
+		{
+			widen(0, (int) numTuples);
 		}
 	}
+	
+	/**
+	 * Tells whether the channel's elements are widened from the packed data.
+	 * @return true if the data has to be widened, false if the channel is a 
+	 * view of the packed data
+	 */
+	boolean needsWidening() { return widener != null; }
+	
+	/**
+	 * Widens a range of tuples from the packed data. Different ranges may be 
+	 * widened by different threads at the same time.
+	 * @param firstTuple the index of the first tuple to widen
+	 * @param count the number of tuples to widen
+	 */
+	void widen(int firstTuple, int count) {
+		widener.widen(packedData, data, firstTuple, count);
+	}
 
 	/**
 	 * Sets the dimensions of the channel. Returns true if properly set
@@ -188,8 +223,8 @@ public class Channel {
 	 * @param indices of tuple, 0-indexed. e.g. 479, 639 for last pixel in a VGA image
 	 * @return the <code>Tuple</code>
 	 * @throws IllegalArgumentException if the dimensionality is higher than this
-	 *  <code>Channel</code>'s dimensionality or if the given index is too high 
-	 *  for the corresponding dimension
+	 *  <code>Channel</code>'s dimensionality or if the given index is negative
+	 *  or too high for the corresponding dimension
 	 */
 	public Tuple getTuple(int... indices) throws IllegalArgumentException {
 		// Throw an exception if too many arguments
@@ -205,22 +240,658 @@ public class Channel {
 		for (int i = 0; i < indices.length; ++i)
 		{
 			// Throw an exception of the given index is out of bounds
-			if (indices[i] >= dimensions[i])
+			if (indices[i] < 0 || indices[i] >= dimensions[i])
 			{
-				String message = String.format("Index for this dimension too high. Asked for index %d, max index %d\n",
-						index, dimensions[i]-1);
+				String message = String.format("Index for this dimension out of bounds. Asked for index %d, max index %d\n",
+						indices[i], dimensions[i]-1);
 				throw new IllegalArgumentException(message);
 			}
 			index += (indices[i] * dimProducts[i]);
 		}
 		
-		// Create new ByteBuffer
-		data.position(index);
-		ByteBuffer buffer = data.slice();
-		data.rewind();
-		buffer.limit(tupleSize);
-		
-		Tuple tuple = new Tuple(buffer, elementMetaData);
+		// The tuple reads the shared data at its offset, the data buffer's
+		// position is never changed so concurrent readers are safe
+		Tuple tuple = new Tuple(data, elementMetaData, index);
 		return tuple;
 	}
+
+	/**
+	 * Creates a cursor over the tuples of this <code>Channel</code>. The cursor
+	 * starts before the first tuple and reads elements straight from the 
+	 * channel's data, so moving it and reading elements allocates nothing.
+	 * @return the cursor
+	 */
+	public TupleCursor cursor() {
+		return new TupleCursor(this, data, elementMetaData);
+	}
+	
+	/**
+	 * Copies one element of a range of tuples into an array, cast to a 
+	 * <code>short</code> with the same rules as {@link Tuple#getElementCastToShort(int)}.
+	 * @param element the 0-based index of the element in a tuple
+	 * @param firstTuple the index of the first tuple to read
+	 * @param numTuples the number of tuples to read
+	 * @param dst the array to copy into
+	 * @param dstOffset the index in <code>dst</code> of the first element written
+	 * @param dstStride the distance in <code>dst</code> between consecutive elements written
+	 * @throws IllegalArgumentException if the element or the range of tuples 
+	 * does not exist, or if <code>dst</code> is too small
+	 */
+	public void readShorts(int element, int firstTuple, int numTuples, 
+			short[] dst, int dstOffset, int dstStride) throws IllegalArgumentException
+	{
+		checkBulkRead(element, firstTuple, numTuples, dst.length, dstOffset, dstStride);
+		copyShorts(element, firstTuple, numTuples, dst, dstOffset, dstStride);
+	}
+	
+	/**
+	 * Does the work of {@link #readShorts(int, int, int, short[], int, int)} once 
+	 * the arguments have been checked.
+	 */
+	private void copyShorts(int element, int firstTuple, int numTuples, 
+			short[] dst, int dstOffset, int dstStride)
+	{
+		ElementMetaData metaData = elementMetaData[element];
+		int index = firstTuple * tupleSize + metaData.getBufferIndex();
+		int end = dstOffset + numTuples * dstStride;
+		switch (metaData.getType())
+		{
+		case int8:
+			if (metaData.isUnsigned())
+			{
+				for (int d = dstOffset; d != end; d += dstStride, index += tupleSize)
+				{
+					dst[d] = (short) (data.get(index) & 0xFF);
+				}
+			}
+			else
+			{
+				for (int d = dstOffset; d != end; d += dstStride, index += tupleSize)
+				{
+					dst[d] = data.get(index);
+				}
+			}
+			break;
+		case int16:
+			for (int d = dstOffset; d != end; d += dstStride, index += tupleSize)
+			{
+				dst[d] = data.getShort(index);
+			}
+			break;
+		case int32:
+			for (int d = dstOffset; d != end; d += dstStride, index += tupleSize)
+			{
+				dst[d] = (short) data.getInt(index);
+			}
+			break;
+		case int64:
+			for (int d = dstOffset; d != end; d += dstStride, index += tupleSize)
+			{
+				dst[d] = (short) data.getLong(index);
+			}
+			break;
+		case float32:
+			for (int d = dstOffset; d != end; d += dstStride, index += tupleSize)
+			{
+				dst[d] = (short) data.getFloat(index);
+			}
+			break;
+		case float64:
+			for (int d = dstOffset; d != end; d += dstStride, index += tupleSize)
+			{
+				dst[d] = (short) data.getDouble(index);
+			}
+			break;
+		default:
+			for (int d = dstOffset; d != end; d += dstStride)
+			{
+				dst[d] = 0;
+			}
+		}
+	}
+	
+	/**
+	 * Copies one element of a range of tuples into a buffer at the buffer's 
+	 * position, cast to a <code>short</code>. The buffer's position is 
+	 * advanced by <code>numTuples</code>.
+	 * @param element the 0-based index of the element in a tuple
+	 * @param firstTuple the index of the first tuple to read
+	 * @param numTuples the number of tuples to read
+	 * @param dst the buffer to copy into
+	 * @throws IllegalArgumentException if the element or the range of tuples 
+	 * does not exist, or if <code>dst</code> has too little room
+	 */
+	public void readShorts(int element, int firstTuple, int numTuples, ShortBuffer dst) throws IllegalArgumentException
+	{
+		checkBulkRead(element, firstTuple, numTuples, dst.remaining(), 0, 1);
+		
+		int position = dst.position();
+		if (dst.hasArray())
+		{
+			copyShorts(element, firstTuple, numTuples, dst.array(), dst.arrayOffset() + position, 1);
+		}
+		else
+		{
+			ElementMetaData metaData = elementMetaData[element];
+			int index = firstTuple * tupleSize + metaData.getBufferIndex();
+			for (int i = 0; i < numTuples; ++i, index += tupleSize)
+			{
+				dst.put(position + i, Tuple.castToShort(data, index, metaData));
+			}
+		}
+		dst.position(position + numTuples);
+	}
+	
+	/**
+	 * Copies every element of every tuple into an array, cast to a 
+	 * <code>short</code>. Elements are written in the order they appear in 
+	 * the channel, tuple after tuple.
+	 * @param dst the array to copy into
+	 * @param dstOffset the index in <code>dst</code> of the first element written
+	 * @throws IllegalArgumentException if <code>dst</code> is too small
+	 */
+	public void readShorts(short[] dst, int dstOffset) throws IllegalArgumentException
+	{
+		checkChannelRead(dst.length, dstOffset);
+		for (int element = 0; element < elementMetaData.length; ++element)
+		{
+			copyShorts(element, 0, (int) numTuples, dst, dstOffset + element, elementMetaData.length);
+		}
+	}
+	
+	/**
+	 * Copies one element of a range of tuples into an array, cast to an 
+	 * <code>int</code> with the same rules as {@link Tuple#getElementCastToInt(int)}.
+	 * @param element the 0-based index of the element in a tuple
+	 * @param firstTuple the index of the first tuple to read
+	 * @param numTuples the number of tuples to read
+	 * @param dst the array to copy into
+	 * @param dstOffset the index in <code>dst</code> of the first element written
+	 * @param dstStride the distance in <code>dst</code> between consecutive elements written
+	 * @throws IllegalArgumentException if the element or the range of tuples 
+	 * does not exist, or if <code>dst</code> is too small
+	 */
+	public void readInts(int element, int firstTuple, int numTuples, 
+			int[] dst, int dstOffset, int dstStride) throws IllegalArgumentException
+	{
+		checkBulkRead(element, firstTuple, numTuples, dst.length, dstOffset, dstStride);
+		copyInts(element, firstTuple, numTuples, dst, dstOffset, dstStride);
+	}
+	
+	/**
+	 * Does the work of {@link #readInts(int, int, int, int[], int, int)} once 
+	 * the arguments have been checked.
+	 */
+	private void copyInts(int element, int firstTuple, int numTuples, 
+			int[] dst, int dstOffset, int dstStride)
+	{
+		ElementMetaData metaData = elementMetaData[element];
+		int index = firstTuple * tupleSize + metaData.getBufferIndex();
+		int end = dstOffset + numTuples * dstStride;
+		switch (metaData.getType())
+		{
+		case int8:
+			if (metaData.isUnsigned())
+			{
+				for (int d = dstOffset; d != end; d += dstStride, index += tupleSize)
+				{
+					dst[d] = data.get(index) & 0xFF;
+				}
+			}
+			else
+			{
+				for (int d = dstOffset; d != end; d += dstStride, index += tupleSize)
+				{
+					dst[d] = data.get(index);
+				}
+			}
+			break;
+		case int16:
+			if (metaData.isUnsigned())
+			{
+				for (int d = dstOffset; d != end; d += dstStride, index += tupleSize)
+				{
+					dst[d] = data.getShort(index) & 0xFFFF;
+				}
+			}
+			else
+			{
+				for (int d = dstOffset; d != end; d += dstStride, index += tupleSize)
+				{
+					dst[d] = data.getShort(index);
+				}
+			}
+			break;
+		case int32:
+			for (int d = dstOffset; d != end; d += dstStride, index += tupleSize)
+			{
+				dst[d] = data.getInt(index);
+			}
+			break;
+		case int64:
+			for (int d = dstOffset; d != end; d += dstStride, index += tupleSize)
+			{
+				dst[d] = (int) data.getLong(index);
+			}
+			break;
+		case float32:
+			for (int d = dstOffset; d != end; d += dstStride, index += tupleSize)
+			{
+				dst[d] = (int) data.getFloat(index);
+			}
+			break;
+		case float64:
+			for (int d = dstOffset; d != end; d += dstStride, index += tupleSize)
+			{
+				dst[d] = (int) data.getDouble(index);
+			}
+			break;
+		default:
+			for (int d = dstOffset; d != end; d += dstStride)
+			{
+				dst[d] = 0;
+			}
+		}
+	}
+	
+	/**
+	 * Copies one element of a range of tuples into a buffer at the buffer's 
+	 * position, cast to an <code>int</code>. The buffer's position is 
+	 * advanced by <code>numTuples</code>.
+	 * @param element the 0-based index of the element in a tuple
+	 * @param firstTuple the index of the first tuple to read
+	 * @param numTuples the number of tuples to read
+	 * @param dst the buffer to copy into
+	 * @throws IllegalArgumentException if the element or the range of tuples 
+	 * does not exist, or if <code>dst</code> has too little room
+	 */
+	public void readInts(int element, int firstTuple, int numTuples, IntBuffer dst) throws IllegalArgumentException
+	{
+		checkBulkRead(element, firstTuple, numTuples, dst.remaining(), 0, 1);
+		
+		int position = dst.position();
+		if (dst.hasArray())
+		{
+			copyInts(element, firstTuple, numTuples, dst.array(), dst.arrayOffset() + position, 1);
+		}
+		else
+		{
+			ElementMetaData metaData = elementMetaData[element];
+			int index = firstTuple * tupleSize + metaData.getBufferIndex();
+			for (int i = 0; i < numTuples; ++i, index += tupleSize)
+			{
+				dst.put(position + i, Tuple.castToInt(data, index, metaData));
+			}
+		}
+		dst.position(position + numTuples);
+	}
+	
+	/**
+	 * Copies every element of every tuple into an array, cast to an 
+	 * <code>int</code>. Elements are written in the order they appear in 
+	 * the channel, tuple after tuple.
+	 * @param dst the array to copy into
+	 * @param dstOffset the index in <code>dst</code> of the first element written
+	 * @throws IllegalArgumentException if <code>dst</code> is too small
+	 */
+	public void readInts(int[] dst, int dstOffset) throws IllegalArgumentException
+	{
+		checkChannelRead(dst.length, dstOffset);
+		for (int element = 0; element < elementMetaData.length; ++element)
+		{
+			copyInts(element, 0, (int) numTuples, dst, dstOffset + element, elementMetaData.length);
+		}
+	}
+	
+	/**
+	 * Copies one element of a range of tuples into an array, cast to a 
+	 * <code>float</code> with the same rules as {@link Tuple#getElementCastToFloat(int)}.
+	 * @param element the 0-based index of the element in a tuple
+	 * @param firstTuple the index of the first tuple to read
+	 * @param numTuples the number of tuples to read
+	 * @param dst the array to copy into
+	 * @param dstOffset the index in <code>dst</code> of the first element written
+	 * @param dstStride the distance in <code>dst</code> between consecutive elements written
+	 * @throws IllegalArgumentException if the element or the range of tuples 
+	 * does not exist, or if <code>dst</code> is too small
+	 */
+	public void readFloats(int element, int firstTuple, int numTuples, 
+			float[] dst, int dstOffset, int dstStride) throws IllegalArgumentException
+	{
+		checkBulkRead(element, firstTuple, numTuples, dst.length, dstOffset, dstStride);
+		copyFloats(element, firstTuple, numTuples, dst, dstOffset, dstStride);
+	}
+	
+	/**
+	 * Does the work of {@link #readFloats(int, int, int, float[], int, int)} once 
+	 * the arguments have been checked.
+	 */
+	private void copyFloats(int element, int firstTuple, int numTuples, 
+			float[] dst, int dstOffset, int dstStride)
+	{
+		ElementMetaData metaData = elementMetaData[element];
+		int index = firstTuple * tupleSize + metaData.getBufferIndex();
+		int end = dstOffset + numTuples * dstStride;
+		switch (metaData.getType())
+		{
+		case int8:
+			if (metaData.isUnsigned())
+			{
+				for (int d = dstOffset; d != end; d += dstStride, index += tupleSize)
+				{
+					dst[d] = data.get(index) & 0xFF;
+				}
+			}
+			else
+			{
+				for (int d = dstOffset; d != end; d += dstStride, index += tupleSize)
+				{
+					dst[d] = data.get(index);
+				}
+			}
+			break;
+		case int16:
+			if (metaData.isUnsigned())
+			{
+				for (int d = dstOffset; d != end; d += dstStride, index += tupleSize)
+				{
+					dst[d] = data.getShort(index) & 0xFFFF;
+				}
+			}
+			else
+			{
+				for (int d = dstOffset; d != end; d += dstStride, index += tupleSize)
+				{
+					dst[d] = data.getShort(index);
+				}
+			}
+			break;
+		case int32:
+			if (metaData.isUnsigned())
+			{
+				for (int d = dstOffset; d != end; d += dstStride, index += tupleSize)
+				{
+					dst[d] = (float) (data.getInt(index) & 0xFFFFFFFFL);
+				}
+			}
+			else
+			{
+				for (int d = dstOffset; d != end; d += dstStride, index += tupleSize)
+				{
+					dst[d] = data.getInt(index);
+				}
+			}
+			break;
+		case int64:
+			for (int d = dstOffset; d != end; d += dstStride, index += tupleSize)
+			{
+				dst[d] = (float) data.getLong(index);
+			}
+			break;
+		case float32:
+			for (int d = dstOffset; d != end; d += dstStride, index += tupleSize)
+			{
+				dst[d] = data.getFloat(index);
+			}
+			break;
+		case float64:
+			for (int d = dstOffset; d != end; d += dstStride, index += tupleSize)
+			{
+				dst[d] = (float) data.getDouble(index);
+			}
+			break;
+		default:
+			for (int d = dstOffset; d != end; d += dstStride)
+			{
+				dst[d] = 0;
+			}
+		}
+	}
+	
+	/**
+	 * Copies one element of a range of tuples into a buffer at the buffer's 
+	 * position, cast to a <code>float</code>. The buffer's position is 
+	 * advanced by <code>numTuples</code>.
+	 * @param element the 0-based index of the element in a tuple
+	 * @param firstTuple the index of the first tuple to read
+	 * @param numTuples the number of tuples to read
+	 * @param dst the buffer to copy into
+	 * @throws IllegalArgumentException if the element or the range of tuples 
+	 * does not exist, or if <code>dst</code> has too little room
+	 */
+	public void readFloats(int element, int firstTuple, int numTuples, FloatBuffer dst) throws IllegalArgumentException
+	{
+		checkBulkRead(element, firstTuple, numTuples, dst.remaining(), 0, 1);
+		
+		int position = dst.position();
+		if (dst.hasArray())
+		{
+			copyFloats(element, firstTuple, numTuples, dst.array(), dst.arrayOffset() + position, 1);
+		}
+		else
+		{
+			ElementMetaData metaData = elementMetaData[element];
+			int index = firstTuple * tupleSize + metaData.getBufferIndex();
+			for (int i = 0; i < numTuples; ++i, index += tupleSize)
+			{
+				dst.put(position + i, Tuple.castToFloat(data, index, metaData));
+			}
+		}
+		dst.position(position + numTuples);
+	}
+	
+	/**
+	 * Copies every element of every tuple into an array, cast to a 
+	 * <code>float</code>. Elements are written in the order they appear in 
+	 * the channel, tuple after tuple.
+	 * @param dst the array to copy into
+	 * @param dstOffset the index in <code>dst</code> of the first element written
+	 * @throws IllegalArgumentException if <code>dst</code> is too small
+	 */
+	public void readFloats(float[] dst, int dstOffset) throws IllegalArgumentException
+	{
+		checkChannelRead(dst.length, dstOffset);
+		for (int element = 0; element < elementMetaData.length; ++element)
+		{
+			copyFloats(element, 0, (int) numTuples, dst, dstOffset + element, elementMetaData.length);
+		}
+	}
+	
+	/**
+	 * Copies one element of a range of tuples into an array, cast to a 
+	 * <code>double</code> with the same rules as {@link Tuple#getElementCastToDouble(int)}.
+	 * @param element the 0-based index of the element in a tuple
+	 * @param firstTuple the index of the first tuple to read
+	 * @param numTuples the number of tuples to read
+	 * @param dst the array to copy into
+	 * @param dstOffset the index in <code>dst</code> of the first element written
+	 * @param dstStride the distance in <code>dst</code> between consecutive elements written
+	 * @throws IllegalArgumentException if the element or the range of tuples 
+	 * does not exist, or if <code>dst</code> is too small
+	 */
+	public void readDoubles(int element, int firstTuple, int numTuples, 
+			double[] dst, int dstOffset, int dstStride) throws IllegalArgumentException
+	{
+		checkBulkRead(element, firstTuple, numTuples, dst.length, dstOffset, dstStride);
+		copyDoubles(element, firstTuple, numTuples, dst, dstOffset, dstStride);
+	}
+	
+	/**
+	 * Does the work of {@link #readDoubles(int, int, int, double[], int, int)} once 
+	 * the arguments have been checked.
+	 */
+	private void copyDoubles(int element, int firstTuple, int numTuples, 
+			double[] dst, int dstOffset, int dstStride)
+	{
+		ElementMetaData metaData = elementMetaData[element];
+		int index = firstTuple * tupleSize + metaData.getBufferIndex();
+		int end = dstOffset + numTuples * dstStride;
+		switch (metaData.getType())
+		{
+		case int8:
+			if (metaData.isUnsigned())
+			{
+				for (int d = dstOffset; d != end; d += dstStride, index += tupleSize)
+				{
+					dst[d] = data.get(index) & 0xFF;
+				}
+			}
+			else
+			{
+				for (int d = dstOffset; d != end; d += dstStride, index += tupleSize)
+				{
+					dst[d] = data.get(index);
+				}
+			}
+			break;
+		case int16:
+			if (metaData.isUnsigned())
+			{
+				for (int d = dstOffset; d != end; d += dstStride, index += tupleSize)
+				{
+					dst[d] = data.getShort(index) & 0xFFFF;
+				}
+			}
+			else
+			{
+				for (int d = dstOffset; d != end; d += dstStride, index += tupleSize)
+				{
+					dst[d] = data.getShort(index);
+				}
+			}
+			break;
+		case int32:
+			if (metaData.isUnsigned())
+			{
+				for (int d = dstOffset; d != end; d += dstStride, index += tupleSize)
+				{
+					dst[d] = (double) (data.getInt(index) & 0xFFFFFFFFL);
+				}
+			}
+			else
+			{
+				for (int d = dstOffset; d != end; d += dstStride, index += tupleSize)
+				{
+					dst[d] = data.getInt(index);
+				}
+			}
+			break;
+		case int64:
+			for (int d = dstOffset; d != end; d += dstStride, index += tupleSize)
+			{
+				dst[d] = (double) data.getLong(index);
+			}
+			break;
+		case float32:
+			for (int d = dstOffset; d != end; d += dstStride, index += tupleSize)
+			{
+				dst[d] = data.getFloat(index);
+			}
+			break;
+		case float64:
+			for (int d = dstOffset; d != end; d += dstStride, index += tupleSize)
+			{
+				dst[d] = data.getDouble(index);
+			}
+			break;
+		default:
+			for (int d = dstOffset; d != end; d += dstStride)
+			{
+				dst[d] = 0;
+			}
+		}
+	}
+	
+	/**
+	 * Copies one element of a range of tuples into a buffer at the buffer's 
+	 * position, cast to a <code>double</code>. The buffer's position is 
+	 * advanced by <code>numTuples</code>.
+	 * @param element the 0-based index of the element in a tuple
+	 * @param firstTuple the index of the first tuple to read
+	 * @param numTuples the number of tuples to read
+	 * @param dst the buffer to copy into
+	 * @throws IllegalArgumentException if the element or the range of tuples 
+	 * does not exist, or if <code>dst</code> has too little room
+	 */
+	public void readDoubles(int element, int firstTuple, int numTuples, DoubleBuffer dst) throws IllegalArgumentException
+	{
+		checkBulkRead(element, firstTuple, numTuples, dst.remaining(), 0, 1);
+		
+		int position = dst.position();
+		if (dst.hasArray())
+		{
+			copyDoubles(element, firstTuple, numTuples, dst.array(), dst.arrayOffset() + position, 1);
+		}
+		else
+		{
+			ElementMetaData metaData = elementMetaData[element];
+			int index = firstTuple * tupleSize + metaData.getBufferIndex();
+			for (int i = 0; i < numTuples; ++i, index += tupleSize)
+			{
+				dst.put(position + i, Tuple.castToDouble(data, index, metaData));
+			}
+		}
+		dst.position(position + numTuples);
+	}
+	
+	/**
+	 * Copies every element of every tuple into an array, cast to a 
+	 * <code>double</code>. Elements are written in the order they appear in 
+	 * the channel, tuple after tuple.
+	 * @param dst the array to copy into
+	 * @param dstOffset the index in <code>dst</code> of the first element written
+	 * @throws IllegalArgumentException if <code>dst</code> is too small
+	 */
+	public void readDoubles(double[] dst, int dstOffset) throws IllegalArgumentException
+	{
+		checkChannelRead(dst.length, dstOffset);
+		for (int element = 0; element < elementMetaData.length; ++element)
+		{
+			copyDoubles(element, 0, (int) numTuples, dst, dstOffset + element, elementMetaData.length);
+		}
+	}
+	
+	/**
+	 * Checks that every element of every tuple fits in an array, before 
+	 * anything is written to it.
+	 */
+	private void checkChannelRead(int dstLength, int dstOffset) throws IllegalArgumentException
+	{
+		long numValues = numTuples * elementMetaData.length;
+		if (dstOffset < 0 || dstOffset + numValues > dstLength)
+		{
+			String message = String.format("Destination of length %d too small for %d elements at offset %d\n",
+					dstLength, numValues, dstOffset);
+			throw new IllegalArgumentException(message);
+		}
+	}
+	
+	/**
+	 * Checks the arguments of a bulk read.
+	 * @throws IllegalArgumentException if the element or the range of tuples 
+	 * does not exist, or if the destination is too small
+	 */
+	private void checkBulkRead(int element, int firstTuple, int numTuples,
+			int dstLength, int dstOffset, int dstStride) throws IllegalArgumentException
+	{
+		if (element < 0 || element >= elementMetaData.length)
+		{
+			String message = String.format("No element %d. Channel has %d elements per tuple\n",
+					element, elementMetaData.length);
+			throw new IllegalArgumentException(message);
+		}
+		if (firstTuple < 0 || numTuples < 0 || (long) firstTuple + numTuples > this.numTuples)
+		{
+			String message = String.format("Asked for tuples %d to %d, Channel has %d tuples\n",
+					firstTuple, (long) firstTuple + numTuples - 1, this.numTuples);
+			throw new IllegalArgumentException(message);
+		}
+		if (dstOffset < 0 || dstStride < 1 || 
+				(numTuples > 0 && dstOffset + (long) (numTuples - 1) * dstStride >= dstLength))
+		{
+			String message = String.format("Destination of length %d too small for %d elements at offset %d with stride %d\n",
+					dstLength, numTuples, dstOffset, dstStride);
+			throw new IllegalArgumentException(message);
+		}
+	}
 }
\ No newline at end of file
@@ -0,0 +1,153 @@
+/**************************************************************
+ This file is part of Kinect Sensor Architecture Development Project.
+
+    Kinect Sensor Architecture Development Project is free software:
+	you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Kinect Sensor Architecture Development Project is distributed in
+	the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with Kinect Sensor Architecture Development Project.  If
+	not, see <http://www.gnu.org/licenses/>.
+**************************************************************/
+/**************************************************************
+The work was done in joint collaboration with Cisco Systems Inc.
+Copyright © 2012, Cisco Systems, Inc. and UCLA
+*************************************************************/
+
+package UnifyingAPI;
+
+/**
+ * Everything needed to decode the data of a channel with a given layout:
+ * element metadata, tuple size, default dimensions and how elements are
+ * widened. A plan depends only on the channel header, so <code>Sensor</code>
+ * builds one per channel layout and reuses it for every packet with that 
+ * layout. Plans are immutable and may be shared between threads.
+ */
+final class ChannelDecodePlan {
+	private UniChannelHeader header;
+	private ChannelKey key;		// null if the plan was not built by a Sensor
+	private String name;		// the channel name, shared with the key
+	private ElementMetaData[] elementMetaData;	// metadata used when accessing elements in a tuple
+	private int tupleSize;		// size of a parsed tuple in bytes
+	private int[] dimensions;	// 1D dimensions, the channel's dimensions until set otherwise
+	private int[] dimProducts;	// dimension products matching dimensions
+	private ElementWidener widener;	// null if the packed data can be used without widening
+	
+	/**
+	 * Build the decode plan for channels with the given header.
+	 * @param header the channel header
+	 */
+	ChannelDecodePlan(UniChannelHeader header)
+	{
+		this(header, null);
+	}
+	
+	/**
+	 * Build the decode plan for channels with the given header.
+	 * @param header the channel header
+	 * @param key the key of the channel's name, <code>null</code> if there is none
+	 * @throws IllegalArgumentException if the parsed channel would not fit 
+	 * in a <code>ByteBuffer</code>
+	 */
+	ChannelDecodePlan(UniChannelHeader header, ChannelKey key) throws IllegalArgumentException
+	{
+		UniElementDescriptor descriptors[] = header.getElementDescriptors();
+		this.header = header;
+		this.key = key;
+		this.name = (key != null)?key.getName():header.getName();
+		
+		// Set element metadata
+		elementMetaData = new ElementMetaData[descriptors.length];
+		int bufferIndex = 0;
+		boolean aligned = true;
+		for (int i = 0; i < descriptors.length; ++i)
+		{
+			elementMetaData[i] = new ElementMetaData(descriptors[i], bufferIndex);
+			bufferIndex += elementMetaData[i].getSize();
+			aligned &= descriptors[i].isSizedInBytes() && 
+					descriptors[i].getPackedSizeInBytes() == elementMetaData[i].getSize();
+		}
+		this.tupleSize = bufferIndex;
+		
+		// The parsed data is held in one ByteBuffer, so tuple indices and 
+		// dimensions fit in an int
+		if ((long) tupleSize * header.getNumberTuples() > Integer.MAX_VALUE)
+		{
+			String message = String.format("Channel %s has %d tuples of %d bytes, more than a ByteBuffer holds\n",
+					name, header.getNumberTuples(), tupleSize);
+			throw new IllegalArgumentException(message);
+		}
+		
+		// Set 1D dimension
+		this.dimensions = new int[1];
+		this.dimensions[0] = (int) header.getNumberTuples();
+		this.dimProducts = new int[1];
+		this.dimProducts[0] = this.tupleSize;
+		
+		// If no element needs widening, the packed data already has the 
+		// parsed layout and can be used without copying
+		if (!aligned)
+		{
+			this.widener = new ElementWidener(descriptors, elementMetaData);
+		}
+	}
+	
+	/**
+	 * Retrieves the channel header the plan was built for.
+	 * @return the channel header
+	 */
+	UniChannelHeader getHeader() { return header; }
+	
+	/**
+	 * Retrieves the key of the channel's name.
+	 * @return the channel key, <code>null</code> if the plan was not built by a <code>Sensor</code>
+	 */
+	ChannelKey getKey() { return key; }
+	
+	/**
+	 * Retrieves the name of the channel.
+	 * @return the name of the channel
+	 */
+	String getName() { return name; }
+	
+	/**
+	 * Retrieves the metadata of the elements in a parsed tuple. Shared by 
+	 * every <code>Channel</code> with this layout, must not be modified.
+	 * @return the array of metadata objects per element in a tuple
+	 */
+	ElementMetaData[] getElementMetaData() { return elementMetaData; }
+	
+	/**
+	 * Retrieves the size of a parsed tuple in bytes.
+	 * @return the size (in bytes) of a tuple
+	 */
+	int getTupleSize() { return tupleSize; }
+	
+	/**
+	 * Retrieves the default, 1-dimensional, dimensions of the channel.
+	 * Shared by every <code>Channel</code> with this layout, must not be modified.
+	 * @return the channel's default dimensions
+	 */
+	int[] getDimensions() { return dimensions; }
+	
+	/**
+	 * Retrieves the dimension products matching {@link #getDimensions()}.
+	 * @return the default dimension products
+	 */
+	int[] getDimensionProducts() { return dimProducts; }
+	
+	/**
+	 * Retrieves the widener of the channel's elements.
+	 * @return the widener, <code>null</code> if the packed data is already laid out
+	 * like the parsed data
+	 */
+	ElementWidener getWidener() { return widener; }
+}
@@ -0,0 +1,74 @@
+/**************************************************************
+ This file is part of Kinect Sensor Architecture Development Project.
+
+    Kinect Sensor Architecture Development Project is free software:
+	you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Kinect Sensor Architecture Development Project is distributed in
+	the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with Kinect Sensor Architecture Development Project.  If
+	not, see <http://www.gnu.org/licenses/>.
+**************************************************************/
+/**************************************************************
+The work was done in joint collaboration with Cisco Systems Inc.
+Copyright © 2012, Cisco Systems, Inc. and UCLA
+*************************************************************/
+
+package UnifyingAPI;
+
+/**
+ * A channel name resolved by a <code>Sensor</code>. A key is retrieved once with
+ * {@link Sensor#getChannelKey(String)} and then used to look channels up in 
+ * every <code>SensorSnapshot</code> of that <code>Sensor</code> by index, 
+ * without hashing the name. Each channel name has a single key per 
+ * <code>Sensor</code>, so keys can be compared with <code>==</code>.
+ */
+public final class ChannelKey {
+	private Sensor sensor;	// the Sensor that resolved the name
+	private String name;
+	private int id;
+	
+	/**
+	 * Construct a channel key.
+	 * @param sensor the <code>Sensor</code> resolving the name
+	 * @param name the channel name
+	 * @param id the index of the channel in the <code>Sensor</code>'s snapshots
+	 */
+	ChannelKey(Sensor sensor, String name, int id)
+	{
+		this.sensor = sensor;
+		this.name = name;
+		this.id = id;
+	}
+	
+	/**
+	 * Retrieves the name of the channel. The same <code>String</code> is 
+	 * shared by every <code>Channel</code> with this name.
+	 * @return the name of the channel
+	 */
+	public String getName() { return name; }
+	
+	/**
+	 * Retrieves the id of the channel. Ids are assigned by the <code>Sensor</code>
+	 * from 0 up, in the order the names are first seen.
+	 * @return the id of the channel
+	 */
+	public int getId() { return id; }
+	
+	/**
+	 * Retrieves the <code>Sensor</code> that resolved this key.
+	 * @return the <code>Sensor</code> whose snapshots this key is used with
+	 */
+	Sensor getSensor() { return sensor; }
+	
+	@Override
+	public String toString() { return name; }
+}
@@ -0,0 +1,135 @@
+/**************************************************************
+ This file is part of Kinect Sensor Architecture Development Project.
+
+    Kinect Sensor Architecture Development Project is free software:
+	you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Kinect Sensor Architecture Development Project is distributed in
+	the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with Kinect Sensor Architecture Development Project.  If
+	not, see <http://www.gnu.org/licenses/>.
+**************************************************************/
+/**************************************************************
+The work was done in joint collaboration with Cisco Systems Inc.
+Copyright © 2012, Cisco Systems, Inc. and UCLA
+*************************************************************/
+
+package UnifyingAPI;
+
+/**
+ * Health and throughput figures of a device registered with a 
+ * <code>SensorHub</code>, taken at one point in time.
+ */
+public final class DeviceStats {
+	private final String name;
+	private final boolean running;
+	private final Throwable error;
+	private final long frames;
+	private final double framesPerSecond;
+	private final double meanAcquisitionMillis;
+	private final double maxAcquisitionMillis;
+	private final long millisSinceLastFrame;
+	private final long stallMillis;
+	private final long conflatedFrames;
+	
+	DeviceStats(String name, boolean running, Throwable error, long frames, 
+			double framesPerSecond, double meanAcquisitionMillis, double maxAcquisitionMillis,
+			long millisSinceLastFrame, long stallMillis, long conflatedFrames)
+	{
+		this.name = name;
+		this.running = running;
+		this.error = error;
+		this.frames = frames;
+		this.framesPerSecond = framesPerSecond;
+		this.meanAcquisitionMillis = meanAcquisitionMillis;
+		this.maxAcquisitionMillis = maxAcquisitionMillis;
+		this.millisSinceLastFrame = millisSinceLastFrame;
+		this.stallMillis = stallMillis;
+		this.conflatedFrames = conflatedFrames;
+	}
+	
+	/**
+	 * Retrieves the name the device was registered under.
+	 * @return the name of the device
+	 */
+	public String getName() { return name; }
+	
+	/**
+	 * Tells whether snapshots are still being acquired from the device.
+	 * @return true if acquisition is running
+	 */
+	public boolean isRunning() { return running; }
+	
+	/**
+	 * Retrieves the error that stopped acquisition from the device.
+	 * @return the error, <code>null</code> if there was none
+	 */
+	public Throwable getError() { return error; }
+	
+	/**
+	 * Retrieves the number of snapshots acquired from the device.
+	 * @return the number of snapshots
+	 */
+	public long getFrames() { return frames; }
+	
+	/**
+	 * Retrieves the average number of snapshots acquired per second since the
+	 * device was registered.
+	 * @return the frame rate
+	 */
+	public double getFramesPerSecond() { return framesPerSecond; }
+	
+	/**
+	 * Retrieves the average time taken to get and parse a snapshot, 
+	 * including the time the device spent waiting for its hardware.
+	 * @return the mean acquisition time in milliseconds
+	 */
+	public double getMeanAcquisitionMillis() { return meanAcquisitionMillis; }
+	
+	/**
+	 * Retrieves the longest time taken to get and parse a snapshot.
+	 * @return the maximum acquisition time in milliseconds
+	 */
+	public double getMaxAcquisitionMillis() { return maxAcquisitionMillis; }
+	
+	/**
+	 * Retrieves the time since the last snapshot was acquired, or since the 
+	 * device was registered if none was.
+	 * @return the time since the last snapshot in milliseconds
+	 */
+	public long getMillisSinceLastFrame() { return millisSinceLastFrame; }
+	
+	/**
+	 * Retrieves the number of snapshots the device's subscribers skipped 
+	 * because they were slower than the device.
+	 * @return the number of conflated snapshots
+	 */
+	public long getConflatedFrames() { return conflatedFrames; }
+	
+	/**
+	 * Tells whether the device is running and has produced a snapshot 
+	 * recently. A device is stalled once ten frame periods, and at least one
+	 * second, have passed without a snapshot.
+	 * @return true if the device is healthy
+	 */
+	public boolean isHealthy() 
+	{ 
+		return running && error == null && millisSinceLastFrame <= stallMillis;
+	}
+	
+	public String toString()
+	{
+		return String.format("%s: %s, %d frames, %.1f fps, %.2f ms mean, %.2f ms max, %d conflated", 
+				name, running ? (isHealthy() ? "healthy" : "stalled") : 
+					(error != null ? "failed (" + error + ")" : "stopped"),
+				frames, framesPerSecond, meanAcquisitionMillis, maxAcquisitionMillis, conflatedFrames);
+	}
+}
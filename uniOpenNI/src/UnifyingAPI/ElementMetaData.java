@@ -95,12 +95,14 @@ public class ElementMetaData {
 			}
 		}
 		
+		this.unsigned = descriptor.isUnsigned();
 		this.bufferIndex = bufferIndex;
 	}
 	
 	private UniType type;		// Type of element
 	private int size;			// Size of element in bytes after parsing
 	private int bufferIndex;	// index in ByteBuffer in bytes of this element relative to beginning of tuple
+	private boolean unsigned;	// true if the element is an unsigned integer
 	
 	/**
 	 * Retrieves the <code>UniType</code> of the element.
@@ -114,6 +116,12 @@ public class ElementMetaData {
 	 */
 	public int getSize() { return size; }
 	
+	/**
+	 * Tells whether the element is an unsigned integral type.
+	 * @return true if the element is an unsigned integer
+	 */
+	public boolean isUnsigned() { return unsigned; }
+	
 	/**
 	 * Retrieves the 0-based byte index of the element in a <code>Tuple</code>'s 
 	 * data buffer.
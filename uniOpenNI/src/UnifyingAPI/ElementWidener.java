@@ -0,0 +1,322 @@
+/**************************************************************
+ This file is part of Kinect Sensor Architecture Development Project.
+
+    Kinect Sensor Architecture Development Project is free software:
+	you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Kinect Sensor Architecture Development Project is distributed in
+	the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with Kinect Sensor Architecture Development Project.  If
+	not, see <http://www.gnu.org/licenses/>.
+**************************************************************/
+/**************************************************************
+The work was done in joint collaboration with Cisco Systems Inc.
+Copyright © 2012, Cisco Systems, Inc. and UCLA
+*************************************************************/
+
+package UnifyingAPI;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Widens the packed tuples of a channel packet into the byte-aligned primitive
+ * layout used by a <code>Channel</code>. 3 byte integers are widened to 4 bytes
+ * and 5, 6 and 7 byte integers to 8 bytes. Signed integers are sign extended and
+ * unsigned integers are zero extended. Each width has its own loop, which 
+ * reads a value with a few shifted reads and writes it with one 
+ * <code>putInt</code> or <code>putLong</code>. Elements that do not need 
+ * widening are copied as they are, so tuples may mix element widths. 
+ * Bit-packed channels are unpacked into the smallest primitive type holding
+ * each element, e.g. an 11 bit integer is widened to 2 bytes.
+ */
+public class ElementWidener {
+	private static final int BLOCK_TUPLES = 1024;	// Tuples widened one element at a time
+	private int numElements;
+	private int[] packedSizes;		// Size in bytes of each element in the channel packet
+	private int[] packedOffsets;	// Offset in bytes of each element in a packed tuple
+	private int[] padSizes;			// Number of high-order bytes added to each element
+	private int[] widenedOffsets;	// Offset in bytes of each element in a widened tuple
+	private boolean[] signExtend;	// True if an element is filled with its sign bit
+	private int packedTupleSize;
+	private int widenedTupleSize;
+	private boolean bitPacked;		// True if elements are packed bit after bit
+	private int[] packedBits;		// Size in bits of each element in a bit-packed tuple
+	private long packedTupleBits;	// Size in bits of a bit-packed tuple
+
+	/**
+	 * Construct a widener for tuples with the given layout.
+	 * @param descriptors the element descriptors of the channel
+	 * @param elementMetaData the metadata of each element after widening
+	 */
+	public ElementWidener(UniElementDescriptor[] descriptors, ElementMetaData[] elementMetaData)
+	{
+		numElements = descriptors.length;
+		packedSizes = new int[numElements];
+		packedOffsets = new int[numElements];
+		padSizes = new int[numElements];
+		widenedOffsets = new int[numElements];
+		signExtend = new boolean[numElements];
+
+		for (int i = 0; i < numElements; ++i)
+		{
+			int sizeInBits = descriptors[i].getSize() << (descriptors[i].isSizedInBytes()?3:0);
+			packedSizes[i] = (sizeInBits >> 3) + (((sizeInBits & 7) == 0)?0:1);
+			packedOffsets[i] = packedTupleSize;
+			padSizes[i] = elementMetaData[i].getSize() - packedSizes[i];
+			widenedOffsets[i] = elementMetaData[i].getBufferIndex();
+			signExtend[i] = descriptors[i].isInteger() && !descriptors[i].isUnsigned()
+					&& descriptors[i].isSizedInBytes();
+
+			packedTupleSize += packedSizes[i];
+			widenedTupleSize += elementMetaData[i].getSize();
+		}
+		
+		packedBits = new int[numElements];
+		for (int i = 0; i < numElements; ++i)
+		{
+			packedBits[i] = descriptors[i].getSizeInBits();
+			packedTupleBits += packedBits[i];
+			bitPacked |= !descriptors[i].isSizedInBytes();
+			if (!descriptors[i].isSizedInBytes())
+			{
+				signExtend[i] = descriptors[i].isInteger() && !descriptors[i].isUnsigned();
+			}
+		}
+	}
+
+	/**
+	 * Retrieves the size in bytes of a tuple in the channel packet. For 
+	 * bit-packed channels, the size of a tuple with its elements rounded up
+	 * to whole bytes.
+	 * @return the size of a packed tuple
+	 */
+	public int getPackedTupleSize() { return packedTupleSize; }
+
+	/**
+	 * Retrieves the size in bytes of a tuple after widening.
+	 * @return the size of a widened tuple
+	 */
+	public int getWidenedTupleSize() { return widenedTupleSize; }
+
+	/**
+	 * Widens a range of tuples. Tuple indices are relative to the positions of
+	 * the source and destination buffers, which are left unchanged.
+	 * @param src the packed channel data
+	 * @param dst the buffer to write the widened tuples into
+	 * @param firstTuple the index of the first tuple to widen
+	 * @param numTuples the number of tuples to widen
+	 */
+	public void widen(ByteBuffer src, ByteBuffer dst, int firstTuple, int numTuples)
+	{
+		src = bigEndian(src);
+		dst = bigEndian(dst);
+		if (bitPacked)
+		{
+			unpackBits(src, dst, firstTuple, numTuples);
+			return;
+		}
+		
+		int srcIndex = src.position() + firstTuple * packedTupleSize;
+		int dstIndex = dst.position() + firstTuple * widenedTupleSize;
+		
+		// Each element is widened by its own loop over a block of tuples, 
+		// small enough for the block to stay in cache between elements
+		while (numTuples > 0)
+		{
+			int count = Math.min(numTuples, BLOCK_TUPLES);
+			for (int element = 0; element < numElements; ++element)
+			{
+				widenElement(element, src, srcIndex + packedOffsets[element], 
+						dst, dstIndex + widenedOffsets[element], count);
+			}
+			srcIndex += count * packedTupleSize;
+			dstIndex += count * widenedTupleSize;
+			numTuples -= count;
+		}
+	}
+	
+	private static ByteBuffer bigEndian(ByteBuffer buffer)
+	{
+		return (buffer.order() == ByteOrder.BIG_ENDIAN) ? buffer : 
+			buffer.duplicate().order(ByteOrder.BIG_ENDIAN);
+	}
+	
+	/**
+	 * Widens one element of a range of tuples, starting at the given 
+	 * absolute indices of the element in the first tuple.
+	 */
+	private void widenElement(int element, ByteBuffer src, int s, ByteBuffer dst, int d, int numTuples)
+	{
+		int packedSize = packedSizes[element];
+		if (padSizes[element] == 0)
+		{
+			copy(packedSize, src, s, dst, d, numTuples);
+			return;
+		}
+		
+		// Unsigned elements drop the sign the reads below extend them with
+		long mask = signExtend[element] ? -1L : (1L << (packedSize << 3)) - 1;
+		switch (packedSize)
+		{
+		case 3:
+			widen3(src, s, dst, d, numTuples, (int) mask);
+			break;
+		case 5:
+			widen5(src, s, dst, d, numTuples, mask);
+			break;
+		case 6:
+			widen6(src, s, dst, d, numTuples, mask);
+			break;
+		case 7:
+			widen7(src, s, dst, d, numTuples, mask);
+			break;
+		default:
+			throw new IllegalStateException(String.format("Cannot widen %d byte elements\n", packedSize));
+		}
+	}
+	
+	private void widen3(ByteBuffer src, int s, ByteBuffer dst, int d, int numTuples, int mask)
+	{
+		for (int tupleCount = 0; tupleCount < numTuples; ++tupleCount)
+		{
+			int value = (src.getShort(s) << 8) | (src.get(s + 2) & 0xFF);
+			dst.putInt(d, value & mask);
+			s += packedTupleSize;
+			d += widenedTupleSize;
+		}
+	}
+	
+	private void widen5(ByteBuffer src, int s, ByteBuffer dst, int d, int numTuples, long mask)
+	{
+		for (int tupleCount = 0; tupleCount < numTuples; ++tupleCount)
+		{
+			long value = ((long) src.get(s) << 32) | (src.getInt(s + 1) & 0xFFFFFFFFL);
+			dst.putLong(d, value & mask);
+			s += packedTupleSize;
+			d += widenedTupleSize;
+		}
+	}
+	
+	private void widen6(ByteBuffer src, int s, ByteBuffer dst, int d, int numTuples, long mask)
+	{
+		for (int tupleCount = 0; tupleCount < numTuples; ++tupleCount)
+		{
+			long value = ((long) src.getShort(s) << 32) | (src.getInt(s + 2) & 0xFFFFFFFFL);
+			dst.putLong(d, value & mask);
+			s += packedTupleSize;
+			d += widenedTupleSize;
+		}
+	}
+	
+	private void widen7(ByteBuffer src, int s, ByteBuffer dst, int d, int numTuples, long mask)
+	{
+		for (int tupleCount = 0; tupleCount < numTuples; ++tupleCount)
+		{
+			long value = ((long) src.getInt(s) << 24) | ((src.getShort(s + 4) & 0xFFFFL) << 8)
+					| (src.get(s + 6) & 0xFFL);
+			dst.putLong(d, value & mask);
+			s += packedTupleSize;
+			d += widenedTupleSize;
+		}
+	}
+	
+	/**
+	 * Copies an element that needs no widening. Primitive sizes are copied 
+	 * with one read and one write each.
+	 */
+	private void copy(int size, ByteBuffer src, int s, ByteBuffer dst, int d, int numTuples)
+	{
+		for (int tupleCount = 0; tupleCount < numTuples; ++tupleCount)
+		{
+			switch (size)
+			{
+			case 1:
+				dst.put(d, src.get(s));
+				break;
+			case 2:
+				dst.putShort(d, src.getShort(s));
+				break;
+			case 4:
+				dst.putInt(d, src.getInt(s));
+				break;
+			case 8:
+				dst.putLong(d, src.getLong(s));
+				break;
+			default:
+				for (int i = 0; i < size; ++i)
+				{
+					dst.put(d + i, src.get(s + i));
+				}
+			}
+			s += packedTupleSize;
+			d += widenedTupleSize;
+		}
+	}
+
+	/**
+	 * Unpacks a range of bit-packed tuples. Each element is read as an 
+	 * unsigned value, sign extended if it is a signed integer and written 
+	 * big endian into its widened element.
+	 */
+	private void unpackBits(ByteBuffer src, ByteBuffer dst, int firstTuple, int numTuples)
+	{
+		UniBitReader reader = new UniBitReader(src, src.position(), firstTuple * packedTupleBits);
+		int dstIndex = dst.position() + firstTuple * widenedTupleSize;
+		
+		for (int tupleCount = 0; tupleCount < numTuples; ++tupleCount)
+		{
+			for (int element = 0; element < numElements; ++element)
+			{
+				int d = dstIndex + widenedOffsets[element];
+				int size = packedBits[element];
+				int widenedSize = padSizes[element] + packedSizes[element];
+				if (size > 64)
+				{
+					// Elements larger than a long are whole bytes and are not widened
+					for (int i = 0; i < widenedSize; ++i)
+					{
+						dst.put(d + i, (byte) reader.read(8));
+					}
+					continue;
+				}
+				
+				long value = reader.read(size);
+				if (signExtend[element] && size < 64)
+				{
+					value = (value << (64 - size)) >> (64 - size);
+				}
+				switch (widenedSize)
+				{
+				case 1:
+					dst.put(d, (byte) value);
+					break;
+				case 2:
+					dst.putShort(d, (short) value);
+					break;
+				case 4:
+					dst.putInt(d, (int) value);
+					break;
+				case 8:
+					dst.putLong(d, value);
+					break;
+				default:
+					for (int i = widenedSize - 1; i >= 0; --i)
+					{
+						dst.put(d + i, (byte) value);
+						value >>= 8;
+					}
+				}
+			}
+			dstIndex += widenedTupleSize;
+		}
+	}
+}
@@ -0,0 +1,365 @@
+/**************************************************************
+ This file is part of Kinect Sensor Architecture Development Project.
+
+    Kinect Sensor Architecture Development Project is free software:
+	you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Kinect Sensor Architecture Development Project is distributed in
+	the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with Kinect Sensor Architecture Development Project.  If
+	not, see <http://www.gnu.org/licenses/>.
+**************************************************************/
+/**************************************************************
+The work was done in joint collaboration with Cisco Systems Inc.
+Copyright © 2012, Cisco Systems, Inc. and UCLA
+*************************************************************/
+
+package UnifyingAPI.Samples.ConcurrentReadStressTest;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicLong;
+
+import UnifyingAPI.Channel;
+import UnifyingAPI.ChannelKey;
+import UnifyingAPI.Sensor;
+import UnifyingAPI.SensorSnapshot;
+import UnifyingAPI.Tuple;
+import UnifyingAPI.TupleCursor;
+import UnifyingAPI.UniChannel;
+import UnifyingAPI.UniChannelHeader;
+import UnifyingAPI.UniDataPacker;
+import UnifyingAPI.UniDevice;
+import UnifyingAPI.UniElementDescriptor;
+
+/**
+ * Hammers one <code>SensorSnapshot</code> from many threads at once and 
+ * checks every value read. Each frame, all reader threads are released 
+ * together on the same snapshot and read it through every read path at 
+ * random tuples: <code>getTuple</code> with the typed and cast getters, 
+ * <code>getElementByteBuffer</code>, cursors, and the strided and 
+ * whole-channel bulk readers. The channels cover the aligned view of the
+ * packed data (2 byte depth), widened data (3 and 5 byte integers) and 
+ * small float tuples. Every value is a function of the frame, tuple and 
+ * element, so a read of the wrong tuple is caught. The run is repeated 
+ * with lazy decoding, so the readers also race to parse each channel.
+ * <p>
+ * Usage: <code>ConcurrentReadStressTest [threads] [frames] [readsPerFrame]</code>.
+ */
+public class ConcurrentReadStressTest {
+	private static final int WIDTH = 320;
+	private static final int HEIGHT = 240;
+	private static final int USER_TUPLES = 15;
+	
+	public static void main(String[] args) throws Exception
+	{
+		int threads = (args.length > 0) ? Integer.parseInt(args[0]) : 8;
+		int frames = (args.length > 1) ? Integer.parseInt(args[1]) : 100;
+		int readsPerFrame = (args.length > 2) ? Integer.parseInt(args[2]) : 2000;
+		
+		System.out.printf("%6s %8s %7s %12s %8s %6s%n", "lazy", "threads", "frames", "reads", 
+				"errors", "result");
+		boolean passed = run(false, threads, frames, readsPerFrame);
+		passed &= run(true, threads, frames, readsPerFrame);
+		System.out.println(passed ? "PASSED" : "FAILED");
+		if (!passed)
+		{
+			System.exit(1);
+		}
+	}
+	
+	private static boolean run(boolean lazy, int numThreads, int frames, int readsPerFrame) throws Exception
+	{
+		Sensor sensor = new Sensor(new SyntheticDevice());
+		sensor.setLazyDecoding(lazy);
+		ChannelKey[] keys = { sensor.getChannelKey("Depth"), sensor.getChannelKey("Wide"), 
+				sensor.getChannelKey("User1") };
+		
+		// Readers wait on the barrier for each snapshot, and again when they are done with it
+		CyclicBarrier barrier = new CyclicBarrier(numThreads + 1);
+		Reader[] readers = new Reader[numThreads];
+		Thread[] threads = new Thread[numThreads];
+		for (int i = 0; i < numThreads; ++i)
+		{
+			readers[i] = new Reader(i, keys, barrier, frames, readsPerFrame);
+			threads[i] = new Thread(readers[i], "Reader-" + i);
+			threads[i].setDaemon(true);
+			threads[i].start();
+		}
+		
+		for (int frame = 0; frame < frames; ++frame)
+		{
+			SensorSnapshot snapshot = sensor.getSensorSnapshot();
+			for (int i = 0; i < numThreads; ++i)
+			{
+				readers[i].snapshot = snapshot;
+			}
+			barrier.await();
+			barrier.await();
+			snapshot.release();
+		}
+		
+		long reads = 0;
+		long errors = 0;
+		for (int i = 0; i < numThreads; ++i)
+		{
+			threads[i].join();
+			reads += readers[i].reads;
+			errors += readers[i].errors.get();
+			if (readers[i].failure != null)
+			{
+				readers[i].failure.printStackTrace();
+				++errors;
+			}
+		}
+		boolean passed = errors == 0;
+		System.out.printf("%6s %8d %7d %12d %8d %6s%n", lazy ? "yes" : "no", numThreads, frames, reads, 
+				errors, passed ? "ok" : "FAIL");
+		return passed;
+	}
+	
+	private static short depthValue(int frame, int tuple)
+	{
+		return (short) ((tuple * 7 + frame) & 0x7FFF);
+	}
+	
+	private static int wideIntValue(int frame, int tuple)
+	{
+		return ((tuple * 131 + frame) & 0x7FFFFF) - 0x400000;
+	}
+	
+	private static long wideLongValue(int frame, int tuple)
+	{
+		return tuple * 1000003L - (1L << 38) + frame;
+	}
+	
+	private static float userValue(int frame, int tuple, int element)
+	{
+		return frame + tuple * 4 + element;
+	}
+	
+	/**
+	 * Reads each snapshot it is handed at random through every read path, 
+	 * counting the values that are not what the device sent.
+	 */
+	private static class Reader implements Runnable {
+		volatile SensorSnapshot snapshot;
+		long reads;
+		AtomicLong errors;
+		Throwable failure;
+		private ChannelKey[] keys;
+		private CyclicBarrier barrier;
+		private int frames;
+		private int readsPerFrame;
+		private Random random;
+		private short[] shorts;
+		private int[] ints;
+		private float[] floats;
+		
+		Reader(int seed, ChannelKey[] keys, CyclicBarrier barrier, int frames, int readsPerFrame)
+		{
+			this.keys = keys;
+			this.barrier = barrier;
+			this.frames = frames;
+			this.readsPerFrame = readsPerFrame;
+			this.random = new Random(seed);
+			this.errors = new AtomicLong();
+			this.shorts = new short[WIDTH * HEIGHT];
+			this.ints = new int[WIDTH * HEIGHT];
+			this.floats = new float[USER_TUPLES * 4];
+		}
+		
+		public void run()
+		{
+			try
+			{
+				for (int frame = 0; frame < frames; ++frame)
+				{
+					barrier.await();
+					try
+					{
+						read(snapshot, frame);
+					}
+					catch (Throwable t)
+					{
+						if (failure == null)
+						{
+							failure = t;
+						}
+					}
+					barrier.await();
+				}
+			}
+			catch (Exception e)
+			{
+				failure = e;
+			}
+		}
+		
+		private void read(SensorSnapshot snapshot, int frame) throws Exception
+		{
+			int numTuples = WIDTH * HEIGHT;
+			for (int r = 0; r < readsPerFrame; ++r)
+			{
+				// Look the channels up every time, so lazy parsing races too
+				Channel depth = snapshot.getChannel(keys[0]);
+				Channel wide = snapshot.getChannel(keys[1]);
+				Channel user = snapshot.getChannel(keys[2]);
+				int tuple = random.nextInt(numTuples);
+				switch (random.nextInt(9))
+				{
+				case 0:
+					check(depth.getTuple(tuple).getElementShort(0) == depthValue(frame, tuple));
+					break;
+				case 1:
+					check(depth.getTuple(tuple).getElementCastToInt(0) == depthValue(frame, tuple));
+					break;
+				case 2:
+					ByteBuffer element = depth.getTuple(tuple).getElementByteBuffer(0);
+					check(element.remaining() == 2 && element.getShort(0) == depthValue(frame, tuple));
+					break;
+				case 3:
+					Tuple wideTuple = wide.getTuple(tuple);
+					check(wideTuple.getElementInt(0) == wideIntValue(frame, tuple));
+					check(wideTuple.getElementLong(1) == wideLongValue(frame, tuple));
+					check(wideTuple.getElementCastToLong(0) == wideIntValue(frame, tuple));
+					break;
+				case 4:
+					TupleCursor cursor = depth.cursor();
+					check(cursor.moveTo(tuple).getElementShort(0) == depthValue(frame, tuple));
+					for (int i = tuple + 1; i < tuple + 64 && cursor.next(); ++i)
+					{
+						check(cursor.getElementShort(0) == depthValue(frame, i));
+					}
+					break;
+				case 5:
+					int count = Math.min(1024, numTuples - tuple);
+					depth.readShorts(0, tuple, count, shorts, 0, 1);
+					for (int i = 0; i < count; ++i)
+					{
+						check(shorts[i] == depthValue(frame, tuple + i));
+					}
+					break;
+				case 6:
+					count = Math.min(1024, numTuples - tuple);
+					wide.readInts(0, tuple, count, ints, 0, 1);
+					for (int i = 0; i < count; ++i)
+					{
+						check(ints[i] == wideIntValue(frame, tuple + i));
+					}
+					break;
+				case 7:
+					user.readFloats(floats, 0);
+					for (int i = 0; i < floats.length; ++i)
+					{
+						check(floats[i] == userValue(frame, i / 4, i % 4));
+					}
+					TupleCursor userCursor = user.cursor();
+					for (int i = 0; userCursor.next(); ++i)
+					{
+						for (int e = 0; e < 4; ++e)
+						{
+							check(userCursor.getElementFloat(e) == userValue(frame, i, e));
+						}
+					}
+					break;
+				default:
+					// Occasionally a whole frame, the longest read
+					if (random.nextInt(64) == 0)
+					{
+						depth.readShorts(shorts, 0);
+						for (int i = 0; i < numTuples; ++i)
+						{
+							check(shorts[i] == depthValue(frame, i));
+						}
+					}
+					else
+					{
+						check(depth.getTuple(tuple).getElementCastToFloat(0) == depthValue(frame, tuple));
+					}
+				}
+				++reads;
+			}
+		}
+		
+		private void check(boolean correct)
+		{
+			if (!correct)
+			{
+				errors.incrementAndGet();
+			}
+		}
+	}
+	
+	/**
+	 * A device whose values are all derived from the frame number, the tuple
+	 * and the element, unpaced.
+	 */
+	private static class SyntheticDevice extends UniDevice {
+		private int frame;
+		private UniChannelHeader depthHeader;
+		private UniChannelHeader wideHeader;
+		private UniChannelHeader userHeader;
+		
+		SyntheticDevice()
+		{
+			super((short) 0, (short) 0, 30);
+			this.frame = 0;
+			this.depthHeader = new UniChannelHeader(WIDTH * HEIGHT, 30, new UniElementDescriptor[] {
+					new UniElementDescriptor(true, true, (byte) 2) }, "Depth");
+			this.wideHeader = new UniChannelHeader(WIDTH * HEIGHT, 30, new UniElementDescriptor[] {
+					new UniElementDescriptor(true, true, (byte) 3), 
+					new UniElementDescriptor(true, true, (byte) 5) }, "Wide");
+			UniElementDescriptor floatElement = new UniElementDescriptor(false, true, (byte) 4);
+			this.userHeader = new UniChannelHeader(USER_TUPLES, 30, new UniElementDescriptor[] {
+					floatElement, floatElement, floatElement, floatElement }, "User1");
+		}
+		
+		protected void updateChannels()
+		{
+			final int current = frame++;
+			addChannel(new UniChannel(depthHeader, new UniDataPacker()
+			{
+				public void writeDataIntoByteBuffer(ByteBuffer buffer)
+				{
+					for (int i = 0; i < WIDTH * HEIGHT; ++i)
+					{
+						buffer.putShort(depthValue(current, i));
+					}
+				}
+			}));
+			addChannel(new UniChannel(wideHeader, new UniDataPacker()
+			{
+				public void writeDataIntoByteBuffer(ByteBuffer buffer)
+				{
+					for (int i = 0; i < WIDTH * HEIGHT; ++i)
+					{
+						int value = wideIntValue(current, i);
+						buffer.put((byte) (value >> 16)).put((byte) (value >> 8)).put((byte) value);
+						long longValue = wideLongValue(current, i);
+						buffer.put((byte) (longValue >> 32)).putInt((int) longValue);
+					}
+				}
+			}));
+			addChannel(new UniChannel(userHeader, new UniDataPacker()
+			{
+				public void writeDataIntoByteBuffer(ByteBuffer buffer)
+				{
+					for (int i = 0; i < USER_TUPLES * 4; ++i)
+					{
+						buffer.putFloat(userValue(current, i / 4, i % 4));
+					}
+				}
+			}));
+		}
+	}
+}
@@ -0,0 +1,151 @@
+/**************************************************************
+ This file is part of Kinect Sensor Architecture Development Project.
+
+    Kinect Sensor Architecture Development Project is free software:
+	you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Kinect Sensor Architecture Development Project is distributed in
+	the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with Kinect Sensor Architecture Development Project.  If
+	not, see <http://www.gnu.org/licenses/>.
+**************************************************************/
+/**************************************************************
+The work was done in joint collaboration with Cisco Systems Inc.
+Copyright © 2012, Cisco Systems, Inc. and UCLA
+*************************************************************/
+
+package UnifyingAPI.Samples.RecordingBenchmark;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Random;
+
+import UnifyingAPI.Sensor;
+import UnifyingAPI.SensorSnapshot;
+import UnifyingAPI.UniPacketPool;
+import UnifyingAPI.UniPacketRecorder;
+import UnifyingAPI.UniRecordedDevice;
+import UnifyingAPI.UniSyntheticDevice;
+
+/**
+ * Records a synthetic Kinect-sized device (640x480 depth and RGB) at 60 fps
+ * with a <code>UniPacketRecorder</code>, then plays the recording back with
+ * a <code>UniRecordedDevice</code>: as fast as possible, in real time, and 
+ * with random seeks. Reports whether any frame was dropped while recording.
+ * <p>
+ * Usage: <code>RecordingBenchmark [seconds] [fps] [directory]</code>. 
+ * By default 10 seconds are recorded at 60 fps to a temporary directory, 
+ * which is deleted afterwards.
+ */
+public class RecordingBenchmark {
+	private static final int WIDTH = 640;
+	private static final int HEIGHT = 480;
+	private static final int SEEKS = 100000;
+	
+	private static volatile long sink;		// keeps the reads from being optimized away
+	
+	public static void main(String[] args) throws Exception
+	{
+		int seconds = (args.length > 0) ? Integer.parseInt(args[0]) : 10;
+		double fps = (args.length > 1) ? Double.parseDouble(args[1]) : 60;
+		boolean temporary = args.length < 3;
+		File directory = temporary ? Files.createTempDirectory("RecordingBenchmark").toFile() 
+				: new File(args[2]);
+		
+		try
+		{
+			record(directory, seconds, fps);
+			play(directory);
+		}
+		finally
+		{
+			if (temporary)
+			{
+				File[] files = directory.listFiles();
+				for (int i = 0; files != null && i < files.length; ++i)
+				{
+					files[i].delete();
+				}
+				directory.delete();
+			}
+		}
+	}
+	
+	private static void record(File directory, int seconds, double fps) throws Exception
+	{
+		UniSyntheticDevice device = new UniSyntheticDevice(WIDTH, HEIGHT, fps);
+		device.setNumberOfUsers(0);
+		device.setPacketPool(new UniPacketPool(8, true));
+		UniPacketRecorder recorder = new UniPacketRecorder(device, directory);
+		long start = System.nanoTime();
+		recorder.start();
+		Thread.sleep(seconds * 1000L);
+		recorder.close();
+		long built = device.getFrames();
+		double elapsed = (System.nanoTime() - start) / 1e9;
+		
+		if (recorder.getError() != null)
+		{
+			throw new Exception("Recording failed", recorder.getError());
+		}
+		System.out.printf("recorded %d of %d frames in %.1f s (%.1f fps, %.1f MB/s), %d dropped, %d segments%n",
+				recorder.getRecordedPackets(), built, elapsed, recorder.getRecordedPackets() / elapsed, 
+				recorder.getRecordedBytes() / elapsed / 1e6, recorder.getDroppedPackets(), 
+				recorder.getNumberOfSegments());
+	}
+	
+	private static void play(File directory) throws Exception
+	{
+		UniRecordedDevice recording = new UniRecordedDevice(directory);
+		Sensor sensor = new Sensor(recording);
+		int packets = recording.getNumberOfPackets();
+		
+		// As fast as possible, touching one value per channel
+		recording.setRealTime(false);
+		long values = 0;
+		long start = System.nanoTime();
+		for (int i = 0; i < packets; ++i)
+		{
+			SensorSnapshot snapshot = sensor.getSensorSnapshot();
+			values += snapshot.getChannel("Depth").getTuple(i % (WIDTH * HEIGHT)).getElementShort(0);
+			values += snapshot.getChannel("RGB").getTuple(i % (WIDTH * HEIGHT)).getElementByte(0);
+			snapshot.release();
+		}
+		double elapsed = (System.nanoTime() - start) / 1e9;
+		System.out.printf("played %d frames as fast as possible: %.1f fps%n", packets, packets / elapsed);
+		
+		// Real time, for two seconds of the recording
+		recording.setRealTime(true);
+		int end = recording.seek(2000000000L);
+		recording.seek(0);
+		start = System.nanoTime();
+		for (int i = 0; i <= end; ++i)
+		{
+			sensor.getSensorSnapshot().release();
+		}
+		elapsed = (System.nanoTime() - start) / 1e9;
+		System.out.printf("played %.3f s of recording in real time in %.3f s%n", 
+				(recording.getPacketTime(end) - recording.getPacketTime(0)) / 1e9, elapsed);
+		
+		// Random seeks
+		long duration = recording.getDuration();
+		Random random = new Random(1);
+		start = System.nanoTime();
+		for (int i = 0; i < SEEKS; ++i)
+		{
+			values += recording.seek((long) (random.nextDouble() * duration));
+		}
+		elapsed = (System.nanoTime() - start) / 1e9;
+		System.out.printf("%d seeks in %d frames: %.3f us each%n", SEEKS, packets, elapsed * 1e6 / SEEKS);
+		sink = values;
+		recording.close();
+	}
+}
@@ -0,0 +1,165 @@
+/**************************************************************
+ This file is part of Kinect Sensor Architecture Development Project.
+
+    Kinect Sensor Architecture Development Project is free software:
+	you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Kinect Sensor Architecture Development Project is distributed in
+	the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with Kinect Sensor Architecture Development Project.  If
+	not, see <http://www.gnu.org/licenses/>.
+**************************************************************/
+/**************************************************************
+The work was done in joint collaboration with Cisco Systems Inc.
+Copyright © 2012, Cisco Systems, Inc. and UCLA
+*************************************************************/
+
+package UnifyingAPI.Samples.SensorHubBenchmark;
+
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicLong;
+
+import UnifyingAPI.DeviceStats;
+import UnifyingAPI.SensorHub;
+import UnifyingAPI.SensorSnapshot;
+import UnifyingAPI.UniPacketPool;
+import UnifyingAPI.UniSyntheticDevice;
+
+/**
+ * Measures how the throughput of a <code>SensorHub</code> grows with the 
+ * number of devices. Runs synthetic depth devices, doubling their number 
+ * at each step, with one subscriber per device reading every snapshot it 
+ * receives.
+ * <p>
+ * Usage: <code>SensorHubBenchmark [maxDevices] [secondsPerStep] [fps]</code>.
+ * An fps of 0 runs the devices as fast as they can build packets.
+ */
+public class SensorHubBenchmark {
+	private static final int WIDTH = 320;
+	private static final int HEIGHT = 240;
+	
+	public static void main(String[] args) throws InterruptedException
+	{
+		int maxDevices = (args.length > 0) ? Integer.parseInt(args[0]) : 64;
+		int secondsPerStep = (args.length > 1) ? Integer.parseInt(args[1]) : 5;
+		double fps = (args.length > 2) ? Double.parseDouble(args[2]) : 30;
+		
+		System.out.printf("%dx%d depth at %s, %d s per step%n", WIDTH, HEIGHT, 
+				(fps > 0) ? fps + " fps" : "full speed", secondsPerStep);
+		System.out.printf("%8s %12s %12s %12s %10s %10s %8s%n", "devices", "frames/s", 
+				"consumed/s", "min fps", "healthy", "conflated", "threads");
+		for (int numDevices = 1; numDevices <= maxDevices; numDevices *= 2)
+		{
+			runStep(numDevices, secondsPerStep, fps);
+		}
+	}
+	
+	private static void runStep(int numDevices, int seconds, double fps) throws InterruptedException
+	{
+		SensorHub hub = new SensorHub();
+		AtomicLong consumed = new AtomicLong(0);
+		for (int i = 0; i < numDevices; ++i)
+		{
+			String name = "synthetic" + i;
+			UniSyntheticDevice device = new UniSyntheticDevice(WIDTH, HEIGHT, (fps > 0) ? fps : 30);
+			device.setPaced(fps > 0);
+			device.setRGBEnabled(false);
+			device.setNumberOfUsers(0);
+			device.setPacketPool(new UniPacketPool(4, true));
+			hub.register(name, device);
+			// Readers share a pool rather than each holding a thread
+			hub.getPublisher(name).subscribe(new DepthReader(consumed), ForkJoinPool.commonPool());
+		}
+		
+		// Let the devices start before measuring
+		Thread.sleep(500);
+		long startConsumed = consumed.get();
+		long startFrames = countFrames(hub.getStats());
+		long start = System.nanoTime();
+		Thread.sleep(seconds * 1000L);
+		double elapsed = (System.nanoTime() - start) / 1e9;
+		List<DeviceStats> stats = hub.getStats();
+		long frames = countFrames(stats) - startFrames;
+		
+		double minFps = Double.MAX_VALUE;
+		int healthy = 0;
+		long conflated = 0;
+		for (DeviceStats deviceStats : stats)
+		{
+			minFps = Math.min(minFps, deviceStats.getFramesPerSecond());
+			if (deviceStats.isHealthy())
+			{
+				++healthy;
+			}
+			conflated += deviceStats.getConflatedFrames();
+		}
+		int threads = ManagementFactory.getThreadMXBean().getThreadCount();
+		hub.close();
+		
+		System.out.printf("%8d %12.1f %12.1f %12.1f %10s %10d %8d%n", numDevices, frames / elapsed,
+				(consumed.get() - startConsumed) / elapsed, minFps, 
+				healthy + "/" + numDevices, conflated, threads);
+	}
+	
+	private static long countFrames(List<DeviceStats> stats)
+	{
+		long frames = 0;
+		for (DeviceStats deviceStats : stats)
+		{
+			frames += deviceStats.getFrames();
+		}
+		return frames;
+	}
+	
+	/**
+	 * Reads every depth value of the snapshots it receives, one at a time.
+	 */
+	private static class DepthReader implements Flow.Subscriber<SensorSnapshot> {
+		private Flow.Subscription subscription;
+		private AtomicLong consumed;
+		private short[] depth;
+		private long checksum;
+		
+		DepthReader(AtomicLong consumed)
+		{
+			this.consumed = consumed;
+			this.depth = new short[WIDTH * HEIGHT];
+			this.checksum = 0;
+		}
+		
+		public void onSubscribe(Flow.Subscription subscription)
+		{
+			this.subscription = subscription;
+			subscription.request(1);
+		}
+		
+		public void onNext(SensorSnapshot snapshot)
+		{
+			snapshot.getChannel("Depth").readShorts(depth, 0);
+			for (int i = 0; i < depth.length; ++i)
+			{
+				checksum += depth[i];
+			}
+			consumed.incrementAndGet();
+			subscription.request(1);
+		}
+		
+		public void onError(Throwable throwable)
+		{
+			throwable.printStackTrace();
+		}
+		
+		public void onComplete() { }
+	}
+}
@@ -0,0 +1,278 @@
+/**************************************************************
+ This file is part of Kinect Sensor Architecture Development Project.
+
+    Kinect Sensor Architecture Development Project is free software:
+	you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Kinect Sensor Architecture Development Project is distributed in
+	the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with Kinect Sensor Architecture Development Project.  If
+	not, see <http://www.gnu.org/licenses/>.
+**************************************************************/
+/**************************************************************
+The work was done in joint collaboration with Cisco Systems Inc.
+Copyright © 2012, Cisco Systems, Inc. and UCLA
+*************************************************************/
+
+package UnifyingAPI.Samples.SoakTest;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+import java.util.List;
+
+import UnifyingAPI.Channel;
+import UnifyingAPI.ChannelKey;
+import UnifyingAPI.Sensor;
+import UnifyingAPI.SensorSnapshot;
+import UnifyingAPI.TupleCursor;
+import UnifyingAPI.UniElementDescriptor;
+import UnifyingAPI.UniPacketPool;
+import UnifyingAPI.UniSyntheticDevice;
+
+/**
+ * Drives the whole packet pipeline with a <code>UniSyntheticDevice</code> 
+ * for minutes at a time: packets are built with <code>getSensorPacket</code>,
+ * parsed into snapshots by a <code>Sensor</code> and read through their 
+ * <code>Channel</code>s like an application would, scanning the depth image,
+ * sampling the RGB image and reading every skeleton joint. 
+ * <p>
+ * Every interval and at the end it reports frames per second, megabytes of 
+ * channel data per second, latency percentiles from the moment a packet is 
+ * built until its snapshot has been read, the time spent in garbage 
+ * collection and the bytes allocated per frame by every thread.
+ * <p>
+ * Usage: <code>SoakTest [seconds] [fps] [width] [height] [users] [extraChannels]</code>.
+ * The default is 300 seconds of 640x480 at 30 fps with two users and no 
+ * extra channels. A frame rate of 0 runs unpaced, as fast as possible. 
+ * Extra channels hold 10000 tuples of a 12-bit integer and a float.
+ */
+public class SoakTest {
+	private static final int REPORT_SECONDS = 10;
+	private static final int EXTRA_TUPLES = 10000;
+	private static final int RGB_STEP = 7;
+	
+	private static volatile long sink;		// keeps the reads from being optimized away
+	
+	public static void main(String[] args) throws Exception
+	{
+		int seconds = (args.length > 0) ? Integer.parseInt(args[0]) : 300;
+		double fps = (args.length > 1) ? Double.parseDouble(args[1]) : 30;
+		int width = (args.length > 2) ? Integer.parseInt(args[2]) : 640;
+		int height = (args.length > 3) ? Integer.parseInt(args[3]) : 480;
+		int users = (args.length > 4) ? Integer.parseInt(args[4]) : 2;
+		int extraChannels = (args.length > 5) ? Integer.parseInt(args[5]) : 0;
+		
+		UniSyntheticDevice device = new UniSyntheticDevice(width, height, (fps > 0) ? fps : 30);
+		device.setPaced(fps > 0);
+		device.setNumberOfUsers(users);
+		device.setClockEnabled(true);
+		device.setExtraChannels(extraChannels, EXTRA_TUPLES, 
+				new UniElementDescriptor(true, false, (byte) 12), new UniElementDescriptor(false, true, (byte) 4));
+		device.setPacketPool(new UniPacketPool(4, true));
+		Sensor sensor = new Sensor(device);
+		
+		System.out.printf("%dx%d at %s, %d users, %d extra channels, for %d s%n", width, height, 
+				(fps > 0) ? fps + " fps" : "full speed", users, extraChannels, seconds);
+		System.out.printf("%8s %10s %10s %10s %10s %10s %10s %10s %12s%n", "time s", "fps", "MB/s", 
+				"p50 ms", "p99 ms", "p99.9 ms", "max ms", "gc ms", "alloc B/frm");
+		
+		Reader reader = new Reader(sensor, width * height, users);
+		Interval total = new Interval(device);
+		long end = System.nanoTime() + seconds * 1000000000L;
+		while (System.nanoTime() < end)
+		{
+			Interval interval = new Interval(device);
+			long intervalEnd = Math.min(end, System.nanoTime() + REPORT_SECONDS * 1000000000L);
+			while (System.nanoTime() < intervalEnd)
+			{
+				long latency = reader.readFrame();
+				interval.add(latency);
+				total.add(latency);
+			}
+			interval.report((System.nanoTime() - total.startNanos) / 1e9);
+		}
+		System.out.println("total:");
+		total.report((System.nanoTime() - total.startNanos) / 1e9);
+		sink = reader.checksum;
+	}
+	
+	/**
+	 * Reads snapshots the way an application would.
+	 */
+	private static class Reader {
+		private Sensor sensor;
+		private ChannelKey depthKey;
+		private ChannelKey rgbKey;
+		private ChannelKey clockKey;
+		private ChannelKey[] userKeys;
+		private short[] depth;
+		private float[] joints;
+		long checksum;
+		
+		Reader(Sensor sensor, int pixels, int users)
+		{
+			this.sensor = sensor;
+			this.depthKey = sensor.getChannelKey("Depth");
+			this.rgbKey = sensor.getChannelKey("RGB");
+			this.clockKey = sensor.getChannelKey("Clock");
+			this.userKeys = new ChannelKey[users];
+			for (int user = 0; user < users; ++user)
+			{
+				userKeys[user] = sensor.getChannelKey("User" + (user + 1));
+			}
+			this.depth = new short[pixels];
+			this.joints = new float[UniSyntheticDevice.NUM_JOINTS * 4];
+			this.checksum = 0;
+		}
+		
+		/**
+		 * Reads one snapshot.
+		 * @return the nanoseconds from building the packet to having read it
+		 */
+		long readFrame() throws Exception
+		{
+			SensorSnapshot snapshot = sensor.getSensorSnapshot();
+			try
+			{
+				// Nearest valid depth, as a hand tracker would look for
+				snapshot.getChannel(depthKey).readShorts(depth, 0);
+				int nearest = Integer.MAX_VALUE;
+				for (int i = 0; i < depth.length; ++i)
+				{
+					int value = depth[i];
+					if (value > 0 && value < nearest)
+					{
+						nearest = value;
+					}
+				}
+				
+				// Mean color of a sample of pixels
+				TupleCursor cursor = snapshot.getChannel(rgbKey).cursor();
+				long red = 0;
+				for (int i = 0; i < depth.length; i += RGB_STEP)
+				{
+					cursor.moveTo(i);
+					red += cursor.getElementCastToInt(0) & 0xFF;
+				}
+				
+				// Every joint of every skeleton
+				float z = 0;
+				for (int user = 0; user < userKeys.length; ++user)
+				{
+					Channel skeleton = snapshot.getChannel(userKeys[user]);
+					skeleton.readFloats(joints, 0);
+					for (int joint = 0; joint < UniSyntheticDevice.NUM_JOINTS; ++joint)
+					{
+						z += joints[joint * 4 + 2];
+					}
+				}
+				checksum += nearest + red + (long) z;
+				
+				long built = snapshot.getChannel(clockKey).getTuple(0).getElementLong(0);
+				return System.nanoTime() - built;
+			}
+			finally
+			{
+				snapshot.release();
+			}
+		}
+	}
+	
+	/**
+	 * The frames, latencies, collections and allocations of a stretch of time.
+	 */
+	private static class Interval {
+		private UniSyntheticDevice device;
+		private long[] latencies;
+		private int frames;
+		long startNanos;
+		private long startBytes;
+		private long startGcMillis;
+		private long startAllocated;
+		
+		Interval(UniSyntheticDevice device)
+		{
+			this.device = device;
+			this.latencies = new long[1024];
+			this.frames = 0;
+			this.startNanos = System.nanoTime();
+			this.startBytes = device.getGeneratedBytes();
+			this.startGcMillis = getGcMillis();
+			this.startAllocated = getAllocatedBytes();
+		}
+		
+		void add(long latency)
+		{
+			if (frames == latencies.length)
+			{
+				latencies = Arrays.copyOf(latencies, 2 * frames);
+			}
+			latencies[frames++] = latency;
+		}
+		
+		void report(double time)
+		{
+			double elapsed = (System.nanoTime() - startNanos) / 1e9;
+			long bytes = device.getGeneratedBytes() - startBytes;
+			long gcMillis = getGcMillis() - startGcMillis;
+			long allocated = getAllocatedBytes() - startAllocated;
+			if (frames == 0)
+			{
+				System.out.printf("%8.0f no frames%n", time);
+				return;
+			}
+			Arrays.sort(latencies, 0, frames);
+			System.out.printf("%8.0f %10.1f %10.1f %10.3f %10.3f %10.3f %10.3f %10d %12d%n", time, 
+					frames / elapsed, bytes / elapsed / 1e6, getPercentile(0.5) / 1e6, 
+					getPercentile(0.99) / 1e6, getPercentile(0.999) / 1e6, latencies[frames - 1] / 1e6, 
+					gcMillis, (allocated >= 0) ? allocated / frames : -1);
+		}
+		
+		private long getPercentile(double fraction)
+		{
+			return latencies[Math.min(frames - 1, (int) (frames * fraction))];
+		}
+	}
+	
+	private static long getGcMillis()
+	{
+		long millis = 0;
+		List<GarbageCollectorMXBean> collectors = ManagementFactory.getGarbageCollectorMXBeans();
+		for (int i = 0; i < collectors.size(); ++i)
+		{
+			millis += Math.max(0, collectors.get(i).getCollectionTime());
+		}
+		return millis;
+	}
+	
+	/**
+	 * Retrieves the bytes allocated so far by the live threads.
+	 * @return the number of bytes, -1 if the JVM does not report it
+	 */
+	private static long getAllocatedBytes()
+	{
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		if (!(threads instanceof com.sun.management.ThreadMXBean))
+		{
+			return -1;
+		}
+		long[] allocated = ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(
+				threads.getAllThreadIds());
+		long sum = 0;
+		for (int i = 0; i < allocated.length; ++i)
+		{
+			sum += Math.max(0, allocated[i]);
+		}
+		return sum;
+	}
+}
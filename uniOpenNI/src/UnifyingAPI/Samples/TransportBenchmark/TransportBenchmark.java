@@ -0,0 +1,205 @@
+/**************************************************************
+ This file is part of Kinect Sensor Architecture Development Project.
+
+    Kinect Sensor Architecture Development Project is free software:
+	you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Kinect Sensor Architecture Development Project is distributed in
+	the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with Kinect Sensor Architecture Development Project.  If
+	not, see <http://www.gnu.org/licenses/>.
+**************************************************************/
+/**************************************************************
+The work was done in joint collaboration with Cisco Systems Inc.
+Copyright © 2012, Cisco Systems, Inc. and UCLA
+*************************************************************/
+
+package UnifyingAPI.Samples.TransportBenchmark;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+
+import UnifyingAPI.ChannelKey;
+import UnifyingAPI.Sensor;
+import UnifyingAPI.SensorSnapshot;
+import UnifyingAPI.UniPacketPool;
+import UnifyingAPI.UniPacketServer;
+import UnifyingAPI.UniRemoteDevice;
+import UnifyingAPI.UniSharedMemoryDevice;
+import UnifyingAPI.UniSharedMemoryServer;
+import UnifyingAPI.UniSyntheticDevice;
+
+/**
+ * Measures throughput, latency and CPU cost of sensor packets served to 
+ * another process on the same machine, over localhost TCP and through a 
+ * shared memory ring. A synthetic Kinect-sized device (640x480 depth and 
+ * RGB) is served by a <code>UniPacketServer</code> or a 
+ * <code>UniSharedMemoryServer</code> and read back by a <code>Sensor</code> 
+ * on a <code>UniRemoteDevice</code> or a <code>UniSharedMemoryDevice</code>.
+ * Both ends run in this process but only share the socket or the file, as 
+ * two processes would. Latency runs from the moment the packet is built to 
+ * the moment its snapshot is parsed. CPU time is that of the whole process, 
+ * including building the packets, per frame received.
+ * <p>
+ * Usage: <code>TransportBenchmark [secondsPerRate] [fps...]</code>. 
+ * The default rates are 30, 60 and 120 fps.
+ */
+public class TransportBenchmark {
+	private static final int WIDTH = 640;
+	private static final int HEIGHT = 480;
+	private static final int SLOT_SIZE = 2 << 20;
+	
+	public static void main(String[] args) throws Exception
+	{
+		int seconds = (args.length > 0) ? Integer.parseInt(args[0]) : 10;
+		double[] rates = { 30, 60, 120 };
+		if (args.length > 1)
+		{
+			rates = new double[args.length - 1];
+			for (int i = 1; i < args.length; ++i)
+			{
+				rates[i - 1] = Double.parseDouble(args[i]);
+			}
+		}
+		
+		File ringFile = File.createTempFile("TransportBenchmark", ".ring");
+		ringFile.deleteOnExit();
+		System.out.printf("%9s %8s %10s %10s %10s %10s %10s %10s %12s%n", "transport", "target", "fps", 
+				"MB/s", "p50 ms", "p99 ms", "max ms", "dropped", "cpu ms/frame");
+		for (int i = 0; i < rates.length; ++i)
+		{
+			runTcp(rates[i], seconds);
+			runSharedMemory(rates[i], seconds, ringFile);
+		}
+		ringFile.delete();
+	}
+	
+	private static void runTcp(double fps, int seconds) throws Exception
+	{
+		UniSyntheticDevice device = createDevice(fps);
+		device.setPacketPool(new UniPacketPool(4, true));
+		UniPacketServer server = new UniPacketServer(device, 
+				new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 2);
+		server.start();
+		UniRemoteDevice remote = new UniRemoteDevice(server.getLocalAddress());
+		Sensor sensor = new Sensor(remote);
+		warmUp(sensor);
+		
+		long startBytes = remote.getReceivedBytes();
+		long startDropped = server.getDroppedPackets();
+		Measurement measurement = measure(sensor, fps, seconds);
+		long bytes = remote.getReceivedBytes() - startBytes;
+		long dropped = server.getDroppedPackets() - startDropped;
+		remote.close();
+		server.close();
+		report("tcp", fps, measurement, bytes, dropped);
+	}
+	
+	private static void runSharedMemory(double fps, int seconds, File ringFile) throws Exception
+	{
+		UniSyntheticDevice device = createDevice(fps);
+		device.setPacketPool(new UniPacketPool(4, true));
+		UniSharedMemoryServer server = new UniSharedMemoryServer(device, ringFile, SLOT_SIZE);
+		server.start();
+		UniSharedMemoryDevice shared = new UniSharedMemoryDevice(ringFile);
+		Sensor sensor = new Sensor(shared);
+		warmUp(sensor);
+		
+		long startBytes = shared.getReceivedBytes();
+		long startDropped = server.getDroppedPackets();
+		Measurement measurement = measure(sensor, fps, seconds);
+		long bytes = shared.getReceivedBytes() - startBytes;
+		long dropped = server.getDroppedPackets() - startDropped;
+		shared.close();
+		server.close();
+		report("shm", fps, measurement, bytes, dropped);
+	}
+	
+	/**
+	 * Creates a device producing Kinect-sized depth and RGB channels and a 
+	 * channel holding the time its packet was built.
+	 */
+	private static UniSyntheticDevice createDevice(double fps)
+	{
+		UniSyntheticDevice device = new UniSyntheticDevice(WIDTH, HEIGHT, fps);
+		device.setNumberOfUsers(0);
+		device.setClockEnabled(true);
+		return device;
+	}
+	
+	/**
+	 * Reads snapshots for a second before measuring.
+	 */
+	private static void warmUp(Sensor sensor)
+	{
+		long warmupEnd = System.nanoTime() + 1000000000L;
+		while (System.nanoTime() < warmupEnd)
+		{
+			sensor.getSensorSnapshot().release();
+		}
+	}
+	
+	private static Measurement measure(Sensor sensor, double fps, int seconds) throws Exception
+	{
+		ChannelKey clockKey = sensor.getChannelKey("Clock");
+		Measurement measurement = new Measurement();
+		measurement.latencies = new long[(int) (fps * seconds * 2) + 16];
+		long startCpu = getProcessCpuTime();
+		long start = System.nanoTime();
+		long end = start + seconds * 1000000000L;
+		while (System.nanoTime() < end && measurement.frames < measurement.latencies.length)
+		{
+			SensorSnapshot snapshot = sensor.getSensorSnapshot();
+			long built = snapshot.getChannel(clockKey).getTuple(0).getElementLong(0);
+			measurement.latencies[measurement.frames++] = System.nanoTime() - built;
+			snapshot.release();
+		}
+		measurement.elapsedNanos = System.nanoTime() - start;
+		measurement.cpuNanos = getProcessCpuTime() - startCpu;
+		return measurement;
+	}
+	
+	private static void report(String transport, double fps, Measurement measurement, long bytes, long dropped)
+	{
+		int frames = measurement.frames;
+		long[] latencies = measurement.latencies;
+		double elapsed = measurement.elapsedNanos / 1e9;
+		Arrays.sort(latencies, 0, frames);
+		System.out.printf("%9s %8.0f %10.1f %10.1f %10.3f %10.3f %10.3f %10d %12.3f%n", transport, fps, 
+				frames / elapsed, bytes / elapsed / 1e6, latencies[frames / 2] / 1e6, 
+				latencies[(int) (frames * 0.99)] / 1e6, latencies[frames - 1] / 1e6, dropped,
+				measurement.cpuNanos / 1e6 / frames);
+	}
+	
+	/**
+	 * Retrieves the CPU time used by this process.
+	 * @return the CPU time in nanoseconds, -1 if the JVM does not report it
+	 */
+	private static long getProcessCpuTime()
+	{
+		java.lang.management.OperatingSystemMXBean bean = ManagementFactory.getOperatingSystemMXBean();
+		if (bean instanceof com.sun.management.OperatingSystemMXBean)
+		{
+			return ((com.sun.management.OperatingSystemMXBean) bean).getProcessCpuTime();
+		}
+		return -1;
+	}
+	
+	private static class Measurement {
+		int frames;
+		long elapsedNanos;
+		long cpuNanos;
+		long[] latencies;
+	}
+}
@@ -0,0 +1,318 @@
+/**************************************************************
+ This file is part of Kinect Sensor Architecture Development Project.
+
+    Kinect Sensor Architecture Development Project is free software:
+	you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Kinect Sensor Architecture Development Project is distributed in
+	the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with Kinect Sensor Architecture Development Project.  If
+	not, see <http://www.gnu.org/licenses/>.
+**************************************************************/
+/**************************************************************
+The work was done in joint collaboration with Cisco Systems Inc.
+Copyright © 2012, Cisco Systems, Inc. and UCLA
+*************************************************************/
+
+package UnifyingAPI.Samples.UdpTransportLossTest;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.util.Random;
+
+import UnifyingAPI.Channel;
+import UnifyingAPI.ChannelKey;
+import UnifyingAPI.Sensor;
+import UnifyingAPI.SensorSnapshot;
+import UnifyingAPI.UniChannel;
+import UnifyingAPI.UniChannelHeader;
+import UnifyingAPI.UniDataPacker;
+import UnifyingAPI.UniDatagramDevice;
+import UnifyingAPI.UniDatagramServer;
+import UnifyingAPI.UniDevice;
+import UnifyingAPI.UniElementDescriptor;
+import UnifyingAPI.UniPacketPool;
+
+/**
+ * Runs the UDP transport over loopback through a relay that drops and 
+ * reorders datagrams, and checks what the consumer gets:
+ * <ul>
+ * <li>every channel returned holds the data of its frame;</li>
+ * <li>frames are returned in order;</li>
+ * <li>with no loss, every frame arrives complete;</li>
+ * <li>the small <code>User1</code> channel gets through at least as often 
+ * as the depth channel, which is spread over a hundred datagrams.</li>
+ * </ul>
+ * Usage: <code>UdpTransportLossTest [framesPerRun] [fps]</code>.
+ */
+public class UdpTransportLossTest {
+	private static final int WIDTH = 320;
+	private static final int HEIGHT = 240;
+	private static final int USER_TUPLES = 15;
+	
+	public static void main(String[] args) throws Exception
+	{
+		int frames = (args.length > 0) ? Integer.parseInt(args[0]) : 300;
+		double fps = (args.length > 1) ? Double.parseDouble(args[1]) : 60;
+		
+		System.out.printf("%8s %8s %6s %8s %8s %8s %10s %8s %8s %6s%n", "loss", "reorder", "delta", 
+				"frames", "complete", "partial", "discarded", "depth", "user1", "result");
+		boolean passed = true;
+		passed &= run(0, 0, false, frames, fps);
+		passed &= run(0, 0.01, false, frames, fps);
+		passed &= run(0.001, 0.01, false, frames, fps);
+		passed &= run(0.01, 0.01, false, frames, fps);
+		passed &= run(0.05, 0.05, false, frames, fps);
+		passed &= run(0.01, 0.01, true, frames, fps);
+		System.out.println(passed ? "PASSED" : "FAILED");
+		if (!passed)
+		{
+			System.exit(1);
+		}
+	}
+	
+	private static boolean run(double loss, double reorder, boolean delta, int frames, double fps) 
+			throws Exception
+	{
+		InetAddress loopback = InetAddress.getLoopbackAddress();
+		SyntheticDevice device = new SyntheticDevice(fps);
+		device.setPacketPool(new UniPacketPool(4, true));
+		UniDatagramServer server = new UniDatagramServer(device, new InetSocketAddress(loopback, 0), 
+				UniDatagramServer.DEFAULT_DATAGRAM_SIZE);
+		server.start();
+		LossyRelay relay = new LossyRelay(server.getLocalAddress(), loss, reorder);
+		UniDatagramDevice remote = new UniDatagramDevice(relay.getLocalAddress());
+		remote.setReassemblyDeadline(20);
+		Sensor sensor = new Sensor(remote);
+		if (delta)
+		{
+			sensor.setDeltaEncoding(10);
+		}
+		ChannelKey depthKey = sensor.getChannelKey("Depth");
+		ChannelKey userKey = sensor.getChannelKey("User1");
+		
+		boolean correct = true;
+		int received = 0;
+		int withDepth = 0;
+		int withUser = 0;
+		int lastFrame = -1;
+		short[] depth = new short[WIDTH * HEIGHT];
+		for (int i = 0; i < frames; ++i)
+		{
+			SensorSnapshot snapshot = sensor.getSensorSnapshot();
+			++received;
+			int frame = -1;
+			Channel user = snapshot.getChannel(userKey);
+			if (user != null)
+			{
+				++withUser;
+				frame = (int) user.getTuple(0).getElementFloat(0);
+				for (int tuple = 0; tuple < USER_TUPLES; ++tuple)
+				{
+					for (int element = 0; element < 4; ++element)
+					{
+						correct &= user.getTuple(tuple).getElementFloat(element) == frame + tuple * 4 + element;
+					}
+				}
+			}
+			Channel depthChannel = snapshot.getChannel(depthKey);
+			if (depthChannel != null)
+			{
+				++withDepth;
+				depthChannel.readShorts(depth, 0);
+				int offset = depth[0];
+				for (int pixel = 0; pixel < depth.length; ++pixel)
+				{
+					correct &= depth[pixel] == ((pixel + offset) & 0x0FFF);
+				}
+				correct &= frame < 0 || (frame & 0x0FFF) == offset;
+			}
+			if (frame >= 0)
+			{
+				correct &= frame > lastFrame;
+				lastFrame = frame;
+			}
+			snapshot.release();
+		}
+		
+		remote.close();
+		relay.close();
+		server.close();
+		
+		boolean passed = correct && withUser >= withDepth;
+		if (loss == 0 && reorder == 0)
+		{
+			passed &= remote.getCompletePackets() == received;
+		}
+		System.out.printf("%7.1f%% %7.1f%% %6s %8d %8d %8d %10d %7.1f%% %7.1f%% %6s%n", loss * 100, 
+				reorder * 100, delta ? "yes" : "no", received, remote.getCompletePackets(), 
+				remote.getPartialPackets(), remote.getDiscardedPackets(), 100.0 * withDepth / received, 
+				100.0 * withUser / received, passed ? "ok" : "FAIL");
+		return passed;
+	}
+	
+	/**
+	 * Forwards datagrams between one consumer and a server. Datagrams from 
+	 * the server are dropped, or held back and sent after the next one, at 
+	 * random.
+	 */
+	private static class LossyRelay implements Runnable {
+		private DatagramChannel channel;
+		private SocketAddress server;
+		private SocketAddress client;
+		private double loss;
+		private double reorder;
+		private Random random;
+		private Thread thread;
+		
+		LossyRelay(SocketAddress server, double loss, double reorder) throws IOException
+		{
+			this.server = server;
+			this.loss = loss;
+			this.reorder = reorder;
+			this.random = new Random(42);
+			this.channel = DatagramChannel.open();
+			channel.setOption(StandardSocketOptions.SO_RCVBUF, 1 << 23);
+			channel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+			this.thread = new Thread(this, "LossyRelay");
+			thread.setDaemon(true);
+			thread.start();
+		}
+		
+		InetSocketAddress getLocalAddress() throws IOException
+		{
+			return (InetSocketAddress) channel.getLocalAddress();
+		}
+		
+		void close() throws IOException
+		{
+			channel.close();
+		}
+		
+		public void run()
+		{
+			ByteBuffer datagram = ByteBuffer.allocate(65536);
+			ByteBuffer held = ByteBuffer.allocate(65536);
+			boolean holding = false;
+			try
+			{
+				while (true)
+				{
+					datagram.clear();
+					SocketAddress sender = channel.receive(datagram);
+					datagram.flip();
+					if (!sender.equals(server))
+					{
+						client = sender;
+						channel.send(datagram, server);
+						continue;
+					}
+					if (client == null || random.nextDouble() < loss)
+					{
+						continue;
+					}
+					if (!holding && random.nextDouble() < reorder)
+					{
+						held.clear();
+						held.put(datagram);
+						held.flip();
+						holding = true;
+						continue;
+					}
+					channel.send(datagram, client);
+					if (holding)
+					{
+						channel.send(held, client);
+						holding = false;
+					}
+				}
+			}
+			catch (ClosedChannelException e)
+			{
+				// Closed
+			}
+			catch (IOException e)
+			{
+				e.printStackTrace();
+			}
+		}
+	}
+	
+	/**
+	 * A device producing a depth channel and a small user channel, both 
+	 * derived from the frame number, paced to a frame rate.
+	 */
+	private static class SyntheticDevice extends UniDevice {
+		private long framePeriodNanos;
+		private long nextFrameNanos;
+		private int frame;
+		private UniChannelHeader depthHeader;
+		private UniChannelHeader userHeader;
+		
+		SyntheticDevice(double fps)
+		{
+			super((short) 0, (short) 0, fps);
+			this.framePeriodNanos = (long) (1e9 / fps);
+			this.nextFrameNanos = System.nanoTime();
+			this.frame = 0;
+			this.depthHeader = new UniChannelHeader(WIDTH * HEIGHT, fps, new UniElementDescriptor[] {
+					new UniElementDescriptor(true, true, true, (byte) 2) }, "Depth");
+			UniElementDescriptor floatElement = new UniElementDescriptor(false, true, (byte) 4);
+			this.userHeader = new UniChannelHeader(USER_TUPLES, fps, new UniElementDescriptor[] {
+					floatElement, floatElement, floatElement, floatElement }, "User1");
+		}
+		
+		protected void updateChannels()
+		{
+			nextFrameNanos += framePeriodNanos;
+			long wait = nextFrameNanos - System.nanoTime();
+			if (wait > 0)
+			{
+				try
+				{
+					Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+				}
+				catch (InterruptedException e)
+				{
+					Thread.currentThread().interrupt();
+				}
+			}
+			
+			final int current = frame++;
+			addChannel(new UniChannel(depthHeader, new UniDataPacker()
+			{
+				public void writeDataIntoByteBuffer(ByteBuffer buffer)
+				{
+					for (int i = 0; i < WIDTH * HEIGHT; ++i)
+					{
+						buffer.putShort((short) ((i + current) & 0x0FFF));
+					}
+				}
+			}));
+			addChannel(new UniChannel(userHeader, new UniDataPacker()
+			{
+				public void writeDataIntoByteBuffer(ByteBuffer buffer)
+				{
+					for (int i = 0; i < USER_TUPLES * 4; ++i)
+					{
+						buffer.putFloat(current + i);
+					}
+				}
+			}));
+		}
+	}
+}
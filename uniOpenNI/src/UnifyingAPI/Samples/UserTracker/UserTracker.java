@@ -37,12 +37,14 @@ public class UserTracker extends Component
 {
 	Sensor kinect;
 	SensorSnapshot snapshot;
+	ChannelKey depthKey, user1Key;
     /**
 	 * 
 	 */
 	private static final long serialVersionUID = 1L;
     private byte[] imgbytes;
     private float histogram[];
+    private short depthValues[];
     HashMap<Integer, HashMap<Integer, float[]>> joints;
 
     private boolean drawBackground = true;
@@ -60,36 +62,26 @@ public class UserTracker extends Component
         imgbytes = new byte[width*height*3];
         UniDevice device = new UniOpenNIDevice();
         kinect = new Sensor(device);
+        depthKey = kinect.getChannelKey("Depth");
+        user1Key = kinect.getChannelKey("User1");
         joints = new HashMap<Integer, HashMap<Integer, float[]>>();
     }
     
-    private void calcHist(Channel depth)
+    private void calcHist(short[] depthValues, int numPixels)
     {
         // reset
         for (int i = 0; i < histogram.length; ++i)
             histogram[i] = 0;
 
         int points = 0;
-        int depthIterator = 0;
-        while(depthIterator < depth.getNumberOfTuples())
+        for (int i = 0; i < numPixels; ++i)
         {
-            short depthVal;
-			try {
-				depthVal = depth.getTuple(depthIterator++).getElementShort(0);
-				
-				if (depthVal != 0)
-	            {
-	                histogram[depthVal]++;
-	                points++;
-	            }
-			} catch (IllegalArgumentException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
-			} catch (Exception e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
-			}
-            
+            short depthVal = depthValues[i];
+            if (depthVal != 0)
+            {
+                histogram[depthVal]++;
+                points++;
+            }
         }
         
         for (int i = 1; i < histogram.length; i++)
@@ -111,38 +103,37 @@ public class UserTracker extends Component
     {
         snapshot = kinect.getSensorSnapshot();
 		
-		Channel depthChannel = snapshot.getChannel("Depth");
+		Channel depthChannel = snapshot.getChannel(depthKey);
+		
+		// Copy the depth values out of the channel in one call
+		int numPixels = (int) depthChannel.getNumberOfTuples();
+		if (depthValues == null || depthValues.length < numPixels)
+		{
+			depthValues = new short[numPixels];
+		}
+		depthChannel.readShorts(0, 0, numPixels, depthValues, 0, 1);
 
-		calcHist(depthChannel);
+		calcHist(depthValues, numPixels);
 
-		for (int i = 0; i < depthChannel.getNumberOfTuples(); ++i)
+		for (int i = 0; i < numPixels; ++i)
 		{
-		    short pixel;
-			try {
-				pixel = depthChannel.getTuple(i).getElementShort(0);
-				
-				imgbytes[3*i] = 0;
-				imgbytes[3*i+1] = 0;
-				imgbytes[3*i+2] = 0;                	
+		    short pixel = depthValues[i];
+			
+			imgbytes[3*i] = 0;
+			imgbytes[3*i+1] = 0;
+			imgbytes[3*i+2] = 0;                	
 
-			    if (drawBackground || pixel != 0)
-			    {
-			    	int colorID = colors.length-1;
-			    	if (pixel != 0)
-			    	{
-			    		float histValue = histogram[pixel];
-			    		imgbytes[3*i] = (byte)(histValue*colors[colorID].getRed());
-			    		imgbytes[3*i+1] = (byte)(histValue*colors[colorID].getGreen());
-			    		imgbytes[3*i+2] = (byte)(histValue*colors[colorID].getBlue());
-			    	}
-			    }
-			} catch (IllegalArgumentException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
-			} catch (Exception e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
-			}
+		    if (drawBackground || pixel != 0)
+		    {
+		    	int colorID = colors.length-1;
+		    	if (pixel != 0)
+		    	{
+		    		float histValue = histogram[pixel];
+		    		imgbytes[3*i] = (byte)(histValue*colors[colorID].getRed());
+		    		imgbytes[3*i+1] = (byte)(histValue*colors[colorID].getGreen());
+		    		imgbytes[3*i+2] = (byte)(histValue*colors[colorID].getBlue());
+		    	}
+		    }
 		}
 		
 		// Update Joints
@@ -151,7 +142,7 @@ public class UserTracker extends Component
     
     void updateJoints()
     {
-    	Channel user1Channel = snapshot.getChannel("User1");
+    	Channel user1Channel = snapshot.getChannel(user1Key);
     	if (user1Channel != null)
     	{
     		HashMap<Integer, float[]> user1Skeleton = new HashMap<Integer, float[]>();	
@@ -25,27 +25,59 @@ Copyright © 2012, Cisco Systems, Inc. and UCLA
 package UnifyingAPI;
 
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
 
 /**
- * The interface used to retrieve and parse sensor packets from a <code>UniDevice</code>. 
+ * The interface used to retrieve and parse sensor packets from a <code>UniDevice</code>
+ * or any other <code>UniPacketSource</code>. 
  * @author Greg Clark, Richard Yu
  *
  */
 public class Sensor {
 	
-	private UniDevice device;
+	private UniPacketSource device;
 	private byte APIversion;
 	private short vendorID;
 	private short productID;
 	private double frequency;
 	private UniCrypt decryptor;
+	private boolean lazyDecoding;	// True if channels are parsed on first access
+	private UniSubscription subscription;	// null if every channel is wanted
+	private ExecutorService decodeExecutor;	// null to decode on the calling thread
+	private long decodeThreshold;	// bytes to widen from which a packet is decoded in parallel
+	private Object consumerLock;	// Held while a packet is retrieved and parsed
+	private ChannelDecodePlan[] layoutPlans;	// Decode plans by layout id
+	private ArrayList<ChannelDecodePlan> channelPlans;	// Decode plans by position in the last packet
+	private HashMap<UniChannelHeader, ChannelDecodePlan> decodePlans;	// Decode plans by channel layout
+	private HashMap<String, ChannelKey> channelKeys;	// Channel keys by name
+	private ArrayList<ChannelKey> channelKeysById;	// Channel keys by id
+	private ByteBuffer[] referenceData;	// Data deltas are taken from, by channel id
+	private int[] referenceFrames;		// Frame number of the reference data, by channel id
+	private boolean[] referencesHeld;	// True if the reference data is held by its snapshot, by channel id
+	private ByteBuffer[] spareReferences;	// Buffer the next reference data is decoded into, by channel id
+	private Object referenceLock;		// Guards the reference buffers, released from any thread
+	private UniPacketPool decodePool;	// Buffers compressed channels are decompressed into
+	private volatile UniPacketRing acquisitionRing;	// null unless acquisition is running
+	private Thread acquisitionThread;
+	private volatile Throwable acquisitionError;	// Why the acquisition thread stopped
+	private long skippedFrames;			// Packets skipped to retrieve the latest one
+	private long droppedFrames;			// Packets dropped by stopped acquisition rings
+	private SensorPublisher publisher;	// null until a publisher is asked for
+	
+	private static final long MIN_DECODE_TASK_BYTES = 1 << 16;
+	private static final int MAX_DECODE_PLANS = 64;
+	private static final int DECODE_POOL_SIZE = 8;
 	
 	/**
-	 * Constructs a Sensor from a UniDevice. Will block while waiting to get a 
-	 * sensor packet header from the device.
+	 * Constructs a Sensor from a UniDevice, or from any other source of sensor
+	 * packets. Will block while waiting to get a sensor packet header from the device.
 	 * @param device
 	 */
-	public Sensor(UniDevice device)
+	public Sensor(UniPacketSource device)
 	{
 		this.device = device;
 		byte[] sensorPacketHeader = this.device.getSensorHeader();
@@ -55,24 +87,492 @@ public class Sensor {
 		this.productID = header.getProductID();
 		this.frequency = header.getFrequency();
 		this.decryptor = null;
+		this.lazyDecoding = false;
+		this.subscription = null;
+		this.decodeExecutor = null;
+		this.decodeThreshold = 0;
+		this.consumerLock = new Object();
+		this.layoutPlans = new ChannelDecodePlan[UniChannelHeader.MAX_LAYOUT_IDS];
+		this.channelPlans = new ArrayList<ChannelDecodePlan>();
+		this.decodePlans = new HashMap<UniChannelHeader, ChannelDecodePlan>();
+		this.channelKeys = new HashMap<String, ChannelKey>();
+		this.channelKeysById = new ArrayList<ChannelKey>();
+		this.referenceData = new ByteBuffer[0];
+		this.referenceFrames = new int[0];
+		this.referencesHeld = new boolean[0];
+		this.spareReferences = new ByteBuffer[0];
+		this.referenceLock = new Object();
+		this.decodePool = new UniPacketPool(DECODE_POOL_SIZE, false);
+		this.acquisitionRing = null;
+		this.acquisitionThread = null;
+		this.acquisitionError = null;
+		this.skippedFrames = 0;
+		this.droppedFrames = 0;
+		this.publisher = null;
+		
+		// Layout ids and frames sent before this Sensor existed are unknown to it
+		this.device.resetLayoutIds();
+		this.device.requestKeyframe();
 	}
 	
 	/**
 	 * Asks the device to construct a new sensor packet and returns the data as
 	 *  a <code>SensorSnapshot</code>. This method will block while waiting for
-	 *  the device to return a sensor packet.
-	 * @return the <code>SensorSnapshot</code>
+	 *  the device to return a sensor packet. While acquisition is running, 
+	 *  this returns the next packet acquired, waiting for it if needed.
+	 *  <p>
+	 *  Snapshots can be retrieved from several threads, such as the 
+	 *  publisher's thread and a direct caller, but the calls that retrieve 
+	 *  them are serialized: packets are parsed one at a time, in the order 
+	 *  they were received, since layout ids and deltas depend on the 
+	 *  packets before them.
+	 *  <p>
+	 *  Channels that refer to a layout id or a delta reference this 
+	 *  <code>Sensor</code> has not received are left out of the snapshot; 
+	 *  {@link SensorSnapshot#isComplete()} tells whether any are missing.
+	 * @return the <code>SensorSnapshot</code>, <code>null</code> if acquisition 
+	 * was stopped or the calling thread was interrupted while waiting
+	 * @throws RuntimeException if the acquisition thread failed to get a packet
 	 */
 	public SensorSnapshot getSensorSnapshot()
 	{
-		// Get sensor packet from device driver
-		ByteBuffer rawPacket = device.getSensorPacket().asReadOnlyBuffer();
+		synchronized (consumerLock)
+		{
+			UniPacketRing ring = acquisitionRing;
+			if (ring == null)
+			{
+				// Get sensor packet from device driver
+				return parseSensorPacket(device.getSensorPacket());
+			}
+			
+			ByteBuffer devicePacket;
+			try
+			{
+				devicePacket = ring.take();
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				return null;
+			}
+			if (devicePacket == null)
+			{
+				checkAcquisitionError();
+				return null;
+			}
+			return parseSensorPacket(devicePacket);
+		}
+	}
+	
+	/**
+	 * Retrieves the next acquired packet as a <code>SensorSnapshot</code> 
+	 * without waiting.
+	 * @return the <code>SensorSnapshot</code>, <code>null</code> if no packet
+	 * has been acquired since the last one was retrieved
+	 * @throws IllegalStateException if acquisition is not running
+	 * @throws RuntimeException if the acquisition thread failed to get a packet
+	 */
+	public SensorSnapshot pollSensorSnapshot() throws IllegalStateException
+	{
+		synchronized (consumerLock)
+		{
+			ByteBuffer devicePacket = getAcquisitionRing().poll();
+			if (devicePacket == null)
+			{
+				checkAcquisitionError();
+				return null;
+			}
+			return parseSensorPacket(devicePacket);
+		}
+	}
+	
+	/**
+	 * Retrieves the most recently acquired packet as a <code>SensorSnapshot</code>
+	 * without waiting. Older acquired packets are skipped. Skipped packets 
+	 * with layout ids or channel codecs are still parsed, since they may 
+	 * define layout ids or hold the frames later deltas are taken from.
+	 * @return the <code>SensorSnapshot</code>, <code>null</code> if no packet
+	 * has been acquired since the last one was retrieved
+	 * @throws IllegalStateException if acquisition is not running
+	 * @throws RuntimeException if the acquisition thread failed to get a packet
+	 */
+	public SensorSnapshot pollLatestSensorSnapshot() throws IllegalStateException
+	{
+		synchronized (consumerLock)
+		{
+			UniPacketRing ring = getAcquisitionRing();
+			ByteBuffer devicePacket = ring.poll();
+			if (devicePacket == null)
+			{
+				checkAcquisitionError();
+				return null;
+			}
+			
+			ByteBuffer newerPacket;
+			while ((newerPacket = ring.poll()) != null)
+			{
+				if (hasPacketState(devicePacket))
+				{
+					try
+					{
+						parseSensorPacket(devicePacket).release();
+					}
+					catch (RuntimeException e)
+					{
+						device.releaseSensorPacket(newerPacket);
+						throw e;
+					}
+				}
+				else
+				{
+					device.releaseSensorPacket(devicePacket);
+				}
+				devicePacket = newerPacket;
+				++skippedFrames;
+			}
+			return parseSensorPacket(devicePacket);
+		}
+	}
+	
+	/**
+	 * Tells whether a sensor packet may hold state later packets depend on, 
+	 * i.e. whether it uses layout ids or channel codecs. The flags are read 
+	 * from the packet, since the device may still be sending packets of 
+	 * settings made before the current ones.
+	 * @param devicePacket the sensor packet as returned by the device
+	 * @return true if the packet has to be parsed even when it is skipped
+	 */
+	private static boolean hasPacketState(ByteBuffer devicePacket)
+	{
+		byte flags = devicePacket.get(UniSensorHeader.FLAGS_INDEX);
+		return (flags & (UniSensorHeader.FLAG_LAYOUT_IDS | UniSensorHeader.FLAG_CHANNEL_CODECS)) != 0;
+	}
+	
+	/**
+	 * Hands a packet that will not be parsed back to the device. If it may
+	 * have defined layout ids or held the frame later deltas are taken from,
+	 * the device is asked to send full headers and a keyframe again, so the
+	 * following snapshots are complete. The packet is not parsed here, 
+	 * since packets must be parsed in the order they were acquired.
+	 * @param devicePacket the sensor packet as returned by the device
+	 */
+	private void releaseUnparsedPacket(ByteBuffer devicePacket)
+	{
+		byte flags = devicePacket.get(UniSensorHeader.FLAGS_INDEX);
+		if ((flags & UniSensorHeader.FLAG_LAYOUT_IDS) != 0)
+		{
+			device.resetLayoutIds();
+		}
+		if ((flags & UniSensorHeader.FLAG_CHANNEL_CODECS) != 0)
+		{
+			device.requestKeyframe();
+		}
+		device.releaseSensorPacket(devicePacket);
+	}
+	
+	/**
+	 * Starts pulling sensor packets from the device on a dedicated thread, 
+	 * so the time spent waiting for the hardware overlaps with the consumer's
+	 * processing. Acquired packets are held in a ring of 
+	 * <code>capacity</code> packets until they are retrieved with 
+	 * {@link #getSensorSnapshot()}, {@link #pollSensorSnapshot()} or 
+	 * {@link #pollLatestSensorSnapshot()}. Snapshots should be released once 
+	 * used when the device has a packet pool. When the ring drops a packet 
+	 * with layout ids or channel codecs, the device is asked to send full 
+	 * headers and a keyframe again.
+	 * @param capacity the number of packets the ring holds
+	 * @param policy what to do with packets acquired while the ring is full
+	 * @throws IllegalStateException if acquisition is already running
+	 * @throws IllegalArgumentException if the capacity is less than 1
+	 */
+	public void startAcquisition(int capacity, UniOverflowPolicy policy) 
+			throws IllegalStateException, IllegalArgumentException
+	{
+		if (acquisitionRing != null)
+		{
+			throw new IllegalStateException("Acquisition is already running");
+		}
+		
+		final UniPacketRing ring = new UniPacketRing(capacity, policy);
+		acquisitionError = null;
+		skippedFrames = 0;
+		droppedFrames = 0;
+		acquisitionThread = new Thread(new Runnable()
+		{
+			public void run()
+			{
+				acquire(ring);
+			}
+		}, "UniDevice acquisition");
+		acquisitionThread.setDaemon(true);
+		acquisitionRing = ring;
+		acquisitionThread.start();
+	}
+	
+	/**
+	 * Stops the acquisition thread, waiting for it to finish the packet it 
+	 * is getting from the device. Acquired packets that were not retrieved 
+	 * are released.
+	 */
+	public void stopAcquisition()
+	{
+		UniPacketRing ring = acquisitionRing;
+		if (ring == null)
+		{
+			return;
+		}
+		
+		ring.close();
+		acquisitionThread.interrupt();
+		boolean interrupted = false;
+		while (acquisitionThread.isAlive())
+		{
+			try
+			{
+				acquisitionThread.join();
+			}
+			catch (InterruptedException e)
+			{
+				interrupted = true;
+			}
+		}
+		if (interrupted)
+		{
+			Thread.currentThread().interrupt();
+		}
+		
+		ByteBuffer packet;
+		while ((packet = ring.poll()) != null)
+		{
+			releaseUnparsedPacket(packet);
+		}
+		droppedFrames = ring.getDroppedPackets();
+		acquisitionRing = null;
+		acquisitionThread = null;
+	}
+	
+	/**
+	 * Tells whether packets are acquired on a dedicated thread.
+	 * @return true if acquisition is running
+	 */
+	public boolean isAcquiring() { return acquisitionRing != null; }
+	
+	/**
+	 * Retrieves the number of packets dropped because the acquisition ring 
+	 * was full since acquisition was last started. With delta encoding, 
+	 * channels of the packet following a dropped packet are missing until a
+	 * keyframe arrives.
+	 * @return the number of dropped packets
+	 */
+	public long getDroppedFrames()
+	{
+		UniPacketRing ring = acquisitionRing;
+		return (ring != null) ? ring.getDroppedPackets() : droppedFrames;
+	}
+	
+	/**
+	 * Retrieves the number of acquired packets skipped by 
+	 * {@link #pollLatestSensorSnapshot()} since acquisition was last started.
+	 * @return the number of skipped packets
+	 */
+	public long getSkippedFrames() { return skippedFrames; }
+	
+	/**
+	 * Retrieves a publisher streaming this sensor's snapshots. While the 
+	 * publisher has subscribers, a dedicated thread gets snapshots with 
+	 * {@link #getSensorSnapshot()} and submits them, so a subscriber that 
+	 * falls behind gets the latest snapshot rather than a backlog. Snapshots 
+	 * should not be retrieved in any other way while the publisher is open.
+	 * Closing the publisher stops the thread; a new publisher is created by 
+	 * the next call. The publisher is closed with an error if retrieving a 
+	 * snapshot fails.
+	 * @return the publisher
+	 */
+	public synchronized SensorPublisher getPublisher()
+	{
+		if (publisher == null || publisher.isClosed())
+		{
+			final SensorPublisher newPublisher = new SensorPublisher();
+			Thread thread = new Thread(new Runnable()
+			{
+				public void run()
+				{
+					publish(newPublisher);
+				}
+			}, "Sensor publisher");
+			thread.setDaemon(true);
+			publisher = newPublisher;
+			thread.start();
+		}
+		return publisher;
+	}
+	
+	/**
+	 * Submits snapshots to the publisher while it has subscribers, until it 
+	 * is closed. Runs on the publisher's thread.
+	 * @param target the publisher to feed
+	 */
+	private void publish(SensorPublisher target)
+	{
+		try
+		{
+			while (!target.isClosed())
+			{
+				target.awaitSubscribers();
+				if (target.isClosed())
+				{
+					break;
+				}
+				SensorSnapshot snapshot = getSensorSnapshot();
+				if (snapshot == null)
+				{
+					if (Thread.currentThread().isInterrupted())
+					{
+						break;
+					}
+					// Acquisition was stopped, the next snapshot comes from the device
+					continue;
+				}
+				try
+				{
+					target.submit(snapshot);
+				}
+				catch (IllegalStateException e)
+				{
+					// Closed while the snapshot was being retrieved
+					break;
+				}
+			}
+			target.close();
+		}
+		catch (InterruptedException e)
+		{
+			target.close();
+		}
+		catch (RuntimeException e)
+		{
+			target.closeExceptionally(e);
+		}
+	}
+	
+	/**
+	 * Pulls packets from the device into the ring until the ring is closed.
+	 * Runs on the acquisition thread.
+	 * @param ring the ring to fill
+	 */
+	private void acquire(UniPacketRing ring)
+	{
+		try
+		{
+			while (!ring.isClosed())
+			{
+				ByteBuffer packet = device.getSensorPacket();
+				ByteBuffer dropped;
+				try
+				{
+					dropped = ring.offer(packet);
+				}
+				catch (InterruptedException e)
+				{
+					dropped = packet;
+				}
+				if (dropped != null)
+				{
+					releaseUnparsedPacket(dropped);
+				}
+			}
+		}
+		catch (RuntimeException e)
+		{
+			acquisitionError = e;
+			ring.close();
+		}
+		catch (Error e)
+		{
+			acquisitionError = e;
+			ring.close();
+			throw e;
+		}
+	}
+	
+	/**
+	 * Retrieves the acquisition ring.
+	 * @return the acquisition ring
+	 * @throws IllegalStateException if acquisition is not running
+	 */
+	private UniPacketRing getAcquisitionRing() throws IllegalStateException
+	{
+		UniPacketRing ring = acquisitionRing;
+		if (ring == null)
+		{
+			throw new IllegalStateException("Acquisition is not running");
+		}
+		return ring;
+	}
+	
+	/**
+	 * Throws the error that stopped the acquisition thread, if there is one.
+	 * @throws RuntimeException if the acquisition thread failed to get a packet
+	 */
+	private void checkAcquisitionError() throws RuntimeException
+	{
+		Throwable error = acquisitionError;
+		if (error != null)
+		{
+			throw new RuntimeException("Failed to acquire sensor packet", error);
+		}
+	}
+	
+	/**
+	 * Parses a sensor packet returned by the device into a <code>SensorSnapshot</code>.
+	 * Channels that cannot be parsed are left out and the snapshot is marked
+	 * incomplete. Must be called with <code>consumerLock</code> held.
+	 * @param devicePacket the sensor packet
+	 * @return the <code>SensorSnapshot</code>
+	 * @throws RuntimeException if the packet is malformed, once the packet 
+	 * and the buffers decoded from it have been handed back
+	 */
+	private SensorSnapshot parseSensorPacket(ByteBuffer devicePacket)
+	{
+		ByteBuffer rawPacket = devicePacket.asReadOnlyBuffer();
 		rawPacket.rewind();
 		
 		// Create new SensorSnapshot
-		UniSensorHeader sensorHeader = new UniSensorHeader(rawPacket); 
+		UniSensorHeader sensorHeader;
+		try
+		{
+			sensorHeader = new UniSensorHeader(rawPacket);
+		}
+		catch (RuntimeException e)
+		{
+			device.releaseSensorPacket(devicePacket);
+			throw e;
+		}
 		SensorSnapshot snapshot = new SensorSnapshot(this, sensorHeader);
+		snapshot.setSensorPacket(devicePacket);
 		
+		// A malformed packet hands back every buffer the snapshot holds
+		try
+		{
+			parseChannels(snapshot, sensorHeader, rawPacket);
+		}
+		catch (RuntimeException e)
+		{
+			snapshot.release();
+			throw e;
+		}
+		return snapshot;
+	}
+	
+	/**
+	 * Parses the channels of a sensor packet into a <code>SensorSnapshot</code>.
+	 * @param snapshot the snapshot to add the channels to
+	 * @param sensorHeader the sensor header of the packet
+	 * @param rawPacket the sensor packet, positioned after the sensor header
+	 * @throws RuntimeException if the packet is malformed
+	 */
+	private void parseChannels(SensorSnapshot snapshot, UniSensorHeader sensorHeader, ByteBuffer rawPacket)
+	{
 		// Decrypt the raw packet
 		ByteBuffer sensorPacket;
 		if (decryptor != null)
@@ -87,20 +587,489 @@ public class Sensor {
 		int numChannels = sensorHeader.getNumChannels();
 		
 		int readBytes = sensorHeader.getPackedSize(); // number of bytes read so far
+		long widenedBytes = 0;	// number of bytes that need widening
+		ArrayList<Channel> widenedChannels = null;	// channels left to widen, created when needed
 		for (int channelCount = 0; channelCount < numChannels; ++channelCount)
 		{
 			// Set sensorPacket to correct position
 			sensorPacket.position(readBytes);
 			
-			UniChannel uniChannel = new UniChannel(sensorPacket);
-			Channel channel = new Channel(uniChannel);
-			snapshot.addChannel(uniChannel.getHeader().getName(), channel);
+			ChannelDecodePlan plan;
+			if (sensorHeader.hasLayoutIds())
+			{
+				plan = readLayoutId(sensorPacket);
+				if (plan == null)
+				{
+					// The rest of the packet cannot be parsed without the 
+					// header, ask the device to send full headers again
+					device.resetLayoutIds();
+					snapshot.markIncomplete();
+					break;
+				}
+			}
+			else
+			{
+				plan = readChannelHeader(sensorPacket, channelCount);
+			}
+			UniChannel uniChannel;
+			if (sensorHeader.hasChannelCodecs())
+			{
+				byte codec = sensorPacket.get();
+				int frameNumber = sensorPacket.getInt();
+				int encodedSize = sensorPacket.getInt();
+				readBytes = sensorPacket.position() + encodedSize;
+				ByteBuffer data = decodeChannelData(snapshot, plan, codec, frameNumber, sensorPacket, encodedSize);
+				if (data == null)
+				{
+					// The channel cannot be rebuilt until a keyframe is sent
+					device.requestKeyframe();
+					snapshot.markIncomplete();
+					continue;
+				}
+				uniChannel = new UniChannel(plan.getHeader(), data);
+			}
+			else
+			{
+				uniChannel = new UniChannel(plan.getHeader(), sensorPacket);
+				readBytes = sensorPacket.position() + (int) uniChannel.getPackedDataSize();
+			}
 			
-			// Add to readBytes
-			readBytes += uniChannel.getPackedSize();
+			if (lazyDecoding)
+			{
+				snapshot.addUndecodedChannel(uniChannel, plan);
+			}
+			else if (decodeExecutor != null)
+			{
+				// Leave the widening until every channel has been found
+				Channel channel = new Channel(uniChannel, plan, false);
+				if (channel.needsWidening())
+				{
+					if (widenedChannels == null)
+					{
+						widenedChannels = new ArrayList<Channel>();
+					}
+					widenedChannels.add(channel);
+					widenedBytes += uniChannel.getPackedDataSize();
+				}
+				snapshot.addChannel(plan.getKey(), channel);
+			}
+			else
+			{
+				Channel channel = new Channel(uniChannel, plan, true);
+				snapshot.addChannel(plan.getKey(), channel);
+			}
 		}
 		
-		return snapshot;
+		if (widenedChannels != null)
+		{
+			widenChannels(widenedChannels, widenedBytes);
+		}
+	}
+	
+	/**
+	 * Reads the header of a channel and finds its decode plan. The header is
+	 * compared with the header of the channel at the same position in the
+	 * previous packet first, so an unchanged header is not parsed again.
+	 * @param sensorPacket the sensor packet, positioned where the channel 
+	 * starts. Positioned where the channel data starts on return.
+	 * @param channelIndex the index of the channel in the sensor packet
+	 * @return the decode plan for the channel
+	 */
+	private ChannelDecodePlan readChannelHeader(ByteBuffer sensorPacket, int channelIndex)
+	{
+		if (channelIndex < channelPlans.size())
+		{
+			ChannelDecodePlan plan = channelPlans.get(channelIndex);
+			UniChannelHeader header = plan.getHeader();
+			if (header.matches(sensorPacket))
+			{
+				sensorPacket.position(sensorPacket.position() + header.getPackedSize());
+				return plan;
+			}
+		}
+		
+		ChannelDecodePlan plan = getDecodePlan(new UniChannelHeader(sensorPacket));
+		if (channelIndex < channelPlans.size())
+		{
+			channelPlans.set(channelIndex, plan);
+		}
+		else
+		{
+			channelPlans.add(plan);
+		}
+		return plan;
+	}
+	
+	/**
+	 * Reads the layout id that starts a channel and finds its decode plan. If 
+	 * the id is followed by a channel header, the header's plan is remembered
+	 * for that id.
+	 * @param sensorPacket the sensor packet, positioned where the channel 
+	 * starts. Positioned where the channel data starts on return.
+	 * @return the decode plan for the channel, <code>null</code> if the layout 
+	 * id has not been defined by an earlier packet
+	 */
+	private ChannelDecodePlan readLayoutId(ByteBuffer sensorPacket)
+	{
+		short layoutId = sensorPacket.getShort();
+		int layoutIndex = layoutId & ~UniChannelHeader.LAYOUT_DEFINITION;
+		if (layoutIndex >= layoutPlans.length)
+		{
+			return null;
+		}
+		
+		if ((layoutId & UniChannelHeader.LAYOUT_DEFINITION) != 0)
+		{
+			layoutPlans[layoutIndex] = getDecodePlan(new UniChannelHeader(sensorPacket));
+		}
+		return layoutPlans[layoutIndex];
+	}
+	
+	/**
+	 * Retrieves the decode plan for a channel layout, building it if no 
+	 * channel with that layout has been seen. Plans of layouts that are no
+	 * longer sent are dropped once too many layouts have been seen.
+	 * @param header the channel header
+	 * @return the decode plan for the header
+	 */
+	private ChannelDecodePlan getDecodePlan(UniChannelHeader header)
+	{
+		ChannelDecodePlan plan = decodePlans.get(header);
+		if (plan == null)
+		{
+			if (decodePlans.size() >= MAX_DECODE_PLANS)
+			{
+				decodePlans.clear();
+			}
+			plan = new ChannelDecodePlan(header, getChannelKey(header.getName()));
+			decodePlans.put(header, plan);
+		}
+		return plan;
+	}
+	
+	/**
+	 * Decodes the data of a channel sent with a codec. Data that later deltas
+	 * are taken from is kept, by channel id, in buffers that are not modified
+	 * while a snapshot holds them, so the channels of earlier snapshots stay 
+	 * valid. Each channel has two such buffers, the reference data and a 
+	 * spare that the next frame is decoded into; a buffer becomes the spare 
+	 * again once it is no longer the reference and its snapshot has been 
+	 * released. Snapshots that are not released leave their buffer to the 
+	 * garbage collector and a new one is allocated.
+	 * Compressed data is decompressed into a buffer of the decode pool, 
+	 * which is handed back when the snapshot is released.
+	 * @param snapshot the snapshot being built
+	 * @param plan the decode plan of the channel
+	 * @param codec the codec bits of the channel
+	 * @param frameNumber the channel's frame number
+	 * @param sensorPacket the sensor packet, positioned where the encoded data starts
+	 * @param encodedSize the size of the encoded data in bytes
+	 * @return the decoded data, <code>null</code> if it is a delta from a 
+	 * frame this <code>Sensor</code> does not have
+	 * @throws IllegalArgumentException if the encoded data does not fit in 
+	 * the packet or does not decode to the channel's data
+	 */
+	private ByteBuffer decodeChannelData(SensorSnapshot snapshot, ChannelDecodePlan plan, 
+			byte codec, int frameNumber, ByteBuffer sensorPacket, int encodedSize)
+	{
+		int id = plan.getKey().getId();
+		if (id >= referenceData.length)
+		{
+			synchronized (referenceLock)
+			{
+				int length = getNumberOfChannelKeys();
+				referenceData = Arrays.copyOf(referenceData, length);
+				referenceFrames = Arrays.copyOf(referenceFrames, length);
+				referencesHeld = Arrays.copyOf(referencesHeld, length);
+				spareReferences = Arrays.copyOf(spareReferences, length);
+			}
+		}
+		
+		int dataSize = (int) plan.getHeader().getPackedDataSize();
+		boolean compressed = (codec & UniChannelEncoder.CODEC_COMPRESSED) != 0;
+		boolean delta = (codec & UniChannelEncoder.CODEC_DELTA) != 0;
+		if (encodedSize < (compressed ? 4 : 0) || encodedSize > sensorPacket.remaining())
+		{
+			String message = String.format("Channel %s has %d encoded bytes, %d bytes are left in the packet\n",
+					plan.getName(), encodedSize, sensorPacket.remaining());
+			throw new IllegalArgumentException(message);
+		}
+		ByteBuffer encoded = sensorPacket.slice();
+		encoded.limit(encodedSize);
+		
+		// Only a delta may differ in size from the data, it has a bitmap 
+		// and the blocks that changed
+		int size = compressed ? encoded.getInt(0) : encodedSize;
+		int bitmapSize = UniDeltaCodec.getBitmapSize(dataSize);
+		boolean sizeValid = delta ? size >= bitmapSize && size <= dataSize + bitmapSize : size == dataSize;
+		if (!sizeValid)
+		{
+			String message = String.format("Channel %s decodes from %d bytes, its data has %d bytes\n",
+					plan.getName(), size, dataSize);
+			throw new IllegalArgumentException(message);
+		}
+		
+		ByteBuffer decompressed = null;	// pooled, handed back unless it is the data
+		ByteBuffer data = null;
+		try
+		{
+			if (compressed)
+			{
+				decompressed = decodePool.acquire(size);
+				UniBlockCompressor.decompress(encoded, 4, encodedSize - 4, 
+						decompressed.array(), decompressed.arrayOffset(), size);
+				encoded = decompressed;
+			}
+			
+			if (delta)
+			{
+				ByteBuffer reference = referenceData[id];
+				if (reference == null || referenceFrames[id] != frameNumber - 1 || 
+						reference.limit() != dataSize)
+				{
+					if (decompressed != null)
+					{
+						decodePool.release(decompressed);
+					}
+					return null;
+				}
+				data = takeSpareReference(id, dataSize);
+				UniDeltaCodec.decode(encoded, reference, data);
+			}
+			else if ((codec & UniChannelEncoder.CODEC_REFERENCE) != 0)
+			{
+				// The sensor packet may be reused by the device, keep a copy
+				data = takeSpareReference(id, dataSize);
+				data.put(encoded);
+				data.flip();
+			}
+			else
+			{
+				data = encoded;
+			}
+		}
+		catch (RuntimeException e)
+		{
+			// Corrupt data, hand back the buffers taken for it
+			if (decompressed != null)
+			{
+				decodePool.release(decompressed);
+			}
+			if (data != null && data != encoded)
+			{
+				synchronized (referenceLock)
+				{
+					recycleReference(id, data);
+				}
+			}
+			throw e;
+		}
+		
+		if (data != encoded)
+		{
+			synchronized (referenceLock)
+			{
+				if ((codec & UniChannelEncoder.CODEC_REFERENCE) != 0)
+				{
+					ByteBuffer previous = referenceData[id];
+					boolean previousHeld = referencesHeld[id];
+					referenceData[id] = data;
+					referenceFrames[id] = frameNumber;
+					referencesHeld[id] = true;
+					if (previous != null && !previousHeld)
+					{
+						recycleReference(id, previous);
+					}
+				}
+				snapshot.addReferenceBuffer(id, data);
+			}
+		}
+		if (decompressed == data)
+		{
+			snapshot.addDecodedBuffer(decompressed);
+		}
+		else if (decompressed != null)
+		{
+			decodePool.release(decompressed);
+		}
+		return data;
+	}
+	
+	/**
+	 * Takes the spare reference buffer of a channel, or allocates one if the
+	 * spare is missing or too small.
+	 * @param id the channel id
+	 * @param dataSize the size of the channel data in bytes
+	 * @return an empty buffer with its limit at <code>dataSize</code>
+	 */
+	private ByteBuffer takeSpareReference(int id, int dataSize)
+	{
+		ByteBuffer spare;
+		synchronized (referenceLock)
+		{
+			spare = spareReferences[id];
+			spareReferences[id] = null;
+		}
+		if (spare == null || spare.capacity() < dataSize)
+		{
+			return ByteBuffer.allocate(dataSize);
+		}
+		spare.clear();
+		spare.limit(dataSize);
+		return spare;
+	}
+	
+	/**
+	 * Keeps a reference buffer nobody uses any more as the spare of its 
+	 * channel, unless the channel already has a larger spare.
+	 * Called with <code>referenceLock</code> held.
+	 */
+	private void recycleReference(int id, ByteBuffer buffer)
+	{
+		ByteBuffer spare = spareReferences[id];
+		if (spare == null || spare.capacity() < buffer.capacity())
+		{
+			spareReferences[id] = buffer;
+		}
+	}
+	
+	/**
+	 * Hands a buffer holding decoded reference data back once its 
+	 * <code>SensorSnapshot</code> has been released. The buffer is reused 
+	 * for a later frame of the channel unless it is still the reference data.
+	 * @param id the channel id
+	 * @param buffer the buffer to release
+	 */
+	void releaseReferenceBuffer(int id, ByteBuffer buffer)
+	{
+		synchronized (referenceLock)
+		{
+			if (referenceData[id] == buffer)
+			{
+				referencesHeld[id] = false;
+			}
+			else
+			{
+				recycleReference(id, buffer);
+			}
+		}
+	}
+	
+	/**
+	 * Widens the channels of a packet. Packets with at least 
+	 * <code>decodeThreshold</code> bytes to widen are split into tasks of 
+	 * about <code>decodeThreshold</code> bytes each, and the tasks run on the
+	 * decode executor. Smaller packets are widened on the calling thread.
+	 * An interrupt does not stop the widening, it is kept for the caller.
+	 * @param widenedChannels the channels to widen
+	 * @param widenedBytes the number of packed bytes in the channels to widen
+	 */
+	private void widenChannels(ArrayList<Channel> widenedChannels, long widenedBytes)
+	{
+		if (widenedBytes < decodeThreshold)
+		{
+			for (int i = 0; i < widenedChannels.size(); ++i)
+			{
+				Channel channel = widenedChannels.get(i);
+				channel.widen(0, (int) channel.getNumberOfTuples());
+			}
+			return;
+		}
+		
+		// Split large channels into ranges of tuples
+		long taskBytes = Math.max(decodeThreshold, MIN_DECODE_TASK_BYTES);
+		ArrayList<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+		for (int i = 0; i < widenedChannels.size(); ++i)
+		{
+			final Channel channel = widenedChannels.get(i);
+			int numTuples = (int) channel.getNumberOfTuples();
+			int tuplesPerTask = (int) Math.max(1, taskBytes / channel.getTupleSize());
+			for (int firstTuple = 0; firstTuple < numTuples; firstTuple += tuplesPerTask)
+			{
+				final int first = firstTuple;
+				final int count = Math.min(tuplesPerTask, numTuples - firstTuple);
+				tasks.add(new Callable<Object>()
+				{
+					public Object call()
+					{
+						channel.widen(first, count);
+						return null;
+					}
+				});
+			}
+		}
+		
+		UniTasks.runAll(decodeExecutor, tasks, "Failed to decode channel");
+	}
+	
+/**
+	 * Resolves a channel name to a key that looks the channel up in this 
+	 * <code>Sensor</code>'s snapshots without hashing the name. The same key 
+	 * is returned every time for a name, whether or not the device has sent 
+	 * a channel with that name yet.
+	 * @param channelName the name of the channel
+	 * @return the key of the channel
+	 */
+	public synchronized ChannelKey getChannelKey(String channelName)
+	{
+		ChannelKey key = channelKeys.get(channelName);
+		if (key == null)
+		{
+			key = new ChannelKey(this, channelName, channelKeysById.size());
+			channelKeys.put(channelName, key);
+			channelKeysById.add(key);
+		}
+		return key;
+	}
+	
+	/**
+	 * Retrieves the key of a channel name without creating one.
+	 * @param channelName the name of the channel
+	 * @return the key of the channel, <code>null</code> if the name has not been resolved
+	 */
+	synchronized ChannelKey findChannelKey(String channelName)
+	{
+		return channelKeys.get(channelName);
+	}
+	
+	/**
+	 * Retrieves the key with the given id.
+	 * @param id the id of the channel
+	 * @return the key with that id
+	 */
+	synchronized ChannelKey getChannelKey(int id)
+	{
+		return channelKeysById.get(id);
+	}
+	
+	/**
+	 * Retrieves the number of channel names resolved so far. Channel ids are 
+	 * lower than this number.
+	 * @return the number of channel keys
+	 */
+	synchronized int getNumberOfChannelKeys()
+	{
+		return channelKeysById.size();
+	}
+	
+	/**
+	 * Hands a sensor packet back to the device once its 
+	 * <code>SensorSnapshot</code> has been released.
+	 * @param sensorPacket the sensor packet to release
+	 */
+	void releaseSensorPacket(ByteBuffer sensorPacket)
+	{
+		device.releaseSensorPacket(sensorPacket);
+	}
+	
+	/**
+	 * Hands a buffer channel data was decompressed into back to the decode 
+	 * pool once its <code>SensorSnapshot</code> has been released.
+	 * @param buffer the buffer to release
+	 */
+	void releaseDecodedBuffer(ByteBuffer buffer)
+	{
+		decodePool.release(buffer);
 	}
 	
 	/**
@@ -127,6 +1096,126 @@ public class Sensor {
 	 */
 	public double getFrequency() { return frequency; }
 	
+	/**
+	 * Sets whether channels are parsed lazily. In lazy mode only the channel 
+	 * headers are read when a <code>SensorSnapshot</code> is created, and a 
+	 * channel's data is parsed the first time it is retrieved with 
+	 * {@link SensorSnapshot#getChannel(String)}. Channels that are never
+	 * retrieved are never parsed.
+	 * @param lazyDecoding true to parse channels on first access
+	 */
+	public void setLazyDecoding(boolean lazyDecoding)
+	{
+		this.lazyDecoding = lazyDecoding;
+	}
+	
+	/**
+	 * Tells whether channels are parsed on first access.
+	 * @return true if channels are parsed lazily
+	 */
+	public boolean isLazyDecoding() { return lazyDecoding; }
+	
+	/**
+	 * Asks the device to send the given channel. Once a channel has been 
+	 * subscribed to, the device only sends subscribed channels. If elements 
+	 * are given, the channel's tuples only contain those elements, in the 
+	 * given order, so element indices in the <code>Channel</code> refer to 
+	 * positions in this list. A device rejects indices past the last element
+	 * of a channel it has already sent; indices of channels it has not sent
+	 * yet are ignored once found to be past the last element, see 
+	 * {@link UniDevice#getIgnoredElements()}.
+	 * @param channelName the name of the channel
+	 * @param elements the 0-based indices of the tuple elements wanted, none for every element
+	 * @throws IllegalArgumentException if an element index is negative or the
+	 * device rejects it. The subscription is left unchanged.
+	 */
+	public void subscribe(String channelName, int... elements) throws IllegalArgumentException
+	{
+		UniSubscription newSubscription = (subscription == null) ? new UniSubscription() : subscription;
+		newSubscription = newSubscription.with(channelName, elements);
+		device.setSubscription(newSubscription);
+		subscription = newSubscription;
+	}
+	
+	/**
+	 * Asks the device to stop sending the given channel.
+	 * @param channelName the name of the channel
+	 */
+	public void unsubscribe(String channelName)
+	{
+		if (subscription == null)
+		{
+			subscription = new UniSubscription();
+		}
+		subscription = subscription.without(channelName);
+		device.setSubscription(subscription);
+	}
+	
+	/**
+	 * Asks the device to send every channel with every element again.
+	 */
+	public void subscribeAll()
+	{
+		subscription = null;
+		device.setSubscription(null);
+	}
+	
+	/**
+	 * Sets the executor used to decode channels in parallel. Channels whose 
+	 * elements need widening are decoded on the executor, with large channels
+	 * split into ranges of tuples, when a packet has at least 
+	 * <code>thresholdBytes</code> bytes to widen. Smaller packets are decoded
+	 * on the calling thread. <code>ForkJoinPool.commonPool()</code> is a 
+	 * good choice of executor.
+	 * @param executor the executor to decode channels on, <code>null</code> to
+	 * always decode on the calling thread
+	 * @param thresholdBytes the number of bytes to widen from which a packet is
+	 * decoded in parallel
+	 */
+	public void setParallelDecoding(ExecutorService executor, long thresholdBytes)
+	{
+		this.decodeExecutor = executor;
+		this.decodeThreshold = thresholdBytes;
+	}
+	
+	/**
+	 * Asks the device to replace repeated channel headers by compact layout ids.
+	 * Full channel headers are then only sent when a channel's layout appears
+	 * or changes.
+	 * @param enabled true to use layout ids
+	 */
+	public void setLayoutIdsEnabled(boolean enabled)
+	{
+		device.setLayoutIdsEnabled(enabled);
+	}
+	
+	/**
+	 * Asks the device to send channels as deltas from their previous frame, 
+	 * with full keyframes every <code>keyframeInterval</code> packets. The 
+	 * <code>Sensor</code> rebuilds full channels from the deltas. Meant for 
+	 * links where bandwidth, not CPU time, is the bottleneck. A channel whose
+	 * previous frame is missing is left out of the snapshot and a keyframe is 
+	 * asked for.
+	 * @param keyframeInterval the largest number of packets between full 
+	 * channels, 0 to disable delta encoding
+	 * @throws IllegalArgumentException if the interval is negative
+	 */
+	public void setDeltaEncoding(int keyframeInterval) throws IllegalArgumentException
+	{
+		device.setDeltaEncoding(keyframeInterval);
+	}
+	
+	/**
+	 * Asks the device to compress a channel's data. Channels are decompressed
+	 * while the snapshot is built. Meant for channels read over a network.
+	 * @param channelName the name of the channel
+	 * @param compress true to compress the channel
+	 */
+	public void setCompression(String channelName, boolean compress)
+	{
+		device.setCompression(channelName, compress);
+	}
+	
 	/**
 	 * Sets the decryptor to use on encrypted sensor packets.
 	 * @param decryptor the decryptor to use
@@ -0,0 +1,486 @@
+/**************************************************************
+ This file is part of Kinect Sensor Architecture Development Project.
+
+    Kinect Sensor Architecture Development Project is free software:
+	you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Kinect Sensor Architecture Development Project is distributed in
+	the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with Kinect Sensor Architecture Development Project.  If
+	not, see <http://www.gnu.org/licenses/>.
+**************************************************************/
+/**************************************************************
+The work was done in joint collaboration with Cisco Systems Inc.
+Copyright © 2012, Cisco Systems, Inc. and UCLA
+*************************************************************/
+
+package UnifyingAPI;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Acquires snapshots from many devices at once. Each registered 
+ * <code>UniDevice</code> gets a <code>Sensor</code> and a thread that keeps 
+ * retrieving snapshots from it. The threads are virtual threads when the 
+ * Java runtime has them, so dozens of devices blocking on their hardware do 
+ * not each hold a platform thread.
+ * <p>
+ * Snapshots can be consumed per device, through the device's 
+ * {@link SensorPublisher}, or together, through 
+ * {@link #getLatestSnapshots()}. Subscribers to many devices should be 
+ * given a shared executor with 
+ * {@link SensorPublisher#subscribe(java.util.concurrent.Flow.Subscriber, java.util.concurrent.Executor)}
+ * rather than a thread each. {@link #getStats(String)} tells how each 
+ * device is doing.
+ */
+public class SensorHub {
+	private ThreadFactory threadFactory;
+	private boolean virtualThreads;		// True if the default factory creates virtual threads
+	private LinkedHashMap<String, HubDevice> devices;
+	private boolean closed;
+	
+	private static final long MIN_STALL_MILLIS = 1000;
+	private static final int STALL_FRAMES = 10;
+	
+	/**
+	 * Constructs a hub that acquires from each device on a virtual thread, 
+	 * or on a daemon platform thread if the Java runtime has no virtual threads.
+	 */
+	public SensorHub()
+	{
+		this.threadFactory = createVirtualThreadFactory();
+		this.virtualThreads = (this.threadFactory != null);
+		if (this.threadFactory == null)
+		{
+			this.threadFactory = new ThreadFactory()
+			{
+				public Thread newThread(Runnable r)
+				{
+					Thread thread = new Thread(r);
+					thread.setDaemon(true);
+					return thread;
+				}
+			};
+		}
+		this.devices = new LinkedHashMap<String, HubDevice>();
+		this.closed = false;
+	}
+	
+	/**
+	 * Constructs a hub that acquires from each device on a thread created by 
+	 * the given factory.
+	 * @param threadFactory the factory creating the acquisition threads
+	 */
+	public SensorHub(ThreadFactory threadFactory)
+	{
+		this.threadFactory = threadFactory;
+		this.virtualThreads = false;
+		this.devices = new LinkedHashMap<String, HubDevice>();
+		this.closed = false;
+	}
+	
+	/**
+	 * Tells whether devices are acquired from on virtual threads created by 
+	 * the hub. Always false when the hub was given a thread factory.
+	 * @return true if the hub creates virtual threads
+	 */
+	public boolean usesVirtualThreads() { return virtualThreads; }
+	
+	/**
+	 * Registers a device and starts acquiring snapshots from it. The device
+	 * can be any source of sensor packets, such as a {@link UniRemoteDevice}.
+	 * @param name the name identifying the device in this hub
+	 * @param device the device
+	 * @return the <code>Sensor</code> parsing the device's packets. Snapshots 
+	 * must not be retrieved from it directly.
+	 * @throws IllegalArgumentException if a device is already registered under 
+	 * this name
+	 * @throws IllegalStateException if the hub is closed
+	 */
+	public synchronized Sensor register(String name, UniPacketSource device) 
+			throws IllegalArgumentException, IllegalStateException
+	{
+		if (closed)
+		{
+			throw new IllegalStateException("The SensorHub is closed");
+		}
+		if (devices.containsKey(name))
+		{
+			throw new IllegalArgumentException(
+					String.format("A device named %s is already registered\n", name));
+		}
+		
+		final HubDevice hubDevice = new HubDevice(name, new Sensor(device));
+		Thread thread = threadFactory.newThread(new Runnable()
+		{
+			public void run()
+			{
+				hubDevice.acquire();
+			}
+		});
+		thread.setName("SensorHub " + name);
+		hubDevice.thread = thread;
+		devices.put(name, hubDevice);
+		thread.start();
+		return hubDevice.sensor;
+	}
+	
+	/**
+	 * Stops acquiring from a device and removes it from the hub. Its 
+	 * publisher is closed and its latest snapshot released. Waits for the
+	 * device to return the packet it is building.
+	 * @param name the name of the device
+	 * @throws IllegalArgumentException if no device is registered under this name
+	 */
+	public void unregister(String name) throws IllegalArgumentException
+	{
+		HubDevice hubDevice;
+		synchronized (this)
+		{
+			hubDevice = getHubDevice(name);
+			devices.remove(name);
+		}
+		hubDevice.stop();
+	}
+	
+	/**
+	 * Stops acquiring from every device and removes them from the hub. 
+	 * Devices cannot be registered afterwards.
+	 */
+	public void close()
+	{
+		List<HubDevice> stopped;
+		synchronized (this)
+		{
+			closed = true;
+			stopped = new ArrayList<HubDevice>(devices.values());
+			devices.clear();
+		}
+		for (HubDevice hubDevice : stopped)
+		{
+			hubDevice.stopping = true;
+			hubDevice.thread.interrupt();
+		}
+		for (HubDevice hubDevice : stopped)
+		{
+			hubDevice.stop();
+		}
+	}
+	
+	/**
+	 * Retrieves the names of the registered devices, in registration order.
+	 * @return the names of the devices
+	 */
+	public synchronized List<String> getDeviceNames()
+	{
+		return new ArrayList<String>(devices.keySet());
+	}
+	
+	/**
+	 * Retrieves the <code>Sensor</code> of a device.
+	 * @param name the name of the device
+	 * @return the <code>Sensor</code>
+	 * @throws IllegalArgumentException if no device is registered under this name
+	 */
+	public synchronized Sensor getSensor(String name) throws IllegalArgumentException
+	{
+		return getHubDevice(name).sensor;
+	}
+	
+	/**
+	 * Retrieves the publisher streaming a device's snapshots.
+	 * @param name the name of the device
+	 * @return the publisher
+	 * @throws IllegalArgumentException if no device is registered under this name
+	 */
+	public synchronized SensorPublisher getPublisher(String name) throws IllegalArgumentException
+	{
+		return getHubDevice(name).publisher;
+	}
+	
+	/**
+	 * Retrieves the most recent snapshot acquired from a device. The snapshot
+	 * is retained for the caller, who must call 
+	 * {@link SensorSnapshot#releaseRetained()} when done with it.
+	 * @param name the name of the device
+	 * @return the snapshot, <code>null</code> if none was acquired yet
+	 * @throws IllegalArgumentException if no device is registered under this name
+	 */
+	public SensorSnapshot getLatestSnapshot(String name) throws IllegalArgumentException
+	{
+		HubDevice hubDevice;
+		synchronized (this)
+		{
+			hubDevice = getHubDevice(name);
+		}
+		return hubDevice.retainLatest();
+	}
+	
+	/**
+	 * Retrieves the most recent snapshot of every device that has produced 
+	 * one, by device name. Each snapshot is retained for the caller, who must 
+	 * call {@link SensorSnapshot#releaseRetained()} on each when done.
+	 * @return the snapshots by device name, in registration order
+	 */
+	public Map<String, SensorSnapshot> getLatestSnapshots()
+	{
+		List<HubDevice> current;
+		synchronized (this)
+		{
+			current = new ArrayList<HubDevice>(devices.values());
+		}
+		LinkedHashMap<String, SensorSnapshot> snapshots = new LinkedHashMap<String, SensorSnapshot>();
+		for (HubDevice hubDevice : current)
+		{
+			SensorSnapshot snapshot = hubDevice.retainLatest();
+			if (snapshot != null)
+			{
+				snapshots.put(hubDevice.name, snapshot);
+			}
+		}
+		return snapshots;
+	}
+	
+	/**
+	 * Retrieves the health and throughput of a device.
+	 * @param name the name of the device
+	 * @return the device's figures
+	 * @throws IllegalArgumentException if no device is registered under this name
+	 */
+	public synchronized DeviceStats getStats(String name) throws IllegalArgumentException
+	{
+		return getHubDevice(name).getStats();
+	}
+	
+	/**
+	 * Retrieves the health and throughput of every device.
+	 * @return the figures of each device, in registration order
+	 */
+	public synchronized List<DeviceStats> getStats()
+	{
+		ArrayList<DeviceStats> stats = new ArrayList<DeviceStats>(devices.size());
+		for (HubDevice hubDevice : devices.values())
+		{
+			stats.add(hubDevice.getStats());
+		}
+		return stats;
+	}
+	
+	/**
+	 * Retrieves the total number of snapshots acquired per second over every 
+	 * device.
+	 * @return the aggregate frame rate
+	 */
+	public synchronized double getFramesPerSecond()
+	{
+		double framesPerSecond = 0;
+		for (HubDevice hubDevice : devices.values())
+		{
+			framesPerSecond += hubDevice.getStats().getFramesPerSecond();
+		}
+		return framesPerSecond;
+	}
+	
+	private HubDevice getHubDevice(String name) throws IllegalArgumentException
+	{
+		HubDevice hubDevice = devices.get(name);
+		if (hubDevice == null)
+		{
+			throw new IllegalArgumentException(
+					String.format("No device named %s is registered\n", name));
+		}
+		return hubDevice;
+	}
+	
+	/**
+	 * Creates a factory of virtual threads, found by reflection so the hub 
+	 * still runs on Java versions without them.
+	 * @return the factory, <code>null</code> if virtual threads are not available
+	 */
+	private static ThreadFactory createVirtualThreadFactory()
+	{
+		try
+		{
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			Method factory = Class.forName("java.lang.Thread$Builder").getMethod("factory");
+			return (ThreadFactory) factory.invoke(builder);
+		}
+		catch (ReflectiveOperationException e)
+		{
+			return null;
+		}
+		catch (RuntimeException e)
+		{
+			// Virtual threads are a preview feature that is not enabled
+			return null;
+		}
+	}
+	
+	/**
+	 * A registered device, with the thread acquiring from it and its figures.
+	 * The figures are only written by the acquisition thread.
+	 */
+	private class HubDevice {
+		private final String name;
+		private final Sensor sensor;
+		private final SensorPublisher publisher;
+		private final AtomicReference<SensorSnapshot> latest;
+		private final long startNanos;
+		private final long stallMillis;
+		private Thread thread;
+		private volatile boolean stopping;
+		private volatile boolean running;
+		private volatile Throwable error;
+		private volatile long frames;
+		private volatile long acquisitionNanos;		// total time spent acquiring
+		private volatile long maxAcquisitionNanos;
+		private volatile long lastFrameNanos;
+		
+		HubDevice(String name, Sensor sensor)
+		{
+			this.name = name;
+			this.sensor = sensor;
+			this.publisher = new SensorPublisher();
+			this.latest = new AtomicReference<SensorSnapshot>();
+			this.startNanos = System.nanoTime();
+			this.stallMillis = Math.max(MIN_STALL_MILLIS, 
+					(long) (STALL_FRAMES * 1000 / Math.max(sensor.getFrequency(), 1e-3)));
+			this.stopping = false;
+			this.running = true;
+			this.error = null;
+			this.frames = 0;
+			this.acquisitionNanos = 0;
+			this.maxAcquisitionNanos = 0;
+			this.lastFrameNanos = startNanos;
+		}
+		
+		/**
+		 * Retrieves snapshots until the device is stopped or fails. Runs on 
+		 * the device's acquisition thread.
+		 */
+		void acquire()
+		{
+			try
+			{
+				while (!stopping)
+				{
+					long start = System.nanoTime();
+					SensorSnapshot snapshot = sensor.getSensorSnapshot();
+					long end = System.nanoTime();
+					if (snapshot == null)
+					{
+						continue;
+					}
+					
+					acquisitionNanos += end - start;
+					if (end - start > maxAcquisitionNanos)
+					{
+						maxAcquisitionNanos = end - start;
+					}
+					lastFrameNanos = end;
+					++frames;
+					
+					SensorSnapshot older = latest.getAndSet(snapshot.retain());
+					if (older != null)
+					{
+						older.releaseRetained();
+					}
+					publisher.submit(snapshot);
+				}
+				publisher.close();
+			}
+			catch (RuntimeException e)
+			{
+				error = e;
+				publisher.closeExceptionally(e);
+			}
+			finally
+			{
+				running = false;
+			}
+		}
+		
+		/**
+		 * Stops acquisition and waits for the acquisition thread to finish.
+		 */
+		void stop()
+		{
+			stopping = true;
+			thread.interrupt();
+			boolean interrupted = false;
+			while (thread.isAlive())
+			{
+				try
+				{
+					thread.join();
+				}
+				catch (InterruptedException e)
+				{
+					interrupted = true;
+				}
+			}
+			if (interrupted)
+			{
+				Thread.currentThread().interrupt();
+			}
+			
+			publisher.close();
+			SensorSnapshot snapshot = latest.getAndSet(null);
+			if (snapshot != null)
+			{
+				snapshot.releaseRetained();
+			}
+		}
+		
+		/**
+		 * Retains the latest snapshot for the caller.
+		 * @return the latest snapshot, <code>null</code> if there is none
+		 */
+		SensorSnapshot retainLatest()
+		{
+			while (true)
+			{
+				SensorSnapshot snapshot = latest.get();
+				if (snapshot == null)
+				{
+					return null;
+				}
+				try
+				{
+					return snapshot.retain();
+				}
+				catch (IllegalStateException e)
+				{
+					// Replaced and released meanwhile, the next one is in latest
+				}
+			}
+		}
+		
+		DeviceStats getStats()
+		{
+			long now = System.nanoTime();
+			long frameCount = frames;
+			double seconds = (now - startNanos) / 1e9;
+			return new DeviceStats(name, running, error, frameCount,
+					(seconds > 0) ? frameCount / seconds : 0,
+					(frameCount > 0) ? acquisitionNanos / 1e6 / frameCount : 0,
+					maxAcquisitionNanos / 1e6,
+					(now - lastFrameNanos) / 1000000,
+					stallMillis, publisher.getConflatedSnapshots());
+		}
+	}
+}
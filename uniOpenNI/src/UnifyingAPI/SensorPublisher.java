@@ -0,0 +1,413 @@
+/**************************************************************
+ This file is part of Kinect Sensor Architecture Development Project.
+
+    Kinect Sensor Architecture Development Project is free software:
+	you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Kinect Sensor Architecture Development Project is distributed in
+	the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with Kinect Sensor Architecture Development Project.  If
+	not, see <http://www.gnu.org/licenses/>.
+**************************************************************/
+/**************************************************************
+The work was done in joint collaboration with Cisco Systems Inc.
+Copyright © 2012, Cisco Systems, Inc. and UCLA
+*************************************************************/
+
+package UnifyingAPI;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Publishes a stream of <code>SensorSnapshot</code>s to any number of 
+ * subscribers. Each subscriber is called on its own executor and receives
+ * snapshots only as fast as it requests them. Snapshots submitted while a 
+ * subscriber has no outstanding demand are conflated: the subscriber gets 
+ * the most recent one when it requests more, and the older ones are skipped.
+ * <p>
+ * Snapshots are released once every subscriber's <code>onNext</code> has
+ * returned. Subscribers that keep a snapshot longer must call 
+ * {@link SensorSnapshot#retain()} in <code>onNext</code> and 
+ * {@link SensorSnapshot#releaseRetained()} when they are done with it.
+ * <p>
+ * A publisher is fed by {@link #submit(SensorSnapshot)}. 
+ * {@link Sensor#getPublisher()} returns a publisher fed from the sensor's device.
+ */
+public class SensorPublisher implements Flow.Publisher<SensorSnapshot> {
+	private CopyOnWriteArrayList<SensorSubscription> subscriptions;
+	private volatile boolean closed;
+	private volatile Throwable closeError;	// null if closed normally
+	private AtomicLong submittedSnapshots;
+	private AtomicLong conflatedSnapshots;
+	
+	/**
+	 * Construct a publisher with no subscribers.
+	 */
+	public SensorPublisher()
+	{
+		this.subscriptions = new CopyOnWriteArrayList<SensorSubscription>();
+		this.closed = false;
+		this.closeError = null;
+		this.submittedSnapshots = new AtomicLong(0);
+		this.conflatedSnapshots = new AtomicLong(0);
+	}
+	
+	/**
+	 * Adds a subscriber, called on a thread of its own. The thread stops when
+	 * the subscription ends.
+	 * @param subscriber the subscriber
+	 */
+	public void subscribe(Flow.Subscriber<? super SensorSnapshot> subscriber)
+	{
+		ExecutorService executor = Executors.newSingleThreadExecutor(new ThreadFactory()
+		{
+			public Thread newThread(Runnable r)
+			{
+				Thread thread = new Thread(r, "SensorPublisher subscriber");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		subscribe(subscriber, executor, executor);
+	}
+	
+	/**
+	 * Adds a subscriber, called on the given executor. Calls to the 
+	 * subscriber are never run at the same time.
+	 * @param subscriber the subscriber
+	 * @param executor the executor to call the subscriber on
+	 */
+	public void subscribe(Flow.Subscriber<? super SensorSnapshot> subscriber, Executor executor)
+	{
+		subscribe(subscriber, executor, null);
+	}
+	
+	private void subscribe(Flow.Subscriber<? super SensorSnapshot> subscriber, Executor executor,
+			ExecutorService ownedExecutor)
+	{
+		if (subscriber == null)
+		{
+			throw new NullPointerException("subscriber");
+		}
+		SensorSubscription subscription = new SensorSubscription(subscriber, executor, ownedExecutor);
+		subscriptions.add(subscription);
+		synchronized (this)
+		{
+			notifyAll();
+		}
+		if (closed)
+		{
+			subscription.complete();
+		}
+		subscription.schedule();
+	}
+	
+	/**
+	 * Hands a snapshot to every subscriber. The publisher takes over the 
+	 * caller's hold on the snapshot and releases it once delivered.
+	 * @param snapshot the snapshot to publish
+	 * @throws IllegalStateException if the publisher is closed
+	 */
+	public void submit(SensorSnapshot snapshot) throws IllegalStateException
+	{
+		if (closed)
+		{
+			snapshot.release();
+			throw new IllegalStateException("The SensorPublisher is closed");
+		}
+		
+		submittedSnapshots.incrementAndGet();
+		for (SensorSubscription subscription : subscriptions)
+		{
+			subscription.offer(snapshot.retain());
+		}
+		snapshot.release();
+	}
+	
+	/**
+	 * Completes every subscription. A subscriber with outstanding demand 
+	 * receives its pending snapshot first. Later snapshots cannot be submitted.
+	 */
+	public void close()
+	{
+		closeExceptionally(null);
+	}
+	
+	/**
+	 * Ends every subscription with an error. A subscriber with outstanding 
+	 * demand receives its pending snapshot first. Later snapshots cannot be 
+	 * submitted.
+	 * @param error the error passed to the subscribers' <code>onError</code>,
+	 * <code>null</code> to complete them normally
+	 */
+	public void closeExceptionally(Throwable error)
+	{
+		synchronized (this)
+		{
+			if (closed)
+			{
+				return;
+			}
+			closeError = error;
+			closed = true;
+			notifyAll();
+		}
+		for (SensorSubscription subscription : subscriptions)
+		{
+			subscription.complete();
+		}
+	}
+	
+	/**
+	 * Tells whether the publisher has been closed.
+	 * @return true if the publisher is closed
+	 */
+	public boolean isClosed() { return closed; }
+	
+	/**
+	 * Retrieves the number of subscribers whose subscription has not ended.
+	 * @return the number of subscribers
+	 */
+	public int getNumberOfSubscribers() { return subscriptions.size(); }
+	
+	/**
+	 * Retrieves the number of snapshots submitted.
+	 * @return the number of snapshots submitted
+	 */
+	public long getSubmittedSnapshots() { return submittedSnapshots.get(); }
+	
+	/**
+	 * Retrieves the number of times a subscriber skipped a snapshot because 
+	 * a newer one was submitted before it requested more.
+	 * @return the number of conflated snapshots, summed over the subscribers
+	 */
+	public long getConflatedSnapshots() { return conflatedSnapshots.get(); }
+	
+	/**
+	 * Waits until the publisher has a subscriber or is closed.
+	 * @throws InterruptedException if the calling thread is interrupted while waiting
+	 */
+	synchronized void awaitSubscribers() throws InterruptedException
+	{
+		while (subscriptions.isEmpty() && !closed)
+		{
+			wait();
+		}
+	}
+	
+	/**
+	 * The subscription of one subscriber. Holds the most recent snapshot not
+	 * delivered yet, and delivers it on the subscriber's executor when there 
+	 * is demand.
+	 */
+	private class SensorSubscription implements Flow.Subscription, Runnable {
+		private Flow.Subscriber<? super SensorSnapshot> subscriber;
+		private Executor executor;
+		private ExecutorService ownedExecutor;	// shut down when the subscription ends, may be null
+		private AtomicReference<SensorSnapshot> pending;	// next snapshot to deliver
+		private AtomicLong demand;
+		private AtomicInteger scheduled;	// number of times delivery was asked for since it last ran
+		private volatile boolean cancelled;
+		private volatile boolean completing;	// set once the publisher is closed
+		private boolean subscribed;		// only used on the executor
+		private volatile Throwable requestError;
+		
+		SensorSubscription(Flow.Subscriber<? super SensorSnapshot> subscriber, Executor executor,
+				ExecutorService ownedExecutor)
+		{
+			this.subscriber = subscriber;
+			this.executor = executor;
+			this.ownedExecutor = ownedExecutor;
+			this.pending = new AtomicReference<SensorSnapshot>();
+			this.demand = new AtomicLong(0);
+			this.scheduled = new AtomicInteger(0);
+			this.cancelled = false;
+			this.completing = false;
+			this.subscribed = false;
+		}
+		
+		public void request(long n)
+		{
+			if (n <= 0)
+			{
+				requestError = new IllegalArgumentException(
+						String.format("Requested %d snapshots, must be positive\n", n));
+			}
+			else
+			{
+				long current;
+				do
+				{
+					current = demand.get();
+				} while (!demand.compareAndSet(current, 
+						(current + n < 0) ? Long.MAX_VALUE : current + n));
+			}
+			schedule();
+		}
+		
+		public void cancel()
+		{
+			if (cancelled)
+			{
+				return;
+			}
+			cancelled = true;
+			subscriptions.remove(this);
+			releasePending();
+			if (ownedExecutor != null)
+			{
+				ownedExecutor.shutdown();
+			}
+		}
+		
+		/**
+		 * Replaces the pending snapshot by a newer one.
+		 */
+		void offer(SensorSnapshot snapshot)
+		{
+			SensorSnapshot older = pending.getAndSet(snapshot);
+			if (older != null)
+			{
+				older.releaseRetained();
+				conflatedSnapshots.incrementAndGet();
+			}
+			if (cancelled)
+			{
+				releasePending();
+				return;
+			}
+			schedule();
+		}
+		
+		/**
+		 * Ends the subscription once the pending snapshot has been delivered
+		 * or there is no demand for it.
+		 */
+		void complete()
+		{
+			completing = true;
+			schedule();
+		}
+		
+		/**
+		 * Runs delivery on the executor, unless it is already running.
+		 */
+		void schedule()
+		{
+			if (scheduled.getAndIncrement() != 0)
+			{
+				return;
+			}
+			try
+			{
+				executor.execute(this);
+			}
+			catch (RejectedExecutionException e)
+			{
+				cancel();
+			}
+		}
+		
+		public void run()
+		{
+			int missed = 1;
+			while (true)
+			{
+				if (!subscribed)
+				{
+					subscribed = true;
+					subscriber.onSubscribe(this);
+				}
+				deliver();
+				missed = scheduled.addAndGet(-missed);
+				if (missed == 0)
+				{
+					return;
+				}
+			}
+		}
+		
+		/**
+		 * Delivers the pending snapshot if there is demand, and ends the 
+		 * subscription if it is over.
+		 */
+		private void deliver()
+		{
+			if (cancelled)
+			{
+				return;
+			}
+			if (requestError != null)
+			{
+				cancel();
+				subscriber.onError(requestError);
+				return;
+			}
+			
+			if (demand.get() > 0)
+			{
+				SensorSnapshot snapshot = pending.getAndSet(null);
+				if (snapshot != null)
+				{
+					if (demand.get() != Long.MAX_VALUE)
+					{
+						demand.decrementAndGet();
+					}
+					try
+					{
+						subscriber.onNext(snapshot);
+					}
+					catch (RuntimeException e)
+					{
+						// A failing subscriber gets no more snapshots
+						cancel();
+						return;
+					}
+					finally
+					{
+						snapshot.releaseRetained();
+					}
+				}
+			}
+			
+			if (completing && (pending.get() == null || demand.get() == 0))
+			{
+				cancel();
+				if (closeError != null)
+				{
+					subscriber.onError(closeError);
+				}
+				else
+				{
+					subscriber.onComplete();
+				}
+			}
+		}
+		
+		private void releasePending()
+		{
+			SensorSnapshot snapshot = pending.getAndSet(null);
+			if (snapshot != null)
+			{
+				snapshot.releaseRetained();
+			}
+		}
+	}
+}
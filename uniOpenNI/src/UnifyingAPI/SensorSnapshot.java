@@ -24,10 +24,14 @@ Copyright © 2012, Cisco Systems, Inc. and UCLA
 
 package UnifyingAPI;
 
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * A container for parsed sensor packet data.
@@ -37,13 +41,30 @@ import java.util.Set;
 public class SensorSnapshot {
 	private Sensor sensor;
 	private Date timestamp;
-	private HashMap<String, Channel> channels;
+	private Channel[] channels;	// Channels by channel id
+	private UniChannel[] undecodedChannels;	// Channels not parsed until first asked for, by channel id
+	private ChannelDecodePlan[] decodePlans;	// Decode plans of the undecoded channels, by channel id
+	private ByteBuffer sensorPacket;	// The device's packet, handed back on release()
+	private ArrayList<ByteBuffer> decodedBuffers;	// Pooled channel data, handed back on release()
+	private ByteBuffer[] referenceBuffers;	// Decoded delta reference data by channel id, handed back on release()
+	private AtomicInteger references;	// Holders of the snapshot, buffers are handed back at 0
+	private AtomicBoolean released;		// True once release() has been called
+	private AtomicInteger retained;		// Holders added by retain() that have not released yet
+	private boolean complete;	// False if channels of the packet could not be parsed
 	
 	public SensorSnapshot(Sensor sensor, UniSensorHeader sensorHeader)
 	{
 		this.sensor = sensor;
 		this.timestamp = new Date(sensorHeader.getTimestamp());
-		this.channels = new HashMap<String, Channel>();
+		this.channels = new Channel[sensor.getNumberOfChannelKeys()];
+		this.undecodedChannels = null;
+		this.decodePlans = null;
+		this.decodedBuffers = null;
+		this.referenceBuffers = null;
+		this.references = new AtomicInteger(1);
+		this.released = new AtomicBoolean(false);
+		this.retained = new AtomicInteger(0);
+		this.complete = true;
 	}
 	
 	/**
@@ -53,13 +74,201 @@ public class SensorSnapshot {
 	 */
 	public Date getTimestamp() { return timestamp; }
 	
+	/**
+	 * Tells whether every channel of the sensor packet is in this 
+	 * <code>SensorSnapshot</code>. Channels are left out when the packet 
+	 * refers to a channel layout id or to a delta reference frame that this
+	 * <code>Sensor</code> has not received, e.g. after a packet was dropped.
+	 * The <code>Sensor</code> asks the device to send full layouts or a 
+	 * keyframe again, so later snapshots are complete.
+	 * @return true if no channel of the packet is missing
+	 */
+	public boolean isComplete() { return complete; }
+	
+	/**
+	 * Records that channels of the sensor packet could not be parsed.
+	 */
+	void markIncomplete() {
+		complete = false;
+	}
+	
 	/**
 	 * Add a <code>Channel</code> to this <code>SensorSnapshot</code>.
 	 * @param name name of the <code>Channel</code> to be added.
 	 * @param channel the <code>Channel</code> to be added.
 	 */
 	public void addChannel(String name, Channel channel) {
-		channels.put(name, channel);
+		addChannel(sensor.getChannelKey(name), channel);
+	}
+	
+	/**
+	 * Add a <code>Channel</code> to this <code>SensorSnapshot</code>.
+	 * @param key key of the <code>Channel</code> to be added.
+	 * @param channel the <code>Channel</code> to be added.
+	 */
+	void addChannel(ChannelKey key, Channel channel) {
+		int id = key.getId();
+		if (id >= channels.length)
+		{
+			channels = Arrays.copyOf(channels, sensor.getNumberOfChannelKeys());
+		}
+		channels[id] = channel;
+	}
+	
+	/**
+	 * Add a <code>UniChannel</code> that is parsed into a <code>Channel</code>
+	 * the first time it is retrieved.
+	 * @param uniChannel the <code>UniChannel</code> to parse the <code>Channel</code> from.
+	 * @param plan the decode plan for the <code>UniChannel</code>'s header, 
+	 * built by this snapshot's <code>Sensor</code>
+	 */
+	void addUndecodedChannel(UniChannel uniChannel, ChannelDecodePlan plan) {
+		int id = plan.getKey().getId();
+		if (undecodedChannels == null || id >= undecodedChannels.length)
+		{
+			int length = sensor.getNumberOfChannelKeys();
+			undecodedChannels = (undecodedChannels == null)?new UniChannel[length]:
+				Arrays.copyOf(undecodedChannels, length);
+			decodePlans = (decodePlans == null)?new ChannelDecodePlan[length]:
+				Arrays.copyOf(decodePlans, length);
+		}
+		undecodedChannels[id] = uniChannel;
+		decodePlans[id] = plan;
+	}
+	
+	/**
+	 * Sets the sensor packet this <code>SensorSnapshot</code> was parsed from.
+	 * @param sensorPacket the sensor packet as returned by the device
+	 */
+	void setSensorPacket(ByteBuffer sensorPacket) {
+		this.sensorPacket = sensorPacket;
+	}
+	
+	/**
+	 * Adds a pooled buffer holding channel data of this snapshot. The buffer is
+	 * handed back to the <code>Sensor</code> when the snapshot is released.
+	 * @param buffer the buffer to hand back on release
+	 */
+	void addDecodedBuffer(ByteBuffer buffer) {
+		if (decodedBuffers == null)
+		{
+			decodedBuffers = new ArrayList<ByteBuffer>();
+		}
+		decodedBuffers.add(buffer);
+	}
+	
+	/**
+	 * Adds a buffer of the <code>Sensor</code> holding decoded reference 
+	 * data of a channel. The buffer is handed back to the <code>Sensor</code>
+	 * when the snapshot is released.
+	 * @param id the channel id
+	 * @param buffer the buffer to hand back on release
+	 */
+	void addReferenceBuffer(int id, ByteBuffer buffer) {
+		if (referenceBuffers == null || id >= referenceBuffers.length)
+		{
+			int length = sensor.getNumberOfChannelKeys();
+			referenceBuffers = (referenceBuffers == null)?new ByteBuffer[length]:
+				Arrays.copyOf(referenceBuffers, length);
+		}
+		referenceBuffers[id] = buffer;
+	}
+	
+	/**
+	 * Adds a holder of this <code>SensorSnapshot</code>, so its buffers are 
+	 * not handed back until the holder calls {@link #releaseRetained()}. 
+	 * Used to share a snapshot between threads that each release it when 
+	 * done. Each call must be matched by one call to 
+	 * {@link #releaseRetained()}.
+	 * @return this <code>SensorSnapshot</code>
+	 * @throws IllegalStateException if the snapshot has already been released
+	 * by every holder
+	 */
+	public SensorSnapshot retain() throws IllegalStateException
+	{
+		int count;
+		do
+		{
+			count = references.get();
+			if (count <= 0)
+			{
+				throw new IllegalStateException("The SensorSnapshot has already been released");
+			}
+		} while (!references.compareAndSet(count, count + 1));
+		retained.incrementAndGet();
+		return this;
+	}
+	
+	/**
+	 * Gives up a hold taken with {@link #retain()}. The buffers of this 
+	 * <code>SensorSnapshot</code> are handed back once every holder has 
+	 * released it.
+	 * @throws IllegalStateException if every hold taken with {@link #retain()}
+	 * has already been given up
+	 */
+	public void releaseRetained() throws IllegalStateException
+	{
+		int count;
+		do
+		{
+			count = retained.get();
+			if (count <= 0)
+			{
+				throw new IllegalStateException("The SensorSnapshot is not retained");
+			}
+		} while (!retained.compareAndSet(count, count - 1));
+		dropReference();
+	}
+	
+	/**
+	 * Hands the sensor packet this <code>SensorSnapshot</code> was parsed from 
+	 * back to the device so its buffer can be reused. The <code>Channel</code>s
+	 * of this <code>SensorSnapshot</code> must not be used after it has been 
+	 * released. This gives up the hold of whoever retrieved the snapshot; 
+	 * calling this more than once has no effect. If the snapshot was retained
+	 * with {@link #retain()}, the packet is handed back once every 
+	 * {@link #retain()} has been matched by a {@link #releaseRetained()} too.
+	 */
+	public void release() {
+		if (released.compareAndSet(false, true))
+		{
+			dropReference();
+		}
+	}
+	
+	/**
+	 * Gives up one hold, handing the buffers back when it was the last one.
+	 */
+	private void dropReference() {
+		if (references.decrementAndGet() > 0)
+		{
+			return;
+		}
+		
+		if (sensorPacket != null)
+		{
+			sensor.releaseSensorPacket(sensorPacket);
+			sensorPacket = null;
+		}
+		if (decodedBuffers != null)
+		{
+			for (int i = 0; i < decodedBuffers.size(); ++i)
+			{
+				sensor.releaseDecodedBuffer(decodedBuffers.get(i));
+			}
+			decodedBuffers = null;
+		}
+		if (referenceBuffers != null)
+		{
+			for (int id = 0; id < referenceBuffers.length; ++id)
+			{
+				if (referenceBuffers[id] != null)
+				{
+					sensor.releaseReferenceBuffer(id, referenceBuffers[id]);
+				}
+			}
+			referenceBuffers = null;
+		}
 	}
 	
 	/**
@@ -69,22 +278,97 @@ public class SensorSnapshot {
 	public Sensor getSensor() { return sensor; }
 	
 	/**
-	 * Retrieves the <code>Channel</code> with the given name.
+	 * Retrieves the <code>Channel</code> with the given name. Code that retrieves
+	 * the same channel from every snapshot should resolve its name once with 
+	 * {@link Sensor#getChannelKey(String)} and use {@link #getChannel(ChannelKey)}.
 	 * @param name name of the <code>Channel</code> to get.
 	 * @return the <code>Channel</code>, <code>null</code> if there is no 
 	 * <code>Channel</code> with the given name.
 	 */
-	public Channel getChannel(String name) { return channels.get(name); }
+	public Channel getChannel(String name) 
+	{
+		ChannelKey key = sensor.findChannelKey(name);
+		if (key == null)
+		{
+			return null;
+		}
+		return getChannel(key);
+	}
+	
+	/**
+	 * Retrieves the <code>Channel</code> with the given key.
+	 * @param key the key of the <code>Channel</code> to get, resolved by this 
+	 * snapshot's <code>Sensor</code>
+	 * @return the <code>Channel</code>, <code>null</code> if there is no 
+	 * <code>Channel</code> with the given key.
+	 * @throws IllegalArgumentException if the key was resolved by another <code>Sensor</code>
+	 */
+	public Channel getChannel(ChannelKey key) throws IllegalArgumentException
+	{
+		if (key.getSensor() != sensor)
+		{
+			String message = String.format("Channel key %s belongs to another Sensor\n", key.getName());
+			throw new IllegalArgumentException(message);
+		}
+		
+		// Without lazy channels the array is never modified after the snapshot is built
+		if (undecodedChannels == null)
+		{
+			int id = key.getId();
+			return (id < channels.length)?channels[id]:null;
+		}
+		return getLazyChannel(key.getId());
+	}
+	
+	/**
+	 * Retrieves a <code>Channel</code>, parsing it if this is the first time 
+	 * it is asked for. Synchronized so concurrent readers parse it only once.
+	 * @param id id of the <code>Channel</code> to get.
+	 * @return the <code>Channel</code>, <code>null</code> if there is no 
+	 * <code>Channel</code> with the given id.
+	 */
+	private synchronized Channel getLazyChannel(int id)
+	{
+		Channel channel = (id < channels.length)?channels[id]:null;
+		if (channel == null && id < undecodedChannels.length && undecodedChannels[id] != null)
+		{
+			channel = new Channel(undecodedChannels[id], decodePlans[id], true);
+			undecodedChannels[id] = null;
+			decodePlans[id] = null;
+			if (id >= channels.length)
+			{
+				channels = Arrays.copyOf(channels, undecodedChannels.length);
+			}
+			channels[id] = channel;
+		}
+		return channel;
+	}
 	
 	/**
 	 * Retrieves a <code>Set</code> containing the names of each channel
 	 * present in the SensorSnapshot
 	 * @return the <code>Set</code>, of channel names.
 	 */
-	public Set<String> getChannelNames()
+	public synchronized Set<String> getChannelNames()
 	{
-		//Create a copy to ensure no damage is done to the actual key Set
-		Set<String> s = new HashSet<String>(channels.keySet());
+		Set<String> s = new HashSet<String>();
+		for (int id = 0; id < channels.length; ++id)
+		{
+			if (channels[id] != null)
+			{
+				s.add(sensor.getChannelKey(id).getName());
+			}
+		}
+		if (undecodedChannels != null)
+		{
+			for (int id = 0; id < undecodedChannels.length; ++id)
+			{
+				if (undecodedChannels[id] != null)
+				{
+					s.add(sensor.getChannelKey(id).getName());
+				}
+			}
+		}
 		return s;
 	}
 }
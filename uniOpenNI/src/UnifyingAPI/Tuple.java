@@ -34,6 +34,7 @@ import java.nio.ByteBuffer;
 public class Tuple {
 	private ByteBuffer data;
 	private ElementMetaData[] elementMetaData;
+	private int offset;		// byte index in data where the tuple starts, -1 if not on a tuple
 	
 	/**
 	 * Construct a Tuple from a data buffer and an array of element metadata objects
@@ -42,8 +43,42 @@ public class Tuple {
 	 * which the elements appear in the data buffer
 	 */
 	public Tuple(ByteBuffer data, ElementMetaData[] elementMetaData) {
+		this(data, elementMetaData, 0);
+	}
+	
+	/**
+	 * Construct a Tuple that starts at the given index of a data buffer
+	 * @param data a ByteBuffer containing the <code>Tuple</code>'s data
+	 * @param elementMetaData an array of element metadata objects, in the order 
+	 * which the elements appear in the data buffer
+	 * @param offset the byte index in <code>data</code> where the tuple starts
+	 */
+	Tuple(ByteBuffer data, ElementMetaData[] elementMetaData, int offset) {
 		this.data = data;
 		this.elementMetaData = elementMetaData;
+		this.offset = offset;
+	}
+	
+	/**
+	 * Moves the tuple to another index of its data buffer. Used by 
+	 * <code>TupleCursor</code>.
+	 * @param offset the byte index in the data buffer where the tuple starts, 
+	 * -1 while a cursor is not on a tuple
+	 */
+	void setOffset(int offset) {
+		this.offset = offset;
+	}
+	
+	/**
+	 * Retrieves the byte index of an element in the data buffer.
+	 * @throws IllegalStateException if this is a cursor that is not on a tuple
+	 */
+	private int indexOf(int index) {
+		if (offset < 0)
+		{
+			throw new IllegalStateException("Cursor is not on a tuple, call next() or moveTo() first");
+		}
+		return offset + elementMetaData[index].getBufferIndex();
 	}
 	
 	/**
@@ -57,7 +92,7 @@ public class Tuple {
 		{
 			throw new Exception("Element is not of type byte");
 		}
-		return data.get(elementMetaData[index].getBufferIndex());
+		return data.get(indexOf(index));
 	}
 	
 	/**
@@ -67,31 +102,7 @@ public class Tuple {
 	 * @return the element cast to a <code>byte</code>
 	 */
 	public byte getElementCastToByte(int index) {
-		byte element = 0;
-		
-		switch (elementMetaData[index].getType())
-		{
-		case int8:
-			element = data.get(elementMetaData[index].getBufferIndex());
-			break;
-		case int16:
-			element = (byte) data.getShort(elementMetaData[index].getBufferIndex());
-			break;
-		case int32:
-			element = (byte) data.getInt(elementMetaData[index].getBufferIndex());
-			break;
-		case int64:
-			element = (byte) data.getLong(elementMetaData[index].getBufferIndex());
-			break;
-		case float32:
-			element = (byte) data.getFloat(elementMetaData[index].getBufferIndex());
-			break;
-		case float64:
-			element = (byte) data.getDouble(elementMetaData[index].getBufferIndex());
-			break;
-		}
-		
-		return element;
+		return castToByte(data, indexOf(index), elementMetaData[index]);
 	}
 
 	/**
@@ -105,41 +116,18 @@ public class Tuple {
 		{
 			throw new Exception("Element is not of type short");
 		}
-		return data.getShort(elementMetaData[index].getBufferIndex());
+		return data.getShort(indexOf(index));
 	}
 	
 	/**
 	 * Returns the element at the given index in this <code>Tuple</code> cast 
-	 * to a <code>short</code>. Returns 0 if the element is a nonprimitive type
+	 * to a <code>short</code>. Unsigned integers are zero extended. Returns 0 if the element 
+	 * is a nonprimitive type
 	 * @param index the 0-based index of the element in this <code>Tuple</code>.
 	 * @return the element cast to a <code>short</code>
 	 */
 	public short getElementCastToShort(int index) {
-		short element = 0;
-		
-		switch (elementMetaData[index].getType())
-		{
-		case int8:
-			element = (short) data.get(elementMetaData[index].getBufferIndex());
-			break;
-		case int16:
-			element = data.getShort(elementMetaData[index].getBufferIndex());
-			break;
-		case int32:
-			element = (short) data.getInt(elementMetaData[index].getBufferIndex());
-			break;
-		case int64:
-			element = (short) data.getLong(elementMetaData[index].getBufferIndex());
-			break;
-		case float32:
-			element = (short) data.getFloat(elementMetaData[index].getBufferIndex());
-			break;
-		case float64:
-			element = (short) data.getDouble(elementMetaData[index].getBufferIndex());
-			break;
-		}
-		
-		return element;
+		return castToShort(data, indexOf(index), elementMetaData[index]);
 	}
 	
 	/**
@@ -153,197 +141,322 @@ public class Tuple {
 		{
 			throw new Exception("Element is not of type int");
 		}
-		return data.getInt(elementMetaData[index].getBufferIndex());
+		return data.getInt(indexOf(index));
 	}
 	
 	/**
 	 * Returns the element at the given index in this <code>Tuple</code> cast 
-	 * to an <code>int</code>. Returns 0 if the element is a nonprimitive type
+	 * to an <code>int</code>. Unsigned integers are zero extended. Returns 0 if the element 
+	 * is a nonprimitive type
 	 * @param index the 0-based index of the element in this <code>Tuple</code>.
 	 * @return the element cast to an <code>int</code>
 	 */
 	public int getElementCastToInt(int index) {
-		int element = 0;
+		return castToInt(data, indexOf(index), elementMetaData[index]);
+	}
+	
+	/**
+	 * Returns the element at the given index in this <code>Tuple</code>.
+	 * @param index the 0-based index of the element in this <code>Tuple</code>.
+	 * @return the element
+	 * @throws Exception if element is not of type <code>long</code>.
+	 */
+	public long getElementLong(int index) throws Exception {
+		if (elementMetaData[index].getType() != UniType.int64)
+		{
+			throw new Exception("Element is not of type long");
+		}
+		return data.getLong(indexOf(index));
+	}
+	
+	/**
+	 * Returns the element at the given index in this <code>Tuple</code> cast 
+	 * to a <code>long</code>. Unsigned integers are zero extended. Returns 0 if the element 
+	 * is a nonprimitive type
+	 * @param index the 0-based index of the element in this <code>Tuple</code>.
+	 * @return the element cast to a <code>long</code>
+	 */
+	public long getElementCastToLong(int index) {
+		return castToLong(data, indexOf(index), elementMetaData[index]);
+	}
+	
+	/**
+	 * Returns the element at the given index in this <code>Tuple</code>.
+	 * @param index the 0-based index of the element in this <code>Tuple</code>.
+	 * @return the element
+	 * @throws Exception if element is not of type <code>float</code>.
+	 */
+	public float getElementFloat(int index) throws Exception {
+		if (elementMetaData[index].getType() != UniType.float32)
+		{
+			throw new Exception("Element is not of type float");
+		}
+		return data.getFloat(indexOf(index));
+	}
+	
+	/**
+	 * Returns the element at the given index in this <code>Tuple</code> cast 
+	 * to a <code>float</code>. Unsigned integers are zero extended. Returns 0 if the element 
+	 * is a nonprimitive type
+	 * @param index the 0-based index of the element in this <code>Tuple</code>.
+	 * @return the element cast to a <code>float</code>
+	 */
+	public float getElementCastToFloat(int index) {
+		return castToFloat(data, indexOf(index), elementMetaData[index]);
+	}
+	
+	/**
+	 * Returns the element at the given index in this <code>Tuple</code>.
+	 * @param index the 0-based index of the element in this <code>Tuple</code>.
+	 * @return the element
+	 * @throws Exception if element is not of type <code>double</code>.
+	 */
+	public double getElementDouble(int index) throws Exception {
+		if (elementMetaData[index].getType() != UniType.float64)
+		{
+			throw new Exception("Element is not of type double");
+		}
+		return data.getDouble(indexOf(index));
+	}
+	
+	/**
+	 * Returns the element at the given index in this <code>Tuple</code> cast 
+	 * to a <code>double</code>. Unsigned integers are zero extended. Returns 0 if the element 
+	 * is a nonprimitive type
+	 * @param index the 0-based index of the element in this <code>Tuple</code>.
+	 * @return the element cast to a <code>double</code>
+	 */
+	public double getElementCastToDouble(int index) {
+		return castToDouble(data, indexOf(index), elementMetaData[index]);
+	}
+	
+	/**
+	 * Reads an element from a buffer and casts it to a <code>byte</code>. 
+	 * Returns 0 if the element is a nonprimitive type.
+	 * @param data the buffer containing the element
+	 * @param index the byte index of the element in the buffer
+	 * @param metaData the element's metadata
+	 * @return the element cast to a <code>byte</code>
+	 */
+	static byte castToByte(ByteBuffer data, int index, ElementMetaData metaData) {
+		byte element = 0;
 		
-		switch (elementMetaData[index].getType())
+		switch (metaData.getType())
 		{
 		case int8:
-			element = (int) data.get(elementMetaData[index].getBufferIndex());
+			element = data.get(index);
 			break;
 		case int16:
-			element = (int) data.getShort(elementMetaData[index].getBufferIndex());
+			element = (byte) data.getShort(index);
 			break;
 		case int32:
-			element = data.getInt(elementMetaData[index].getBufferIndex());
+			element = (byte) data.getInt(index);
 			break;
 		case int64:
-			element = (int) data.getLong(elementMetaData[index].getBufferIndex());
+			element = (byte) data.getLong(index);
 			break;
 		case float32:
-			element = (int) data.getFloat(elementMetaData[index].getBufferIndex());
+			element = (byte) data.getFloat(index);
 			break;
 		case float64:
-			element = (int) data.getDouble(elementMetaData[index].getBufferIndex());
+			element = (byte) data.getDouble(index);
 			break;
 		}
 		
 		return element;
 	}
-	
+
 	/**
-	 * Returns the element at the given index in this <code>Tuple</code>.
-	 * @param index the 0-based index of the element in this <code>Tuple</code>.
-	 * @return the element
-	 * @throws Exception if element is not of type <code>long</code>.
+	 * Reads an element from a buffer and casts it to a <code>short</code>. Unsigned 
+	 * integers are zero extended. Returns 0 if the element is a nonprimitive type.
+	 * @param data the buffer containing the element
+	 * @param index the byte index of the element in the buffer
+	 * @param metaData the element's metadata
+	 * @return the element cast to a <code>short</code>
 	 */
-	public long getElementLong(int index) throws Exception {
-		if (elementMetaData[index].getType() != UniType.int64)
+	static short castToShort(ByteBuffer data, int index, ElementMetaData metaData) {
+		short element = 0;
+		
+		switch (metaData.getType())
 		{
-			throw new Exception("Element is not of type long");
+		case int8:
+			element = (short) (metaData.isUnsigned() ? data.get(index) & 0xFF : data.get(index));
+			break;
+		case int16:
+			element = data.getShort(index);
+			break;
+		case int32:
+			element = (short) data.getInt(index);
+			break;
+		case int64:
+			element = (short) data.getLong(index);
+			break;
+		case float32:
+			element = (short) data.getFloat(index);
+			break;
+		case float64:
+			element = (short) data.getDouble(index);
+			break;
 		}
-		return data.getLong(elementMetaData[index].getBufferIndex());
+		
+		return element;
 	}
-	
+
 	/**
-	 * Returns the element at the given index in this <code>Tuple</code> cast 
-	 * to a <code>long</code>. Returns 0 if the element is a nonprimitive type
-	 * @param index the 0-based index of the element in this <code>Tuple</code>.
-	 * @return the element cast to a <code>long</code>
+	 * Reads an element from a buffer and casts it to an <code>int</code>. Unsigned 
+	 * integers are zero extended. Returns 0 if the element is a nonprimitive type.
+	 * @param data the buffer containing the element
+	 * @param index the byte index of the element in the buffer
+	 * @param metaData the element's metadata
+	 * @return the element cast to an <code>int</code>
 	 */
-	public long getElementCastToLong(int index) {
-		long element = 0;
+	static int castToInt(ByteBuffer data, int index, ElementMetaData metaData) {
+		int element = 0;
 		
-		switch (elementMetaData[index].getType())
+		switch (metaData.getType())
 		{
 		case int8:
-			element = (long) data.get(elementMetaData[index].getBufferIndex());
+			element = metaData.isUnsigned() ? data.get(index) & 0xFF : data.get(index);
 			break;
 		case int16:
-			element = (long) data.getShort(elementMetaData[index].getBufferIndex());
+			element = metaData.isUnsigned() ? data.getShort(index) & 0xFFFF : data.getShort(index);
 			break;
 		case int32:
-			element = (long) data.getInt(elementMetaData[index].getBufferIndex());
+			element = data.getInt(index);
 			break;
 		case int64:
-			element = data.getLong(elementMetaData[index].getBufferIndex());
+			element = (int) data.getLong(index);
 			break;
 		case float32:
-			element = (long) data.getFloat(elementMetaData[index].getBufferIndex());
+			element = (int) data.getFloat(index);
 			break;
 		case float64:
-			element = (long) data.getDouble(elementMetaData[index].getBufferIndex());
+			element = (int) data.getDouble(index);
 			break;
 		}
 		
 		return element;
 	}
-	
+
 	/**
-	 * Returns the element at the given index in this <code>Tuple</code>.
-	 * @param index the 0-based index of the element in this <code>Tuple</code>.
-	 * @return the element
-	 * @throws Exception if element is not of type <code>float</code>.
+	 * Reads an element from a buffer and casts it to a <code>long</code>. Unsigned 
+	 * integers are zero extended. Returns 0 if the element is a nonprimitive type.
+	 * @param data the buffer containing the element
+	 * @param index the byte index of the element in the buffer
+	 * @param metaData the element's metadata
+	 * @return the element cast to a <code>long</code>
 	 */
-	public float getElementFloat(int index) throws Exception {
-		if (elementMetaData[index].getType() != UniType.float32)
+	static long castToLong(ByteBuffer data, int index, ElementMetaData metaData) {
+		long element = 0;
+		
+		switch (metaData.getType())
 		{
-			throw new Exception("Element is not of type float");
+		case int8:
+			element = (long) (metaData.isUnsigned() ? data.get(index) & 0xFF : data.get(index));
+			break;
+		case int16:
+			element = (long) (metaData.isUnsigned() ? data.getShort(index) & 0xFFFF : data.getShort(index));
+			break;
+		case int32:
+			element = metaData.isUnsigned() ? data.getInt(index) & 0xFFFFFFFFL : data.getInt(index);
+			break;
+		case int64:
+			element = data.getLong(index);
+			break;
+		case float32:
+			element = (long) data.getFloat(index);
+			break;
+		case float64:
+			element = (long) data.getDouble(index);
+			break;
 		}
-		return data.getFloat(elementMetaData[index].getBufferIndex());
+		
+		return element;
 	}
-	
+
 	/**
-	 * Returns the element at the given index in this <code>Tuple</code> cast 
-	 * to a <code>float</code>. Returns 0 if the element is a nonprimitive type
-	 * @param index the 0-based index of the element in this <code>Tuple</code>.
+	 * Reads an element from a buffer and casts it to a <code>float</code>. Unsigned 
+	 * integers are zero extended. Returns 0 if the element is a nonprimitive type.
+	 * @param data the buffer containing the element
+	 * @param index the byte index of the element in the buffer
+	 * @param metaData the element's metadata
 	 * @return the element cast to a <code>float</code>
 	 */
-	public float getElementCastToFloat(int index) {
+	static float castToFloat(ByteBuffer data, int index, ElementMetaData metaData) {
 		float element = 0;
 		
-		switch (elementMetaData[index].getType())
+		switch (metaData.getType())
 		{
 		case int8:
-			element = (float) data.get(elementMetaData[index].getBufferIndex());
+			element = (float) (metaData.isUnsigned() ? data.get(index) & 0xFF : data.get(index));
 			break;
 		case int16:
-			element = (float) data.getShort(elementMetaData[index].getBufferIndex());
+			element = (float) (metaData.isUnsigned() ? data.getShort(index) & 0xFFFF : data.getShort(index));
 			break;
 		case int32:
-			element = (float) data.getInt(elementMetaData[index].getBufferIndex());
+			element = (float) (metaData.isUnsigned() ? data.getInt(index) & 0xFFFFFFFFL : data.getInt(index));
 			break;
 		case int64:
-			element = (float) data.getLong(elementMetaData[index].getBufferIndex());
+			element = (float) data.getLong(index);
 			break;
 		case float32:
-			element = (float) data.getFloat(elementMetaData[index].getBufferIndex());
+			element = data.getFloat(index);
 			break;
 		case float64:
-			element = (float) data.getDouble(elementMetaData[index].getBufferIndex());
+			element = (float) data.getDouble(index);
 			break;
 		}
 		
 		return element;
 	}
-	
-	/**
-	 * Returns the element at the given index in this <code>Tuple</code>.
-	 * @param index the 0-based index of the element in this <code>Tuple</code>.
-	 * @return the element
-	 * @throws Exception if element is not of type <code>double</code>.
-	 */
-	public double getElementDouble(int index) throws Exception {
-		if (elementMetaData[index].getType() != UniType.float64)
-		{
-			throw new Exception("Element is not of type double");
-		}
-		return data.getDouble(elementMetaData[index].getBufferIndex());
-	}
-	
+
 	/**
-	 * Returns the element at the given index in this <code>Tuple</code> cast 
-	 * to a <code>double</code>. Returns 0 if the element is a nonprimitive type
-	 * @param index the 0-based index of the element in this <code>Tuple</code>.
+	 * Reads an element from a buffer and casts it to a <code>double</code>. Unsigned 
+	 * integers are zero extended. Returns 0 if the element is a nonprimitive type.
+	 * @param data the buffer containing the element
+	 * @param index the byte index of the element in the buffer
+	 * @param metaData the element's metadata
 	 * @return the element cast to a <code>double</code>
 	 */
-	public double getElementCastToDouble(int index) {
+	static double castToDouble(ByteBuffer data, int index, ElementMetaData metaData) {
 		double element = 0;
 		
-		switch (elementMetaData[index].getType())
+		switch (metaData.getType())
 		{
 		case int8:
-			element = (double) data.get(elementMetaData[index].getBufferIndex());
+			element = (double) (metaData.isUnsigned() ? data.get(index) & 0xFF : data.get(index));
 			break;
 		case int16:
-			element = (double) data.getShort(elementMetaData[index].getBufferIndex());
+			element = (double) (metaData.isUnsigned() ? data.getShort(index) & 0xFFFF : data.getShort(index));
 			break;
 		case int32:
-			element = (double) data.getInt(elementMetaData[index].getBufferIndex());
+			element = (double) (metaData.isUnsigned() ? data.getInt(index) & 0xFFFFFFFFL : data.getInt(index));
 			break;
 		case int64:
-			element = (double) data.getLong(elementMetaData[index].getBufferIndex());
+			element = (double) data.getLong(index);
 			break;
 		case float32:
-			element = (double) data.getFloat(elementMetaData[index].getBufferIndex());
+			element = (double) data.getFloat(index);
 			break;
 		case float64:
-			element = data.getDouble(elementMetaData[index].getBufferIndex());
+			element = data.getDouble(index);
 			break;
 		}
 		
 		return element;
 	}
-	
+
 	/**
 	 * Returns the element at the given index in this <code>Tuple</code>.
 	 * @param index the 0-based index of the element in this <code>Tuple</code>.
 	 * @return the element as a <code>ByteBuffer</code>
 	 */
 	public ByteBuffer getElementByteBuffer(int index) {
-		// Create new ByteBuffer that is a slice of this one
-		data.position(elementMetaData[index].getBufferIndex());
-		ByteBuffer element = data.slice();
-		data.rewind();
+		// Create new ByteBuffer that is a slice of this one, moving a 
+		// duplicate so the shared buffer's position is left alone
+		ByteBuffer element = data.duplicate();
+		element.position(indexOf(index));
+		element = element.slice();
 		element.limit(elementMetaData[index].getSize());
 		return element;
 	}
@@ -0,0 +1,145 @@
+/**************************************************************
+ This file is part of Kinect Sensor Architecture Development Project.
+
+    Kinect Sensor Architecture Development Project is free software:
+	you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Kinect Sensor Architecture Development Project is distributed in
+	the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with Kinect Sensor Architecture Development Project.  If
+	not, see <http://www.gnu.org/licenses/>.
+**************************************************************/
+/**************************************************************
+The work was done in joint collaboration with Cisco Systems Inc.
+Copyright © 2012, Cisco Systems, Inc. and UCLA
+*************************************************************/
+
+package UnifyingAPI;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A <code>Tuple</code> that can be moved over the tuples of a <code>Channel</code>.
+ * A new cursor is before the first tuple: move it with {@link #next()} or 
+ * {@link #moveTo(int)} before reading elements, which otherwise throw an 
+ * <code>IllegalStateException</code>.
+ * Elements are read straight from the channel's data, so iterating over a
+ * channel with a cursor creates no objects per tuple. The element getters
+ * behave exactly like those of a <code>Tuple</code> returned by
+ * {@link Channel#getTuple(int...)}.
+ */
+public class TupleCursor extends Tuple {
+	private Channel channel;
+	private int tupleSize;		// size of tuple in bytes
+	private int numTuples;		// number of tuples in the channel
+	private int index;			// index of the current tuple, -1 before the first tuple
+
+	/**
+	 * Construct a cursor over the tuples of a channel, positioned before the first tuple.
+	 * @param channel the channel to move over
+	 * @param data the channel's data
+	 * @param elementMetaData the channel's element metadata
+	 */
+	TupleCursor(Channel channel, ByteBuffer data, ElementMetaData[] elementMetaData)
+	{
+		super(data, elementMetaData, 0);
+		this.channel = channel;
+		this.tupleSize = channel.getTupleSize();
+		this.numTuples = (int) channel.getNumberOfTuples();
+		this.index = -1;
+		setOffset(-1);
+	}
+
+	/**
+	 * Moves the cursor to the next tuple. The element getters throw an 
+	 * <code>IllegalStateException</code> once the cursor has moved past the 
+	 * last tuple.
+	 * @return true if the cursor is on a tuple, false if it has moved past the last tuple
+	 */
+	public boolean next()
+	{
+		if (index < numTuples)
+		{
+			++index;
+		}
+		if (index < numTuples)
+		{
+			setOffset(index * tupleSize);
+			return true;
+		}
+		setOffset(-1);
+		return false;
+	}
+
+	/**
+	 * Moves the cursor to the tuple with the given index, counting tuples in
+	 * the order they are stored in the channel.
+	 * @param tupleIndex the 0-based index of the tuple
+	 * @return this cursor
+	 * @throws IllegalArgumentException if there is no tuple with the given index
+	 */
+	public TupleCursor moveTo(int tupleIndex) throws IllegalArgumentException
+	{
+		if (tupleIndex < 0 || tupleIndex >= numTuples)
+		{
+			String message = String.format("Tuple index out of range. Asked for index %d, max index %d\n",
+					tupleIndex, numTuples-1);
+			throw new IllegalArgumentException(message);
+		}
+		index = tupleIndex;
+		setOffset(tupleIndex * tupleSize);
+		return this;
+	}
+
+	/**
+	 * Moves the cursor to the tuple at the given row and column of a
+	 * 2-dimensional channel. e.g. 479, 639 for the last pixel in a VGA image
+	 * @param row the 0-based index in the first dimension
+	 * @param column the 0-based index in the second dimension
+	 * @return this cursor
+	 * @throws IllegalArgumentException if the channel is not 2-dimensional or
+	 * if an index is too high for its dimension
+	 */
+	public TupleCursor moveTo(int row, int column) throws IllegalArgumentException
+	{
+		if (channel.getNumberOfDimensions() != 2)
+		{
+			String message = String.format("Asked for 2 dimensions, Channel has %d dimensions\n",
+					channel.getNumberOfDimensions());
+			throw new IllegalArgumentException(message);
+		}
+		int rows = channel.getDimension(0);
+		int columns = channel.getDimension(1);
+		if (row < 0 || row >= rows || column < 0 || column >= columns)
+		{
+			String message = String.format("Index out of range. Asked for %d, %d, dimensions are %d, %d\n",
+					row, column, rows, columns);
+			throw new IllegalArgumentException(message);
+		}
+		return moveTo(row * columns + column);
+	}
+
+	/**
+	 * Moves the cursor back before the first tuple.
+	 */
+	public void reset()
+	{
+		index = -1;
+		setOffset(-1);
+	}
+
+	/**
+	 * Retrieves the index of the tuple the cursor is on.
+	 * @return the 0-based index of the current tuple, -1 before the first tuple
+	 * and the number of tuples after the last one
+	 */
+	public int getIndex() { return index; }
+}
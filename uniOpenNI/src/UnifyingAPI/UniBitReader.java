@@ -0,0 +1,91 @@
+/**************************************************************
+ This file is part of Kinect Sensor Architecture Development Project.
+
+    Kinect Sensor Architecture Development Project is free software:
+	you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Kinect Sensor Architecture Development Project is distributed in
+	the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with Kinect Sensor Architecture Development Project.  If
+	not, see <http://www.gnu.org/licenses/>.
+**************************************************************/
+/**************************************************************
+The work was done in joint collaboration with Cisco Systems Inc.
+Copyright © 2012, Cisco Systems, Inc. and UCLA
+*************************************************************/
+
+package UnifyingAPI;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Reads values of any number of bits from a <code>ByteBuffer</code>, most 
+ * significant bit first. The counterpart of {@link UniBitWriter}. The 
+ * buffer's position is not used or changed.
+ */
+final class UniBitReader {
+	private ByteBuffer buffer;
+	private int start;		// index of the byte holding bit 0
+	private int byteIndex;	// index of the next byte to load
+	private long bits;		// loaded bits not read yet, in the low-order bits
+	private int numBits;	// number of loaded bits not read yet
+	
+	/**
+	 * Construct a bit reader positioned on a bit of the buffer.
+	 * @param buffer the buffer to read from
+	 * @param start the index in the buffer of the byte holding bit 0
+	 * @param bitIndex the index, counted from bit 0, of the first bit to read
+	 */
+	UniBitReader(ByteBuffer buffer, int start, long bitIndex)
+	{
+		this.buffer = buffer;
+		this.start = start;
+		seek(bitIndex);
+	}
+	
+	/**
+	 * Moves the reader to a bit.
+	 * @param bitIndex the index, counted from bit 0, of the next bit to read
+	 */
+	void seek(long bitIndex)
+	{
+		byteIndex = start + (int) (bitIndex >>> 3);
+		bits = 0;
+		numBits = 0;
+		int skippedBits = (int) (bitIndex & 7);
+		if (skippedBits != 0)
+		{
+			bits = buffer.get(byteIndex++) & 0xFF;
+			numBits = 8 - skippedBits;
+		}
+	}
+	
+	/**
+	 * Reads an unsigned value.
+	 * @param size the number of bits to read, from 1 to 64
+	 * @return the value, zero extended
+	 */
+	long read(int size)
+	{
+		if (size > 56)
+		{
+			long high = read(size - 32);
+			return (high << 32) | read(32);
+		}
+		while (numBits < size)
+		{
+			bits = (bits << 8) | (buffer.get(byteIndex++) & 0xFF);
+			numBits += 8;
+		}
+		numBits -= size;
+		return (bits >>> numBits) & (-1L >>> (64 - size));
+	}
+}
@@ -0,0 +1,86 @@
+/**************************************************************
+ This file is part of Kinect Sensor Architecture Development Project.
+
+    Kinect Sensor Architecture Development Project is free software:
+	you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Kinect Sensor Architecture Development Project is distributed in
+	the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with Kinect Sensor Architecture Development Project.  If
+	not, see <http://www.gnu.org/licenses/>.
+**************************************************************/
+/**************************************************************
+The work was done in joint collaboration with Cisco Systems Inc.
+Copyright © 2012, Cisco Systems, Inc. and UCLA
+*************************************************************/
+
+package UnifyingAPI;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Writes values of any number of bits into a <code>ByteBuffer</code>, most 
+ * significant bit first, without padding between values. This is the layout 
+ * of the data of channels with elements sized in bits: the elements of each
+ * tuple follow each other bit after bit, and tuples follow each other the 
+ * same way. Device drivers can use a <code>UniBitWriter</code> in their 
+ * {@link UniDataPacker} to pack such channels.
+ */
+public class UniBitWriter {
+	private ByteBuffer buffer;
+	private long bits;		// bits not written yet, in the low-order bits
+	private int numBits;	// number of bits not written yet, less than 8 between calls
+	
+	/**
+	 * Construct a bit writer that writes at the buffer's position.
+	 * @param buffer the buffer to write into
+	 */
+	public UniBitWriter(ByteBuffer buffer)
+	{
+		this.buffer = buffer;
+		this.bits = 0;
+		this.numBits = 0;
+	}
+	
+	/**
+	 * Writes the low-order bits of a value.
+	 * @param value the value to write
+	 * @param size the number of bits to write, from 1 to 64
+	 */
+	public void write(long value, int size)
+	{
+		if (size > 56)
+		{
+			write(value >>> 32, size - 32);
+			size = 32;
+		}
+		bits = (bits << size) | (value & (-1L >>> (64 - size)));
+		numBits += size;
+		while (numBits >= 8)
+		{
+			numBits -= 8;
+			buffer.put((byte) (bits >>> numBits));
+		}
+	}
+	
+	/**
+	 * Writes the bits left over after the last whole byte, padded with 
+	 * zeros to a whole byte. Must be called once all values have been written.
+	 */
+	public void flush()
+	{
+		if (numBits > 0)
+		{
+			buffer.put((byte) (bits << (8 - numBits)));
+			numBits = 0;
+		}
+	}
+}
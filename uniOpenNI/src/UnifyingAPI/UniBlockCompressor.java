@@ -0,0 +1,267 @@
+/**************************************************************
+ This file is part of Kinect Sensor Architecture Development Project.
+
+    Kinect Sensor Architecture Development Project is free software:
+	you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Kinect Sensor Architecture Development Project is distributed in
+	the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with Kinect Sensor Architecture Development Project.  If
+	not, see <http://www.gnu.org/licenses/>.
+**************************************************************/
+/**************************************************************
+The work was done in joint collaboration with Cisco Systems Inc.
+Copyright © 2012, Cisco Systems, Inc. and UCLA
+*************************************************************/
+
+package UnifyingAPI;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * A fast lossless compressor using the LZ4 block format. Data is written as
+ * sequences of a token byte, literal bytes and a match in the previous 
+ * 64 KB of output, so decompressing is mostly copying. A compressor keeps a
+ * hash table between calls and must only be used by one thread at a time;
+ * decompressing needs no state.
+ */
+final class UniBlockCompressor {
+	private static final int MIN_MATCH = 4;
+	private static final int HASH_LOG = 14;
+	private static final int MAX_OFFSET = 65535;
+	private static final int LAST_LITERALS = 5;	// the last bytes are always literals
+	private static final int MF_LIMIT = 12;		// no match starts this close to the end
+	private static final int SKIP_STRENGTH = 6;	// how fast incompressible data is skipped
+	
+	private int[] hashTable;	// last position of each hashed 4-byte sequence
+	
+	UniBlockCompressor()
+	{
+		this.hashTable = new int[1 << HASH_LOG];
+	}
+	
+	/**
+	 * Retrieves the largest size data of the given length can be compressed into.
+	 * @param length the length of the data in bytes
+	 * @return the largest compressed size in bytes
+	 */
+	static int getMaxCompressedSize(int length)
+	{
+		return length + length / 255 + 16;
+	}
+	
+	/**
+	 * Compresses a range of bytes.
+	 * @param src the data to compress
+	 * @param srcOffset the index of the first byte to compress
+	 * @param length the number of bytes to compress
+	 * @param dst the array to write the compressed data into, with room for
+	 * at least <code>getMaxCompressedSize(length)</code> bytes
+	 * @param dstOffset the index to write the compressed data from
+	 * @return the size of the compressed data in bytes
+	 */
+	int compress(byte[] src, int srcOffset, int length, byte[] dst, int dstOffset)
+	{
+		Arrays.fill(hashTable, -1);
+		int end = srcOffset + length;
+		int matchLimit = end - LAST_LITERALS;
+		int mfLimit = end - MF_LIMIT;
+		int anchor = srcOffset;
+		int i = srcOffset;
+		int d = dstOffset;
+		
+		while (i < mfLimit)
+		{
+			int sequence = readInt(src, i);
+			int h = hash(sequence);
+			int ref = hashTable[h];
+			hashTable[h] = i;
+			if (ref < 0 || i - ref > MAX_OFFSET || readInt(src, ref) != sequence)
+			{
+				i += 1 + ((i - anchor) >>> SKIP_STRENGTH);
+				continue;
+			}
+			
+			// Extend the match backwards over the pending literals, then forwards
+			while (i > anchor && ref > srcOffset && src[i-1] == src[ref-1])
+			{
+				--i;
+				--ref;
+			}
+			int matchLength = MIN_MATCH;
+			while (i + matchLength < matchLimit && src[i+matchLength] == src[ref+matchLength])
+			{
+				++matchLength;
+			}
+			
+			d = writeSequence(src, anchor, i - anchor, i - ref, matchLength, dst, d);
+			i += matchLength;
+			anchor = i;
+			if (i - 2 < mfLimit)
+			{
+				hashTable[hash(readInt(src, i - 2))] = i - 2;
+			}
+		}
+		
+		// The rest of the data is literals
+		int literals = end - anchor;
+		int token = d++;
+		dst[token] = (byte) (Math.min(literals, 15) << 4);
+		d = writeLength(literals, dst, d);
+		System.arraycopy(src, anchor, dst, d, literals);
+		d += literals;
+		return d - dstOffset;
+	}
+	
+	/**
+	 * Decompresses data compressed by {@link #compress(byte[], int, int, byte[], int)}.
+	 * @param src the buffer holding the compressed data
+	 * @param srcIndex the index of the compressed data in <code>src</code>
+	 * @param srcLength the size of the compressed data in bytes
+	 * @param dst the array to write the data into
+	 * @param dstOffset the index to write the data from
+	 * @param dstLength the size of the data in bytes
+	 * @throws IllegalArgumentException if the compressed data is corrupt or 
+	 * does not decompress to <code>dstLength</code> bytes
+	 */
+	static void decompress(ByteBuffer src, int srcIndex, int srcLength, 
+			byte[] dst, int dstOffset, int dstLength) throws IllegalArgumentException
+	{
+		ByteBuffer literals = src.duplicate();
+		int s = srcIndex;
+		int srcEnd = srcIndex + srcLength;
+		int d = dstOffset;
+		int dstEnd = dstOffset + dstLength;
+		while (s < srcEnd)
+		{
+			int token = src.get(s++) & 0xFF;
+			
+			// Copy the literals
+			int literalLength = token >>> 4;
+			if (literalLength == 15)
+			{
+				int b;
+				do
+				{
+					b = src.get(s++) & 0xFF;
+					literalLength += b;
+				} while (b == 255 && s < srcEnd);
+			}
+			if (s + literalLength > srcEnd || d + literalLength > dstEnd)
+			{
+				throw corrupt(s - srcIndex);
+			}
+			literals.limit(s + literalLength);
+			literals.position(s);
+			literals.get(dst, d, literalLength);
+			s += literalLength;
+			d += literalLength;
+			if (s == srcEnd)
+			{
+				break;
+			}
+			
+			// Copy the match
+			if (s + 2 > srcEnd)
+			{
+				throw corrupt(s - srcIndex);
+			}
+			int offset = (src.get(s) & 0xFF) | ((src.get(s+1) & 0xFF) << 8);
+			s += 2;
+			int matchLength = token & 15;
+			if (matchLength == 15)
+			{
+				int b;
+				do
+				{
+					b = src.get(s++) & 0xFF;
+					matchLength += b;
+				} while (b == 255 && s < srcEnd);
+			}
+			matchLength += MIN_MATCH;
+			int match = d - offset;
+			if (offset == 0 || match < dstOffset || d + matchLength > dstEnd)
+			{
+				throw corrupt(s - srcIndex);
+			}
+			if (offset >= matchLength)
+			{
+				System.arraycopy(dst, match, dst, d, matchLength);
+			}
+			else
+			{
+				// The match overlaps the bytes being written
+				for (int k = 0; k < matchLength; ++k)
+				{
+					dst[d+k] = dst[match+k];
+				}
+			}
+			d += matchLength;
+		}
+		
+		if (d != dstEnd)
+		{
+			String message = String.format("Compressed data decompresses to %d bytes, expected %d\n",
+					d - dstOffset, dstLength);
+			throw new IllegalArgumentException(message);
+		}
+	}
+	
+	private static IllegalArgumentException corrupt(int index)
+	{
+		String message = String.format("Corrupt compressed data at byte %d\n", index);
+		return new IllegalArgumentException(message);
+	}
+	
+	private static int writeSequence(byte[] src, int literalStart, int literalLength, 
+			int offset, int matchLength, byte[] dst, int d)
+	{
+		int token = d++;
+		d = writeLength(literalLength, dst, d);
+		System.arraycopy(src, literalStart, dst, d, literalLength);
+		d += literalLength;
+		dst[d++] = (byte) offset;
+		dst[d++] = (byte) (offset >>> 8);
+		int extraLength = matchLength - MIN_MATCH;
+		d = writeLength(extraLength, dst, d);
+		dst[token] = (byte) ((Math.min(literalLength, 15) << 4) | Math.min(extraLength, 15));
+		return d;
+	}
+	
+	/**
+	 * Writes the bytes that follow a token for lengths of 15 and more.
+	 */
+	private static int writeLength(int length, byte[] dst, int d)
+	{
+		if (length >= 15)
+		{
+			length -= 15;
+			for (; length >= 255; length -= 255)
+			{
+				dst[d++] = (byte) 255;
+			}
+			dst[d++] = (byte) length;
+		}
+		return d;
+	}
+	
+	private static int readInt(byte[] src, int i)
+	{
+		return (src[i] & 0xFF) | ((src[i+1] & 0xFF) << 8) | 
+				((src[i+2] & 0xFF) << 16) | ((src[i+3] & 0xFF) << 24);
+	}
+	
+	private static int hash(int sequence)
+	{
+		return (sequence * -1640531535) >>> (32 - HASH_LOG);
+	}
+}
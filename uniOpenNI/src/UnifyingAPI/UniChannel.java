@@ -54,6 +54,28 @@ public class UniChannel {
 	}
 
 
+	/**
+	 * Construct a <code>UniChannel</code> from a sensor packet whose channel 
+	 * header was sent in an earlier packet.
+	 * @param header the channel's header
+	 * @param sensorPacket the <code>ByteBuffer</code> containing the sensor packet, 
+	 * with its position where the channel data starts
+	 */
+	UniChannel(UniChannelHeader header, ByteBuffer sensorPacket)
+	{
+		this.header = header;
+		
+		int dataSize = (int) getPackedDataSize();
+		ByteBuffer dataBuffer = sensorPacket.slice();
+		
+		data = dataBuffer.limit(dataSize);
+	}
+
+	/**
+	 * Construct a <code>UniChannel</code> to be packed into a sensor packet.
+	 * @param header the channel's header
+	 * @param dataPacker the packer that writes the channel's data
+	 */
 	public UniChannel(UniChannelHeader header,
 			UniDataPacker dataPacker) {
 		this.header = header;
@@ -72,6 +94,25 @@ public class UniChannel {
 		packer.writeDataIntoByteBuffer(sensorPacket.slice());
 	}
 	
+	/**
+	 * Write the channel packet into a <code>ByteBuffer</code> at the 
+	 * <code>ByteBuffer</code>'s position, starting with a channel layout id.
+	 * The channel header is only written if the id has the 
+	 * <code>LAYOUT_DEFINITION</code> bit set.
+	 * @param sensorPacket the <code>ByteBuffer</code> to write the channel packet into, 
+	 * positioned where the channel packet should start.
+	 * @param layoutId the channel layout id
+	 */
+	final void packIntoByteBuffer(ByteBuffer sensorPacket, short layoutId) 
+	{
+		sensorPacket.putShort(layoutId);
+		if ((layoutId & UniChannelHeader.LAYOUT_DEFINITION) != 0)
+		{
+			header.packIntoByteBuffer(sensorPacket);
+		}
+		packer.writeDataIntoByteBuffer(sensorPacket.slice());
+	}
+	
 	/**
 	 * Retrieves the size in bytes that this channel requires when written in 
 	 * the channel packet format.
@@ -95,24 +136,7 @@ public class UniChannel {
 	 */
 	public long getPackedDataSize()
 	{
-		// Construct size (in bits) of a tuple
-		// assumes that elements are byte aligned
-		UniElementDescriptor descriptors[] = header.getElementDescriptors();
-		long tupleSize = 0;	// Sized in bytes
-		for (int i = 0; i < descriptors.length; ++i) 
-		{
-			int elementSizeInBits = descriptors[i].getSize() * (1 << (descriptors[i].isSizedInBytes()?3:0));
-			int elementSizeInBytes = elementSizeInBits >> 3;
-			
-			// Add a byte if doesn't end on byte boundary
-			elementSizeInBytes += ((elementSizeInBits % 8) > 0 ? 1 : 0);
-			tupleSize+= elementSizeInBytes;
-		}
-		
-		// Construct buffer size (in bytes)
-		long dataSize = tupleSize * header.getNumberTuples();
-		
-		return dataSize;
+		return header.getPackedDataSize();
 	}
 	
 	/**
@@ -121,6 +145,12 @@ public class UniChannel {
 	 */
 	public ByteBuffer getData() { return data; }
 	
+	/**
+	 * Retrieves the packer that writes the channel's data.
+	 * @return the channel's data packer, <code>null</code> for a parsed channel
+	 */
+	UniDataPacker getPacker() { return packer; }
+	
 	/**
 	 * Retrieves the channel's header.
 	 * @return the channel's header
@@ -0,0 +1,208 @@
+/**************************************************************
+ This file is part of Kinect Sensor Architecture Development Project.
+
+    Kinect Sensor Architecture Development Project is free software:
+	you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Kinect Sensor Architecture Development Project is distributed in
+	the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with Kinect Sensor Architecture Development Project.  If
+	not, see <http://www.gnu.org/licenses/>.
+**************************************************************/
+/**************************************************************
+The work was done in joint collaboration with Cisco Systems Inc.
+Copyright © 2012, Cisco Systems, Inc. and UCLA
+*************************************************************/
+
+package UnifyingAPI;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Encodes the data of one channel for sensor packets with the 
+ * <code>FLAG_CHANNEL_CODECS</code> flag. The data of each channel is then 
+ * preceded by a codec byte, the channel's frame number (an int counting the 
+ * packets the channel was sent in) and the size of the encoded data (an int).
+ * <p>
+ * With <code>CODEC_DELTA</code> the data is a delta from the channel's 
+ * previous frame, see <code>UniDeltaCodec</code>. Without it the data is 
+ * sent as is. <code>CODEC_REFERENCE</code> tells the consumer to keep the 
+ * decoded data, the next delta of the channel is taken from it. Keyframes 
+ * are sent every <code>keyframeInterval</code> frames, when the channel's 
+ * layout changes, when the delta would not be smaller than the data, and 
+ * when one is asked for.
+ * <p>
+ * With <code>CODEC_COMPRESSED</code> the data or delta is compressed with
+ * <code>UniBlockCompressor</code> and preceded by its uncompressed size 
+ * (an int). Data that does not get smaller is sent uncompressed.
+ */
+final class UniChannelEncoder {
+	/**
+	 * Codec bit set when the data is a delta from the previous frame.
+	 */
+	static final byte CODEC_DELTA = 0x01;
+	
+	/**
+	 * Codec bit set when the decoded data is the reference for the next delta.
+	 */
+	static final byte CODEC_REFERENCE = 0x02;
+	
+	/**
+	 * Codec bit set when the data is compressed.
+	 */
+	static final byte CODEC_COMPRESSED = 0x04;
+	
+	/**
+	 * Size in bytes of the codec byte, frame number and encoded size.
+	 */
+	static final int CODEC_HEADER_SIZE = 9;
+	
+	private UniChannelHeader header;	// header of the reference data, null before the first frame
+	private ByteBuffer reference;	// data of the last frame sent
+	private ByteBuffer current;		// data of the frame being encoded
+	private ByteBuffer delta;		// delta between current and reference
+	private ByteBuffer compressed;	// compressed data or delta
+	private ByteBuffer encoded;		// the data sent for the frame being encoded
+	private UniBlockCompressor compressor;	// null until data is compressed
+	private byte codec;
+	private int frameNumber;
+	private int framesSinceKeyframe;
+	
+	/**
+	 * Packs the channel's data and encodes it.
+	 * @param channel the channel to encode
+	 * @param keyframeInterval the largest number of frames between keyframes, 
+	 * 1 to only send keyframes, 0 to send the data without deltas
+	 * @param keyframe true to send a keyframe whatever the interval
+	 * @param compress true to compress the data
+	 */
+	void encode(UniChannel channel, int keyframeInterval, boolean keyframe, boolean compress)
+	{
+		int dataSize = (int) channel.getPackedDataSize();
+		current = prepare(current, dataSize);
+		channel.getPacker().writeDataIntoByteBuffer(current);
+		current.clear();
+		current.limit(dataSize);
+		++frameNumber;
+		
+		if (keyframeInterval > 0)
+		{
+			encodeDelta(channel, keyframeInterval, keyframe);
+		}
+		else
+		{
+			// Without deltas nothing is kept, a later delta starts with a keyframe
+			codec = 0;
+			encoded = current;
+			header = null;
+		}
+		
+		if (compress)
+		{
+			compress();
+		}
+	}
+	
+	/**
+	 * Encodes the packed data as a keyframe or a delta from the previous frame.
+	 */
+	private void encodeDelta(UniChannel channel, int keyframeInterval, boolean keyframe)
+	{
+		int dataSize = current.limit();
+		boolean sendKeyframe = keyframe || header == null || !header.equals(channel.getHeader()) ||
+				framesSinceKeyframe + 1 >= keyframeInterval;
+		int deltaSize = -1;
+		if (!sendKeyframe)
+		{
+			delta = prepare(delta, dataSize);
+			deltaSize = UniDeltaCodec.encode(current, reference, delta);
+		}
+		
+		if (deltaSize < 0)
+		{
+			codec = CODEC_REFERENCE;
+			encoded = current;
+			framesSinceKeyframe = 0;
+		}
+		else
+		{
+			codec = CODEC_DELTA | CODEC_REFERENCE;
+			delta.limit(deltaSize);
+			encoded = delta;
+			++framesSinceKeyframe;
+		}
+		
+		// The data just encoded is the reference of the next frame
+		header = channel.getHeader();
+		ByteBuffer previous = reference;
+		reference = current;
+		current = previous;
+	}
+	
+	/**
+	 * Compresses the encoded data, if that makes it smaller.
+	 */
+	private void compress()
+	{
+		if (compressor == null)
+		{
+			compressor = new UniBlockCompressor();
+		}
+		
+		// The encoder's buffers are heap buffers starting at index 0
+		int length = encoded.limit();
+		compressed = prepare(compressed, 4 + UniBlockCompressor.getMaxCompressedSize(length));
+		int compressedSize = compressor.compress(encoded.array(), encoded.arrayOffset(), length, 
+				compressed.array(), compressed.arrayOffset() + 4);
+		if (4 + compressedSize < length)
+		{
+			compressed.putInt(0, length);
+			compressed.limit(4 + compressedSize);
+			encoded = compressed;
+			codec |= CODEC_COMPRESSED;
+		}
+	}
+	
+	/**
+	 * Retrieves the number of bytes {@link #writeInto(ByteBuffer)} writes.
+	 * @return the size in bytes of the codec header and encoded data
+	 */
+	int getEncodedSize()
+	{
+		return CODEC_HEADER_SIZE + encoded.limit();
+	}
+	
+	/**
+	 * Writes the codec header and the encoded data at the buffer's position.
+	 * @param buffer the buffer to write into
+	 */
+	void writeInto(ByteBuffer buffer)
+	{
+		buffer.put(codec);
+		buffer.putInt(frameNumber);
+		buffer.putInt(encoded.limit());
+		buffer.put(encoded.duplicate());
+	}
+	
+	/**
+	 * Retrieves a buffer of the given size, reusing the given one if it is large enough.
+	 */
+	private static ByteBuffer prepare(ByteBuffer buffer, int size)
+	{
+		if (buffer == null || buffer.capacity() < size)
+		{
+			buffer = ByteBuffer.allocate(size);
+		}
+		buffer.clear();
+		buffer.limit(size);
+		return buffer;
+	}
+}
@@ -32,11 +32,24 @@ import java.nio.ByteBuffer;
  *
  */
 public class UniChannelHeader {
+	/**
+	 * Bit set in a channel layout id when the full channel header follows it.
+	 */
+	static final short LAYOUT_DEFINITION = (short) 0x8000;
+	
+	/**
+	 * Number of channel layout ids a device hands out before starting over.
+	 */
+	static final int MAX_LAYOUT_IDS = 128;
+	
 	private long numTuples;
 	private double frequency;
 	private short elementsPerTuple;
 	private UniElementDescriptor elementDescriptors[];
 	private String name;
+	private int packedSize;	// Cached, the header does not change
+	private long packedDataSize = -1;	// Cached, -1 until computed
+	private int hash;		// Cached, 0 until computed
 	
 	/**
 	 * Retrieves the number of tuples in this channel
@@ -78,7 +91,7 @@ public class UniChannelHeader {
 		// Get element descriptors
 		elementDescriptors = new UniElementDescriptor[elementsPerTuple];
 		for(int i = 0; i < elementsPerTuple; ++i) {
-			elementDescriptors[i] = new UniElementDescriptor(sensorPacket.get());
+			elementDescriptors[i] = UniElementDescriptor.valueOf(sensorPacket.get());
 		}
 		
 		// Get name
@@ -89,6 +102,7 @@ public class UniChannelHeader {
 			buffer.append(c);
 		}
 		name = buffer.toString();
+		packedSize = computePackedSize();
 	}
 	
 	/**
@@ -107,6 +121,7 @@ public class UniChannelHeader {
 		this.elementsPerTuple = (short) elementDescriptors.length;
 		this.elementDescriptors = elementDescriptors;
 		this.name = name;
+		this.packedSize = computePackedSize();
 	}
 	
 	/**
@@ -133,12 +148,97 @@ public class UniChannelHeader {
 		return true;
 	}
 	
+	/**
+	 * Tells whether the channel header at a <code>ByteBuffer</code>'s position
+	 * was packed from a header equal to this one. The <code>ByteBuffer</code>'s 
+	 * position is not changed.
+	 * @param sensorPacket the <code>ByteBuffer</code> containing the sensor packet, 
+	 * with its position where the channel header starts
+	 * @return true if the packed header has the same bytes this header would be packed into
+	 */
+	boolean matches(ByteBuffer sensorPacket)
+	{
+		int index = sensorPacket.position();
+		if (sensorPacket.remaining() < packedSize || 
+				sensorPacket.getLong(index) != numTuples ||
+				sensorPacket.getLong(index + 8) != Double.doubleToRawLongBits(frequency) ||
+				sensorPacket.getShort(index + 16) != elementsPerTuple)
+		{
+			return false;
+		}
+		index += 18;
+		for (int i = 0; i < elementsPerTuple; ++i, ++index)
+		{
+			if (sensorPacket.get(index) != elementDescriptors[i].getDescriptor())
+			{
+				return false;
+			}
+		}
+		for (int i = 0; i < name.length(); ++i, index += 2)
+		{
+			if (sensorPacket.getChar(index) != name.charAt(i))
+			{
+				return false;
+			}
+		}
+		return sensorPacket.getChar(index) == '\u0000';
+	}
+	
 	/**
 	 * Retrieves the size in bytes that this channel header would require if written in 
 	 * the channel packet format.
 	 * @return number of bytes needed to store this channel header in a channel packet
 	 */
 	public int getPackedSize()
+	{
+		return packedSize;
+	}
+	
+	/**
+	 * Tells whether the channel's data is bit-packed. Channels with at least
+	 * one element sized in bits are bit-packed: each element takes exactly 
+	 * its size in bits, most significant bit first, with no padding between
+	 * elements or tuples, and the data is padded with zeros to a whole byte.
+	 * The data of other channels is made of whole bytes per element.
+	 * @return true if the channel's data is bit-packed
+	 */
+	public boolean isBitPacked()
+	{
+		for (int i = 0; i < elementDescriptors.length; ++i) 
+		{
+			if (!elementDescriptors[i].isSizedInBytes())
+			{
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * Returns the size in bytes of the data of a channel with this header. 
+	 * Calculated from the <code>UniElementDescriptor</code>s.
+	 * @return size of the data in bytes
+	 */
+	public long getPackedDataSize()
+	{
+		if (packedDataSize >= 0)
+		{
+			return packedDataSize;
+		}
+		
+		// Construct size (in bits) of a tuple
+		long tupleBits = 0;
+		for (int i = 0; i < elementDescriptors.length; ++i) 
+		{
+			tupleBits += elementDescriptors[i].getSizeInBits();
+		}
+		
+		// Construct buffer size (in bytes), bit-packed data is rounded up to a whole byte
+		packedDataSize = (tupleBits * numTuples + 7) >> 3;
+		return packedDataSize;
+	}
+	
+	private int computePackedSize()
 	{
 		int bytes = 18; 	// Add size of timestamp, frequency, elementsPerTuple
 		bytes += elementDescriptors.length; // Add size of element descriptors
@@ -146,5 +246,58 @@ public class UniChannelHeader {
 		
 		return bytes;
 	}
-
+	
+	/**
+	 * Tells whether another channel header describes the same channel layout:
+	 * the same number of tuples, frequency, element descriptors and name.
+	 * @param other the object to compare with
+	 * @return true if the headers would be packed into the same bytes
+	 */
+	@Override
+	public boolean equals(Object other)
+	{
+		if (other == this)
+		{
+			return true;
+		}
+		if (!(other instanceof UniChannelHeader))
+		{
+			return false;
+		}
+		
+		UniChannelHeader header = (UniChannelHeader) other;
+		if (numTuples != header.numTuples || 
+				Double.doubleToLongBits(frequency) != Double.doubleToLongBits(header.frequency) ||
+				elementsPerTuple != header.elementsPerTuple || !name.equals(header.name))
+		{
+			return false;
+		}
+		for (int i = 0; i < elementsPerTuple; ++i)
+		{
+			if (elementDescriptors[i].getDescriptor() != header.elementDescriptors[i].getDescriptor())
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	@Override
+	public int hashCode()
+	{
+		int h = hash;
+		if (h == 0)
+		{
+			long frequencyBits = Double.doubleToLongBits(frequency);
+			h = (int) (numTuples ^ (numTuples >>> 32));
+			h = 31 * h + (int) (frequencyBits ^ (frequencyBits >>> 32));
+			for (int i = 0; i < elementsPerTuple; ++i)
+			{
+				h = 31 * h + elementDescriptors[i].getDescriptor();
+			}
+			h = 31 * h + name.hashCode();
+			hash = h;
+		}
+		return h;
+	}
 }
@@ -0,0 +1,686 @@
+/**************************************************************
+ This file is part of Kinect Sensor Architecture Development Project.
+
+    Kinect Sensor Architecture Development Project is free software:
+	you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Kinect Sensor Architecture Development Project is distributed in
+	the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with Kinect Sensor Architecture Development Project.  If
+	not, see <http://www.gnu.org/licenses/>.
+**************************************************************/
+/**************************************************************
+The work was done in joint collaboration with Cisco Systems Inc.
+Copyright © 2012, Cisco Systems, Inc. and UCLA
+*************************************************************/
+
+package UnifyingAPI;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * A device on the other end of a UDP link, served by a 
+ * {@link UniDatagramServer}. Fragments are reassembled into pooled buffers
+ * in a few reassembly slots, one per frame in flight. Packets are returned 
+ * in frame order:
+ * <ul>
+ * <li>a packet is returned as soon as all of its fragments have arrived;</li>
+ * <li>a packet still missing fragments after the reassembly deadline, or 
+ * when a later packet is complete, is returned with only the channels 
+ * that arrived whole, so small channels are never held back by a lost 
+ * fragment of a large one;</li>
+ * <li>a packet whose sensor header was lost, or with no whole channel, is
+ * discarded.</li>
+ * </ul>
+ * Fragments of packets already returned or discarded are ignored. With delta
+ * encoding, a lost channel is rebuilt from the next keyframe, which the 
+ * <code>Sensor</code> asks for.
+ */
+public class UniDatagramDevice implements UniPacketSource {
+	private DatagramChannel channel;
+	private Selector selector;
+	private SocketAddress server;
+	private byte[] sensorHeader;
+	private UniPacketPool packetPool;
+	private Slot[] slots;
+	private ArrayDeque<ByteBuffer> readyPackets;	// reassembled packets, in frame order
+	private ByteBuffer datagram;
+	private boolean framesFinished;		// true once a frame was returned or discarded
+	private int lastFrame;				// last frame returned or discarded
+	private boolean headerReceived;		// true if the sensor header came after the newest fragment
+	private long deadlineNanos;
+	private long lastHelloNanos;
+	private volatile long completePackets;
+	private volatile long partialPackets;
+	private volatile long discardedPackets;
+	private volatile long receivedDatagrams;
+	private volatile long receivedBytes;
+	
+	/**
+	 * Default time a packet is waited for after its first fragment arrived.
+	 */
+	public static final long DEFAULT_DEADLINE_MILLIS = 50;
+	
+	private static final int NUM_SLOTS = 4;
+	private static final int RECEIVE_BUFFER_SIZE = 1 << 23;
+	private static final int MAX_PACKET_SIZE = 1 << 28;
+	private static final long HELLO_INTERVAL_NANOS = 1000000000L;
+	private static final long HANDSHAKE_RETRY_MILLIS = 250;
+	private static final long HANDSHAKE_TIMEOUT_MILLIS = 5000;
+	
+	/**
+	 * Registers with a <code>UniDatagramServer</code> and waits for the 
+	 * served device's sensor header.
+	 * @param host the host name or address of the server
+	 * @param port the port the server listens on
+	 * @throws IOException if the server does not answer
+	 */
+	public UniDatagramDevice(String host, int port) throws IOException
+	{
+		this(new InetSocketAddress(host, port));
+	}
+	
+	/**
+	 * Registers with a <code>UniDatagramServer</code> and waits for the 
+	 * served device's sensor header.
+	 * @param address the address of the server
+	 * @throws IOException if the server does not answer
+	 */
+	public UniDatagramDevice(InetSocketAddress address) throws IOException
+	{
+		this.server = address;
+		this.packetPool = new UniPacketPool(NUM_SLOTS * 2, false);
+		this.slots = new Slot[NUM_SLOTS];
+		for (int i = 0; i < NUM_SLOTS; ++i)
+		{
+			slots[i] = new Slot();
+		}
+		this.readyPackets = new ArrayDeque<ByteBuffer>(NUM_SLOTS);
+		this.datagram = ByteBuffer.allocateDirect(65536);
+		this.framesFinished = false;
+		this.lastFrame = 0;
+		this.headerReceived = false;
+		this.deadlineNanos = DEFAULT_DEADLINE_MILLIS * 1000000;
+		this.completePackets = 0;
+		this.partialPackets = 0;
+		this.discardedPackets = 0;
+		this.receivedDatagrams = 0;
+		this.receivedBytes = 0;
+		this.channel = DatagramChannel.open();
+		try
+		{
+			channel.setOption(StandardSocketOptions.SO_RCVBUF, RECEIVE_BUFFER_SIZE);
+			channel.bind(null);
+			channel.configureBlocking(false);
+			selector = Selector.open();
+			channel.register(selector, SelectionKey.OP_READ);
+			handshake();
+		}
+		catch (IOException e)
+		{
+			close();
+			throw e;
+		}
+	}
+	
+	/**
+	 * Sends hellos until the server answers with the sensor header.
+	 */
+	private void handshake() throws IOException
+	{
+		long giveUp = System.currentTimeMillis() + HANDSHAKE_TIMEOUT_MILLIS;
+		while (System.currentTimeMillis() < giveUp)
+		{
+			sendHello();
+			selector.select(HANDSHAKE_RETRY_MILLIS);
+			selector.selectedKeys().clear();
+			while (true)
+			{
+				datagram.clear();
+				if (channel.receive(datagram) == null)
+				{
+					break;
+				}
+				datagram.flip();
+				if (datagram.remaining() >= UniTransportProtocol.MESSAGE_HEADER_SIZE
+						&& datagram.get() == UniTransportProtocol.SENSOR_HEADER)
+				{
+					int length = datagram.getInt();
+					if (length == datagram.remaining())
+					{
+						sensorHeader = new byte[length];
+						datagram.get(sensorHeader);
+						return;
+					}
+				}
+			}
+		}
+		throw new IOException(String.format("No answer from %s\n", server));
+	}
+	
+	/**
+	 * Retrieves the sensor packet header of the served device.
+	 * @return the sensor packet header as a byte array
+	 */
+	public byte[] getSensorHeader() { return sensorHeader.clone(); }
+	
+	/**
+	 * Returns the next packet, complete or rebuilt from its whole channels, 
+	 * blocking until there is one.
+	 * @return the sensor packet, in a pooled buffer
+	 * @throws UncheckedIOException if the connection fails or is closed
+	 */
+	public ByteBuffer getSensorPacket() throws UncheckedIOException
+	{
+		try
+		{
+			while (readyPackets.isEmpty())
+			{
+				long now = System.nanoTime();
+				long wait = HELLO_INTERVAL_NANOS - (now - lastHelloNanos);
+				if (wait <= 0)
+				{
+					sendHello();
+					wait = HELLO_INTERVAL_NANOS;
+				}
+				for (int i = 0; i < slots.length; ++i)
+				{
+					if (slots[i].active)
+					{
+						long left = slots[i].deadline - now;
+						if (left <= 0)
+						{
+							finish(slots[i]);
+						}
+						wait = Math.min(wait, left);
+					}
+				}
+				if (!readyPackets.isEmpty())
+				{
+					break;
+				}
+				
+				selector.select(Math.max(1, wait / 1000000));
+				selector.selectedKeys().clear();
+				receive();
+			}
+			return readyPackets.poll();
+		}
+		catch (IOException e)
+		{
+			throw new UncheckedIOException("Failed to receive sensor packet", e);
+		}
+	}
+	
+	public void releaseSensorPacket(ByteBuffer sensorPacket)
+	{
+		packetPool.release(sensorPacket);
+	}
+	
+	public void setSubscription(UniSubscription subscription)
+	{
+		send(UniTransportProtocol.packSubscription(subscription));
+	}
+	
+	public void setLayoutIdsEnabled(boolean enabled)
+	{
+		send(UniTransportProtocol.packControl(UniTransportProtocol.CONTROL_LAYOUT_IDS, enabled ? 1 : 0));
+	}
+	
+	public void resetLayoutIds()
+	{
+		send(UniTransportProtocol.packControl(UniTransportProtocol.CONTROL_RESET_LAYOUT_IDS));
+	}
+	
+	public void setDeltaEncoding(int keyframeInterval) throws IllegalArgumentException
+	{
+		if (keyframeInterval < 0)
+		{
+			String message = String.format("Keyframe interval must not be negative, got %d\n", keyframeInterval);
+			throw new IllegalArgumentException(message);
+		}
+		send(UniTransportProtocol.packControl(UniTransportProtocol.CONTROL_DELTA_ENCODING, keyframeInterval));
+	}
+	
+	public void setCompression(String channelName, boolean compress)
+	{
+		send(UniTransportProtocol.packCompression(channelName, compress));
+	}
+	
+	public void requestKeyframe()
+	{
+		send(UniTransportProtocol.packControl(UniTransportProtocol.CONTROL_KEYFRAME));
+	}
+	
+	/**
+	 * Sets how long a packet is waited for after its first fragment arrived,
+	 * before it is returned with the channels that arrived whole.
+	 * @param millis the reassembly deadline in milliseconds
+	 * @throws IllegalArgumentException if the deadline is not positive
+	 */
+	public void setReassemblyDeadline(long millis) throws IllegalArgumentException
+	{
+		if (millis <= 0)
+		{
+			String message = String.format("Reassembly deadline must be positive, got %d\n", millis);
+			throw new IllegalArgumentException(message);
+		}
+		this.deadlineNanos = millis * 1000000;
+	}
+	
+	/**
+	 * Retrieves the number of packets returned with all of their channels.
+	 * @return the number of complete packets
+	 */
+	public long getCompletePackets() { return completePackets; }
+	
+	/**
+	 * Retrieves the number of packets returned without the channels that 
+	 * lost fragments.
+	 * @return the number of partial packets
+	 */
+	public long getPartialPackets() { return partialPackets; }
+	
+	/**
+	 * Retrieves the number of packets discarded because their sensor header 
+	 * or every channel lost fragments.
+	 * @return the number of discarded packets
+	 */
+	public long getDiscardedPackets() { return discardedPackets; }
+	
+	/**
+	 * Retrieves the number of fragments received.
+	 * @return the number of datagrams
+	 */
+	public long getReceivedDatagrams() { return receivedDatagrams; }
+	
+	/**
+	 * Retrieves the number of bytes of fragments received, including their headers.
+	 * @return the number of bytes
+	 */
+	public long getReceivedBytes() { return receivedBytes; }
+	
+	/**
+	 * Stops receiving packets. The server drops this consumer once it has 
+	 * not heard from it for a while.
+	 */
+	public void close()
+	{
+		try
+		{
+			channel.close();
+			if (selector != null)
+			{
+				selector.close();
+			}
+		}
+		catch (IOException e)
+		{
+			// Nothing left to do
+		}
+	}
+	
+	/**
+	 * Receives every datagram waiting in the socket.
+	 */
+	private void receive() throws IOException
+	{
+		while (true)
+		{
+			datagram.clear();
+			if (channel.receive(datagram) == null)
+			{
+				return;
+			}
+			datagram.flip();
+			if (datagram.remaining() > UniDatagramServer.FRAGMENT_HEADER_SIZE
+					&& datagram.get(0) == UniTransportProtocol.PACKET_FRAGMENT)
+			{
+				++receivedDatagrams;
+				receivedBytes += datagram.remaining();
+				addFragment(datagram);
+			}
+			else if (datagram.remaining() >= UniTransportProtocol.MESSAGE_HEADER_SIZE
+					&& datagram.get(0) == UniTransportProtocol.SENSOR_HEADER)
+			{
+				// The answer to a hello, a restarted server sends it before 
+				// its first frame
+				headerReceived = true;
+			}
+		}
+	}
+	
+	/**
+	 * Copies a fragment into the slot of its frame, finishing the frame if 
+	 * it is complete.
+	 * @param fragment the datagram holding the fragment
+	 */
+	private void addFragment(ByteBuffer fragment)
+	{
+		fragment.get();
+		int frame = fragment.getInt();
+		int packetSize = fragment.getInt();
+		int fragmentIndex = fragment.getInt();
+		int offset = fragment.getInt();
+		int section = fragment.getShort() & 0xFFFF;
+		int numSections = fragment.getShort() & 0xFFFF;
+		int sectionStart = fragment.getInt();
+		int sectionEnd = fragment.getInt();
+		int length = fragment.remaining();
+		if (packetSize <= 0 || packetSize > MAX_PACKET_SIZE || section >= numSections 
+				|| fragmentIndex < 0 || sectionStart < 0 || offset < sectionStart 
+				|| sectionEnd > packetSize || offset + length > sectionEnd)
+		{
+			return;
+		}
+		if (framesFinished && frame - lastFrame <= 0)
+		{
+			if (!headerReceived || lastFrame - frame < NUM_SLOTS)
+			{
+				// Late fragment of a frame already returned or discarded
+				return;
+			}
+			
+			// A server that answered a hello with frames far behind the 
+			// last one was restarted and numbers its frames from 1 again
+			restartFrames();
+		}
+		else if (frame - lastFrame > 0)
+		{
+			headerReceived = false;
+		}
+		
+		Slot slot = getSlot(frame, packetSize, numSections);
+		if (slot == null || slot.packetSize != packetSize || slot.numSections != numSections)
+		{
+			return;
+		}
+		
+		// Every fragment but the last of a section holds the server's whole
+		// payload, which bounds the number of fragments of the packet
+		if (offset + length < sectionEnd)
+		{
+			if (slot.fragmentSize == 0)
+			{
+				slot.fragmentSize = length;
+			}
+			else if (length != slot.fragmentSize)
+			{
+				return;
+			}
+		}
+		int fragmentSize = (slot.fragmentSize > 0) ? slot.fragmentSize : length;
+		if (fragmentIndex >= packetSize / fragmentSize + numSections || slot.fragments.get(fragmentIndex))
+		{
+			return;
+		}
+		slot.fragments.set(fragmentIndex);
+		fragment.get(slot.buffer.array(), slot.buffer.arrayOffset() + offset, length);
+		slot.sectionStarts[section] = sectionStart;
+		slot.sectionEnds[section] = sectionEnd;
+		slot.sectionReceived[section] += length;
+		if (slot.sectionReceived[section] == sectionEnd - sectionStart)
+		{
+			if (++slot.completeSections == numSections)
+			{
+				finish(slot);
+			}
+		}
+	}
+	
+	/**
+	 * Finishes the frames being reassembled and forgets the last frame 
+	 * number, so frames numbered from 1 again are accepted.
+	 */
+	private void restartFrames()
+	{
+		Slot newest = null;
+		for (int i = 0; i < slots.length; ++i)
+		{
+			if (slots[i].active && (newest == null || slots[i].frame - newest.frame > 0))
+			{
+				newest = slots[i];
+			}
+		}
+		if (newest != null)
+		{
+			finish(newest);
+		}
+		framesFinished = false;
+		headerReceived = false;
+	}
+	
+	/**
+	 * Retrieves the slot of a frame, starting its reassembly if needed. When
+	 * every slot is in use, the oldest frame is finished to free one.
+	 * @return the slot, <code>null</code> if the frame is older than every
+	 * frame in the slots
+	 */
+	private Slot getSlot(int frame, int packetSize, int numSections)
+	{
+		Slot free = null;
+		Slot oldest = null;
+		for (int i = 0; i < slots.length; ++i)
+		{
+			Slot slot = slots[i];
+			if (!slot.active)
+			{
+				free = slot;
+			}
+			else if (slot.frame == frame)
+			{
+				return slot;
+			}
+			else if (oldest == null || slot.frame - oldest.frame < 0)
+			{
+				oldest = slot;
+			}
+		}
+		if (free == null)
+		{
+			if (frame - oldest.frame < 0)
+			{
+				// Older than every frame being reassembled
+				return null;
+			}
+			finish(oldest);
+			free = oldest;
+		}
+		free.start(frame, packetSize, numSections, System.nanoTime() + deadlineNanos);
+		return free;
+	}
+	
+	/**
+	 * Returns a frame's packet, rebuilt from its whole channels if it is not
+	 * complete, or discards it. Older frames still being reassembled are 
+	 * finished first so packets are returned in order.
+	 * @param slot the slot of the frame
+	 */
+	private void finish(Slot slot)
+	{
+		for (boolean found = true; found; )
+		{
+			found = false;
+			Slot older = null;
+			for (int i = 0; i < slots.length; ++i)
+			{
+				if (slots[i].active && slots[i].frame - slot.frame < 0 
+						&& (older == null || slots[i].frame - older.frame < 0))
+				{
+					older = slots[i];
+				}
+			}
+			if (older != null)
+			{
+				finishSlot(older);
+				found = true;
+			}
+		}
+		finishSlot(slot);
+	}
+	
+	private void finishSlot(Slot slot)
+	{
+		ByteBuffer packet = slot.buffer;
+		slot.active = false;
+		slot.buffer = null;
+		framesFinished = true;
+		lastFrame = slot.frame;
+		
+		if (slot.completeSections == slot.numSections)
+		{
+			packet.position(0);
+			packet.limit(slot.packetSize);
+			readyPackets.add(packet);
+			++completePackets;
+			return;
+		}
+		
+		int length = rebuild(slot, packet);
+		if (length < 0)
+		{
+			packetPool.release(packet);
+			++discardedPackets;
+			return;
+		}
+		packet.position(0);
+		packet.limit(length);
+		readyPackets.add(packet);
+		++partialPackets;
+	}
+	
+	/**
+	 * Moves the whole channels of an incomplete packet after its sensor 
+	 * header, and rewrites the header with the number of channels kept.
+	 * @return the size of the rebuilt packet, -1 if it has nothing to parse
+	 */
+	private int rebuild(Slot slot, ByteBuffer packet)
+	{
+		if (slot.sectionReceived[0] == 0 || slot.sectionReceived[0] != slot.sectionEnds[0])
+		{
+			return -1;
+		}
+		packet.position(0);
+		packet.limit(slot.packetSize);
+		UniSensorHeader header = new UniSensorHeader(packet);
+		if (header.getEncryptionFlags() != 0 || header.getNumChannels() != slot.numSections - 1)
+		{
+			// The packet does not have one section per channel
+			return -1;
+		}
+		
+		byte[] data = packet.array();
+		int base = packet.arrayOffset();
+		int length = slot.sectionEnds[0];
+		short numChannels = 0;
+		for (int section = 1; section < slot.numSections; ++section)
+		{
+			int sectionSize = slot.sectionEnds[section] - slot.sectionStarts[section];
+			if (sectionSize > 0 && slot.sectionReceived[section] == sectionSize)
+			{
+				System.arraycopy(data, base + slot.sectionStarts[section], data, base + length, sectionSize);
+				length += sectionSize;
+				++numChannels;
+			}
+		}
+		if (numChannels == 0)
+		{
+			return -1;
+		}
+		header.update(numChannels, header.getTimestamp(), header.getFlags());
+		packet.position(0);
+		header.packIntoByteBuffer(packet);
+		return length;
+	}
+	
+	private void sendHello() throws IOException
+	{
+		lastHelloNanos = System.nanoTime();
+		channel.send(UniTransportProtocol.packControl(UniTransportProtocol.CONTROL_HELLO), server);
+	}
+	
+	/**
+	 * Sends a control message to the server. Control messages are not sent 
+	 * again if they are lost.
+	 * @param message the message
+	 * @throws UncheckedIOException if the message cannot be sent
+	 */
+	private void send(ByteBuffer message) throws UncheckedIOException
+	{
+		try
+		{
+			channel.send(message, server);
+		}
+		catch (IOException e)
+		{
+			throw new UncheckedIOException("Failed to send control message", e);
+		}
+	}
+	
+	/**
+	 * The reassembly state of one frame.
+	 */
+	private class Slot {
+		private boolean active;
+		private int frame;
+		private int packetSize;
+		private int numSections;
+		private long deadline;
+		private ByteBuffer buffer;
+		private int[] sectionStarts;
+		private int[] sectionEnds;
+		private int[] sectionReceived;	// bytes received per section
+		private int completeSections;
+		private BitSet fragments;		// fragments received, by index
+		private int fragmentSize;		// size of the fragments not ending a section, 0 until one arrives
+		
+		Slot()
+		{
+			this.active = false;
+			this.sectionStarts = new int[8];
+			this.sectionEnds = new int[8];
+			this.sectionReceived = new int[8];
+			this.fragments = new BitSet();
+		}
+		
+		void start(int frame, int packetSize, int numSections, long deadline)
+		{
+			this.active = true;
+			this.frame = frame;
+			this.packetSize = packetSize;
+			this.numSections = numSections;
+			this.deadline = deadline;
+			this.buffer = packetPool.acquire(packetSize);
+			if (sectionReceived.length < numSections)
+			{
+				sectionStarts = new int[numSections];
+				sectionEnds = new int[numSections];
+				sectionReceived = new int[numSections];
+			}
+			Arrays.fill(sectionReceived, 0, numSections, 0);
+			Arrays.fill(sectionEnds, 0, numSections, 0);
+			this.completeSections = 0;
+			this.fragments.clear();
+			this.fragmentSize = 0;
+		}
+	}
+}
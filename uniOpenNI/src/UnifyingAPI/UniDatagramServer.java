@@ -0,0 +1,456 @@
+/**************************************************************
+ This file is part of Kinect Sensor Architecture Development Project.
+
+    Kinect Sensor Architecture Development Project is free software:
+	you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Kinect Sensor Architecture Development Project is distributed in
+	the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with Kinect Sensor Architecture Development Project.  If
+	not, see <http://www.gnu.org/licenses/>.
+**************************************************************/
+/**************************************************************
+The work was done in joint collaboration with Cisco Systems Inc.
+Copyright © 2012, Cisco Systems, Inc. and UCLA
+*************************************************************/
+
+package UnifyingAPI;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Serves the sensor packets of a device to consumers over UDP. Consumers 
+ * connect with a {@link UniDatagramDevice}. Every packet is split into 
+ * datagrams that fit in one Ethernet frame. Each datagram carries the 
+ * packet's frame number, its place in the packet and the bounds of the 
+ * channel it belongs to. A datagram never holds bytes of two channels, so
+ * a consumer missing part of the depth channel can still parse the other
+ * channels. Lost datagrams are not sent again.
+ * <p>
+ * Consumers register by sending a hello datagram and must repeat it at 
+ * least every {@value #CLIENT_TIMEOUT_MILLIS} ms, which 
+ * <code>UniDatagramDevice</code> does. As with {@link UniPacketServer}, the 
+ * device's settings are shared by every consumer.
+ */
+public class UniDatagramServer {
+	/**
+	 * Size of a fragment's header: type, frame number, packet size, fragment
+	 * index, fragment offset, section index, number of sections, section start
+	 * and section end.
+	 */
+	static final int FRAGMENT_HEADER_SIZE = 29;
+	
+	/**
+	 * Default datagram size, the payload of an Ethernet frame less the IP 
+	 * and UDP headers.
+	 */
+	public static final int DEFAULT_DATAGRAM_SIZE = 1472;
+	
+	/**
+	 * Time after which a consumer that has not sent a hello is dropped.
+	 */
+	public static final long CLIENT_TIMEOUT_MILLIS = 5000;
+	
+	private UniPacketSource device;
+	private DatagramChannel channel;
+	private int datagramSize;
+	private UniPacketSections sections;
+	private ByteBuffer datagram;
+	private ConcurrentHashMap<SocketAddress, Long> clients;	// time of the last hello, by address
+	private ArrayList<SocketAddress> targets;	// clients a packet is sent to
+	private int frameNumber;
+	private Thread controlThread;
+	private Thread acquisitionThread;
+	private volatile boolean closed;
+	private volatile long sentPackets;		// only written by the acquisition thread
+	private volatile long sentDatagrams;	// only written by the acquisition thread
+	private volatile Throwable acquisitionError;
+	
+	private static final int SEND_BUFFER_SIZE = 1 << 22;
+	
+	/**
+	 * Constructs a server listening on the given port of every interface, 
+	 * sending datagrams of the default size. Packets are not served until 
+	 * {@link #start()} is called.
+	 * @param device the device whose packets are served
+	 * @param port the port to listen on, 0 for any free port
+	 * @throws IOException if the port cannot be bound
+	 */
+	public UniDatagramServer(UniPacketSource device, int port) throws IOException
+	{
+		this(device, new InetSocketAddress(port), DEFAULT_DATAGRAM_SIZE);
+	}
+	
+	/**
+	 * Constructs a server listening on the given address. Packets are not 
+	 * served until {@link #start()} is called.
+	 * @param device the device whose packets are served
+	 * @param address the address to listen on
+	 * @param datagramSize the largest datagram sent, in bytes
+	 * @throws IOException if the address cannot be bound
+	 * @throws IllegalArgumentException if the datagram size leaves no room for data
+	 */
+	public UniDatagramServer(UniPacketSource device, InetSocketAddress address, int datagramSize) 
+			throws IOException, IllegalArgumentException
+	{
+		if (datagramSize <= FRAGMENT_HEADER_SIZE || datagramSize > 65507)
+		{
+			String message = String.format("Datagram size must be between %d and 65507, got %d\n", 
+					FRAGMENT_HEADER_SIZE + 1, datagramSize);
+			throw new IllegalArgumentException(message);
+		}
+		this.device = device;
+		this.datagramSize = datagramSize;
+		this.sections = new UniPacketSections();
+		this.datagram = ByteBuffer.allocateDirect(datagramSize);
+		this.clients = new ConcurrentHashMap<SocketAddress, Long>();
+		this.targets = new ArrayList<SocketAddress>();
+		this.frameNumber = 0;
+		this.closed = false;
+		this.sentPackets = 0;
+		this.sentDatagrams = 0;
+		this.acquisitionError = null;
+		this.channel = DatagramChannel.open();
+		try
+		{
+			channel.setOption(StandardSocketOptions.SO_SNDBUF, SEND_BUFFER_SIZE);
+			channel.bind(address);
+		}
+		catch (IOException e)
+		{
+			channel.close();
+			throw e;
+		}
+	}
+	
+	/**
+	 * Starts accepting consumers and serving packets. The device is only 
+	 * asked for packets while at least one consumer is registered.
+	 */
+	public synchronized void start()
+	{
+		if (controlThread != null)
+		{
+			return;
+		}
+		controlThread = new Thread(new Runnable()
+		{
+			public void run()
+			{
+				receiveControl();
+			}
+		}, "UniDatagramServer control");
+		acquisitionThread = new Thread(new Runnable()
+		{
+			public void run()
+			{
+				acquire();
+			}
+		}, "UniDatagramServer acquisition");
+		controlThread.setDaemon(true);
+		acquisitionThread.setDaemon(true);
+		controlThread.start();
+		acquisitionThread.start();
+	}
+	
+	/**
+	 * Stops serving packets. Waits for the device to return the packet it is
+	 * building.
+	 */
+	public void close()
+	{
+		Thread controlToJoin;
+		Thread acquisitionToJoin;
+		synchronized (this)
+		{
+			if (closed)
+			{
+				return;
+			}
+			closed = true;
+			notifyAll();
+			controlToJoin = controlThread;
+			acquisitionToJoin = acquisitionThread;
+		}
+		try
+		{
+			channel.close();
+		}
+		catch (IOException e)
+		{
+			// Nothing left to do
+		}
+		if (acquisitionToJoin != null)
+		{
+			acquisitionToJoin.interrupt();
+			join(controlToJoin);
+			join(acquisitionToJoin);
+		}
+	}
+	
+	/**
+	 * Retrieves the address the server listens on.
+	 * @return the local address
+	 * @throws IOException if the server is closed
+	 */
+	public InetSocketAddress getLocalAddress() throws IOException
+	{
+		return (InetSocketAddress) channel.getLocalAddress();
+	}
+	
+	/**
+	 * Retrieves the number of registered consumers.
+	 * @return the number of consumers
+	 */
+	public int getNumberOfClients() { return clients.size(); }
+	
+	/**
+	 * Retrieves the number of packets sent, counted once however many 
+	 * consumers they were sent to.
+	 * @return the number of packets sent
+	 */
+	public long getSentPackets() { return sentPackets; }
+	
+	/**
+	 * Retrieves the number of datagrams sent, counted once per consumer.
+	 * @return the number of datagrams sent
+	 */
+	public long getSentDatagrams() { return sentDatagrams; }
+	
+	/**
+	 * Retrieves the error that stopped the server from serving packets.
+	 * @return the error, <code>null</code> if there was none
+	 */
+	public Throwable getAcquisitionError() { return acquisitionError; }
+	
+	/**
+	 * Retrieves packets from the device and sends them while consumers are 
+	 * registered. Runs on the acquisition thread.
+	 */
+	private void acquire()
+	{
+		try
+		{
+			while (true)
+			{
+				synchronized (this)
+				{
+					while (clients.isEmpty() && !closed)
+					{
+						wait();
+					}
+				}
+				if (closed)
+				{
+					return;
+				}
+				
+				ByteBuffer packet = device.getSensorPacket();
+				try
+				{
+					dropSilentClients();
+					send(packet);
+				}
+				finally
+				{
+					device.releaseSensorPacket(packet);
+				}
+			}
+		}
+		catch (InterruptedException e)
+		{
+			// Closed
+		}
+		catch (ClosedChannelException e)
+		{
+			// Closed
+		}
+		catch (IOException e)
+		{
+			acquisitionError = e;
+			close();
+		}
+		catch (RuntimeException e)
+		{
+			acquisitionError = e;
+			close();
+		}
+	}
+	
+	/**
+	 * Splits a packet into fragments and sends each of them to every consumer.
+	 * @param packet the packet
+	 */
+	private void send(ByteBuffer packet) throws IOException
+	{
+		targets.clear();
+		targets.addAll(clients.keySet());
+		int numSections = sections.split(packet);
+		int payloadSize = datagramSize - FRAGMENT_HEADER_SIZE;
+		int packetSize = packet.limit();
+		int fragmentIndex = 0;
+		++frameNumber;
+		
+		ByteBuffer source = packet.duplicate();
+		for (int section = 0; section < numSections; ++section)
+		{
+			int sectionStart = sections.getStart(section);
+			int sectionEnd = sections.getEnd(section);
+			for (int offset = sectionStart; offset < sectionEnd; offset += payloadSize)
+			{
+				int fragmentEnd = Math.min(offset + payloadSize, sectionEnd);
+				datagram.clear();
+				datagram.put(UniTransportProtocol.PACKET_FRAGMENT);
+				datagram.putInt(frameNumber);
+				datagram.putInt(packetSize);
+				datagram.putInt(fragmentIndex++);
+				datagram.putInt(offset);
+				datagram.putShort((short) section);
+				datagram.putShort((short) numSections);
+				datagram.putInt(sectionStart);
+				datagram.putInt(sectionEnd);
+				source.limit(fragmentEnd);
+				source.position(offset);
+				datagram.put(source);
+				datagram.flip();
+				for (int i = 0; i < targets.size(); ++i)
+				{
+					datagram.rewind();
+					channel.send(datagram, targets.get(i));
+				}
+				sentDatagrams += targets.size();
+			}
+		}
+		++sentPackets;
+	}
+	
+	private void dropSilentClients()
+	{
+		long now = System.currentTimeMillis();
+		Iterator<Map.Entry<SocketAddress, Long>> entries = clients.entrySet().iterator();
+		while (entries.hasNext())
+		{
+			if (now - entries.next().getValue() > CLIENT_TIMEOUT_MILLIS)
+			{
+				entries.remove();
+			}
+		}
+	}
+	
+	/**
+	 * Receives hello and control datagrams until the server is closed. Runs 
+	 * on the control thread.
+	 */
+	private void receiveControl()
+	{
+		ByteBuffer message = ByteBuffer.allocate(UniTransportProtocol.MESSAGE_HEADER_SIZE 
+				+ UniTransportProtocol.MAX_CONTROL_SIZE);
+		try
+		{
+			while (!closed)
+			{
+				message.clear();
+				SocketAddress sender = channel.receive(message);
+				message.flip();
+				if (message.remaining() < UniTransportProtocol.MESSAGE_HEADER_SIZE)
+				{
+					continue;
+				}
+				byte type = message.get();
+				int length = message.getInt();
+				if (length != message.remaining())
+				{
+					continue;
+				}
+				
+				if (type == UniTransportProtocol.CONTROL_HELLO)
+				{
+					hello(sender);
+				}
+				else if (clients.containsKey(sender))
+				{
+					try
+					{
+						UniTransportProtocol.applyControl(device, type, message);
+					}
+					catch (IllegalArgumentException e)
+					{
+						// Ignore invalid control messages
+					}
+				}
+			}
+		}
+		catch (IOException e)
+		{
+			// Closed
+		}
+	}
+	
+	/**
+	 * Registers a consumer, or keeps it registered. The sensor header is sent
+	 * back so the consumer knows it was heard. The device is asked for full 
+	 * channel headers and a keyframe for a new consumer.
+	 * @param sender the address of the consumer
+	 */
+	private void hello(SocketAddress sender) throws IOException
+	{
+		byte[] sensorHeader = device.getSensorHeader();
+		ByteBuffer reply = ByteBuffer.allocate(UniTransportProtocol.MESSAGE_HEADER_SIZE + sensorHeader.length);
+		UniTransportProtocol.putMessageHeader(reply, UniTransportProtocol.SENSOR_HEADER, sensorHeader.length);
+		reply.put(sensorHeader);
+		reply.flip();
+		channel.send(reply, sender);
+		
+		if (clients.put(sender, System.currentTimeMillis()) == null)
+		{
+			device.resetLayoutIds();
+			device.requestKeyframe();
+			synchronized (this)
+			{
+				notifyAll();
+			}
+		}
+	}
+	
+	private static void join(Thread thread)
+	{
+		if (thread == Thread.currentThread())
+		{
+			return;
+		}
+		boolean interrupted = false;
+		while (thread.isAlive())
+		{
+			try
+			{
+				thread.join();
+			}
+			catch (InterruptedException e)
+			{
+				interrupted = true;
+			}
+		}
+		if (interrupted)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+}
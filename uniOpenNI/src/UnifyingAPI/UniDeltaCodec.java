@@ -0,0 +1,170 @@
+/**************************************************************
+ This file is part of Kinect Sensor Architecture Development Project.
+
+    Kinect Sensor Architecture Development Project is free software:
+	you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Kinect Sensor Architecture Development Project is distributed in
+	the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with Kinect Sensor Architecture Development Project.  If
+	not, see <http://www.gnu.org/licenses/>.
+**************************************************************/
+/**************************************************************
+The work was done in joint collaboration with Cisco Systems Inc.
+Copyright © 2012, Cisco Systems, Inc. and UCLA
+*************************************************************/
+
+package UnifyingAPI;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Block-level delta coding of channel data. A delta holds a bitmap with one
+ * bit per block of <code>BLOCK_SIZE</code> bytes, set if the block differs
+ * from the same block of the reference data, followed by the changed blocks
+ * in order. The last block may be shorter than <code>BLOCK_SIZE</code>.
+ * Bits are stored most significant bit first.
+ */
+final class UniDeltaCodec {
+	/**
+	 * Number of bytes compared and sent as a unit.
+	 */
+	static final int BLOCK_SIZE = 64;
+	
+	private UniDeltaCodec() {}
+	
+	/**
+	 * Retrieves the size of the bitmap of a delta.
+	 * @param dataSize the size of the data in bytes
+	 * @return the size of the bitmap in bytes
+	 */
+	static int getBitmapSize(int dataSize)
+	{
+		int numBlocks = (dataSize + BLOCK_SIZE - 1) / BLOCK_SIZE;
+		return (numBlocks + 7) >> 3;
+	}
+	
+	/**
+	 * Encodes the difference between two versions of the same data. Only the
+	 * bytes between 0 and the limit of each buffer are used, positions are 
+	 * ignored.
+	 * @param data the new data
+	 * @param reference the previous data, with the same size as <code>data</code>
+	 * @param delta the buffer to write the delta into from index 0, at least 
+	 * as large as <code>data</code>
+	 * @return the size of the delta in bytes, -1 if the delta would not be 
+	 * smaller than the data itself
+	 */
+	static int encode(ByteBuffer data, ByteBuffer reference, ByteBuffer delta)
+	{
+		int dataSize = data.limit();
+		int bitmapSize = getBitmapSize(dataSize);
+		for (int i = 0; i < bitmapSize; ++i)
+		{
+			delta.put(i, (byte) 0);
+		}
+		
+		ByteBuffer src = data.duplicate();
+		ByteBuffer dst = delta.duplicate();
+		int deltaSize = bitmapSize;
+		for (int block = 0, start = 0; start < dataSize; ++block, start += BLOCK_SIZE)
+		{
+			int length = Math.min(BLOCK_SIZE, dataSize - start);
+			if (equalRange(data, reference, start, length))
+			{
+				continue;
+			}
+			if (deltaSize + length >= dataSize)
+			{
+				return -1;
+			}
+			
+			delta.put(block >> 3, (byte) (delta.get(block >> 3) | (0x80 >>> (block & 7))));
+			copy(src, start, dst, deltaSize, length);
+			deltaSize += length;
+		}
+		return deltaSize;
+	}
+	
+	/**
+	 * Rebuilds data from the reference data and a delta.
+	 * @param delta the delta, from index 0
+	 * @param reference the previous data, from index 0 to its limit
+	 * @param data the buffer to write the new data into from index 0, as 
+	 * large as the reference data
+	 * @throws IllegalArgumentException if the delta is shorter than its bitmap says
+	 */
+	static void decode(ByteBuffer delta, ByteBuffer reference, ByteBuffer data) throws IllegalArgumentException
+	{
+		int dataSize = reference.limit();
+		int bitmapSize = getBitmapSize(dataSize);
+		ByteBuffer src = delta.duplicate();
+		ByteBuffer dst = data.duplicate();
+		copy(reference.duplicate(), 0, dst, 0, dataSize);
+		
+		int deltaIndex = bitmapSize;
+		for (int block = 0, start = 0; start < dataSize; ++block, start += BLOCK_SIZE)
+		{
+			if ((delta.get(block >> 3) & (0x80 >>> (block & 7))) == 0)
+			{
+				continue;
+			}
+			int length = Math.min(BLOCK_SIZE, dataSize - start);
+			if (deltaIndex + length > delta.limit())
+			{
+				String message = String.format("Delta too short. Block %d needs %d bytes, %d left\n",
+						block, length, delta.limit() - deltaIndex);
+				throw new IllegalArgumentException(message);
+			}
+			copy(src, deltaIndex, dst, start, length);
+			deltaIndex += length;
+		}
+	}
+	
+	/**
+	 * Tells whether two buffers hold the same bytes in a range.
+	 */
+	private static boolean equalRange(ByteBuffer a, ByteBuffer b, int start, int length)
+	{
+		int i = start;
+		int end = start + length;
+		for (; i + 8 <= end; i += 8)
+		{
+			if (a.getLong(i) != b.getLong(i))
+			{
+				return false;
+			}
+		}
+		for (; i < end; ++i)
+		{
+			if (a.get(i) != b.get(i))
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * Copies a range of bytes between buffers. The positions and limits of 
+	 * both buffers are changed, so they should be duplicates owned by the caller.
+	 */
+	static void copy(ByteBuffer src, int srcIndex, ByteBuffer dst, int dstIndex, int length)
+	{
+		src.limit(srcIndex + length);
+		src.position(srcIndex);
+		dst.limit(dstIndex + length);
+		dst.position(dstIndex);
+		dst.put(src);
+		src.clear();
+		dst.clear();
+	}
+}
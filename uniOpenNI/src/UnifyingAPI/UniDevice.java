@@ -25,14 +25,20 @@ Copyright © 2012, Cisco Systems, Inc. and UCLA
 package UnifyingAPI;
 
 import java.nio.ByteBuffer;
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
 
 /**
  * A device that implements the Unifying API.
  * @author Greg Clark
  *
  */
-public abstract class UniDevice {
+public abstract class UniDevice implements UniPacketSource {
 	
 	/**
 	 * Device driver devlopers should call this constructor when they subclass <code>UniDevice</code>
@@ -43,62 +49,403 @@ public abstract class UniDevice {
 	protected UniDevice(short vendorID, short productID, double frequency)
 	{
 		this.encryptor = new UniCrypt();
-		this.channels = new LinkedList<UniChannel>();
+		this.channels = new ArrayList<UniChannel>();
+		this.channelSizes = new int[0];
+		this.channelLayoutIds = new short[0];
+		this.channelLayouts = new HashMap<UniChannelHeader, Short>();
+		this.layoutIdsEnabled = false;
+		this.layoutResetRequested = false;
 		this.vendorID = vendorID;
 		this.productID = productID;
 		this.frequency = frequency;
 		this.encryptionFlags = 0;
+		this.sensorHeader = new UniSensorHeader((byte)1, vendorID, 
+				productID, (short) 0, 0, frequency, encryptionFlags);
+		this.packetPool = null;
+		this.subscription = null;
+		this.packingExecutor = null;
+		this.elementSelections = new HashMap<String, ElementSelection>();
+		this.channelElementCounts = new ConcurrentHashMap<String, Integer>();
+		this.keyframeInterval = 0;
+		this.keyframeRequested = false;
+		this.channelEncoders = new HashMap<String, UniChannelEncoder>();
+		this.frameEncoders = new UniChannelEncoder[0];
+		this.compressedChannels = null;
 	}
 	
 	/**
 	 * Constructs and returns a new sensor packet as a ,<code>ByteBuffer</code>.
+	 * If a packet pool has been set, the packet is assembled in a pooled buffer
+	 * which should be handed back with {@link #releaseSensorPacket(ByteBuffer)}
+	 * once the consumer is done with it.
 	 * @return the sensor packet
 	 */
 	public final ByteBuffer getSensorPacket()
 	{
-		// Create a new channels list
-		channels = new LinkedList<UniChannel>();
+		// Reuse the channels list
+		channels.clear();
+		frameSubscription = subscription;
 		
 		// Have the driver update the channel data
 		updateChannels();
 		
-		// Create a new sensor header
+		// Update the sensor header
 		short numChannels = (short) channels.size();
-		UniSensorHeader sensorHeader = new UniSensorHeader((byte)1, vendorID, 
-				productID, numChannels, System.currentTimeMillis(), frequency, encryptionFlags);
+		boolean useLayoutIds = layoutIdsEnabled;
+		int deltaInterval = keyframeInterval;
+		HashSet<String> compressed = compressedChannels;
+		boolean useCodecs = deltaInterval > 0 || compressed != null;
+		byte flags = useLayoutIds ? UniSensorHeader.FLAG_LAYOUT_IDS : 0;
+		if (useCodecs)
+		{
+			flags |= UniSensorHeader.FLAG_CHANNEL_CODECS;
+		}
+		sensorHeader.update(numChannels, System.currentTimeMillis(), flags);
 		
 		// Determine size of bytebuffer to allocate
-		int sensorHeaderSize = sensorHeader.getPackedSize();
-		int channelSize = 0;
+		if (channelSizes.length < numChannels)
+		{
+			channelSizes = new int[numChannels];
+			channelLayoutIds = new short[numChannels];
+			frameEncoders = new UniChannelEncoder[numChannels];
+		}
+		boolean keyframe = useCodecs && keyframeRequested;
+		if (keyframe)
+		{
+			keyframeRequested = false;
+		}
+		if (useLayoutIds && layoutResetRequested)
+		{
+			layoutResetRequested = false;
+			channelLayouts.clear();
+		}
+		int sensorPacketSize = sensorHeader.getPackedSize();
 		for (int channelCount = 0; channelCount < numChannels; ++channelCount)
 		{
-			channelSize += channels.get(channelCount).getPackedSize();
+			UniChannel channel = channels.get(channelCount);
+			int dataSize;
+			if (useCodecs)
+			{
+				// Encoding packs the data, so its size is known before the packet is allocated
+				String name = channel.getHeader().getName();
+				UniChannelEncoder encoder = getChannelEncoder(name);
+				encoder.encode(channel, deltaInterval, keyframe, 
+						compressed != null && compressed.contains(name));
+				frameEncoders[channelCount] = encoder;
+				dataSize = encoder.getEncodedSize();
+			}
+			else
+			{
+				frameEncoders[channelCount] = null;
+				dataSize = (int) channel.getPackedDataSize();
+			}
+			
+			if (useLayoutIds)
+			{
+				// Only send the header when its layout id is new
+				short layoutId = getLayoutId(channel.getHeader());
+				channelLayoutIds[channelCount] = layoutId;
+				channelSizes[channelCount] = 2 + dataSize;
+				if ((layoutId & UniChannelHeader.LAYOUT_DEFINITION) != 0)
+				{
+					channelSizes[channelCount] += channel.getHeader().getPackedSize();
+				}
+			}
+			else
+			{
+				channelSizes[channelCount] = channel.getHeader().getPackedSize() + dataSize;
+			}
+			sensorPacketSize += channelSizes[channelCount];
 		}
-		int sensorPacketSize = sensorHeaderSize + channelSize;
 		
 		// Allocate the ByteBuffer
-		ByteBuffer buffer = ByteBuffer.allocate(sensorPacketSize);
+		ByteBuffer buffer;
+		if (packetPool != null)
+		{
+			buffer = packetPool.acquire(sensorPacketSize);
+		}
+		else
+		{
+			buffer = ByteBuffer.allocate(sensorPacketSize);
+		}
 		
 		// Pack the sensor packet into the buffer
 		sensorHeader.packIntoByteBuffer(buffer);
 		int packedSize = sensorHeader.getPackedSize();
 		
 		// Pack the channels into the buffer
-		for (int channelCount = 0; channelCount < numChannels; ++channelCount)
+		if (packingExecutor != null && numChannels > 1)
 		{
-			UniChannel channel = channels.get(channelCount);
-			buffer.position(packedSize);
-			channel.packIntoByteBuffer(buffer.slice());
-			packedSize += channel.getPackedSize();
+			packChannelsInParallel(buffer, packedSize, useLayoutIds);
+		}
+		else
+		{
+			for (int channelCount = 0; channelCount < numChannels; ++channelCount)
+			{
+				buffer.position(packedSize);
+				packChannel(channelCount, buffer.slice(), useLayoutIds);
+				packedSize += channelSizes[channelCount];
+			}
 		}
 		
 		// Encrypt the buffer
 		buffer.rewind();
 		ByteBuffer encryptedBuffer = encryptor.encrypt(encryptionFlags, buffer);
+		
+		// The plain packet is no longer needed if the encryptor made a copy
+		if (packetPool != null && encryptedBuffer != buffer)
+		{
+			packetPool.release(buffer);
+			packetPool.adopt(encryptedBuffer);
+		}
 
 		return encryptedBuffer;
 	}
 	
+	/**
+	 * Packs a channel of the sensor packet being built.
+	 * @param channelIndex the index of the channel in the channels list
+	 * @param buffer the buffer to pack the channel into, positioned where the channel starts
+	 * @param useLayoutIds true if the channel starts with its layout id
+	 */
+	private void packChannel(int channelIndex, ByteBuffer buffer, boolean useLayoutIds)
+	{
+		UniChannel channel = channels.get(channelIndex);
+		UniChannelEncoder encoder = frameEncoders[channelIndex];
+		if (encoder != null)
+		{
+			// The data was packed when it was encoded
+			if (useLayoutIds)
+			{
+				short layoutId = channelLayoutIds[channelIndex];
+				buffer.putShort(layoutId);
+				if ((layoutId & UniChannelHeader.LAYOUT_DEFINITION) != 0)
+				{
+					channel.getHeader().packIntoByteBuffer(buffer);
+				}
+			}
+			else
+			{
+				channel.getHeader().packIntoByteBuffer(buffer);
+			}
+			encoder.writeInto(buffer);
+		}
+		else if (useLayoutIds)
+		{
+			channel.packIntoByteBuffer(buffer, channelLayoutIds[channelIndex]);
+		}
+		else
+		{
+			channel.packIntoByteBuffer(buffer);
+		}
+	}
+	
+	/**
+	 * Retrieves the encoder of a channel, creating it the first time the 
+	 * channel is encoded.
+	 * @param channelName the name of the channel
+	 * @return the channel's encoder
+	 */
+	private UniChannelEncoder getChannelEncoder(String channelName)
+	{
+		UniChannelEncoder encoder = channelEncoders.get(channelName);
+		if (encoder == null)
+		{
+			encoder = new UniChannelEncoder();
+			channelEncoders.put(channelName, encoder);
+		}
+		return encoder;
+	}
+	
+	/**
+	 * Sets whether channels are sent as deltas from their previous frame. 
+	 * With delta encoding, a channel is only sent in full every 
+	 * <code>keyframeInterval</code> packets, when its layout changes or when
+	 * a keyframe is asked for with {@link #requestKeyframe()}; the packets in
+	 * between only carry the blocks of data that changed. This makes packets
+	 * of mostly static channels much smaller at the cost of some CPU time on 
+	 * both ends. A device sending deltas must have a single consumer.
+	 * @param keyframeInterval the largest number of packets between full 
+	 * channels, 0 to send every channel in full without encoding
+	 */
+	public void setDeltaEncoding(int keyframeInterval) throws IllegalArgumentException
+	{
+		if (keyframeInterval < 0)
+		{
+			String message = String.format("Keyframe interval must not be negative, got %d\n", keyframeInterval);
+			throw new IllegalArgumentException(message);
+		}
+		this.keyframeInterval = keyframeInterval;
+		requestKeyframe();
+	}
+	
+	/**
+	 * Sets whether a channel's data is compressed. Compression is lossless 
+	 * and fast enough to keep up with uncompressed local links; it is meant 
+	 * for consumers on the other end of a network. Data that does not get 
+	 * smaller is sent uncompressed. Deltas are compressed too when delta 
+	 * encoding is enabled.
+	 * @param channelName the name of the channel
+	 * @param compress true to compress the channel
+	 */
+	public void setCompression(String channelName, boolean compress)
+	{
+		// Replace the set so the packet being built keeps the one it started with
+		HashSet<String> channelNames = new HashSet<String>();
+		if (compressedChannels != null)
+		{
+			channelNames.addAll(compressedChannels);
+		}
+		if (compress)
+		{
+			channelNames.add(channelName);
+		}
+		else
+		{
+			channelNames.remove(channelName);
+		}
+		compressedChannels = channelNames.isEmpty() ? null : channelNames;
+	}
+	
+	/**
+	 * Makes the next sensor packet send every channel in full when delta 
+	 * encoding is enabled. Consumers call this when they are missing the 
+	 * frame a delta was taken from.
+	 */
+	public void requestKeyframe()
+	{
+		keyframeRequested = true;
+	}
+	
+	/**
+	 * Retrieves the layout id of a channel header, assigning a new id if the 
+	 * layout has not been sent yet. New ids have the <code>LAYOUT_DEFINITION</code>
+	 * bit set so the header is sent along with them. Once all ids are used, 
+	 * ids are handed out again from 0.
+	 * @param header the channel header
+	 * @return the layout id
+	 */
+	private short getLayoutId(UniChannelHeader header)
+	{
+		Short layoutId = channelLayouts.get(header);
+		if (layoutId != null)
+		{
+			return layoutId;
+		}
+		
+		if (channelLayouts.size() >= UniChannelHeader.MAX_LAYOUT_IDS)
+		{
+			channelLayouts.clear();
+		}
+		short newLayoutId = (short) channelLayouts.size();
+		channelLayouts.put(header, newLayoutId);
+		return (short) (newLayoutId | UniChannelHeader.LAYOUT_DEFINITION);
+	}
+	
+	/**
+	 * Sets whether channel headers are replaced by layout ids. When enabled, 
+	 * a channel's full header is only sent the first time its layout 
+	 * (number of tuples, frequency, element descriptors and name) appears, 
+	 * along with a compact id. Later packets only carry the id until the 
+	 * layout changes. Enabling or disabling starts over with full headers.
+	 * @param enabled true to send layout ids instead of repeated channel headers
+	 */
+	public void setLayoutIdsEnabled(boolean enabled)
+	{
+		this.layoutIdsEnabled = enabled;
+		resetLayoutIds();
+	}
+	
+	/**
+	 * Makes the next sensor packet send full channel headers with new layout
+	 * ids. Should be called whenever a new consumer starts reading packets.
+	 */
+	public void resetLayoutIds()
+	{
+		layoutResetRequested = true;
+	}
+	
+	/**
+	 * Packs the channels into the sensor packet on the packing executor. Each 
+	 * channel writes into its own slice of the packet, so the result is the 
+	 * same as packing the channels one after another. Each channel is packed
+	 * once: if the calling thread is interrupted, it still waits for every 
+	 * task to finish writing its slice and keeps the interrupt for later.
+	 * @param buffer the sensor packet
+	 * @param packedSize the number of bytes already packed (the sensor header)
+	 * @param useLayoutIds true if the channels start with their layout ids
+	 */
+	private void packChannelsInParallel(ByteBuffer buffer, int packedSize, final boolean useLayoutIds)
+	{
+		// Slice the packet on this thread, the tasks only write their own slice
+		ArrayList<Callable<Object>> tasks = new ArrayList<Callable<Object>>(channels.size());
+		for (int channelCount = 0; channelCount < channels.size(); ++channelCount)
+		{
+			final int channelIndex = channelCount;
+			buffer.position(packedSize);
+			final ByteBuffer slice = buffer.slice();
+			slice.limit(channelSizes[channelCount]);
+			tasks.add(new Callable<Object>()
+			{
+				public Object call()
+				{
+					packChannel(channelIndex, slice, useLayoutIds);
+					return null;
+				}
+			});
+			packedSize += channelSizes[channelCount];
+		}
+		
+		UniTasks.runAll(packingExecutor, tasks, "Failed to pack channel");
+	}
+	
+	/**
+	 * Sets the executor used to pack channels in parallel. Channels are written
+	 * to separate regions of the sensor packet, so their packers can run at 
+	 * the same time; the packet is identical to one packed sequentially. The 
+	 * packers of a driver must not depend on each other to use this.
+	 * @param executor the executor to pack channels on, <code>null</code> to
+	 * pack channels one after another on the calling thread
+	 */
+	public void setPackingExecutor(ExecutorService executor)
+	{
+		this.packingExecutor = executor;
+	}
+	
+	/**
+	 * Hands a sensor packet returned by {@link #getSensorPacket()} back to the
+	 * device so its buffer can be reused. The packet must not be read after it
+	 * has been released. Does nothing if the device has no packet pool.
+	 * @param sensorPacket the sensor packet to release
+	 * @throws IllegalArgumentException if the packet did not come from the
+	 * device's packet pool, or has already been released
+	 */
+	public void releaseSensorPacket(ByteBuffer sensorPacket) throws IllegalArgumentException
+	{
+		if (packetPool != null)
+		{
+			packetPool.release(sensorPacket);
+		}
+	}
+	
+	/**
+	 * Sets the pool from which sensor packets are allocated. Passing 
+	 * <code>null</code> makes the device allocate a new buffer for every packet.
+	 * Packets acquired from the previous pool must be released before the 
+	 * pool is changed.
+	 * @param packetPool the pool to allocate sensor packets from
+	 */
+	public void setPacketPool(UniPacketPool packetPool)
+	{
+		this.packetPool = packetPool;
+	}
+	
+	/**
+	 * Retrieves the pool from which sensor packets are allocated.
+	 * @return the packet pool, <code>null</code> if the device has none
+	 */
+	public UniPacketPool getPacketPool() { return packetPool; }
+	
 	/**
 	 * Retrieves the sensor packet header for this device.
 	 * @return the sensor packet header as a byte array
@@ -121,14 +468,134 @@ public abstract class UniDevice {
 	}
 	
 	/**
-	 * Add a UniChannel to the channels list.
+	 * Sets which channels and tuple elements the consumer wants. Channels that 
+	 * are not subscribed to are left out of sensor packets, and subscribed 
+	 * channels only carry the subscribed elements. Passing <code>null</code> 
+	 * makes the device send every channel. Element indices are checked 
+	 * against the channels this device has already added to a packet; 
+	 * indices of channels it has not added yet are checked when the channel 
+	 * is packed and ignored if they are past its last element.
+	 * @param subscription the channels and elements to send
+	 * @throws IllegalArgumentException if an element index is past the last
+	 * element of a channel this device has added
+	 */
+	public void setSubscription(UniSubscription subscription) throws IllegalArgumentException
+	{
+		if (subscription != null)
+		{
+			for (String name : subscription.getChannelNames())
+			{
+				int[] elements = subscription.getSubscribedElements(name);
+				Integer numElements = channelElementCounts.get(name);
+				if (elements == null || numElements == null)
+				{
+					continue;
+				}
+				for (int i = 0; i < elements.length; ++i)
+				{
+					if (elements[i] >= numElements.intValue())
+					{
+						String message = String.format("Channel %s has %d elements, element %d was subscribed to\n",
+								name, numElements, elements[i]);
+						throw new IllegalArgumentException(message);
+					}
+				}
+			}
+		}
+		this.subscription = subscription;
+	}
+	
+	/**
+	 * Retrieves the number of subscribed element indices that were ignored 
+	 * because they are past the last element of their channel. Counted for
+	 * every sensor packet built. A channel none of whose subscribed indices 
+	 * is valid is left out of the packet.
+	 * @return the number of ignored element indices
+	 */
+	public long getIgnoredElements() { return ignoredElements; }
+	
+	/**
+	 * Tells whether a channel is wanted in the sensor packet being built. 
+	 * Drivers can call this from <code>updateChannels()</code> to avoid 
+	 * preparing channels that would be left out anyway.
+	 * @param channelName the name of the channel
+	 * @return true if the channel will be packed when added
+	 */
+	protected final boolean isChannelSubscribed(String channelName)
+	{
+		return frameSubscription == null || frameSubscription.isChannelSubscribed(channelName);
+	}
+	
+	/**
+	 * Add a UniChannel to the channels list. Channels that are not subscribed
+	 * to are ignored, and only the subscribed elements of a channel are sent.
+	 * The channel's packer still writes its full tuples, into a scratch 
+	 * buffer, and the subscribed elements are gathered from them, so a 
+	 * subscription saves sensor packet space but not the driver's packing.
 	 * @param channel the UniChannel to add to the list
 	 */
 	protected final void addChannel(UniChannel channel)
 	{
+		String name = channel.getHeader().getName();
+		int numElements = channel.getHeader().getElementDescriptors().length;
+		Integer knownElements = channelElementCounts.get(name);
+		if (knownElements == null || knownElements.intValue() != numElements)
+		{
+			channelElementCounts.put(name, numElements);
+		}
+		
+		if (frameSubscription != null)
+		{
+			if (!frameSubscription.isChannelSubscribed(name))
+			{
+				return;
+			}
+			
+			int[] elements = frameSubscription.getSubscribedElements(name);
+			if (elements != null)
+			{
+				channel = selectElements(channel, elements);
+				if (channel == null)
+				{
+					return;
+				}
+			}
+		}
 		channels.add(channel);
 	}
 	
+	/**
+	 * Creates a channel carrying only the given elements of another channel.
+	 * Indices past the channel's last element are left out and counted in
+	 * {@link #getIgnoredElements()}. The selected header and packer are 
+	 * reused while the channel's layout and subscribed elements stay the same.
+	 * @param channel the full channel
+	 * @param elements the 0-based indices of the elements to keep
+	 * @return the channel with the selected elements, <code>null</code> if 
+	 * none of the indices is valid
+	 */
+	private UniChannel selectElements(UniChannel channel, int[] elements)
+	{
+		UniChannelHeader header = channel.getHeader();
+		ElementSelection selection = elementSelections.get(header.getName());
+		if (selection == null || !selection.isSelectionOf(header, elements))
+		{
+			selection = new ElementSelection(header, elements);
+			elementSelections.put(header.getName(), selection);
+		}
+		
+		if (selection.numIgnored > 0)
+		{
+			ignoredElements = ignoredElements + selection.numIgnored;
+		}
+		if (selection.packer == null)
+		{
+			return null;
+		}
+		selection.packer.setPacker(channel.getPacker());
+		return new UniChannel(selection.packer.getHeader(), selection.packer);
+	}
+	
 	/**
 	 * The only function that is necessary for the driver implementors to implement.
 	 * Adds each channel to the channels list using addChannel().
@@ -136,9 +603,84 @@ public abstract class UniDevice {
 	protected abstract void updateChannels();
 	
 	private UniCrypt encryptor;
-	private LinkedList<UniChannel> channels;
+	private ArrayList<UniChannel> channels;
+	private int[] channelSizes;		// Packed size of each channel, reused between packets
+	private UniSensorHeader sensorHeader;	// Reused between packets
+	private UniPacketPool packetPool;
+	private volatile boolean layoutIdsEnabled;
+	private volatile boolean layoutResetRequested;
+	private HashMap<UniChannelHeader, Short> channelLayouts;	// Layout ids already sent
+	private short[] channelLayoutIds;	// Layout id of each channel, reused between packets
+	private ExecutorService packingExecutor;	// null to pack on the calling thread
+	private volatile UniSubscription subscription;	// Set by the consumer
+	private UniSubscription frameSubscription;		// Subscription for the packet being built
+	private HashMap<String, ElementSelection> elementSelections;	// Element selection of each channel
+	private volatile long ignoredElements;	// Subscribed element indices past the last element
+	private ConcurrentHashMap<String, Integer> channelElementCounts;	// Number of elements of each channel added so far
+	private volatile int keyframeInterval;	// 0 if channels are not encoded
+	private volatile boolean keyframeRequested;
+	private HashMap<String, UniChannelEncoder> channelEncoders;	// Encoders by channel name
+	private UniChannelEncoder[] frameEncoders;	// Encoder of each channel of the packet being built
+	private volatile HashSet<String> compressedChannels;	// null if no channel is compressed
 	private short vendorID;
 	private short productID;
 	private int encryptionFlags;
 	private double frequency;
+
+	/**
+	 * The subscribed elements of a channel with a given layout, and the 
+	 * packer gathering them.
+	 */
+	private static class ElementSelection {
+		private UniChannelHeader header;	// Header of the full channel
+		private int[] elements;			// Subscribed element indices
+		private int numIgnored;			// Indices past the channel's last element
+		private UniSelectedElementsPacker packer;	// null if no index is valid
+		
+		ElementSelection(UniChannelHeader header, int[] elements)
+		{
+			this.header = header;
+			this.elements = elements;
+			
+			int numElements = header.getElementDescriptors().length;
+			int numValid = 0;
+			for (int i = 0; i < elements.length; ++i)
+			{
+				if (elements[i] < numElements)
+				{
+					++numValid;
+				}
+			}
+			this.numIgnored = elements.length - numValid;
+			if (numValid == 0)
+			{
+				return;
+			}
+			
+			int[] validElements = elements;
+			if (numIgnored > 0)
+			{
+				validElements = new int[numValid];
+				numValid = 0;
+				for (int i = 0; i < elements.length; ++i)
+				{
+					if (elements[i] < numElements)
+					{
+						validElements[numValid++] = elements[i];
+					}
+				}
+			}
+			this.packer = new UniSelectedElementsPacker(header, validElements);
+		}
+		
+		/**
+		 * Tells whether this is the selection of the given elements of a 
+		 * channel with the given layout.
+		 */
+		boolean isSelectionOf(UniChannelHeader header, int[] elements)
+		{
+			return (this.header == header || this.header.equals(header)) &&
+					(this.elements == elements || Arrays.equals(this.elements, elements));
+		}
+	}
 }
@@ -31,18 +31,34 @@ package UnifyingAPI;
  */
 public class UniElementDescriptor {
 	/**
-	 * Construct a tuple element descriptor with the given characteristics
+	 * Construct a tuple element descriptor with the given characteristics.
+	 * Integral elements described this way are signed.
 	 * @param integer true if the element is an integral type
 	 * @param sizeUnitBytes true if the given size is in bytes, false if the size is in bits
 	 * @param size the size of the element, in either byte or bits as specified 
 	 * by the <code>sizeUnitBytes</code> parameter 
 	 */
 	public UniElementDescriptor(boolean integer, boolean sizeUnitBytes, byte size) {
+		this(integer, false, sizeUnitBytes, size);
+	}
+	
+	/**
+	 * Construct a tuple element descriptor with the given characteristics
+	 * @param integer true if the element is an integral type
+	 * @param unsigned true if the element is an unsigned integral type. Unsigned 
+	 * elements are zero extended when they are widened, signed elements are sign extended.
+	 * @param sizeUnitBytes true if the given size is in bytes, false if the size is in bits
+	 * @param size the size of the element, in either byte or bits as specified 
+	 * by the <code>sizeUnitBytes</code> parameter 
+	 */
+	public UniElementDescriptor(boolean integer, boolean unsigned, boolean sizeUnitBytes, byte size) {
 		this.integer = integer;
+		this.unsigned = integer && unsigned;
 		this.sizeUnitBytes = sizeUnitBytes;
 		this.size = size;
 		byte descriptor = (byte) ((this.integer?1:0) << 7);
 		descriptor |= (byte) ((this.sizeUnitBytes?1:0) << 6);
+		descriptor |= (byte) ((this.unsigned?1:0) << 5);
 		descriptor |= (byte) (this.size);
 		this.descriptor = descriptor;
 	}
@@ -55,16 +71,44 @@ public class UniElementDescriptor {
 	public UniElementDescriptor(byte descriptor) {
 		this.integer = ((descriptor & 128) == 128)?true:false;
 		this.sizeUnitBytes = ((descriptor & 64) == 64)?true:false;
+		this.unsigned = this.integer && ((descriptor & 32) == 32);
 		this.size = (byte) (descriptor & 0x1F);
 		this.descriptor = descriptor;
 	}
 	
+	/**
+	 * Retrieves the tuple element descriptor for a byte. Descriptors are 
+	 * immutable, so the same object is returned for every occurrence of a byte.
+	 * @param descriptor the byte representing a tuple element descriptor from a 
+	 * channel packet header.
+	 * @return the tuple element descriptor
+	 */
+	public static UniElementDescriptor valueOf(byte descriptor)
+	{
+		return DESCRIPTORS[descriptor & 0xFF];
+	}
+	
+	private static final UniElementDescriptor[] DESCRIPTORS = new UniElementDescriptor[256];
+	static
+	{
+		for (int i = 0; i < DESCRIPTORS.length; ++i)
+		{
+			DESCRIPTORS[i] = new UniElementDescriptor((byte) i);
+		}
+	}
+	
 	/**
 	 * Tells whether the corresponding element is an integral type.
 	 * @return true if and only if the element is an integral type
 	 */
 	public boolean isInteger() { return integer; }
 	
+	/**
+	 * Tells whether the corresponding element is an unsigned integral type.
+	 * @return true if and only if the element is an unsigned integral type
+	 */
+	public boolean isUnsigned() { return unsigned; }
+	
 	/**
 	 * Tells whether the elements size is given in bytes or bits
 	 * @return true if the elements given size is in bytes
@@ -78,6 +122,27 @@ public class UniElementDescriptor {
 	 */
 	public byte getSize() { return size; }
 	
+	/**
+	 * Retrieves the size of the corresponding element in bits.
+	 * @return the size of the corresponding element in bits
+	 */
+	public int getSizeInBits()
+	{
+		return size << (sizeUnitBytes?3:0);
+	}
+	
+	/**
+	 * Retrieves the size of the corresponding element rounded up to whole bytes.
+	 * This is the number of bytes the element takes in a channel packet, unless
+	 * the channel is bit-packed (see {@link UniChannelHeader#isBitPacked()}).
+	 * @return the size of the corresponding element in bytes
+	 */
+	public int getPackedSizeInBytes()
+	{
+		int sizeInBits = getSizeInBits();
+		return (sizeInBits >> 3) + (((sizeInBits & 7) == 0)?0:1);
+	}
+	
 	/**
 	 * Retrieves the tuple element descriptor as written in a channel packet header.
 	 * @return the tuple element descriptor as a byte
@@ -85,6 +150,7 @@ public class UniElementDescriptor {
 	public byte getDescriptor() { return descriptor; }
 	
 	private boolean integer;
+	private boolean unsigned;
 	private boolean sizeUnitBytes;
 	private byte size;
 	private byte descriptor;
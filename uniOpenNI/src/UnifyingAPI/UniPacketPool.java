@@ -0,0 +1,178 @@
+/**************************************************************
+ This file is part of Kinect Sensor Architecture Development Project.
+
+    Kinect Sensor Architecture Development Project is free software:
+	you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Kinect Sensor Architecture Development Project is distributed in
+	the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with Kinect Sensor Architecture Development Project.  If
+	not, see <http://www.gnu.org/licenses/>.
+**************************************************************/
+/**************************************************************
+The work was done in joint collaboration with Cisco Systems Inc.
+Copyright © 2012, Cisco Systems, Inc. and UCLA
+*************************************************************/
+
+package UnifyingAPI;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+/**
+ * A bounded pool of reusable sensor packet buffers. A <code>UniDevice</code>
+ * with a pool assembles its sensor packets into pooled buffers instead of
+ * allocating a new <code>ByteBuffer</code> for every packet. Buffers are
+ * returned to the pool when the consumer releases the packet.
+ */
+public class UniPacketPool {
+	private ArrayList<ByteBuffer> freeBuffers;	// Buffers ready to be reused
+	private Set<ByteBuffer> handedOut;		// Buffers acquired and not yet released, by identity
+	private int maxBuffers;		// Maximum number of free buffers kept by the pool
+	private boolean direct;		// True if the pool allocates direct buffers
+	private long hits;			// Number of acquisitions served by a pooled buffer
+	private long misses;		// Number of acquisitions that needed a new buffer
+	private int outstanding;	// Number of buffers currently handed out
+	private int highWaterMark;	// Highest number of buffers handed out at once
+
+	/**
+	 * Construct a pool that keeps at most <code>maxBuffers</code> free buffers.
+	 * @param maxBuffers the maximum number of free buffers kept by the pool
+	 * @param direct true if the pool should allocate direct buffers
+	 */
+	public UniPacketPool(int maxBuffers, boolean direct)
+	{
+		this.freeBuffers = new ArrayList<ByteBuffer>(maxBuffers);
+		this.handedOut = Collections.newSetFromMap(new IdentityHashMap<ByteBuffer, Boolean>());
+		this.maxBuffers = maxBuffers;
+		this.direct = direct;
+	}
+
+	/**
+	 * Retrieves a buffer with at least <code>size</code> bytes of capacity. The
+	 * returned buffer has its position at 0 and its limit at <code>size</code>.
+	 * @param size the number of bytes needed
+	 * @return the buffer
+	 */
+	public synchronized ByteBuffer acquire(int size)
+	{
+		// Take the smallest free buffer that is large enough
+		ByteBuffer buffer = null;
+		int bufferIndex = -1;
+		for (int i = 0; i < freeBuffers.size(); ++i)
+		{
+			ByteBuffer candidate = freeBuffers.get(i);
+			if (candidate.capacity() >= size &&
+					(buffer == null || candidate.capacity() < buffer.capacity()))
+			{
+				buffer = candidate;
+				bufferIndex = i;
+			}
+		}
+
+		if (buffer != null)
+		{
+			// Swap with the last free buffer so removal does not shift the list
+			int last = freeBuffers.size() - 1;
+			freeBuffers.set(bufferIndex, freeBuffers.get(last));
+			freeBuffers.remove(last);
+			++hits;
+		}
+		else
+		{
+			buffer = direct ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+			++misses;
+		}
+
+		handOut(buffer);
+		buffer.clear();
+		buffer.limit(size);
+		return buffer;
+	}
+
+	/**
+	 * Hands out a buffer the pool did not allocate, such as a copy of a 
+	 * pooled packet, so that it is released like the pool's own buffers.
+	 * @param buffer the buffer to hand out
+	 * @throws IllegalArgumentException if the buffer is already handed out
+	 */
+	synchronized void adopt(ByteBuffer buffer) throws IllegalArgumentException
+	{
+		if (handedOut.contains(buffer))
+		{
+			String message = String.format("Buffer %s is already handed out by the pool\n", buffer);
+			throw new IllegalArgumentException(message);
+		}
+		handOut(buffer);
+	}
+
+	private void handOut(ByteBuffer buffer)
+	{
+		handedOut.add(buffer);
+		++outstanding;
+		if (outstanding > highWaterMark)
+		{
+			highWaterMark = outstanding;
+		}
+	}
+
+	/**
+	 * Returns a buffer to the pool. The buffer must not be used by the caller
+	 * after it has been released. Buffers that do not match the pool's
+	 * allocation type, and buffers that do not fit in the pool, are dropped.
+	 * @param buffer the buffer to return
+	 * @throws IllegalArgumentException if the buffer was not handed out by 
+	 * this pool, or has already been released
+	 */
+	public synchronized void release(ByteBuffer buffer) throws IllegalArgumentException
+	{
+		if (!handedOut.remove(buffer))
+		{
+			String message = String.format("Buffer %s was not handed out by the pool or was already released\n", 
+					buffer);
+			throw new IllegalArgumentException(message);
+		}
+		--outstanding;
+
+		if (buffer.isDirect() == direct && !buffer.isReadOnly() &&
+				freeBuffers.size() < maxBuffers)
+		{
+			freeBuffers.add(buffer);
+		}
+	}
+
+	/**
+	 * Retrieves the number of acquisitions that reused a pooled buffer.
+	 * @return the number of pool hits
+	 */
+	public synchronized long getHits() { return hits; }
+
+	/**
+	 * Retrieves the number of acquisitions that had to allocate a new buffer.
+	 * @return the number of pool misses
+	 */
+	public synchronized long getMisses() { return misses; }
+
+	/**
+	 * Retrieves the highest number of buffers that were handed out at the same time.
+	 * @return the high-water mark of outstanding buffers
+	 */
+	public synchronized int getHighWaterMark() { return highWaterMark; }
+
+	/**
+	 * Tells whether this pool allocates direct buffers.
+	 * @return true if the pool allocates direct buffers
+	 */
+	public boolean isDirect() { return direct; }
+}
@@ -0,0 +1,504 @@
+/**************************************************************
+ This file is part of Kinect Sensor Architecture Development Project.
+
+    Kinect Sensor Architecture Development Project is free software:
+	you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Kinect Sensor Architecture Development Project is distributed in
+	the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with Kinect Sensor Architecture Development Project.  If
+	not, see <http://www.gnu.org/licenses/>.
+**************************************************************/
+/**************************************************************
+The work was done in joint collaboration with Cisco Systems Inc.
+Copyright © 2012, Cisco Systems, Inc. and UCLA
+*************************************************************/
+
+package UnifyingAPI;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Records the sensor packets of a device to a directory, for playback with 
+ * a {@link UniRecordedDevice}. Packets are appended unchanged to segment 
+ * files and indexed by the time they were recorded. Layout ids and delta 
+ * encoding are turned off on the device when recording starts, so every 
+ * packet can be played on its own. They are not turned back on when the 
+ * recording stops, since the device does not tell what they were, so the 
+ * recorder needs a device of its own rather than one a <code>Sensor</code>
+ * also reads from. Packets built before the change reached the device, 
+ * which still depend on earlier packets, are skipped until the first one 
+ * that does not.
+ * <p>
+ * Packets are retrieved from the device on one thread and written on 
+ * another, with a queue between the two, so a slow write does not hold the 
+ * device back. A packet is only dropped when the queue is full; with the 
+ * default queue of 120 packets a write has to stall for two seconds at 
+ * 60 fps before that happens.
+ */
+public class UniPacketRecorder {
+	private UniPacketSource device;
+	private File directory;
+	private long segmentSize;
+	private UniPacketRing packets;		// packets retrieved from the device, waiting to be written
+	private long[] times;				// the time each packet in the ring was recorded, by sequence number
+	private long startNanos;
+	private FileChannel index;
+	private ByteBuffer entries;			// index entries waiting to be written
+	private FileChannel segment;
+	private int segmentNumber;
+	private long segmentOffset;
+	private Thread acquisitionThread;
+	private Thread writerThread;
+	private volatile boolean closed;
+	private volatile long recordedPackets;		// only written by the writer thread
+	private volatile long recordedBytes;		// only written by the writer thread
+	private volatile long droppedPackets;		// only written by the acquisition thread
+	private volatile long skippedPackets;		// only written by the acquisition thread
+	private volatile Throwable error;
+	
+	private static final long DEFAULT_SEGMENT_SIZE = 1L << 30;
+	private static final int DEFAULT_QUEUE_CAPACITY = 120;
+	private static final int ENTRIES_PER_WRITE = 64;
+	
+	/**
+	 * Constructs a recorder writing 1 GB segments. Nothing is recorded until 
+	 * {@link #start()} is called.
+	 * @param device the device to record
+	 * @param directory the directory to record to, created if it does not exist
+	 * @throws IOException if the directory cannot be created or already holds 
+	 * a recording
+	 */
+	public UniPacketRecorder(UniPacketSource device, File directory) throws IOException
+	{
+		this(device, directory, DEFAULT_SEGMENT_SIZE, DEFAULT_QUEUE_CAPACITY);
+	}
+	
+	/**
+	 * Constructs a recorder. Nothing is recorded until {@link #start()} is 
+	 * called.
+	 * @param device the device to record
+	 * @param directory the directory to record to, created if it does not exist
+	 * @param segmentSize the size in bytes at which a new segment is started. 
+	 * A segment holds at least one packet.
+	 * @param queueCapacity the number of packets waiting to be written before 
+	 * packets are dropped
+	 * @throws IOException if the directory cannot be created or already holds 
+	 * a recording
+	 * @throws IllegalArgumentException if the segment size is less than 1 or 
+	 * larger than 2 GB, or the queue capacity is less than 1
+	 */
+	public UniPacketRecorder(UniPacketSource device, File directory, long segmentSize, int queueCapacity) 
+			throws IOException, IllegalArgumentException
+	{
+		if (segmentSize < 1 || segmentSize > Integer.MAX_VALUE)
+		{
+			String message = String.format("Segment size must be between 1 and %d, got %d\n", 
+					Integer.MAX_VALUE, segmentSize);
+			throw new IllegalArgumentException(message);
+		}
+		if (queueCapacity < 1)
+		{
+			String message = String.format("Queue capacity must be at least 1, got %d\n", queueCapacity);
+			throw new IllegalArgumentException(message);
+		}
+		if (!directory.isDirectory() && !directory.mkdirs())
+		{
+			throw new IOException(String.format("Cannot create %s\n", directory));
+		}
+		File indexFile = new File(directory, UniRecording.INDEX_FILE);
+		if (indexFile.exists())
+		{
+			throw new IOException(String.format("%s already holds a recording\n", directory));
+		}
+		this.device = device;
+		this.directory = directory;
+		this.segmentSize = segmentSize;
+		this.packets = new UniPacketRing(queueCapacity, UniOverflowPolicy.DROP_NEWEST);
+		// The writer reads a packet's time after taking it from the ring, 
+		// so one more packet than the ring holds can be waiting for its time
+		this.times = new long[queueCapacity + 1];
+		this.entries = ByteBuffer.allocateDirect(ENTRIES_PER_WRITE * UniRecording.ENTRY_SIZE);
+		this.segmentNumber = -1;
+		this.closed = false;
+		this.recordedPackets = 0;
+		this.recordedBytes = 0;
+		this.droppedPackets = 0;
+		this.skippedPackets = 0;
+		this.error = null;
+		this.index = FileChannel.open(indexFile.toPath(), StandardOpenOption.CREATE_NEW, 
+				StandardOpenOption.WRITE);
+	}
+	
+	/**
+	 * Starts recording. The recording's clock starts now.
+	 */
+	public synchronized void start()
+	{
+		if (acquisitionThread != null || closed)
+		{
+			return;
+		}
+		device.setLayoutIdsEnabled(false);
+		device.setDeltaEncoding(0);
+		startNanos = System.nanoTime();
+		ByteBuffer header = UniRecording.packHeader(System.currentTimeMillis(), device.getSensorHeader());
+		try
+		{
+			writeFully(index, header);
+		}
+		catch (IOException e)
+		{
+			error = e;
+			return;
+		}
+		
+		acquisitionThread = new Thread(new Runnable()
+		{
+			public void run()
+			{
+				acquire();
+			}
+		}, "UniPacketRecorder acquisition");
+		writerThread = new Thread(new Runnable()
+		{
+			public void run()
+			{
+				write();
+			}
+		}, "UniPacketRecorder writer");
+		acquisitionThread.setDaemon(true);
+		writerThread.setDaemon(true);
+		writerThread.start();
+		acquisitionThread.start();
+	}
+	
+	/**
+	 * Stops recording. Waits for the device to return the packet it is 
+	 * building and for every queued packet and the index to be written.
+	 */
+	public void close()
+	{
+		Thread acquisitionToJoin;
+		Thread writerToJoin;
+		synchronized (this)
+		{
+			if (closed)
+			{
+				return;
+			}
+			closed = true;
+			acquisitionToJoin = acquisitionThread;
+			writerToJoin = writerThread;
+		}
+		if (acquisitionToJoin != null)
+		{
+			join(acquisitionToJoin);
+			packets.close();
+			join(writerToJoin);
+		}
+		else
+		{
+			closeFiles();
+		}
+	}
+	
+	/**
+	 * Retrieves the directory being recorded to.
+	 * @return the directory
+	 */
+	public File getDirectory() { return directory; }
+	
+	/**
+	 * Retrieves the number of packets written.
+	 * @return the number of packets
+	 */
+	public long getRecordedPackets() { return recordedPackets; }
+	
+	/**
+	 * Retrieves the number of bytes of packets written.
+	 * @return the number of bytes
+	 */
+	public long getRecordedBytes() { return recordedBytes; }
+	
+	/**
+	 * Retrieves the number of packets dropped because the queue of packets 
+	 * waiting to be written was full.
+	 * @return the number of packets dropped
+	 */
+	public long getDroppedPackets() { return droppedPackets; }
+	
+	/**
+	 * Retrieves the number of packets skipped at the start of the recording 
+	 * because they were built with layout ids or delta encoding.
+	 * @return the number of packets skipped
+	 */
+	public long getSkippedPackets() { return skippedPackets; }
+	
+	/**
+	 * Retrieves the number of segments written.
+	 * @return the number of segments
+	 */
+	public int getNumberOfSegments() { return segmentNumber + 1; }
+	
+	/**
+	 * Retrieves the error that stopped the recording.
+	 * @return the error, <code>null</code> if there was none
+	 */
+	public Throwable getError() { return error; }
+	
+	/**
+	 * Retrieves packets from the device until the recorder is closed. Runs on
+	 * the acquisition thread.
+	 */
+	private void acquire()
+	{
+		try
+		{
+			long accepted = 0;
+			boolean selfContained = false;	// true once a packet could be played on its own
+			while (!closed && error == null)
+			{
+				ByteBuffer packet = device.getSensorPacket();
+				long time = System.nanoTime() - startNanos;
+				if (!selfContained && !(selfContained = isSelfContained(packet)))
+				{
+					++skippedPackets;
+					device.releaseSensorPacket(packet);
+					continue;
+				}
+				// Only the writer empties the ring, so it cannot fill up after this check
+				if (packets.size() >= packets.getCapacity())
+				{
+					++droppedPackets;
+					device.releaseSensorPacket(packet);
+					continue;
+				}
+				times[(int) (accepted % times.length)] = time;
+				packets.offer(packet);
+				++accepted;
+			}
+		}
+		catch (InterruptedException e)
+		{
+			// Closed
+		}
+		catch (RuntimeException e)
+		{
+			error = e;
+		}
+		finally
+		{
+			packets.close();
+		}
+	}
+	
+	/**
+	 * Tells whether a packet can be played without the packets before it, 
+	 * i.e. it uses no layout ids and none of its channels is a delta. The 
+	 * channels of encrypted packets cannot be read, so only their layout id
+	 * flag is checked.
+	 * @param packet the sensor packet as returned by the device
+	 * @return true if the packet does not depend on earlier packets
+	 */
+	private static boolean isSelfContained(ByteBuffer packet)
+	{
+		ByteBuffer buffer = packet.duplicate();
+		buffer.position(0);
+		try
+		{
+			UniSensorHeader sensorHeader = new UniSensorHeader(buffer);
+			if (sensorHeader.hasLayoutIds())
+			{
+				return false;
+			}
+			if (!sensorHeader.hasChannelCodecs() || sensorHeader.getEncryptionFlags() != 0)
+			{
+				return true;
+			}
+			
+			int readBytes = sensorHeader.getPackedSize();
+			for (int channel = 0; channel < sensorHeader.getNumChannels(); ++channel)
+			{
+				buffer.position(readBytes);
+				new UniChannelHeader(buffer);
+				byte codec = buffer.get();
+				buffer.getInt();	// frame number
+				int encodedSize = buffer.getInt();
+				if ((codec & UniChannelEncoder.CODEC_DELTA) != 0)
+				{
+					return false;
+				}
+				readBytes = buffer.position() + encodedSize;
+			}
+			return true;
+		}
+		catch (BufferUnderflowException e)
+		{
+			// Not a packet this recorder can read, it is recorded as it is
+			return true;
+		}
+		catch (IllegalArgumentException e)
+		{
+			return true;
+		}
+	}
+	
+	/**
+	 * Writes queued packets and their index entries until the ring is closed
+	 * and empty. Runs on the writer thread.
+	 */
+	private void write()
+	{
+		long written = 0;
+		try
+		{
+			ByteBuffer packet;
+			while ((packet = packets.take()) != null)
+			{
+				try
+				{
+					if (error == null)
+					{
+						append(packet, times[(int) (written % times.length)]);
+					}
+				}
+				finally
+				{
+					device.releaseSensorPacket(packet);
+				}
+				++written;
+			}
+		}
+		catch (InterruptedException e)
+		{
+			// Closed
+		}
+		catch (IOException e)
+		{
+			error = e;
+		}
+		finally
+		{
+			ByteBuffer packet;
+			while ((packet = packets.poll()) != null)
+			{
+				device.releaseSensorPacket(packet);
+			}
+			closeFiles();
+		}
+	}
+	
+	/**
+	 * Appends a packet to the current segment, starting a new one if it would 
+	 * grow past the segment size, and indexes it.
+	 */
+	private void append(ByteBuffer packet, long time) throws IOException
+	{
+		int length = packet.remaining();
+		if (segment == null || (segmentOffset > 0 && segmentOffset + length > segmentSize))
+		{
+			if (segment != null)
+			{
+				segment.close();
+			}
+			++segmentNumber;
+			segment = FileChannel.open(UniRecording.getSegmentFile(directory, segmentNumber).toPath(), 
+					StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+			segmentOffset = 0;
+		}
+		writeFully(segment, packet.duplicate());
+		
+		// The entry goes out after its packet, so the index never points past a segment's end
+		UniRecording.putEntry(entries, time, segmentNumber, segmentOffset, length);
+		if (!entries.hasRemaining() || packets.size() == 0)
+		{
+			flushEntries();
+		}
+		segmentOffset += length;
+		++recordedPackets;
+		recordedBytes += length;
+	}
+	
+	private void flushEntries() throws IOException
+	{
+		entries.flip();
+		writeFully(index, entries);
+		entries.clear();
+	}
+	
+	private void closeFiles()
+	{
+		try
+		{
+			if (entries.position() > 0 && error == null)
+			{
+				flushEntries();
+			}
+		}
+		catch (IOException e)
+		{
+			error = e;
+		}
+		try
+		{
+			index.close();
+			if (segment != null)
+			{
+				segment.close();
+			}
+		}
+		catch (IOException e)
+		{
+			if (error == null)
+			{
+				error = e;
+			}
+		}
+	}
+	
+	private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException
+	{
+		while (buffer.hasRemaining())
+		{
+			channel.write(buffer);
+		}
+	}
+	
+	private static void join(Thread thread)
+	{
+		if (thread == Thread.currentThread())
+		{
+			return;
+		}
+		boolean interrupted = false;
+		while (thread.isAlive())
+		{
+			try
+			{
+				thread.join();
+			}
+			catch (InterruptedException e)
+			{
+				interrupted = true;
+			}
+		}
+		if (interrupted)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+}
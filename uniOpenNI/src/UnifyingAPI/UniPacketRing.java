@@ -0,0 +1,248 @@
+/**************************************************************
+ This file is part of Kinect Sensor Architecture Development Project.
+
+    Kinect Sensor Architecture Development Project is free software:
+	you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Kinect Sensor Architecture Development Project is distributed in
+	the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with Kinect Sensor Architecture Development Project.  If
+	not, see <http://www.gnu.org/licenses/>.
+**************************************************************/
+/**************************************************************
+The work was done in joint collaboration with Cisco Systems Inc.
+Copyright © 2012, Cisco Systems, Inc. and UCLA
+*************************************************************/
+
+package UnifyingAPI;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A bounded ring of sensor packets between one producer thread and one 
+ * consumer thread. Offering and taking packets does not lock. When the ring 
+ * is full, the {@link UniOverflowPolicy} decides whether the oldest packet 
+ * is dropped, the new packet is dropped, or the producer waits. Dropped 
+ * packets are handed back to the producer so their buffers can be released.
+ */
+public class UniPacketRing {
+	private AtomicReferenceArray<ByteBuffer> slots;
+	private int capacity;
+	private UniOverflowPolicy policy;
+	private AtomicLong head;		// index of the oldest packet, also advanced by the producer to drop it
+	private volatile long tail;		// index after the newest packet, only advanced by the producer
+	private volatile boolean closed;
+	private volatile Thread waitingConsumer;
+	private volatile Thread waitingProducer;
+	private volatile long offeredPackets;	// only written by the producer
+	private volatile long droppedPackets;	// only written by the producer
+	
+	/**
+	 * Construct an empty ring.
+	 * @param capacity the number of packets the ring holds
+	 * @param policy what to do with packets offered while the ring is full
+	 * @throws IllegalArgumentException if the capacity is less than 1
+	 */
+	public UniPacketRing(int capacity, UniOverflowPolicy policy) throws IllegalArgumentException
+	{
+		if (capacity < 1)
+		{
+			String message = String.format("Ring capacity must be at least 1, got %d\n", capacity);
+			throw new IllegalArgumentException(message);
+		}
+		this.slots = new AtomicReferenceArray<ByteBuffer>(capacity);
+		this.capacity = capacity;
+		this.policy = policy;
+		this.head = new AtomicLong(0);
+		this.tail = 0;
+		this.closed = false;
+	}
+	
+	/**
+	 * Adds a packet to the ring. Must only be called by the producer thread.
+	 * @param packet the packet to add
+	 * @return the packet dropped to follow the overflow policy, which the 
+	 * caller should release, <code>null</code> if no packet was dropped
+	 * @throws InterruptedException if the producer was interrupted while 
+	 * waiting for room. The packet was not added.
+	 */
+	public ByteBuffer offer(ByteBuffer packet) throws InterruptedException
+	{
+		offeredPackets = offeredPackets + 1;
+		ByteBuffer dropped = null;
+		long t = tail;
+		while (t - head.get() >= capacity)
+		{
+			if (policy == UniOverflowPolicy.DROP_NEWEST)
+			{
+				droppedPackets = droppedPackets + 1;
+				return packet;
+			}
+			else if (policy == UniOverflowPolicy.DROP_OLDEST)
+			{
+				// The consumer may take the oldest packet first, then there is room
+				long h = head.get();
+				ByteBuffer oldest = slots.get((int) (h % capacity));
+				if (t - h >= capacity && head.compareAndSet(h, h + 1))
+				{
+					droppedPackets = droppedPackets + 1;
+					dropped = oldest;
+				}
+			}
+			else
+			{
+				waitingProducer = Thread.currentThread();
+				if (t - head.get() >= capacity && !closed)
+				{
+					LockSupport.park(this);
+				}
+				waitingProducer = null;
+				if (Thread.interrupted() || closed)
+				{
+					throw new InterruptedException();
+				}
+			}
+		}
+		
+		slots.set((int) (t % capacity), packet);
+		tail = t + 1;
+		Thread consumer = waitingConsumer;
+		if (consumer != null)
+		{
+			LockSupport.unpark(consumer);
+		}
+		return dropped;
+	}
+	
+	/**
+	 * Takes the oldest packet from the ring without waiting. Must only be 
+	 * called by the consumer thread.
+	 * @return the oldest packet, <code>null</code> if the ring is empty
+	 */
+	public ByteBuffer poll()
+	{
+		while (true)
+		{
+			long h = head.get();
+			if (h >= tail)
+			{
+				return null;
+			}
+			ByteBuffer packet = slots.get((int) (h % capacity));
+			if (head.compareAndSet(h, h + 1))
+			{
+				Thread producer = waitingProducer;
+				if (producer != null)
+				{
+					LockSupport.unpark(producer);
+				}
+				return packet;
+			}
+		}
+	}
+	
+	/**
+	 * Takes the oldest packet from the ring, waiting for one if the ring is
+	 * empty. Must only be called by the consumer thread.
+	 * @return the oldest packet, <code>null</code> if the ring is empty and closed
+	 * @throws InterruptedException if the consumer was interrupted while waiting
+	 */
+	public ByteBuffer take() throws InterruptedException
+	{
+		while (true)
+		{
+			ByteBuffer packet = poll();
+			if (packet != null)
+			{
+				return packet;
+			}
+			if (closed)
+			{
+				// The producer may have added a packet before closing
+				return poll();
+			}
+			
+			waitingConsumer = Thread.currentThread();
+			if (head.get() >= tail && !closed)
+			{
+				LockSupport.park(this);
+			}
+			waitingConsumer = null;
+			if (Thread.interrupted())
+			{
+				throw new InterruptedException();
+			}
+		}
+	}
+	
+	/**
+	 * Closes the ring. Waiting consumers return once the ring is empty, and a
+	 * producer waiting for room gives up. Packets still in the ring can be 
+	 * taken with {@link #poll()}.
+	 */
+	public void close()
+	{
+		closed = true;
+		Thread consumer = waitingConsumer;
+		if (consumer != null)
+		{
+			LockSupport.unpark(consumer);
+		}
+		Thread producer = waitingProducer;
+		if (producer != null)
+		{
+			LockSupport.unpark(producer);
+		}
+	}
+	
+	/**
+	 * Tells whether the ring has been closed.
+	 * @return true if the ring is closed
+	 */
+	public boolean isClosed() { return closed; }
+	
+	/**
+	 * Retrieves the number of packets in the ring.
+	 * @return the number of packets waiting to be taken
+	 */
+	public int size()
+	{
+		long t = tail;
+		return (int) Math.max(0, t - head.get());
+	}
+	
+	/**
+	 * Retrieves the number of packets the ring holds.
+	 * @return the capacity of the ring
+	 */
+	public int getCapacity() { return capacity; }
+	
+	/**
+	 * Retrieves the overflow policy of the ring.
+	 * @return the overflow policy
+	 */
+	public UniOverflowPolicy getOverflowPolicy() { return policy; }
+	
+	/**
+	 * Retrieves the number of packets offered to the ring.
+	 * @return the number of packets offered
+	 */
+	public long getOfferedPackets() { return offeredPackets; }
+	
+	/**
+	 * Retrieves the number of packets dropped because the ring was full.
+	 * @return the number of dropped packets
+	 */
+	public long getDroppedPackets() { return droppedPackets; }
+}
@@ -0,0 +1,160 @@
+/**************************************************************
+ This file is part of Kinect Sensor Architecture Development Project.
+
+    Kinect Sensor Architecture Development Project is free software:
+	you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Kinect Sensor Architecture Development Project is distributed in
+	the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with Kinect Sensor Architecture Development Project.  If
+	not, see <http://www.gnu.org/licenses/>.
+**************************************************************/
+/**************************************************************
+The work was done in joint collaboration with Cisco Systems Inc.
+Copyright © 2012, Cisco Systems, Inc. and UCLA
+*************************************************************/
+
+package UnifyingAPI;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Splits sensor packets into sections: the sensor header, then one section 
+ * per channel. Transports that can lose part of a packet send sections 
+ * separately, so the channels that did arrive can still be parsed. Packets
+ * must be split in the order the device built them, since layout ids refer
+ * to headers sent in earlier packets. Encrypted packets are split into the 
+ * sensor header and the rest.
+ */
+final class UniPacketSections {
+	private UniChannelHeader[] layouts;		// Channel headers by layout id
+	private UniChannelHeader[] lastHeaders;	// Channel headers by position in the last packet
+	private int[] bounds;		// Start of each section, then the end of the last one
+	private int numSections;
+	private boolean channelSections;	// True if every channel has a section
+	
+	UniPacketSections()
+	{
+		this.layouts = new UniChannelHeader[UniChannelHeader.MAX_LAYOUT_IDS];
+		this.lastHeaders = new UniChannelHeader[0];
+		this.bounds = new int[8];
+		this.numSections = 0;
+		this.channelSections = false;
+	}
+	
+	/**
+	 * Finds the sections of a sensor packet.
+	 * @param packet the sensor packet, from 0 to its limit. Its position is 
+	 * not changed.
+	 * @return the number of sections
+	 */
+	int split(ByteBuffer packet)
+	{
+		ByteBuffer reader = packet.duplicate();
+		reader.position(0);
+		numSections = 0;
+		addBound(0);
+		UniSensorHeader sensorHeader = new UniSensorHeader(reader);
+		reader.position(sensorHeader.getPackedSize());
+		int numChannels = sensorHeader.getNumChannels();
+		channelSections = sensorHeader.getEncryptionFlags() == 0;
+		if (lastHeaders.length < numChannels)
+		{
+			lastHeaders = Arrays.copyOf(lastHeaders, numChannels);
+		}
+		
+		for (int channel = 0; channel < numChannels && channelSections; ++channel)
+		{
+			addBound(reader.position());
+			UniChannelHeader header;
+			if (sensorHeader.hasLayoutIds())
+			{
+				short layoutId = reader.getShort();
+				int layoutIndex = layoutId & ~UniChannelHeader.LAYOUT_DEFINITION;
+				if ((layoutId & UniChannelHeader.LAYOUT_DEFINITION) != 0 && layoutIndex < layouts.length)
+				{
+					layouts[layoutIndex] = new UniChannelHeader(reader);
+				}
+				header = (layoutIndex < layouts.length) ? layouts[layoutIndex] : null;
+			}
+			else if (lastHeaders[channel] != null && lastHeaders[channel].matches(reader))
+			{
+				header = lastHeaders[channel];
+				reader.position(reader.position() + header.getPackedSize());
+			}
+			else
+			{
+				header = new UniChannelHeader(reader);
+				lastHeaders[channel] = header;
+			}
+			
+			if (sensorHeader.hasChannelCodecs())
+			{
+				reader.get();		// codec
+				reader.getInt();	// frame number
+				int encodedSize = reader.getInt();
+				reader.position(reader.position() + encodedSize);
+			}
+			else if (header != null)
+			{
+				reader.position(reader.position() + (int) header.getPackedDataSize());
+			}
+			else
+			{
+				// Unknown layout, the rest of the packet is one section
+				channelSections = false;
+			}
+		}
+		if (!channelSections && numSections < 2 && reader.position() < packet.limit())
+		{
+			addBound(reader.position());
+		}
+		addBound(packet.limit());
+		return --numSections;
+	}
+	
+	/**
+	 * Retrieves the number of sections found by the last split.
+	 * @return the number of sections
+	 */
+	int getNumberOfSections() { return numSections; }
+	
+	/**
+	 * Tells whether the last packet split has a section for each channel, 
+	 * so a packet can be rebuilt from some of its channels.
+	 * @return true if each channel has a section
+	 */
+	boolean hasChannelSections() { return channelSections; }
+	
+	/**
+	 * Retrieves where a section starts in the packet.
+	 * @param section the index of the section
+	 * @return the offset of the section's first byte
+	 */
+	int getStart(int section) { return bounds[section]; }
+	
+	/**
+	 * Retrieves where a section ends in the packet.
+	 * @param section the index of the section
+	 * @return the offset after the section's last byte
+	 */
+	int getEnd(int section) { return bounds[section + 1]; }
+	
+	private void addBound(int offset)
+	{
+		if (numSections == bounds.length)
+		{
+			bounds = Arrays.copyOf(bounds, bounds.length * 2);
+		}
+		bounds[numSections++] = offset;
+	}
+}
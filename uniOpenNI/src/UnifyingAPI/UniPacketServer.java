@@ -0,0 +1,611 @@
+/**************************************************************
+ This file is part of Kinect Sensor Architecture Development Project.
+
+    Kinect Sensor Architecture Development Project is free software:
+	you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Kinect Sensor Architecture Development Project is distributed in
+	the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with Kinect Sensor Architecture Development Project.  If
+	not, see <http://www.gnu.org/licenses/>.
+**************************************************************/
+/**************************************************************
+The work was done in joint collaboration with Cisco Systems Inc.
+Copyright © 2012, Cisco Systems, Inc. and UCLA
+*************************************************************/
+
+package UnifyingAPI;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+
+/**
+ * Serves the sensor packets of a device to consumers over TCP. Consumers 
+ * connect with a {@link UniRemoteDevice}. Packets are retrieved from the 
+ * device on one thread and written to every connection by a non-blocking 
+ * selector thread, with gathering writes so each packet goes out straight 
+ * from the buffer it was built in.
+ * <p>
+ * Each connection holds a few packets waiting to be written. When a slow 
+ * consumer's queue is full its oldest packet is dropped, so it cannot hold 
+ * the device or other consumers back, and a keyframe is asked for. The 
+ * device's settings are shared: a setting changed by one consumer, such as
+ * its subscription, applies to every consumer.
+ */
+public class UniPacketServer {
+	private UniPacketSource device;
+	private ServerSocketChannel serverChannel;
+	private Selector selector;
+	private UniPacketRing packets;		// packets retrieved from the device, waiting to be sent
+	private ArrayList<Connection> connections;	// only used on the selector thread
+	private int queueCapacity;
+	private Thread selectorThread;
+	private Thread acquisitionThread;
+	private volatile boolean closed;
+	private volatile int numClients;
+	private volatile long sentPackets;		// only written by the selector thread
+	private volatile long droppedPackets;	// only written by the selector thread
+	private volatile Throwable acquisitionError;
+	
+	private static final int DEFAULT_QUEUE_CAPACITY = 2;
+	
+	/**
+	 * Constructs a server listening on the given port of every interface. 
+	 * Packets are not served until {@link #start()} is called.
+	 * @param device the device whose packets are served
+	 * @param port the port to listen on, 0 for any free port
+	 * @throws IOException if the port cannot be bound
+	 */
+	public UniPacketServer(UniPacketSource device, int port) throws IOException
+	{
+		this(device, new InetSocketAddress(port), DEFAULT_QUEUE_CAPACITY);
+	}
+	
+	/**
+	 * Constructs a server listening on the given address. Packets are not 
+	 * served until {@link #start()} is called.
+	 * @param device the device whose packets are served
+	 * @param address the address to listen on
+	 * @param queueCapacity the number of packets each connection holds before
+	 * dropping the oldest
+	 * @throws IOException if the address cannot be bound
+	 * @throws IllegalArgumentException if the queue capacity is less than 1
+	 */
+	public UniPacketServer(UniPacketSource device, InetSocketAddress address, int queueCapacity) 
+			throws IOException, IllegalArgumentException
+	{
+		if (queueCapacity < 1)
+		{
+			String message = String.format("Queue capacity must be at least 1, got %d\n", queueCapacity);
+			throw new IllegalArgumentException(message);
+		}
+		this.device = device;
+		this.queueCapacity = queueCapacity;
+		this.connections = new ArrayList<Connection>();
+		this.packets = new UniPacketRing(queueCapacity, UniOverflowPolicy.DROP_OLDEST);
+		this.closed = false;
+		this.numClients = 0;
+		this.sentPackets = 0;
+		this.droppedPackets = 0;
+		this.acquisitionError = null;
+		this.selector = Selector.open();
+		this.serverChannel = ServerSocketChannel.open();
+		try
+		{
+			serverChannel.bind(address);
+			serverChannel.configureBlocking(false);
+			serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+		}
+		catch (IOException e)
+		{
+			serverChannel.close();
+			selector.close();
+			throw e;
+		}
+	}
+	
+	/**
+	 * Starts accepting consumers and serving packets. The device is only 
+	 * asked for packets while at least one consumer is connected.
+	 */
+	public synchronized void start()
+	{
+		if (selectorThread != null)
+		{
+			return;
+		}
+		selectorThread = new Thread(new Runnable()
+		{
+			public void run()
+			{
+				serve();
+			}
+		}, "UniPacketServer selector");
+		acquisitionThread = new Thread(new Runnable()
+		{
+			public void run()
+			{
+				acquire();
+			}
+		}, "UniPacketServer acquisition");
+		selectorThread.setDaemon(true);
+		acquisitionThread.setDaemon(true);
+		selectorThread.start();
+		acquisitionThread.start();
+	}
+	
+	/**
+	 * Disconnects every consumer and stops listening. Waits for the device to
+	 * return the packet it is building.
+	 */
+	public void close()
+	{
+		Thread selectorToJoin;
+		Thread acquisitionToJoin;
+		synchronized (this)
+		{
+			if (closed)
+			{
+				return;
+			}
+			closed = true;
+			notifyAll();
+			selectorToJoin = selectorThread;
+			acquisitionToJoin = acquisitionThread;
+		}
+		packets.close();
+		selector.wakeup();
+		if (selectorToJoin != null)
+		{
+			acquisitionToJoin.interrupt();
+			join(selectorToJoin);
+			join(acquisitionToJoin);
+		}
+		else
+		{
+			closeChannels();
+		}
+		ByteBuffer packet;
+		while ((packet = packets.poll()) != null)
+		{
+			device.releaseSensorPacket(packet);
+		}
+	}
+	
+	/**
+	 * Retrieves the address the server listens on.
+	 * @return the local address
+	 * @throws IOException if the server is closed
+	 */
+	public InetSocketAddress getLocalAddress() throws IOException
+	{
+		return (InetSocketAddress) serverChannel.getLocalAddress();
+	}
+	
+	/**
+	 * Retrieves the number of connected consumers.
+	 * @return the number of consumers
+	 */
+	public int getNumberOfClients() { return numClients; }
+	
+	/**
+	 * Retrieves the number of packets fully written to consumers, counted 
+	 * once per consumer.
+	 * @return the number of packets sent
+	 */
+	public long getSentPackets() { return sentPackets; }
+	
+	/**
+	 * Retrieves the number of packets dropped because a consumer, or the 
+	 * selector thread, fell behind the device. Counted once per consumer.
+	 * @return the number of packets dropped
+	 */
+	public long getDroppedPackets() { return droppedPackets + packets.getDroppedPackets(); }
+	
+	/**
+	 * Retrieves the error that stopped the server from retrieving packets.
+	 * @return the error, <code>null</code> if there was none
+	 */
+	public Throwable getAcquisitionError() { return acquisitionError; }
+	
+	/**
+	 * Retrieves packets from the device while consumers are connected. Runs 
+	 * on the acquisition thread.
+	 */
+	private void acquire()
+	{
+		try
+		{
+			while (true)
+			{
+				synchronized (this)
+				{
+					while (numClients == 0 && !closed)
+					{
+						wait();
+					}
+				}
+				if (closed)
+				{
+					return;
+				}
+				
+				ByteBuffer dropped = packets.offer(device.getSensorPacket());
+				if (dropped != null)
+				{
+					device.releaseSensorPacket(dropped);
+					resendState();
+				}
+				selector.wakeup();
+			}
+		}
+		catch (InterruptedException e)
+		{
+			// Closed
+		}
+		catch (RuntimeException e)
+		{
+			acquisitionError = e;
+			close();
+		}
+	}
+	
+	/**
+	 * Asks the device to send what consumers of a dropped packet are missing:
+	 * the layout ids it may have defined and the frame later deltas are 
+	 * taken from.
+	 */
+	private void resendState()
+	{
+		device.resetLayoutIds();
+		device.requestKeyframe();
+	}
+	
+	/**
+	 * Accepts consumers, reads their control messages and writes packets to 
+	 * them until the server is closed. Runs on the selector thread.
+	 */
+	private void serve()
+	{
+		try
+		{
+			while (!closed)
+			{
+				selector.select();
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext())
+				{
+					SelectionKey key = keys.next();
+					keys.remove();
+					if (!key.isValid())
+					{
+						continue;
+					}
+					if (key.isAcceptable())
+					{
+						accept();
+						continue;
+					}
+					Connection connection = (Connection) key.attachment();
+					if (key.isReadable())
+					{
+						connection.read();
+					}
+					if (key.isValid() && key.isWritable())
+					{
+						connection.write();
+					}
+				}
+				
+				ByteBuffer packet;
+				while ((packet = packets.poll()) != null)
+				{
+					dispatch(packet);
+				}
+			}
+		}
+		catch (IOException e)
+		{
+			acquisitionError = e;
+		}
+		finally
+		{
+			closeChannels();
+		}
+	}
+	
+	/**
+	 * Accepts a consumer and queues the sensor header for it. The device is 
+	 * asked for full channel headers and a keyframe, which the new consumer 
+	 * needs to parse the packets that follow.
+	 */
+	private void accept() throws IOException
+	{
+		SocketChannel channel = serverChannel.accept();
+		if (channel == null)
+		{
+			return;
+		}
+		channel.configureBlocking(false);
+		channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+		Connection connection = new Connection(channel);
+		connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+		
+		byte[] sensorHeader = device.getSensorHeader();
+		ByteBuffer hello = ByteBuffer.wrap(sensorHeader);
+		connection.enqueue(new OutgoingPacket(UniTransportProtocol.SENSOR_HEADER, hello, false, 1));
+		connections.add(connection);
+		resendState();
+		connection.write();
+		
+		synchronized (this)
+		{
+			numClients = connections.size();
+			notifyAll();
+		}
+	}
+	
+	/**
+	 * Queues a packet for every connection.
+	 * @param packet the packet
+	 */
+	private void dispatch(ByteBuffer packet)
+	{
+		if (connections.isEmpty())
+		{
+			device.releaseSensorPacket(packet);
+			return;
+		}
+		OutgoingPacket outgoing = new OutgoingPacket(UniTransportProtocol.SENSOR_PACKET, packet, 
+				true, connections.size());
+		for (int i = connections.size() - 1; i >= 0; --i)
+		{
+			Connection connection = connections.get(i);
+			connection.enqueue(outgoing);
+			connection.write();
+		}
+	}
+	
+	private void disconnect(Connection connection)
+	{
+		connection.key.cancel();
+		try
+		{
+			connection.channel.close();
+		}
+		catch (IOException e)
+		{
+			// Already gone
+		}
+		while (!connection.queue.isEmpty())
+		{
+			connection.queue.poll().release();
+		}
+		connections.remove(connection);
+		synchronized (this)
+		{
+			numClients = connections.size();
+		}
+	}
+	
+	private void closeChannels()
+	{
+		while (!connections.isEmpty())
+		{
+			disconnect(connections.get(connections.size() - 1));
+		}
+		try
+		{
+			serverChannel.close();
+			selector.close();
+		}
+		catch (IOException e)
+		{
+			// Nothing left to do
+		}
+	}
+	
+	private static void join(Thread thread)
+	{
+		if (thread == Thread.currentThread())
+		{
+			return;
+		}
+		boolean interrupted = false;
+		while (thread.isAlive())
+		{
+			try
+			{
+				thread.join();
+			}
+			catch (InterruptedException e)
+			{
+				interrupted = true;
+			}
+		}
+		if (interrupted)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	/**
+	 * A packet queued for one or more connections. Its buffer is handed back 
+	 * to the device once every connection has written or dropped it. Only 
+	 * used on the selector thread.
+	 */
+	private class OutgoingPacket {
+		private byte type;
+		private ByteBuffer packet;
+		private boolean fromDevice;		// true if the buffer must be released to the device
+		private int references;
+		
+		OutgoingPacket(byte type, ByteBuffer packet, boolean fromDevice, int references)
+		{
+			this.type = type;
+			this.packet = packet;
+			this.fromDevice = fromDevice;
+			this.references = references;
+		}
+		
+		void release()
+		{
+			if (--references == 0 && fromDevice)
+			{
+				device.releaseSensorPacket(packet);
+			}
+		}
+	}
+	
+	/**
+	 * A connected consumer. Only used on the selector thread.
+	 */
+	private class Connection {
+		private SocketChannel channel;
+		private SelectionKey key;
+		private ArrayDeque<OutgoingPacket> queue;	// the first packet is being written
+		private ByteBuffer[] gather;		// message header and packet being written
+		private ByteBuffer controlHeader;
+		private ByteBuffer controlPayload;	// null while reading a header
+		private byte controlType;
+		
+		Connection(SocketChannel channel)
+		{
+			this.channel = channel;
+			this.queue = new ArrayDeque<OutgoingPacket>(queueCapacity + 1);
+			this.gather = new ByteBuffer[] { 
+					ByteBuffer.allocate(UniTransportProtocol.MESSAGE_HEADER_SIZE), null };
+			this.controlHeader = ByteBuffer.allocate(UniTransportProtocol.MESSAGE_HEADER_SIZE);
+			this.controlPayload = null;
+		}
+		
+		/**
+		 * Queues a packet, dropping the oldest one not being written if the
+		 * queue is full.
+		 */
+		void enqueue(OutgoingPacket packet)
+		{
+			if (queue.size() > queueCapacity)
+			{
+				// Keep the packet being written, drop the one after it
+				OutgoingPacket current = queue.poll();
+				queue.poll().release();
+				queue.addFirst(current);
+				++droppedPackets;
+				resendState();
+			}
+			queue.add(packet);
+		}
+		
+		/**
+		 * Writes queued packets until the socket cannot take more.
+		 */
+		void write()
+		{
+			try
+			{
+				while (!queue.isEmpty())
+				{
+					OutgoingPacket current = queue.peek();
+					if (gather[1] == null)
+					{
+						ByteBuffer header = gather[0];
+						header.clear();
+						UniTransportProtocol.putMessageHeader(header, current.type, 
+								current.packet.remaining());
+						header.flip();
+						gather[1] = current.packet.duplicate();
+					}
+					channel.write(gather);
+					if (gather[1].hasRemaining())
+					{
+						key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+						return;
+					}
+					gather[1] = null;
+					queue.poll().release();
+					if (current.type == UniTransportProtocol.SENSOR_PACKET)
+					{
+						++sentPackets;
+					}
+				}
+				key.interestOps(SelectionKey.OP_READ);
+			}
+			catch (IOException e)
+			{
+				disconnect(this);
+			}
+		}
+		
+		/**
+		 * Reads control messages and applies them to the device.
+		 */
+		void read()
+		{
+			try
+			{
+				while (true)
+				{
+					ByteBuffer target = (controlPayload == null) ? controlHeader : controlPayload;
+					int read = channel.read(target);
+					if (read < 0)
+					{
+						disconnect(this);
+						return;
+					}
+					if (target.hasRemaining())
+					{
+						return;
+					}
+					
+					if (controlPayload == null)
+					{
+						controlHeader.flip();
+						controlType = controlHeader.get();
+						int length = controlHeader.getInt();
+						controlHeader.clear();
+						if (length < 0 || length > UniTransportProtocol.MAX_CONTROL_SIZE)
+						{
+							disconnect(this);
+							return;
+						}
+						controlPayload = ByteBuffer.allocate(length);
+					}
+					if (!controlPayload.hasRemaining())
+					{
+						controlPayload.flip();
+						UniTransportProtocol.applyControl(device, controlType, controlPayload);
+						controlPayload = null;
+					}
+				}
+			}
+			catch (IOException e)
+			{
+				disconnect(this);
+			}
+			catch (RuntimeException e)
+			{
+				// A consumer whose message is invalid or cannot be applied 
+				// is dropped, the other consumers are still served
+				disconnect(this);
+			}
+		}
+	}
+}
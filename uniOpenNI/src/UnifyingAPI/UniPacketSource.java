@@ -0,0 +1,99 @@
+/**************************************************************
+ This file is part of Kinect Sensor Architecture Development Project.
+
+    Kinect Sensor Architecture Development Project is free software:
+	you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Kinect Sensor Architecture Development Project is distributed in
+	the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with Kinect Sensor Architecture Development Project.  If
+	not, see <http://www.gnu.org/licenses/>.
+**************************************************************/
+/**************************************************************
+The work was done in joint collaboration with Cisco Systems Inc.
+Copyright © 2012, Cisco Systems, Inc. and UCLA
+*************************************************************/
+
+package UnifyingAPI;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Anything a <code>Sensor</code> can read sensor packets from. A 
+ * <code>UniDevice</code> builds the packets itself; other sources, such as
+ * {@link UniRemoteDevice}, receive packets built by a device elsewhere and 
+ * pass the consumer's settings on to it.
+ */
+public interface UniPacketSource {
+	
+	/**
+	 * Retrieves the sensor packet header describing the device, with no channels.
+	 * @return the sensor packet header as a byte array
+	 */
+	public byte[] getSensorHeader();
+	
+	/**
+	 * Retrieves the next sensor packet, blocking until it is available. The 
+	 * packet should be handed back with {@link #releaseSensorPacket(ByteBuffer)}
+	 * once the consumer is done with it.
+	 * @return the sensor packet
+	 */
+	public ByteBuffer getSensorPacket();
+	
+	/**
+	 * Hands a sensor packet returned by {@link #getSensorPacket()} back to the
+	 * source so its buffer can be reused. Each packet must be released once,
+	 * and must not be read after it has been released.
+	 * @param sensorPacket the sensor packet to release
+	 */
+	public void releaseSensorPacket(ByteBuffer sensorPacket);
+	
+	/**
+	 * Sets which channels and tuple elements the consumer wants.
+	 * @param subscription the channels and elements to send, <code>null</code>
+	 * for every channel
+	 * @throws IllegalArgumentException if the source knows that an element 
+	 * index is past the last element of its channel
+	 */
+	public void setSubscription(UniSubscription subscription) throws IllegalArgumentException;
+	
+	/**
+	 * Sets whether channel headers are replaced by layout ids.
+	 * @param enabled true to send layout ids instead of repeated channel headers
+	 */
+	public void setLayoutIdsEnabled(boolean enabled);
+	
+	/**
+	 * Makes the next sensor packet send full channel headers with new layout ids.
+	 */
+	public void resetLayoutIds();
+	
+	/**
+	 * Sets whether channels are sent as deltas from their previous frame.
+	 * @param keyframeInterval the largest number of packets between full 
+	 * channels, 0 to send every channel in full without encoding
+	 * @throws IllegalArgumentException if the interval is negative
+	 */
+	public void setDeltaEncoding(int keyframeInterval) throws IllegalArgumentException;
+	
+	/**
+	 * Sets whether a channel's data is compressed.
+	 * @param channelName the name of the channel
+	 * @param compress true to compress the channel
+	 */
+	public void setCompression(String channelName, boolean compress);
+	
+	/**
+	 * Makes the next sensor packet send every channel in full when delta 
+	 * encoding is enabled.
+	 */
+	public void requestKeyframe();
+}
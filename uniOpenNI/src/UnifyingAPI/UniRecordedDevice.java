@@ -0,0 +1,378 @@
+/**************************************************************
+ This file is part of Kinect Sensor Architecture Development Project.
+
+    Kinect Sensor Architecture Development Project is free software:
+	you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Kinect Sensor Architecture Development Project is distributed in
+	the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with Kinect Sensor Architecture Development Project.  If
+	not, see <http://www.gnu.org/licenses/>.
+**************************************************************/
+/**************************************************************
+The work was done in joint collaboration with Cisco Systems Inc.
+Copyright © 2012, Cisco Systems, Inc. and UCLA
+*************************************************************/
+
+package UnifyingAPI;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Plays back a recording made by a {@link UniPacketRecorder}. The index and
+ * segments are memory-mapped and sensor packets are returned as views of 
+ * the mapped segments, so a <code>Sensor</code> reads recorded channels 
+ * without copying them. A <code>Sensor</code> is constructed from a 
+ * <code>UniRecordedDevice</code> like from a live device.
+ * <p>
+ * In real time, which is the default, packets are returned no faster than
+ * they were recorded. Otherwise they are returned as fast as they are asked
+ * for, which suits throughput tests. {@link #seek(long)} moves to any time 
+ * in the recording with a binary search of the index. Packets are played as
+ * they were recorded: subscriptions, compression and other settings made 
+ * by a <code>Sensor</code> are ignored.
+ */
+public class UniRecordedDevice implements UniPacketSource {
+	private File directory;
+	private MappedByteBuffer index;
+	private MappedByteBuffer[] segments;		// mapped on first use
+	private byte[] sensorHeader;
+	private long startMillis;
+	private int numPackets;
+	private int position;				// the next packet to return
+	private boolean realTime;
+	private boolean looping;
+	private boolean rebase;				// the playback clock restarts at the next packet
+	private long clockBaseNanos;
+	private long timeBaseNanos;
+	private boolean closed;
+	
+	/**
+	 * Opens a recording, positioned at its first packet.
+	 * @param directory the recording's directory
+	 * @throws IOException if the recording cannot be read
+	 */
+	public UniRecordedDevice(File directory) throws IOException
+	{
+		this.directory = directory;
+		this.index = map(new File(directory, UniRecording.INDEX_FILE));
+		UniRecording.checkHeader(index, directory);
+		this.sensorHeader = UniRecording.getSensorHeader(index);
+		this.startMillis = UniRecording.getStartMillis(index);
+		this.numPackets = (index.capacity() - UniRecording.HEADER_SIZE) / UniRecording.ENTRY_SIZE;
+		this.position = 0;
+		this.realTime = true;
+		this.looping = false;
+		this.rebase = true;
+		this.closed = false;
+		
+		int numSegments = 0;
+		if (numPackets > 0)
+		{
+			numSegments = getSegment(numPackets - 1) + 1;
+		}
+		this.segments = new MappedByteBuffer[numSegments];
+		
+		// A recording that was cut short may index packets that never reached their segment
+		while (numPackets > 0)
+		{
+			int last = numPackets - 1;
+			File segmentFile = UniRecording.getSegmentFile(directory, getSegment(last));
+			if (segmentFile.length() >= getOffset(last) + getLength(last))
+			{
+				break;
+			}
+			--numPackets;
+		}
+	}
+	
+	/**
+	 * Retrieves the sensor packet header of the recorded device.
+	 * @return the sensor packet header as a byte array
+	 */
+	public byte[] getSensorHeader() { return sensorHeader.clone(); }
+	
+	/**
+	 * Retrieves the next packet of the recording, waiting until its time has
+	 * come when playing in real time.
+	 * @return a read-only view of the packet in the mapped segment
+	 * @throws UncheckedIOException if the end of the recording was reached 
+	 * without looping, the device is closed or a segment cannot be mapped
+	 */
+	public ByteBuffer getSensorPacket() throws UncheckedIOException
+	{
+		while (true)
+		{
+			long wait;
+			synchronized (this)
+			{
+				if (closed)
+				{
+					throw new UncheckedIOException(new EOFException("The device is closed"));
+				}
+				if (position >= numPackets)
+				{
+					if (!looping || numPackets == 0)
+					{
+						throw new UncheckedIOException(new EOFException("End of recording " + directory));
+					}
+					position = 0;
+					rebase = true;
+				}
+				
+				long time = getPacketTime(position);
+				long now = System.nanoTime();
+				if (rebase)
+				{
+					clockBaseNanos = now;
+					timeBaseNanos = time;
+					rebase = false;
+				}
+				wait = clockBaseNanos + (time - timeBaseNanos) - now;
+				if (!realTime || wait <= 0)
+				{
+					return getPacket(position++);
+				}
+			}
+			// A seek while waiting is picked up on the next pass
+			LockSupport.parkNanos(wait);
+		}
+	}
+	
+	/**
+	 * Nothing to release, packets are views of the recording.
+	 */
+	public void releaseSensorPacket(ByteBuffer sensorPacket)
+	{
+	}
+	
+	public void setSubscription(UniSubscription subscription)
+	{
+	}
+	
+	public void setLayoutIdsEnabled(boolean enabled)
+	{
+	}
+	
+	public void resetLayoutIds()
+	{
+	}
+	
+	public void setDeltaEncoding(int keyframeInterval) throws IllegalArgumentException
+	{
+		if (keyframeInterval < 0)
+		{
+			String message = String.format("Keyframe interval must not be negative, got %d\n", keyframeInterval);
+			throw new IllegalArgumentException(message);
+		}
+	}
+	
+	public void setCompression(String channelName, boolean compress)
+	{
+	}
+	
+	public void requestKeyframe()
+	{
+	}
+	
+	/**
+	 * Sets whether packets are returned no faster than they were recorded.
+	 * @param realTime true to play in real time, false to play as fast as 
+	 * packets are asked for
+	 */
+	public synchronized void setRealTime(boolean realTime)
+	{
+		this.realTime = realTime;
+		this.rebase = true;
+	}
+	
+	/**
+	 * Tells whether packets are returned no faster than they were recorded.
+	 * @return true if playing in real time
+	 */
+	public synchronized boolean isRealTime() { return realTime; }
+	
+	/**
+	 * Sets whether playback starts over at the end of the recording.
+	 * @param looping true to start over, false to fail at the end
+	 */
+	public synchronized void setLooping(boolean looping) { this.looping = looping; }
+	
+	/**
+	 * Tells whether playback starts over at the end of the recording.
+	 * @return true if playback loops
+	 */
+	public synchronized boolean isLooping() { return looping; }
+	
+	/**
+	 * Moves to the last packet recorded at or before the given time, or to 
+	 * the first packet if the time is before it. Takes O(log n) in the number 
+	 * of packets.
+	 * @param timeNanos the time in nanoseconds since the recording started
+	 * @return the number of the packet returned next
+	 */
+	public synchronized int seek(long timeNanos)
+	{
+		int low = 0;
+		int high = numPackets - 1;
+		int found = 0;
+		while (low <= high)
+		{
+			int middle = (low + high) >>> 1;
+			if (getPacketTime(middle) <= timeNanos)
+			{
+				found = middle;
+				low = middle + 1;
+			}
+			else
+			{
+				high = middle - 1;
+			}
+		}
+		position = found;
+		rebase = true;
+		return found;
+	}
+	
+	/**
+	 * Moves to the given packet.
+	 * @param packet the number of the packet returned next
+	 * @throws IllegalArgumentException if there is no such packet
+	 */
+	public synchronized void seekToPacket(int packet) throws IllegalArgumentException
+	{
+		if (packet < 0 || packet >= numPackets)
+		{
+			String message = String.format("Packet %d is not in a recording of %d packets\n", packet, numPackets);
+			throw new IllegalArgumentException(message);
+		}
+		position = packet;
+		rebase = true;
+	}
+	
+	/**
+	 * Retrieves the number of the packet returned next.
+	 * @return the number of the packet
+	 */
+	public synchronized int getPosition() { return position; }
+	
+	/**
+	 * Retrieves the number of packets in the recording.
+	 * @return the number of packets
+	 */
+	public int getNumberOfPackets() { return numPackets; }
+	
+	/**
+	 * Retrieves the time a packet was recorded.
+	 * @param packet the number of the packet
+	 * @return the time in nanoseconds since the recording started
+	 * @throws IllegalArgumentException if there is no such packet
+	 */
+	public long getPacketTime(int packet) throws IllegalArgumentException
+	{
+		if (packet < 0 || packet >= numPackets)
+		{
+			String message = String.format("Packet %d is not in a recording of %d packets\n", packet, numPackets);
+			throw new IllegalArgumentException(message);
+		}
+		return index.getLong(UniRecording.getEntryOffset(packet) + UniRecording.ENTRY_TIME);
+	}
+	
+	/**
+	 * Retrieves the time of the last packet of the recording.
+	 * @return the time in nanoseconds since the recording started, 0 if the
+	 * recording is empty
+	 */
+	public long getDuration()
+	{
+		return (numPackets > 0) ? getPacketTime(numPackets - 1) : 0;
+	}
+	
+	/**
+	 * Retrieves the wall clock time the recording started.
+	 * @return the time in milliseconds since the epoch
+	 */
+	public long getStartMillis() { return startMillis; }
+	
+	/**
+	 * Closes the recording. A thread waiting for a packet gets an error. 
+	 * The mappings are released once the packets handed out are no longer 
+	 * referenced.
+	 */
+	public synchronized void close()
+	{
+		closed = true;
+		for (int i = 0; i < segments.length; ++i)
+		{
+			segments[i] = null;
+		}
+	}
+	
+	/**
+	 * Retrieves a view of a packet, mapping its segment if needed.
+	 */
+	private ByteBuffer getPacket(int packet) throws UncheckedIOException
+	{
+		int segment = getSegment(packet);
+		if (segments[segment] == null)
+		{
+			try
+			{
+				segments[segment] = map(UniRecording.getSegmentFile(directory, segment));
+			}
+			catch (IOException e)
+			{
+				throw new UncheckedIOException("Failed to map segment " + segment, e);
+			}
+		}
+		int offset = (int) getOffset(packet);
+		ByteBuffer view = segments[segment].duplicate();
+		view.limit(offset + getLength(packet));
+		view.position(offset);
+		return view.slice();
+	}
+	
+	private int getSegment(int packet)
+	{
+		return index.getInt(UniRecording.getEntryOffset(packet) + UniRecording.ENTRY_SEGMENT);
+	}
+	
+	private long getOffset(int packet)
+	{
+		return index.getLong(UniRecording.getEntryOffset(packet) + UniRecording.ENTRY_OFFSET);
+	}
+	
+	private int getLength(int packet)
+	{
+		return index.getInt(UniRecording.getEntryOffset(packet) + UniRecording.ENTRY_LENGTH);
+	}
+	
+	private static MappedByteBuffer map(File file) throws IOException
+	{
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try
+		{
+			return raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+		}
+		finally
+		{
+			raf.close();
+		}
+	}
+}
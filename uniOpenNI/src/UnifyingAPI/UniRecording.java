@@ -0,0 +1,167 @@
+/**************************************************************
+ This file is part of Kinect Sensor Architecture Development Project.
+
+    Kinect Sensor Architecture Development Project is free software:
+	you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Kinect Sensor Architecture Development Project is distributed in
+	the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with Kinect Sensor Architecture Development Project.  If
+	not, see <http://www.gnu.org/licenses/>.
+**************************************************************/
+/**************************************************************
+The work was done in joint collaboration with Cisco Systems Inc.
+Copyright © 2012, Cisco Systems, Inc. and UCLA
+*************************************************************/
+
+package UnifyingAPI;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * The layout of a recording of sensor packets. A recording is a directory 
+ * holding an index file and numbered segment files. The segments hold the 
+ * sensor packets back to back. The index starts with a header holding the 
+ * time the recording started and the device's sensor header, followed by 
+ * one fixed-size entry per packet giving the time the packet was recorded, 
+ * its segment, its offset in the segment and its length. Entries are in 
+ * the order packets were recorded, so their times only increase and a 
+ * packet is found by binary search.
+ */
+final class UniRecording {
+	static final int MAGIC = 0x554E4958;	// "UNIX"
+	static final int VERSION = 1;
+	static final String INDEX_FILE = "index";
+	
+	// Index header
+	static final int HEADER_SIZE = 288;
+	private static final int MAGIC_OFFSET = 0;
+	private static final int VERSION_OFFSET = 4;
+	private static final int START_MILLIS_OFFSET = 8;
+	private static final int SENSOR_HEADER_SIZE_OFFSET = 16;
+	private static final int SENSOR_HEADER_OFFSET = 24;
+	static final int MAX_SENSOR_HEADER_SIZE = HEADER_SIZE - SENSOR_HEADER_OFFSET;
+	
+	// Index entry
+	static final int ENTRY_SIZE = 24;
+	static final int ENTRY_TIME = 0;
+	static final int ENTRY_OFFSET = 8;
+	static final int ENTRY_SEGMENT = 16;
+	static final int ENTRY_LENGTH = 20;
+	
+	private UniRecording()
+	{
+	}
+	
+	/**
+	 * Retrieves the file of a segment.
+	 * @param directory the recording's directory
+	 * @param segment the number of the segment
+	 * @return the segment's file
+	 */
+	static File getSegmentFile(File directory, int segment)
+	{
+		return new File(directory, String.format("segment-%05d", segment));
+	}
+	
+	/**
+	 * Packs the index header.
+	 * @param startMillis the wall clock time the recording started
+	 * @param sensorHeader the device's sensor header
+	 * @return the header, ready to be written
+	 * @throws IllegalArgumentException if the sensor header is too large
+	 */
+	static ByteBuffer packHeader(long startMillis, byte[] sensorHeader) throws IllegalArgumentException
+	{
+		if (sensorHeader.length > MAX_SENSOR_HEADER_SIZE)
+		{
+			String message = String.format("Sensor header of %d bytes does not fit in %d bytes\n", 
+					sensorHeader.length, MAX_SENSOR_HEADER_SIZE);
+			throw new IllegalArgumentException(message);
+		}
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		header.putInt(MAGIC_OFFSET, MAGIC);
+		header.putInt(VERSION_OFFSET, VERSION);
+		header.putLong(START_MILLIS_OFFSET, startMillis);
+		header.putInt(SENSOR_HEADER_SIZE_OFFSET, sensorHeader.length);
+		header.position(SENSOR_HEADER_OFFSET);
+		header.put(sensorHeader);
+		header.clear();
+		return header;
+	}
+	
+	/**
+	 * Checks the index header.
+	 * @param index the index, positioned anywhere
+	 * @param directory the recording's directory, for error messages
+	 * @throws IOException if the index is not one of a recording
+	 */
+	static void checkHeader(ByteBuffer index, File directory) throws IOException
+	{
+		if (index.capacity() < HEADER_SIZE || index.getInt(MAGIC_OFFSET) != MAGIC)
+		{
+			throw new IOException(String.format("%s is not a sensor packet recording\n", directory));
+		}
+		if (index.getInt(VERSION_OFFSET) != VERSION)
+		{
+			throw new IOException(String.format("%s has recording version %d, expected %d\n", 
+					directory, index.getInt(VERSION_OFFSET), VERSION));
+		}
+		int size = index.getInt(SENSOR_HEADER_SIZE_OFFSET);
+		if (size < 0 || size > MAX_SENSOR_HEADER_SIZE)
+		{
+			throw new IOException(String.format("%s has an invalid sensor header\n", directory));
+		}
+	}
+	
+	static long getStartMillis(ByteBuffer index)
+	{
+		return index.getLong(START_MILLIS_OFFSET);
+	}
+	
+	static byte[] getSensorHeader(ByteBuffer index)
+	{
+		byte[] sensorHeader = new byte[index.getInt(SENSOR_HEADER_SIZE_OFFSET)];
+		for (int i = 0; i < sensorHeader.length; ++i)
+		{
+			sensorHeader[i] = index.get(SENSOR_HEADER_OFFSET + i);
+		}
+		return sensorHeader;
+	}
+	
+	/**
+	 * Appends an index entry.
+	 * @param entries the buffer to append to, with room for an entry
+	 * @param timeNanos the time the packet was recorded, since the recording started
+	 * @param segment the number of the packet's segment
+	 * @param offset the offset of the packet in the segment
+	 * @param length the length of the packet
+	 */
+	static void putEntry(ByteBuffer entries, long timeNanos, int segment, long offset, int length)
+	{
+		entries.putLong(timeNanos);
+		entries.putLong(offset);
+		entries.putInt(segment);
+		entries.putInt(length);
+	}
+	
+	/**
+	 * Retrieves the byte offset of an entry in the index.
+	 * @param entry the number of the entry
+	 * @return the offset
+	 */
+	static int getEntryOffset(int entry)
+	{
+		return HEADER_SIZE + entry * ENTRY_SIZE;
+	}
+}
@@ -0,0 +1,267 @@
+/**************************************************************
+ This file is part of Kinect Sensor Architecture Development Project.
+
+    Kinect Sensor Architecture Development Project is free software:
+	you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Kinect Sensor Architecture Development Project is distributed in
+	the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with Kinect Sensor Architecture Development Project.  If
+	not, see <http://www.gnu.org/licenses/>.
+**************************************************************/
+/**************************************************************
+The work was done in joint collaboration with Cisco Systems Inc.
+Copyright © 2012, Cisco Systems, Inc. and UCLA
+*************************************************************/
+
+package UnifyingAPI;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+/**
+ * A device on the other end of a network connection, served by a 
+ * {@link UniPacketServer}. Sensor packets are read into pooled direct 
+ * buffers, and the settings a <code>Sensor</code> makes are sent on to the 
+ * served device. A <code>Sensor</code> is constructed from a 
+ * <code>UniRemoteDevice</code> like from a local device.
+ */
+public class UniRemoteDevice implements UniPacketSource {
+	private SocketChannel channel;
+	private byte[] sensorHeader;
+	private UniPacketPool packetPool;
+	private ByteBuffer messageHeader;
+	private Object writeLock;
+	private volatile long receivedPackets;
+	private volatile long receivedBytes;
+	
+	private static final int POOL_SIZE = 4;
+	private static final int MAX_PACKET_SIZE = 1 << 28;
+	
+	/**
+	 * Connects to a <code>UniPacketServer</code> and reads the served 
+	 * device's sensor header.
+	 * @param host the host name or address of the server
+	 * @param port the port the server listens on
+	 * @throws IOException if the connection fails
+	 */
+	public UniRemoteDevice(String host, int port) throws IOException
+	{
+		this(new InetSocketAddress(host, port));
+	}
+	
+	/**
+	 * Connects to a <code>UniPacketServer</code> and reads the served 
+	 * device's sensor header.
+	 * @param address the address of the server
+	 * @throws IOException if the connection fails
+	 */
+	public UniRemoteDevice(InetSocketAddress address) throws IOException
+	{
+		this.packetPool = new UniPacketPool(POOL_SIZE, true);
+		this.messageHeader = ByteBuffer.allocateDirect(UniTransportProtocol.MESSAGE_HEADER_SIZE);
+		this.writeLock = new Object();
+		this.receivedPackets = 0;
+		this.receivedBytes = 0;
+		this.channel = SocketChannel.open(address);
+		try
+		{
+			channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+			int length = readMessageHeader(UniTransportProtocol.SENSOR_HEADER);
+			ByteBuffer header = ByteBuffer.allocate(length);
+			readFully(header);
+			this.sensorHeader = header.array();
+		}
+		catch (IOException e)
+		{
+			channel.close();
+			throw e;
+		}
+	}
+	
+	/**
+	 * Retrieves the sensor packet header of the served device.
+	 * @return the sensor packet header as a byte array
+	 */
+	public byte[] getSensorHeader() { return sensorHeader.clone(); }
+	
+	/**
+	 * Reads the next sensor packet sent by the server, blocking until it 
+	 * has arrived.
+	 * @return the sensor packet, in a pooled direct buffer
+	 * @throws UncheckedIOException if the connection fails or is closed
+	 */
+	public ByteBuffer getSensorPacket() throws UncheckedIOException
+	{
+		try
+		{
+			int length = readMessageHeader(UniTransportProtocol.SENSOR_PACKET);
+			ByteBuffer packet = packetPool.acquire(length);
+			try
+			{
+				readFully(packet);
+			}
+			catch (IOException e)
+			{
+				packetPool.release(packet);
+				throw e;
+			}
+			packet.flip();
+			++receivedPackets;
+			receivedBytes += UniTransportProtocol.MESSAGE_HEADER_SIZE + length;
+			return packet;
+		}
+		catch (IOException e)
+		{
+			throw new UncheckedIOException("Failed to read sensor packet", e);
+		}
+	}
+	
+	public void releaseSensorPacket(ByteBuffer sensorPacket)
+	{
+		packetPool.release(sensorPacket);
+	}
+	
+	public void setSubscription(UniSubscription subscription)
+	{
+		send(UniTransportProtocol.packSubscription(subscription));
+	}
+	
+	public void setLayoutIdsEnabled(boolean enabled)
+	{
+		send(UniTransportProtocol.packControl(UniTransportProtocol.CONTROL_LAYOUT_IDS, enabled ? 1 : 0));
+	}
+	
+	public void resetLayoutIds()
+	{
+		send(UniTransportProtocol.packControl(UniTransportProtocol.CONTROL_RESET_LAYOUT_IDS));
+	}
+	
+	public void setDeltaEncoding(int keyframeInterval) throws IllegalArgumentException
+	{
+		if (keyframeInterval < 0)
+		{
+			String message = String.format("Keyframe interval must not be negative, got %d\n", keyframeInterval);
+			throw new IllegalArgumentException(message);
+		}
+		send(UniTransportProtocol.packControl(UniTransportProtocol.CONTROL_DELTA_ENCODING, keyframeInterval));
+	}
+	
+	public void setCompression(String channelName, boolean compress)
+	{
+		send(UniTransportProtocol.packCompression(channelName, compress));
+	}
+	
+	public void requestKeyframe()
+	{
+		send(UniTransportProtocol.packControl(UniTransportProtocol.CONTROL_KEYFRAME));
+	}
+	
+	/**
+	 * Retrieves the pool sensor packets are read into.
+	 * @return the packet pool
+	 */
+	public UniPacketPool getPacketPool() { return packetPool; }
+	
+	/**
+	 * Retrieves the number of sensor packets received.
+	 * @return the number of packets
+	 */
+	public long getReceivedPackets() { return receivedPackets; }
+	
+	/**
+	 * Retrieves the number of bytes of sensor packets received, including 
+	 * message headers.
+	 * @return the number of bytes
+	 */
+	public long getReceivedBytes() { return receivedBytes; }
+	
+	/**
+	 * Closes the connection. A thread waiting for a packet gets an error.
+	 */
+	public void close()
+	{
+		try
+		{
+			channel.close();
+		}
+		catch (IOException e)
+		{
+			// Nothing left to do
+		}
+	}
+	
+	/**
+	 * Reads message headers until one of the given type arrives, skipping 
+	 * messages of other types.
+	 * @param type the message type wanted
+	 * @return the payload length of the message
+	 */
+	private int readMessageHeader(byte type) throws IOException
+	{
+		while (true)
+		{
+			messageHeader.clear();
+			readFully(messageHeader);
+			messageHeader.flip();
+			byte messageType = messageHeader.get();
+			int length = messageHeader.getInt();
+			if (length < 0 || length > MAX_PACKET_SIZE)
+			{
+				throw new IOException(String.format("Invalid message length %d\n", length));
+			}
+			if (messageType == type)
+			{
+				return length;
+			}
+			readFully(ByteBuffer.allocate(length));
+		}
+	}
+	
+	private void readFully(ByteBuffer buffer) throws IOException
+	{
+		while (buffer.hasRemaining())
+		{
+			if (channel.read(buffer) < 0)
+			{
+				throw new EOFException("The server closed the connection");
+			}
+		}
+	}
+	
+	/**
+	 * Writes a control message to the server.
+	 * @param message the message
+	 * @throws UncheckedIOException if the connection fails
+	 */
+	private void send(ByteBuffer message) throws UncheckedIOException
+	{
+		synchronized (writeLock)
+		{
+			try
+			{
+				while (message.hasRemaining())
+				{
+					channel.write(message);
+				}
+			}
+			catch (IOException e)
+			{
+				throw new UncheckedIOException("Failed to send control message", e);
+			}
+		}
+	}
+}
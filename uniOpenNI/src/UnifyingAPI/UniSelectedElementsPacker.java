@@ -0,0 +1,175 @@
+/**************************************************************
+ This file is part of Kinect Sensor Architecture Development Project.
+
+    Kinect Sensor Architecture Development Project is free software:
+	you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Kinect Sensor Architecture Development Project is distributed in
+	the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with Kinect Sensor Architecture Development Project.  If
+	not, see <http://www.gnu.org/licenses/>.
+**************************************************************/
+/**************************************************************
+The work was done in joint collaboration with Cisco Systems Inc.
+Copyright © 2012, Cisco Systems, Inc. and UCLA
+*************************************************************/
+
+package UnifyingAPI;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Packs a subset of the tuple elements of a channel. The channel's own packer
+ * writes its full tuples into a scratch buffer, and the selected elements are
+ * then copied from it into the sensor packet, one run of adjacent selected 
+ * elements at a time. Elements of bit-packed channels are gathered bit by 
+ * bit. A packer is built once per channel layout and subscription and is 
+ * handed the channel's current packer before each packet.
+ */
+class UniSelectedElementsPacker implements UniDataPacker {
+	private UniDataPacker packer;	// Packer of the full channel
+	private UniChannelHeader header;	// Header of the selected elements
+	private ByteBuffer scratch;		// Holds the full tuples
+	private long numTuples;
+	private int tupleSize;			// Size of a full tuple in bytes
+	private int[] runOffsets;		// Offset of each run of adjacent selected elements in a full tuple
+	private int[] runSizes;			// Size of each run in bytes
+	private boolean bitPacked;		// True if the full channel is bit-packed
+	private long tupleBits;			// Size of a full tuple in bits
+	private long[] bitOffsets;		// Offset in bits of each selected element in a full tuple
+	private int[] bitSizes;			// Size of each selected element in bits
+
+	/**
+	 * Construct a packer for the given elements of a channel.
+	 * @param fullHeader the header of the full channel
+	 * @param elements the 0-based indices of the elements to pack, all of 
+	 * them elements of the channel
+	 */
+	UniSelectedElementsPacker(UniChannelHeader fullHeader, int[] elements)
+	{
+		UniElementDescriptor descriptors[] = fullHeader.getElementDescriptors();
+		int[] elementOffsets = new int[descriptors.length];
+		tupleSize = 0;
+		for (int i = 0; i < descriptors.length; ++i)
+		{
+			elementOffsets[i] = tupleSize;
+			tupleSize += descriptors[i].getPackedSizeInBytes();
+		}
+
+		// Adjacent selected elements are copied together
+		int numRuns = 0;
+		for (int i = 0; i < elements.length; ++i)
+		{
+			if (i == 0 || elements[i] != elements[i - 1] + 1)
+			{
+				++numRuns;
+			}
+		}
+		runOffsets = new int[numRuns];
+		runSizes = new int[numRuns];
+		int run = -1;
+		for (int i = 0; i < elements.length; ++i)
+		{
+			if (i == 0 || elements[i] != elements[i - 1] + 1)
+			{
+				runOffsets[++run] = elementOffsets[elements[i]];
+			}
+			runSizes[run] += descriptors[elements[i]].getPackedSizeInBytes();
+		}
+
+		bitPacked = fullHeader.isBitPacked();
+		long[] elementBitOffsets = new long[descriptors.length];
+		tupleBits = 0;
+		for (int i = 0; i < descriptors.length; ++i)
+		{
+			elementBitOffsets[i] = tupleBits;
+			tupleBits += descriptors[i].getSizeInBits();
+		}
+		bitOffsets = new long[elements.length];
+		bitSizes = new int[elements.length];
+		for (int i = 0; i < elements.length; ++i)
+		{
+			bitOffsets[i] = elementBitOffsets[elements[i]];
+			bitSizes[i] = descriptors[elements[i]].getSizeInBits();
+		}
+
+		UniElementDescriptor selectedDescriptors[] = new UniElementDescriptor[elements.length];
+		for (int i = 0; i < elements.length; ++i)
+		{
+			selectedDescriptors[i] = descriptors[elements[i]];
+		}
+		this.header = new UniChannelHeader(fullHeader.getNumberTuples(), 
+				fullHeader.getFrequency(), selectedDescriptors, fullHeader.getName());
+		this.scratch = ByteBuffer.allocate((int) fullHeader.getPackedDataSize());
+		this.numTuples = fullHeader.getNumberTuples();
+	}
+	
+	/**
+	 * Retrieves the header of the channel carrying the selected elements.
+	 * @return the header of the selected elements
+	 */
+	UniChannelHeader getHeader() { return header; }
+	
+	/**
+	 * Sets the packer of the full channel for the next packet.
+	 * @param packer the packer writing the full tuples
+	 */
+	void setPacker(UniDataPacker packer) { this.packer = packer; }
+
+	public void writeDataIntoByteBuffer(ByteBuffer buffer)
+	{
+		scratch.clear();
+		packer.writeDataIntoByteBuffer(scratch);
+		if (bitPacked)
+		{
+			gatherBits(buffer);
+			return;
+		}
+
+		byte[] tuples = scratch.array();
+		int tupleIndex = 0;
+		for (long tupleCount = 0; tupleCount < numTuples; ++tupleCount)
+		{
+			for (int run = 0; run < runOffsets.length; ++run)
+			{
+				buffer.put(tuples, tupleIndex + runOffsets[run], runSizes[run]);
+			}
+			tupleIndex += tupleSize;
+		}
+	}
+
+	/**
+	 * Gathers the selected elements of bit-packed tuples. The selected 
+	 * elements are written bit-packed too, which is the same as whole bytes
+	 * if none of them is sized in bits.
+	 */
+	private void gatherBits(ByteBuffer buffer)
+	{
+		UniBitReader reader = new UniBitReader(scratch, 0, 0);
+		UniBitWriter writer = new UniBitWriter(buffer);
+		long tupleStart = 0;
+		for (long tupleCount = 0; tupleCount < numTuples; ++tupleCount)
+		{
+			for (int element = 0; element < bitOffsets.length; ++element)
+			{
+				reader.seek(tupleStart + bitOffsets[element]);
+				int size = bitSizes[element];
+				for (; size > 64; size -= 8)
+				{
+					writer.write(reader.read(8), 8);
+				}
+				writer.write(reader.read(size), size);
+			}
+			tupleStart += tupleBits;
+		}
+		writer.flush();
+	}
+}
@@ -32,7 +32,26 @@ import java.nio.ByteBuffer;
  *
  */
 class UniSensorHeader {
+		/**
+		 * Flag set when every channel starts with a channel layout id. A full 
+		 * channel header only follows the id the first time the id is used.
+		 */
+		static final byte FLAG_LAYOUT_IDS = 0x01;
+		
+		/**
+		 * Flag set when the data of every channel is preceded by a codec byte,
+		 * the channel's frame number and the size of the encoded data. See 
+		 * <code>UniChannelEncoder</code>.
+		 */
+		static final byte FLAG_CHANNEL_CODECS = 0x02;
+		
+		/**
+		 * Index of the flags byte in a sensor packet, after the version.
+		 */
+		static final int FLAGS_INDEX = 1;
+		
 		private byte version;
+		private byte flags;
 		private short vendorID;
 		private short productID;
 		private short numChannels;
@@ -46,6 +65,24 @@ class UniSensorHeader {
 		 */
 		public byte getVersion() { return version; }
 		
+		/**
+		 * Retrieves the flags describing how the channels in the sensor packet are packed.
+		 * @return the packing flags
+		 */
+		public byte getFlags() { return flags; }
+		
+		/**
+		 * Tells whether the channels in the sensor packet are preceded by channel layout ids.
+		 * @return true if the packet uses channel layout ids
+		 */
+		public boolean hasLayoutIds() { return (flags & FLAG_LAYOUT_IDS) != 0; }
+		
+		/**
+		 * Tells whether the data of the channels in the sensor packet is encoded.
+		 * @return true if each channel's data starts with its codec
+		 */
+		public boolean hasChannelCodecs() { return (flags & FLAG_CHANNEL_CODECS) != 0; }
+		
 		/**
 		 * Retrieves the vendor ID of the device.
 		 * @return the vendor ID of the device
@@ -90,7 +127,7 @@ class UniSensorHeader {
 		 */
 		public UniSensorHeader(ByteBuffer sensorPacket) {
 			version = sensorPacket.get();
-			sensorPacket.get();
+			flags = sensorPacket.get();
 			vendorID = sensorPacket.getShort();
 			productID = sensorPacket.getShort();
 			numChannels = sensorPacket.getShort();
@@ -121,6 +158,18 @@ class UniSensorHeader {
 			this.encryptionFlags = encryptionFlags;
 		}
 		
+		/**
+		 * Updates the per-packet fields so the header can be reused for the next packet.
+		 * @param numChannels the number of channels in the sensor packet
+		 * @param timestamp the timestamp at which the sensor packet was created
+		 * @param flags the flags describing how the channels are packed
+		 */
+		void update(short numChannels, long timestamp, byte flags) {
+			this.numChannels = numChannels;
+			this.timestamp = timestamp;
+			this.flags = flags;
+		}
+		
 		/**
 		 * Write the sensor packet header into a <code>ByteBuffer</code> at the <code>ByteBuffer</code>'s position.
 		 * @param sensorPacket the <code>ByteBuffer</code> to write the sensor packet header into, 
@@ -128,7 +177,7 @@ class UniSensorHeader {
 		 */
 		public boolean packIntoByteBuffer(ByteBuffer sensorPacket) {
 			sensorPacket.put(version);
-			sensorPacket.put((byte)0x00);
+			sensorPacket.put(flags);
 			sensorPacket.putShort(vendorID);
 			sensorPacket.putShort(productID);
 			sensorPacket.putShort(numChannels);
@@ -0,0 +1,354 @@
+/**************************************************************
+ This file is part of Kinect Sensor Architecture Development Project.
+
+    Kinect Sensor Architecture Development Project is free software:
+	you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Kinect Sensor Architecture Development Project is distributed in
+	the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with Kinect Sensor Architecture Development Project.  If
+	not, see <http://www.gnu.org/licenses/>.
+**************************************************************/
+/**************************************************************
+The work was done in joint collaboration with Cisco Systems Inc.
+Copyright © 2012, Cisco Systems, Inc. and UCLA
+*************************************************************/
+
+package UnifyingAPI;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.IdentityHashMap;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A device in another process on the same machine, served by a 
+ * {@link UniSharedMemoryServer} through a memory-mapped ring. Sensor packets 
+ * are returned as views of the ring, so a <code>Sensor</code> reads its 
+ * channels straight from the shared memory without copying them. A packet's 
+ * slot is not reused until the packet is released, so release snapshots 
+ * promptly: the server drops or waits on packets while this consumer holds 
+ * a whole ring.
+ * <p>
+ * The consumer keeps its place in the ring alive with a heartbeat sent from 
+ * a daemon thread. The settings a <code>Sensor</code> makes are posted to 
+ * the server, which applies them to the served device.
+ */
+public class UniSharedMemoryDevice implements UniPacketSource {
+	private UniSharedRing ring;
+	private byte[] sensorHeader;
+	private long owner;
+	private int consumer;
+	private long cursor;			// the next sequence number to read
+	private long released;			// the first sequence number not released
+	private boolean[] releasedSlots;
+	private IdentityHashMap<ByteBuffer, Long> outstanding;
+	private Thread heartbeatThread;
+	private volatile boolean closed;
+	private volatile long receivedPackets;
+	private volatile long receivedBytes;
+	private volatile long resyncs;
+	
+	private static final int SPINS = 200;
+	private static final long MIN_PARK_NANOS = 10000L;
+	private static final long MAX_PARK_NANOS = 200000L;
+	private static final long HEARTBEAT_MILLIS = 250;
+	
+	/**
+	 * Maps a ring created by a <code>UniSharedMemoryServer</code> and joins it
+	 * as a consumer. Packets published from now on are read.
+	 * @param file the ring's file
+	 * @throws IOException if the file cannot be mapped, is not a ring, or the 
+	 * ring already has as many consumers as it allows
+	 */
+	public UniSharedMemoryDevice(File file) throws IOException
+	{
+		this.ring = UniSharedRing.open(file);
+		this.sensorHeader = ring.getSensorHeader();
+		this.owner = (System.nanoTime() ^ ((long) System.identityHashCode(this) << 32)) | 1L;
+		this.releasedSlots = new boolean[ring.getSlotCount()];
+		this.outstanding = new IdentityHashMap<ByteBuffer, Long>();
+		this.closed = false;
+		this.receivedPackets = 0;
+		this.receivedBytes = 0;
+		this.resyncs = 0;
+		try
+		{
+			claim();
+		}
+		catch (UncheckedIOException e)
+		{
+			throw e.getCause();
+		}
+		
+		heartbeatThread = new Thread(new Runnable()
+		{
+			public void run()
+			{
+				beat();
+			}
+		}, "UniSharedMemoryDevice heartbeat");
+		heartbeatThread.setDaemon(true);
+		heartbeatThread.start();
+	}
+	
+	/**
+	 * Retrieves the sensor packet header of the served device.
+	 * @return the sensor packet header as a byte array
+	 */
+	public byte[] getSensorHeader() { return sensorHeader.clone(); }
+	
+	/**
+	 * Retrieves the next sensor packet published in the ring, waiting until 
+	 * it has been published.
+	 * @return a view of the packet in the ring, to be handed back with 
+	 * {@link #releaseSensorPacket(ByteBuffer)}
+	 * @throws UncheckedIOException if the device or the ring is closed
+	 */
+	public ByteBuffer getSensorPacket() throws UncheckedIOException
+	{
+		int idle = 0;
+		while (true)
+		{
+			synchronized (this)
+			{
+				if (closed)
+				{
+					throw new UncheckedIOException(new EOFException("The device is closed"));
+				}
+				if (ring.getOwner(consumer) != owner)
+				{
+					// Dropped by the server, so the packets held may have been overwritten
+					claim();
+					++resyncs;
+				}
+				if (cursor < ring.getPublished())
+				{
+					ByteBuffer packet = ring.getPacket(cursor);
+					if (packet == null)
+					{
+						// Overwritten before it was read, only after a resync
+						release(cursor);
+						++cursor;
+						continue;
+					}
+					outstanding.put(packet, cursor);
+					++cursor;
+					++receivedPackets;
+					receivedBytes += packet.remaining();
+					return packet;
+				}
+				if (ring.isClosed())
+				{
+					throw new UncheckedIOException(new EOFException("The server closed the ring"));
+				}
+			}
+			
+			// Spin briefly for a packet that is about to arrive, then back off
+			if (idle < SPINS)
+			{
+				Thread.onSpinWait();
+			}
+			else
+			{
+				LockSupport.parkNanos(Math.min(MAX_PARK_NANOS, MIN_PARK_NANOS << Math.min(idle - SPINS, 5)));
+			}
+			++idle;
+		}
+	}
+	
+	/**
+	 * Hands a packet back to the ring. Packets may be released in any order; 
+	 * a slot is reused once it and every older packet have been released.
+	 * @param sensorPacket a packet returned by {@link #getSensorPacket()}
+	 */
+	public synchronized void releaseSensorPacket(ByteBuffer sensorPacket)
+	{
+		Long sequence = outstanding.remove(sensorPacket);
+		if (sequence != null)
+		{
+			release(sequence.longValue());
+		}
+	}
+	
+	public void setSubscription(UniSubscription subscription)
+	{
+		post(UniTransportProtocol.packSubscription(subscription));
+	}
+	
+	public void setLayoutIdsEnabled(boolean enabled)
+	{
+		post(UniTransportProtocol.packControl(UniTransportProtocol.CONTROL_LAYOUT_IDS, enabled ? 1 : 0));
+	}
+	
+	public synchronized void resetLayoutIds()
+	{
+		ring.addRequests(consumer, UniSharedRing.REQUEST_RESET_LAYOUT_IDS);
+	}
+	
+	public void setDeltaEncoding(int keyframeInterval) throws IllegalArgumentException
+	{
+		if (keyframeInterval < 0)
+		{
+			String message = String.format("Keyframe interval must not be negative, got %d\n", keyframeInterval);
+			throw new IllegalArgumentException(message);
+		}
+		post(UniTransportProtocol.packControl(UniTransportProtocol.CONTROL_DELTA_ENCODING, keyframeInterval));
+	}
+	
+	public void setCompression(String channelName, boolean compress)
+	{
+		post(UniTransportProtocol.packCompression(channelName, compress));
+	}
+	
+	public synchronized void requestKeyframe()
+	{
+		ring.addRequests(consumer, UniSharedRing.REQUEST_KEYFRAME);
+	}
+	
+	/**
+	 * Retrieves the number of sensor packets read from the ring.
+	 * @return the number of packets
+	 */
+	public long getReceivedPackets() { return receivedPackets; }
+	
+	/**
+	 * Retrieves the number of bytes of sensor packets read from the ring.
+	 * @return the number of bytes
+	 */
+	public long getReceivedBytes() { return receivedBytes; }
+	
+	/**
+	 * Retrieves the number of times the server dropped this consumer, for 
+	 * example after its heartbeat stalled, and the consumer joined again. 
+	 * Packets held at the time may have been overwritten.
+	 * @return the number of times the consumer joined again
+	 */
+	public long getResyncs() { return resyncs; }
+	
+	/**
+	 * Leaves the ring. A thread waiting for a packet gets an error. Packets 
+	 * still held may be overwritten once the device is closed.
+	 */
+	public void close()
+	{
+		synchronized (this)
+		{
+			if (closed)
+			{
+				return;
+			}
+			closed = true;
+			ring.freeConsumer(consumer, owner);
+			outstanding.clear();
+		}
+		heartbeatThread.interrupt();
+	}
+	
+	/**
+	 * Claims a consumer record and starts reading from the next packet 
+	 * published.
+	 */
+	private void claim() throws UncheckedIOException
+	{
+		consumer = ring.claimConsumer(owner);
+		if (consumer < 0)
+		{
+			String message = String.format("The ring already has %d consumers\n", ring.getMaxConsumers());
+			throw new UncheckedIOException(new IOException(message));
+		}
+		cursor = ring.getReleased(consumer);
+		released = cursor;
+		outstanding.clear();
+		for (int i = 0; i < releasedSlots.length; ++i)
+		{
+			releasedSlots[i] = false;
+		}
+		ring.addRequests(consumer, UniSharedRing.REQUEST_RESET_LAYOUT_IDS | UniSharedRing.REQUEST_KEYFRAME);
+	}
+	
+	/**
+	 * Marks a packet released and moves the consumer's released sequence 
+	 * number past every packet released in order.
+	 */
+	private void release(long sequence)
+	{
+		if (sequence < released)
+		{
+			return;	// from before a resync
+		}
+		releasedSlots[(int) (sequence % releasedSlots.length)] = true;
+		long first = released;
+		while (released < cursor && releasedSlots[(int) (released % releasedSlots.length)])
+		{
+			releasedSlots[(int) (released % releasedSlots.length)] = false;
+			++released;
+		}
+		if (released != first)
+		{
+			ring.setReleased(consumer, released);
+		}
+	}
+	
+	/**
+	 * Posts a control message, waiting for the server to take the previous 
+	 * one.
+	 * @throws UncheckedIOException if the device or the ring is closed
+	 */
+	private void post(ByteBuffer message) throws UncheckedIOException
+	{
+		while (true)
+		{
+			synchronized (this)
+			{
+				if (closed || ring.isClosed())
+				{
+					throw new UncheckedIOException(new EOFException("Failed to send control message, " +
+							"the ring is closed"));
+				}
+				if (ring.postControl(consumer, message))
+				{
+					return;
+				}
+			}
+			LockSupport.parkNanos(MAX_PARK_NANOS);
+		}
+	}
+	
+	/**
+	 * Sends heartbeats until the device is closed. Runs on the heartbeat 
+	 * thread.
+	 */
+	private void beat()
+	{
+		while (!closed)
+		{
+			synchronized (this)
+			{
+				if (!closed && ring.getOwner(consumer) == owner)
+				{
+					ring.setHeartbeat(consumer, System.currentTimeMillis());
+				}
+			}
+			try
+			{
+				Thread.sleep(HEARTBEAT_MILLIS);
+			}
+			catch (InterruptedException e)
+			{
+				return;
+			}
+		}
+	}
+}
@@ -0,0 +1,381 @@
+/**************************************************************
+ This file is part of Kinect Sensor Architecture Development Project.
+
+    Kinect Sensor Architecture Development Project is free software:
+	you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Kinect Sensor Architecture Development Project is distributed in
+	the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with Kinect Sensor Architecture Development Project.  If
+	not, see <http://www.gnu.org/licenses/>.
+**************************************************************/
+/**************************************************************
+The work was done in joint collaboration with Cisco Systems Inc.
+Copyright © 2012, Cisco Systems, Inc. and UCLA
+*************************************************************/
+
+package UnifyingAPI;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Serves the sensor packets of a device to consumers in other processes on 
+ * the same machine through a ring in a memory-mapped file. Consumers map the
+ * file with a {@link UniSharedMemoryDevice}. Each packet is copied once, 
+ * into its slot of the ring, and consumers read it in place. 
+ * <p>
+ * A slot is only written once every live consumer has released the packet 
+ * in it, so a consumer's snapshots stay valid for as long as it holds them.
+ * When a consumer falls behind by a whole ring the newest packet is either 
+ * dropped or waited on, as chosen with a {@link UniOverflowPolicy}; the 
+ * oldest packet cannot be dropped because a consumer may still be reading 
+ * it. A consumer that stops sending heartbeats, for example because its 
+ * process died, is dropped from the ring. Like with a 
+ * {@link UniPacketServer}, the device's settings are shared by every 
+ * consumer.
+ */
+public class UniSharedMemoryServer {
+	private UniPacketSource device;
+	private UniSharedRing ring;
+	private UniOverflowPolicy policy;
+	private Thread acquisitionThread;
+	private volatile boolean closed;
+	private volatile int numClients;			// only written by the acquisition thread
+	private volatile long sentPackets;			// only written by the acquisition thread
+	private volatile long droppedPackets;		// only written by the acquisition thread
+	private volatile long oversizedPackets;		// only written by the acquisition thread
+	private volatile Throwable acquisitionError;
+	private long nextSequence;
+	
+	private static final int DEFAULT_SLOT_COUNT = 8;
+	private static final int DEFAULT_MAX_CONSUMERS = 8;
+	private static final long IDLE_NANOS = 10000000L;		// polling for consumers
+	private static final long BLOCKED_NANOS = 50000L;		// polling for a free slot
+	
+	/**
+	 * The milliseconds a consumer may go without a heartbeat before it is 
+	 * dropped from the ring.
+	 */
+	public static final long CONSUMER_TIMEOUT_MILLIS = 2000;
+	
+	/**
+	 * Constructs a server with a ring of 8 slots, dropping the newest packet 
+	 * when a consumer falls behind. Packets are not served until 
+	 * {@link #start()} is called.
+	 * @param device the device whose packets are served
+	 * @param file the file to create the ring in, replacing any existing file
+	 * @param slotSize the largest sensor packet served, in bytes
+	 * @throws IOException if the file cannot be created
+	 * @throws IllegalArgumentException if the slot size is less than 1
+	 */
+	public UniSharedMemoryServer(UniPacketSource device, File file, int slotSize) 
+			throws IOException, IllegalArgumentException
+	{
+		this(device, file, DEFAULT_SLOT_COUNT, slotSize, DEFAULT_MAX_CONSUMERS, UniOverflowPolicy.DROP_NEWEST);
+	}
+	
+	/**
+	 * Constructs a server. Packets are not served until {@link #start()} is 
+	 * called.
+	 * @param device the device whose packets are served
+	 * @param file the file to create the ring in, replacing any existing file
+	 * @param slotCount the number of packets in the ring
+	 * @param slotSize the largest sensor packet served, in bytes. Larger 
+	 * packets are dropped.
+	 * @param maxConsumers the largest number of consumers at once
+	 * @param policy what to do with a packet when a consumer is a whole ring 
+	 * behind, either <code>DROP_NEWEST</code> or <code>BLOCK</code>
+	 * @throws IOException if the file cannot be created
+	 * @throws IllegalArgumentException if a size is less than 1 or the policy 
+	 * is <code>DROP_OLDEST</code>
+	 */
+	public UniSharedMemoryServer(UniPacketSource device, File file, int slotCount, int slotSize, 
+			int maxConsumers, UniOverflowPolicy policy) throws IOException, IllegalArgumentException
+	{
+		if (policy == UniOverflowPolicy.DROP_OLDEST)
+		{
+			String message = String.format("Policy %s would overwrite packets consumers are reading\n", policy);
+			throw new IllegalArgumentException(message);
+		}
+		this.device = device;
+		this.policy = policy;
+		this.closed = false;
+		this.numClients = 0;
+		this.sentPackets = 0;
+		this.droppedPackets = 0;
+		this.oversizedPackets = 0;
+		this.acquisitionError = null;
+		this.nextSequence = 0;
+		this.ring = UniSharedRing.create(file, slotCount, slotSize, maxConsumers, device.getSensorHeader());
+	}
+	
+	/**
+	 * Starts serving packets. The device is only asked for packets while at 
+	 * least one consumer has mapped the ring.
+	 */
+	public synchronized void start()
+	{
+		if (acquisitionThread != null || closed)
+		{
+			return;
+		}
+		acquisitionThread = new Thread(new Runnable()
+		{
+			public void run()
+			{
+				acquire();
+			}
+		}, "UniSharedMemoryServer acquisition");
+		acquisitionThread.setDaemon(true);
+		acquisitionThread.start();
+	}
+	
+	/**
+	 * Stops serving packets and marks the ring closed. Consumers get an error
+	 * once they have read the packets already published. Waits for the 
+	 * device to return the packet it is building.
+	 */
+	public void close()
+	{
+		Thread toJoin;
+		synchronized (this)
+		{
+			if (closed)
+			{
+				return;
+			}
+			closed = true;
+			toJoin = acquisitionThread;
+		}
+		if (toJoin != null)
+		{
+			toJoin.interrupt();
+			join(toJoin);
+		}
+		ring.close();
+	}
+	
+	/**
+	 * Retrieves the number of consumers that have mapped the ring.
+	 * @return the number of consumers
+	 */
+	public int getNumberOfClients() { return numClients; }
+	
+	/**
+	 * Retrieves the number of packets published in the ring. Each is read 
+	 * by every consumer.
+	 * @return the number of packets published
+	 */
+	public long getSentPackets() { return sentPackets; }
+	
+	/**
+	 * Retrieves the number of packets dropped because a consumer was a whole
+	 * ring behind.
+	 * @return the number of packets dropped
+	 */
+	public long getDroppedPackets() { return droppedPackets; }
+	
+	/**
+	 * Retrieves the number of packets dropped because they were larger than 
+	 * a slot.
+	 * @return the number of packets dropped
+	 */
+	public long getOversizedPackets() { return oversizedPackets; }
+	
+	/**
+	 * Retrieves the error that stopped the server from retrieving packets.
+	 * @return the error, <code>null</code> if there was none
+	 */
+	public Throwable getAcquisitionError() { return acquisitionError; }
+	
+	/**
+	 * Retrieves packets from the device and publishes them while consumers 
+	 * have mapped the ring. Runs on the acquisition thread.
+	 */
+	private void acquire()
+	{
+		try
+		{
+			while (!closed)
+			{
+				if (serviceConsumers() == Long.MAX_VALUE)
+				{
+					LockSupport.parkNanos(IDLE_NANOS);
+					continue;
+				}
+				
+				ByteBuffer packet = device.getSensorPacket();
+				try
+				{
+					publish(packet);
+				}
+				finally
+				{
+					device.releaseSensorPacket(packet);
+				}
+			}
+		}
+		catch (RuntimeException e)
+		{
+			if (!closed)
+			{
+				acquisitionError = e;
+			}
+		}
+		finally
+		{
+			ring.close();
+		}
+	}
+	
+	/**
+	 * Copies a packet into the next slot once every consumer has released 
+	 * the packet in it, or drops it. A dropped packet may have defined layout
+	 * ids or held the frame later deltas are taken from, so the device is 
+	 * asked to send full headers and a keyframe again.
+	 */
+	private void publish(ByteBuffer packet)
+	{
+		if (packet.remaining() > ring.getSlotSize())
+		{
+			++oversizedPackets;
+			resendState();
+			return;
+		}
+		while (nextSequence - serviceConsumers() >= ring.getSlotCount())
+		{
+			if (policy == UniOverflowPolicy.DROP_NEWEST || closed)
+			{
+				++droppedPackets;
+				resendState();
+				return;
+			}
+			LockSupport.parkNanos(BLOCKED_NANOS);
+		}
+		ring.publish(packet, nextSequence);
+		++nextSequence;
+		++sentPackets;
+	}
+	
+	/**
+	 * Asks the device to send what consumers of a dropped packet are missing.
+	 */
+	private void resendState()
+	{
+		device.resetLayoutIds();
+		device.requestKeyframe();
+	}
+	
+	/**
+	 * Passes the consumers' requests and control messages on to the device, 
+	 * drops consumers whose heartbeat has stopped and finds the oldest packet
+	 * still held.
+	 * @return the lowest released sequence number of the live consumers, 
+	 * <code>Long.MAX_VALUE</code> if there are none
+	 */
+	private long serviceConsumers()
+	{
+		long now = System.currentTimeMillis();
+		long minReleased = Long.MAX_VALUE;
+		int live = 0;
+		for (int consumer = 0; consumer < ring.getMaxConsumers(); ++consumer)
+		{
+			long owner = ring.getOwner(consumer);
+			if (owner == 0)
+			{
+				continue;
+			}
+			long heartbeat = ring.getHeartbeat(consumer);
+			if (heartbeat == 0)
+			{
+				continue;	// being claimed or freed
+			}
+			if (now - heartbeat > CONSUMER_TIMEOUT_MILLIS)
+			{
+				ring.freeConsumer(consumer, owner);
+				continue;
+			}
+			
+			long requests = ring.takeRequests(consumer);
+			if ((requests & UniSharedRing.REQUEST_RESET_LAYOUT_IDS) != 0)
+			{
+				device.resetLayoutIds();
+			}
+			if ((requests & UniSharedRing.REQUEST_KEYFRAME) != 0)
+			{
+				device.requestKeyframe();
+			}
+			ByteBuffer control = ring.takeControl(consumer);
+			if (control != null)
+			{
+				applyControl(control);
+			}
+			
+			minReleased = Math.min(minReleased, ring.getReleased(consumer));
+			++live;
+		}
+		numClients = live;
+		return minReleased;
+	}
+	
+	/**
+	 * Applies a control message, ignoring it if it is invalid.
+	 * @param message the message, starting with its message header
+	 */
+	private void applyControl(ByteBuffer message)
+	{
+		if (message.remaining() < UniTransportProtocol.MESSAGE_HEADER_SIZE)
+		{
+			return;
+		}
+		byte type = message.get();
+		int length = message.getInt();
+		if (length != message.remaining())
+		{
+			return;
+		}
+		try
+		{
+			UniTransportProtocol.applyControl(device, type, message);
+		}
+		catch (IllegalArgumentException e)
+		{
+			// A consumer's bad message is not the device's error
+		}
+	}
+	
+	private static void join(Thread thread)
+	{
+		if (thread == Thread.currentThread())
+		{
+			return;
+		}
+		boolean interrupted = false;
+		while (thread.isAlive())
+		{
+			try
+			{
+				thread.join();
+			}
+			catch (InterruptedException e)
+			{
+				interrupted = true;
+			}
+		}
+		if (interrupted)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+}
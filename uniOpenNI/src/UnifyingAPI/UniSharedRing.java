@@ -0,0 +1,432 @@
+/**************************************************************
+ This file is part of Kinect Sensor Architecture Development Project.
+
+    Kinect Sensor Architecture Development Project is free software:
+	you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Kinect Sensor Architecture Development Project is distributed in
+	the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with Kinect Sensor Architecture Development Project.  If
+	not, see <http://www.gnu.org/licenses/>.
+**************************************************************/
+/**************************************************************
+The work was done in joint collaboration with Cisco Systems Inc.
+Copyright © 2012, Cisco Systems, Inc. and UCLA
+*************************************************************/
+
+package UnifyingAPI;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A ring of sensor packets in a memory-mapped file, shared between one 
+ * producer process and several consumer processes. The file starts with a 
+ * header holding the ring's geometry, the device's sensor header and the 
+ * number of packets published, followed by one record per consumer and 
+ * then the packet slots. Counters are read and written through a 
+ * <code>VarHandle</code> with acquire and release ordering, so a slot's 
+ * data is visible to a consumer once it sees the slot's sequence number.
+ * <p>
+ * A consumer record holds its owner token, the sequence number of the 
+ * first packet it has not released, a heartbeat, the requests it has for 
+ * the device and a mailbox for one control message. A record only counts 
+ * once its heartbeat is set, and the producer never writes a slot a live 
+ * consumer has not released.
+ */
+final class UniSharedRing {
+	static final int MAGIC = 0x554E4952;	// "UNIR"
+	static final int VERSION = 1;
+	static final int MAX_SENSOR_HEADER_SIZE = 256;
+	
+	// Ring header
+	private static final int MAGIC_OFFSET = 0;
+	private static final int VERSION_OFFSET = 4;
+	private static final int SLOT_COUNT_OFFSET = 8;
+	private static final int SLOT_SIZE_OFFSET = 12;
+	private static final int MAX_CONSUMERS_OFFSET = 16;
+	private static final int SENSOR_HEADER_SIZE_OFFSET = 20;
+	private static final int GENERATION_OFFSET = 24;
+	private static final int PUBLISHED_OFFSET = 32;
+	private static final int CLOSED_OFFSET = 40;
+	private static final int SENSOR_HEADER_OFFSET = 64;
+	private static final int CONSUMERS_OFFSET = SENSOR_HEADER_OFFSET + MAX_SENSOR_HEADER_SIZE;
+	
+	// Consumer record
+	private static final int CONSUMER_SIZE = 4096;
+	private static final int OWNER = 0;
+	private static final int RELEASED = 8;
+	private static final int HEARTBEAT = 16;
+	private static final int REQUESTS = 24;
+	private static final int MAILBOX_STATE = 32;
+	private static final int MAILBOX_LENGTH = 40;
+	private static final int MAILBOX_DATA = 48;
+	
+	/**
+	 * The largest control message a consumer can post.
+	 */
+	static final int MAX_CONTROL_SIZE = CONSUMER_SIZE - MAILBOX_DATA;
+	
+	// Slot
+	private static final int SLOT_HEADER_SIZE = 16;
+	private static final int SLOT_SEQUENCE = 0;
+	private static final int SLOT_LENGTH = 8;
+	
+	/**
+	 * Request bits a consumer sets for the producer to pass on to the device.
+	 */
+	static final long REQUEST_KEYFRAME = 0x01;
+	static final long REQUEST_RESET_LAYOUT_IDS = 0x02;
+	
+	private static final VarHandle LONGS = 
+			MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+	
+	private MappedByteBuffer mapping;
+	private int slotCount;
+	private int slotSize;
+	private int slotStride;
+	private int maxConsumers;
+	private int slotsOffset;
+	
+	/**
+	 * Creates the ring file, replacing any existing file, and maps it.
+	 * @param file the file to create
+	 * @param slotCount the number of packet slots
+	 * @param slotSize the largest packet a slot holds, in bytes
+	 * @param maxConsumers the largest number of consumers at once
+	 * @param sensorHeader the device's sensor header
+	 * @return the ring
+	 * @throws IOException if the file cannot be created or mapped
+	 * @throws IllegalArgumentException if a size is out of range
+	 */
+	static UniSharedRing create(File file, int slotCount, int slotSize, int maxConsumers, 
+			byte[] sensorHeader) throws IOException, IllegalArgumentException
+	{
+		if (slotCount < 1 || slotSize < 1 || maxConsumers < 1)
+		{
+			String message = String.format("Slot count, slot size and consumer count must be positive, " +
+					"got %d, %d and %d\n", slotCount, slotSize, maxConsumers);
+			throw new IllegalArgumentException(message);
+		}
+		if (sensorHeader.length > MAX_SENSOR_HEADER_SIZE)
+		{
+			String message = String.format("Sensor header of %d bytes does not fit in %d bytes\n", 
+					sensorHeader.length, MAX_SENSOR_HEADER_SIZE);
+			throw new IllegalArgumentException(message);
+		}
+		
+		UniSharedRing ring = new UniSharedRing(slotCount, slotSize, maxConsumers);
+		long fileSize = (long) ring.slotsOffset + (long) slotCount * ring.slotStride;
+		if (fileSize > Integer.MAX_VALUE)
+		{
+			String message = String.format("Ring of %d bytes is larger than 2 GB\n", fileSize);
+			throw new IllegalArgumentException(message);
+		}
+		// A new file rather than a truncated one, so consumers still mapping 
+		// an old ring keep valid memory
+		if (file.exists() && !file.delete())
+		{
+			throw new IOException(String.format("Cannot replace %s\n", file));
+		}
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try
+		{
+			raf.setLength(fileSize);
+			ring.mapping = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, fileSize);
+		}
+		finally
+		{
+			raf.close();
+		}
+		
+		ByteBuffer header = ring.mapping;
+		header.putInt(SLOT_COUNT_OFFSET, slotCount);
+		header.putInt(SLOT_SIZE_OFFSET, slotSize);
+		header.putInt(MAX_CONSUMERS_OFFSET, maxConsumers);
+		header.putInt(SENSOR_HEADER_SIZE_OFFSET, sensorHeader.length);
+		for (int i = 0; i < sensorHeader.length; ++i)
+		{
+			header.put(SENSOR_HEADER_OFFSET + i, sensorHeader[i]);
+		}
+		for (int slot = 0; slot < slotCount; ++slot)
+		{
+			LONGS.setRelease(header, ring.getSlotOffset(slot) + SLOT_SEQUENCE, -1L);
+		}
+		LONGS.setRelease(header, GENERATION_OFFSET, System.nanoTime());
+		header.putInt(VERSION_OFFSET, VERSION);
+		// Consumers only trust the file once the magic number is there
+		VarHandle.releaseFence();
+		header.putInt(MAGIC_OFFSET, MAGIC);
+		return ring;
+	}
+	
+	/**
+	 * Maps an existing ring file.
+	 * @param file the file
+	 * @return the ring
+	 * @throws IOException if the file cannot be mapped or is not a ring
+	 */
+	static UniSharedRing open(File file) throws IOException
+	{
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		MappedByteBuffer mapping;
+		try
+		{
+			mapping = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+		}
+		finally
+		{
+			raf.close();
+		}
+		if (mapping.capacity() < CONSUMERS_OFFSET || mapping.getInt(MAGIC_OFFSET) != MAGIC)
+		{
+			throw new IOException(String.format("%s is not a sensor packet ring\n", file));
+		}
+		VarHandle.acquireFence();
+		if (mapping.getInt(VERSION_OFFSET) != VERSION)
+		{
+			throw new IOException(String.format("%s has ring version %d, expected %d\n", 
+					file, mapping.getInt(VERSION_OFFSET), VERSION));
+		}
+		UniSharedRing ring = new UniSharedRing(mapping.getInt(SLOT_COUNT_OFFSET), 
+				mapping.getInt(SLOT_SIZE_OFFSET), mapping.getInt(MAX_CONSUMERS_OFFSET));
+		if ((long) ring.slotsOffset + (long) ring.slotCount * ring.slotStride > mapping.capacity())
+		{
+			throw new IOException(String.format("%s is truncated\n", file));
+		}
+		ring.mapping = mapping;
+		return ring;
+	}
+	
+	private UniSharedRing(int slotCount, int slotSize, int maxConsumers)
+	{
+		this.slotCount = slotCount;
+		this.slotSize = slotSize;
+		this.maxConsumers = maxConsumers;
+		this.slotStride = SLOT_HEADER_SIZE + ((slotSize + 63) & ~63);
+		this.slotsOffset = (CONSUMERS_OFFSET + maxConsumers * CONSUMER_SIZE + 63) & ~63;
+	}
+	
+	int getSlotCount() { return slotCount; }
+	
+	int getSlotSize() { return slotSize; }
+	
+	int getMaxConsumers() { return maxConsumers; }
+	
+	long getGeneration() { return (long) LONGS.getAcquire(mapping, GENERATION_OFFSET); }
+	
+	byte[] getSensorHeader()
+	{
+		byte[] sensorHeader = new byte[mapping.getInt(SENSOR_HEADER_SIZE_OFFSET)];
+		for (int i = 0; i < sensorHeader.length; ++i)
+		{
+			sensorHeader[i] = mapping.get(SENSOR_HEADER_OFFSET + i);
+		}
+		return sensorHeader;
+	}
+	
+	long getPublished() { return (long) LONGS.getAcquire(mapping, PUBLISHED_OFFSET); }
+	
+	boolean isClosed() { return (long) LONGS.getAcquire(mapping, CLOSED_OFFSET) != 0; }
+	
+	void close() { LONGS.setRelease(mapping, CLOSED_OFFSET, 1L); }
+	
+	/**
+	 * Copies a packet into the slot of the next sequence number and publishes
+	 * it. Only called by the producer, once it has checked that no consumer 
+	 * still holds the slot.
+	 * @param packet the packet, from its position to its limit
+	 * @param sequence the sequence number of the packet
+	 */
+	void publish(ByteBuffer packet, long sequence)
+	{
+		int offset = getSlotOffset((int) (sequence % slotCount));
+		LONGS.setRelease(mapping, offset + SLOT_SEQUENCE, -1L);
+		int length = packet.remaining();
+		ByteBuffer data = mapping.duplicate();
+		data.position(offset + SLOT_HEADER_SIZE);
+		data.put(packet.duplicate());
+		mapping.putInt(offset + SLOT_LENGTH, length);
+		LONGS.setRelease(mapping, offset + SLOT_SEQUENCE, sequence);
+		LONGS.setRelease(mapping, PUBLISHED_OFFSET, sequence + 1);
+	}
+	
+	/**
+	 * Retrieves a view of the packet with the given sequence number.
+	 * @param sequence the sequence number
+	 * @return the view, <code>null</code> if the slot holds another packet
+	 */
+	ByteBuffer getPacket(long sequence)
+	{
+		int offset = getSlotOffset((int) (sequence % slotCount));
+		if ((long) LONGS.getAcquire(mapping, offset + SLOT_SEQUENCE) != sequence)
+		{
+			return null;
+		}
+		int length = mapping.getInt(offset + SLOT_LENGTH);
+		ByteBuffer view = mapping.duplicate();
+		view.limit(offset + SLOT_HEADER_SIZE + length);
+		view.position(offset + SLOT_HEADER_SIZE);
+		return view.slice();
+	}
+	
+	/**
+	 * Claims a free consumer record. Its released sequence number is set to 
+	 * the number of packets published, so the consumer starts with the next 
+	 * packet.
+	 * @param owner the token identifying the consumer, not 0
+	 * @return the index of the record, -1 if every record is taken
+	 */
+	int claimConsumer(long owner)
+	{
+		for (int consumer = 0; consumer < maxConsumers; ++consumer)
+		{
+			int offset = getConsumerOffset(consumer);
+			if (LONGS.compareAndSet(mapping, offset + OWNER, 0L, owner))
+			{
+				LONGS.setRelease(mapping, offset + REQUESTS, 0L);
+				LONGS.setRelease(mapping, offset + MAILBOX_STATE, 0L);
+				LONGS.setRelease(mapping, offset + RELEASED, getPublished());
+				// The producer ignores the record until the heartbeat is set
+				LONGS.setRelease(mapping, offset + HEARTBEAT, System.currentTimeMillis());
+				return consumer;
+			}
+		}
+		return -1;
+	}
+	
+	/**
+	 * Frees a consumer record if it is still owned by the given token.
+	 * @param consumer the index of the record
+	 * @param owner the token the record was claimed with
+	 * @return true if the record was freed
+	 */
+	boolean freeConsumer(int consumer, long owner)
+	{
+		int offset = getConsumerOffset(consumer);
+		if ((long) LONGS.getAcquire(mapping, offset + OWNER) != owner)
+		{
+			return false;
+		}
+		LONGS.setRelease(mapping, offset + HEARTBEAT, 0L);
+		return LONGS.compareAndSet(mapping, offset + OWNER, owner, 0L);
+	}
+	
+	long getOwner(int consumer) 
+	{ 
+		return (long) LONGS.getAcquire(mapping, getConsumerOffset(consumer) + OWNER); 
+	}
+	
+	long getReleased(int consumer) 
+	{ 
+		return (long) LONGS.getAcquire(mapping, getConsumerOffset(consumer) + RELEASED); 
+	}
+	
+	void setReleased(int consumer, long sequence) 
+	{ 
+		LONGS.setRelease(mapping, getConsumerOffset(consumer) + RELEASED, sequence); 
+	}
+	
+	long getHeartbeat(int consumer) 
+	{ 
+		return (long) LONGS.getAcquire(mapping, getConsumerOffset(consumer) + HEARTBEAT); 
+	}
+	
+	void setHeartbeat(int consumer, long millis) 
+	{ 
+		LONGS.setRelease(mapping, getConsumerOffset(consumer) + HEARTBEAT, millis); 
+	}
+	
+	/**
+	 * Adds request bits to a consumer record.
+	 */
+	void addRequests(int consumer, long requests)
+	{
+		LONGS.getAndBitwiseOr(mapping, getConsumerOffset(consumer) + REQUESTS, requests);
+	}
+	
+	/**
+	 * Takes the request bits of a consumer record, clearing them.
+	 */
+	long takeRequests(int consumer)
+	{
+		return (long) LONGS.getAndSet(mapping, getConsumerOffset(consumer) + REQUESTS, 0L);
+	}
+	
+	/**
+	 * Posts a control message to the producer.
+	 * @param consumer the index of the consumer's record
+	 * @param message the message, from its position to its limit
+	 * @return false if the previous message has not been taken yet
+	 * @throws IllegalArgumentException if the message is larger than 
+	 * {@link #MAX_CONTROL_SIZE}
+	 */
+	boolean postControl(int consumer, ByteBuffer message) throws IllegalArgumentException
+	{
+		if (message.remaining() > MAX_CONTROL_SIZE)
+		{
+			String text = String.format("Control message of %d bytes is larger than %d bytes\n", 
+					message.remaining(), MAX_CONTROL_SIZE);
+			throw new IllegalArgumentException(text);
+		}
+		int offset = getConsumerOffset(consumer);
+		if ((long) LONGS.getAcquire(mapping, offset + MAILBOX_STATE) != 0)
+		{
+			return false;
+		}
+		ByteBuffer data = mapping.duplicate();
+		data.position(offset + MAILBOX_DATA);
+		mapping.putInt(offset + MAILBOX_LENGTH, message.remaining());
+		data.put(message.duplicate());
+		LONGS.setRelease(mapping, offset + MAILBOX_STATE, 1L);
+		return true;
+	}
+	
+	/**
+	 * Takes the control message a consumer has posted, emptying its mailbox.
+	 * @param consumer the index of the consumer's record
+	 * @return a copy of the message, <code>null</code> if there is none
+	 */
+	ByteBuffer takeControl(int consumer)
+	{
+		int offset = getConsumerOffset(consumer);
+		if ((long) LONGS.getAcquire(mapping, offset + MAILBOX_STATE) == 0)
+		{
+			return null;
+		}
+		int length = Math.min(mapping.getInt(offset + MAILBOX_LENGTH), MAX_CONTROL_SIZE);
+		ByteBuffer data = mapping.duplicate();
+		data.limit(offset + MAILBOX_DATA + length);
+		data.position(offset + MAILBOX_DATA);
+		ByteBuffer message = ByteBuffer.allocate(length);
+		message.put(data);
+		message.flip();
+		LONGS.setRelease(mapping, offset + MAILBOX_STATE, 0L);
+		return message;
+	}
+	
+	private int getConsumerOffset(int consumer)
+	{
+		return CONSUMERS_OFFSET + consumer * CONSUMER_SIZE;
+	}
+	
+	private int getSlotOffset(int slot)
+	{
+		return slotsOffset + slot * slotStride;
+	}
+}
@@ -0,0 +1,121 @@
+/**************************************************************
+ This file is part of Kinect Sensor Architecture Development Project.
+
+    Kinect Sensor Architecture Development Project is free software:
+	you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Kinect Sensor Architecture Development Project is distributed in
+	the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with Kinect Sensor Architecture Development Project.  If
+	not, see <http://www.gnu.org/licenses/>.
+**************************************************************/
+/**************************************************************
+The work was done in joint collaboration with Cisco Systems Inc.
+Copyright © 2012, Cisco Systems, Inc. and UCLA
+*************************************************************/
+
+package UnifyingAPI;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Set;
+
+/**
+ * The channels, and optionally the tuple elements within them, that a
+ * consumer wants from a <code>UniDevice</code>. Channels that are not
+ * subscribed to are left out of the sensor packet. A
+ * <code>UniSubscription</code> is never modified once created, so a device
+ * can read it while a consumer is building a new one.
+ */
+public class UniSubscription {
+	private HashMap<String, int[]> channels;	// Subscribed elements per channel, null for all
+
+	/**
+	 * Construct a subscription to no channels.
+	 */
+	public UniSubscription()
+	{
+		this.channels = new HashMap<String, int[]>();
+	}
+
+	private UniSubscription(HashMap<String, int[]> channels)
+	{
+		this.channels = channels;
+	}
+
+	/**
+	 * Returns a copy of this subscription that also subscribes to the given channel.
+	 * @param channelName the name of the channel
+	 * @param elements the 0-based indices of the tuple elements wanted from the
+	 * channel, in the order they should appear in the packed tuples. No indices
+	 * means every element. Indices past the channel's last element are 
+	 * ignored by the device.
+	 * @return the new subscription
+	 * @throws IllegalArgumentException if an element index is negative
+	 */
+	public UniSubscription with(String channelName, int... elements) throws IllegalArgumentException
+	{
+		for (int i = 0; i < elements.length; ++i)
+		{
+			if (elements[i] < 0)
+			{
+				String message = String.format("Element index %d of channel %s is negative\n", 
+						elements[i], channelName);
+				throw new IllegalArgumentException(message);
+			}
+		}
+		HashMap<String, int[]> newChannels = new HashMap<String, int[]>(channels);
+		newChannels.put(channelName, (elements.length == 0) ? null : elements.clone());
+		return new UniSubscription(newChannels);
+	}
+
+	/**
+	 * Returns a copy of this subscription without the given channel.
+	 * @param channelName the name of the channel
+	 * @return the new subscription
+	 */
+	public UniSubscription without(String channelName)
+	{
+		HashMap<String, int[]> newChannels = new HashMap<String, int[]>(channels);
+		newChannels.remove(channelName);
+		return new UniSubscription(newChannels);
+	}
+
+	/**
+	 * Tells whether the given channel is subscribed to.
+	 * @param channelName the name of the channel
+	 * @return true if the channel is subscribed to
+	 */
+	public boolean isChannelSubscribed(String channelName)
+	{
+		return channels.containsKey(channelName);
+	}
+
+	/**
+	 * Retrieves the indices of the subscribed tuple elements of a channel.
+	 * @param channelName the name of the channel
+	 * @return the 0-based element indices, <code>null</code> if every element
+	 * is subscribed to or the channel is not subscribed to
+	 */
+	public int[] getSubscribedElements(String channelName)
+	{
+		return channels.get(channelName);
+	}
+
+	/**
+	 * Retrieves the names of the subscribed channels.
+	 * @return an unmodifiable <code>Set</code> of channel names
+	 */
+	public Set<String> getChannelNames()
+	{
+		return Collections.unmodifiableSet(channels.keySet());
+	}
+}
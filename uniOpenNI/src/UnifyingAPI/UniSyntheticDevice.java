@@ -0,0 +1,543 @@
+/**************************************************************
+ This file is part of Kinect Sensor Architecture Development Project.
+
+    Kinect Sensor Architecture Development Project is free software:
+	you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Kinect Sensor Architecture Development Project is distributed in
+	the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with Kinect Sensor Architecture Development Project.  If
+	not, see <http://www.gnu.org/licenses/>.
+**************************************************************/
+/**************************************************************
+The work was done in joint collaboration with Cisco Systems Inc.
+Copyright © 2012, Cisco Systems, Inc. and UCLA
+*************************************************************/
+
+package UnifyingAPI;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A device that generates Kinect-like channels without any hardware, for 
+ * load tests and development. The resolution, frame rate, number of tracked
+ * users and any extra channels are chosen by the caller. Channels keep the 
+ * names and layouts of a Kinect served by OpenNI:
+ * <ul>
+ * <li><code>Depth</code>: one 2-byte depth in millimeters per pixel, a wall 
+ * and floor with an object moving in front of them. Like on a Kinect, the 
+ * object casts a shadow of invalid (0) depth on its right.</li>
+ * <li><code>RGB</code>: three bytes per pixel, a scrolling gradient with 
+ * the object drawn over it.</li>
+ * <li><code>User1</code> to <code>UserN</code>: 15 skeleton joints of four 
+ * floats each, x, y and z in millimeters and a confidence, in the joint 
+ * order of OpenNI. The skeletons wave their arms and walk on the spot.</li>
+ * </ul>
+ * Optionally a <code>Clock</code> channel holds the <code>System.nanoTime()</code>
+ * at which the packet was built, for measuring latency, and extra channels 
+ * <code>Extra1</code> to <code>ExtraN</code> with any element descriptors 
+ * hold changing pseudo-random data. Packets are paced to the frame rate 
+ * unless pacing is turned off. Settings take effect from the next packet.
+ */
+public class UniSyntheticDevice extends UniDevice {
+	/**
+	 * The largest number of users tracked at once, as with OpenNI.
+	 */
+	public static final int MAX_USERS = 6;
+	
+	/**
+	 * The number of joints in a skeleton channel.
+	 */
+	public static final int NUM_JOINTS = 15;
+	
+	// Joints relative to the hips, x to the right and y up, in millimeters
+	private static final float[][] BASE_POSE = {
+		{ 0, 650 },			// head
+		{ 0, 480 },			// neck
+		{ -180, 450 },		// left shoulder
+		{ -200, 180 },		// left elbow
+		{ -210, -70 },		// left hand
+		{ 180, 450 },		// right shoulder
+		{ 200, 180 },		// right elbow
+		{ 210, -70 },		// right hand
+		{ 0, 230 },			// torso
+		{ -100, 0 },		// left hip
+		{ -110, -420 },		// left knee
+		{ -120, -820 },		// left foot
+		{ 100, 0 },			// right hip
+		{ 110, -420 },		// right knee
+		{ 120, -820 },		// right foot
+	};
+	private static final int LEFT_SHOULDER = 2;
+	private static final int RIGHT_SHOULDER = 5;
+	private static final int LEFT_HIP = 9;
+	private static final int RIGHT_HIP = 12;
+	
+	private static final int WALL_DEPTH = 3500;
+	private static final int NEAREST_FLOOR_DEPTH = 1000;
+	private static final int SHADOW_WIDTH = 4;
+	
+	private int width;
+	private int height;
+	private double fps;
+	private long framePeriodNanos;
+	private long nextFrameNanos;
+	private volatile long frames;
+	private volatile long generatedBytes;
+	private short[] background;			// depth of the wall and floor per row
+	
+	private boolean paced;
+	private boolean depthEnabled;
+	private boolean rgbEnabled;
+	private boolean clockEnabled;
+	private int numUsers;
+	private int numExtraChannels;
+	private long extraTuples;
+	private UniElementDescriptor[] extraDescriptors;
+	
+	private UniChannelHeader depthHeader;
+	private UniChannelHeader rgbHeader;
+	private UniChannelHeader clockHeader;
+	private UniChannelHeader[] userHeaders;
+	private UniChannelHeader[] extraHeaders;
+	
+	/**
+	 * Constructs a paced device with depth, RGB and one tracked user.
+	 * @param width the number of pixels per row
+	 * @param height the number of rows
+	 * @param fps the frame rate in Hz
+	 * @throws IllegalArgumentException if a size or the frame rate is not positive
+	 */
+	public UniSyntheticDevice(int width, int height, double fps) throws IllegalArgumentException
+	{
+		super((short) 0, (short) 0, fps);
+		if (width < 1 || height < 1 || !(fps > 0))
+		{
+			String message = String.format("Resolution and frame rate must be positive, got %dx%d at %f fps\n", 
+					width, height, fps);
+			throw new IllegalArgumentException(message);
+		}
+		this.width = width;
+		this.height = height;
+		this.fps = fps;
+		this.framePeriodNanos = (long) (1e9 / fps);
+		this.nextFrameNanos = System.nanoTime();
+		this.frames = 0;
+		this.generatedBytes = 0;
+		this.paced = true;
+		this.depthEnabled = true;
+		this.rgbEnabled = true;
+		this.clockEnabled = false;
+		this.numUsers = 1;
+		this.numExtraChannels = 0;
+		this.extraHeaders = new UniChannelHeader[0];
+		
+		this.background = new short[height];
+		for (int y = 0; y < height; ++y)
+		{
+			// A wall on the upper half, a floor coming closer on the lower half
+			int floor = WALL_DEPTH - (int) ((long) (2 * y - height) * (WALL_DEPTH - NEAREST_FLOOR_DEPTH) / height);
+			background[y] = (short) Math.min(WALL_DEPTH, floor);
+		}
+		
+		this.depthHeader = new UniChannelHeader((long) width * height, fps, new UniElementDescriptor[] {
+				new UniElementDescriptor(true, true, (byte) 2) }, "Depth");
+		UniElementDescriptor byteElement = new UniElementDescriptor(true, true, (byte) 1);
+		this.rgbHeader = new UniChannelHeader((long) width * height, fps, new UniElementDescriptor[] {
+				byteElement, byteElement, byteElement }, "RGB");
+		this.clockHeader = new UniChannelHeader(1, fps, new UniElementDescriptor[] {
+				new UniElementDescriptor(true, true, (byte) 8) }, "Clock");
+		UniElementDescriptor floatElement = new UniElementDescriptor(false, true, (byte) 4);
+		UniElementDescriptor[] jointDescriptors = { floatElement, floatElement, floatElement, floatElement };
+		this.userHeaders = new UniChannelHeader[MAX_USERS];
+		for (int user = 0; user < MAX_USERS; ++user)
+		{
+			userHeaders[user] = new UniChannelHeader(NUM_JOINTS, fps, jointDescriptors, "User" + (user + 1));
+		}
+	}
+	
+	/**
+	 * Retrieves the number of pixels per row.
+	 * @return the width
+	 */
+	public int getWidth() { return width; }
+	
+	/**
+	 * Retrieves the number of rows.
+	 * @return the height
+	 */
+	public int getHeight() { return height; }
+	
+	/**
+	 * Retrieves the number of packets generated.
+	 * @return the number of frames
+	 */
+	public long getFrames() { return frames; }
+	
+	/**
+	 * Retrieves the number of bytes of channel data generated, not counting
+	 * sensor and channel headers.
+	 * @return the number of bytes
+	 */
+	public long getGeneratedBytes() { return generatedBytes; }
+	
+	/**
+	 * Sets whether packets are paced to the frame rate.
+	 * @param paced true to pace packets, false to generate them as fast as
+	 * they are asked for
+	 */
+	public synchronized void setPaced(boolean paced)
+	{
+		this.paced = paced;
+		this.nextFrameNanos = System.nanoTime();
+	}
+	
+	/**
+	 * Sets whether the <code>Depth</code> channel is generated.
+	 * @param enabled true to generate the channel
+	 */
+	public synchronized void setDepthEnabled(boolean enabled) { this.depthEnabled = enabled; }
+	
+	/**
+	 * Sets whether the <code>RGB</code> channel is generated.
+	 * @param enabled true to generate the channel
+	 */
+	public synchronized void setRGBEnabled(boolean enabled) { this.rgbEnabled = enabled; }
+	
+	/**
+	 * Sets whether the <code>Clock</code> channel is generated. It holds one 
+	 * signed 8-byte element, the <code>System.nanoTime()</code> at which the 
+	 * packet was built.
+	 * @param enabled true to generate the channel
+	 */
+	public synchronized void setClockEnabled(boolean enabled) { this.clockEnabled = enabled; }
+	
+	/**
+	 * Sets the number of tracked users, each with a skeleton channel.
+	 * @param numUsers the number of users, from 0 to {@link #MAX_USERS}
+	 * @throws IllegalArgumentException if the number is out of range
+	 */
+	public synchronized void setNumberOfUsers(int numUsers) throws IllegalArgumentException
+	{
+		if (numUsers < 0 || numUsers > MAX_USERS)
+		{
+			String message = String.format("Number of users must be between 0 and %d, got %d\n", 
+					MAX_USERS, numUsers);
+			throw new IllegalArgumentException(message);
+		}
+		this.numUsers = numUsers;
+	}
+	
+	/**
+	 * Sets the extra channels generated, <code>Extra1</code> to 
+	 * <code>ExtraN</code>, all with the same layout.
+	 * @param count the number of extra channels, 0 for none
+	 * @param numTuples the number of tuples per channel
+	 * @param descriptors the descriptors of the elements of a tuple
+	 * @throws IllegalArgumentException if the count or number of tuples is 
+	 * negative, or there are extra channels without elements
+	 */
+	public synchronized void setExtraChannels(int count, long numTuples, UniElementDescriptor... descriptors) 
+			throws IllegalArgumentException
+	{
+		if (count < 0 || numTuples < 0 || (count > 0 && descriptors.length == 0))
+		{
+			String message = String.format("Invalid extra channels: %d channels of %d tuples with %d elements\n", 
+					count, numTuples, descriptors.length);
+			throw new IllegalArgumentException(message);
+		}
+		this.numExtraChannels = count;
+		this.extraTuples = numTuples;
+		this.extraDescriptors = descriptors.clone();
+		this.extraHeaders = new UniChannelHeader[count];
+		for (int i = 0; i < count; ++i)
+		{
+			extraHeaders[i] = new UniChannelHeader(numTuples, fps, extraDescriptors, "Extra" + (i + 1));
+		}
+	}
+	
+	protected void updateChannels()
+	{
+		boolean depth;
+		boolean rgb;
+		boolean clock;
+		int users;
+		UniChannelHeader[] extras;
+		synchronized (this)
+		{
+			if (paced)
+			{
+				waitForFrame();
+			}
+			depth = depthEnabled;
+			rgb = rgbEnabled;
+			clock = clockEnabled;
+			users = numUsers;
+			extras = extraHeaders;
+		}
+		
+		final long frame = frames;
+		final double time = frame / fps;
+		// The object moves on a Lissajous path and comes closer and farther
+		final int objectX = (int) (width * (0.5 + 0.3 * Math.sin(time * 0.9)));
+		final int objectY = (int) (height * (0.5 + 0.25 * Math.sin(time * 1.3)));
+		final int radius = Math.max(1, height / 8);
+		final int objectDepth = (int) (1300 + 300 * Math.sin(time * 0.5));
+		long bytes = 0;
+		
+		if (depth && isChannelSubscribed("Depth"))
+		{
+			addChannel(new UniChannel(depthHeader, new UniDataPacker()
+			{
+				public void writeDataIntoByteBuffer(ByteBuffer buffer)
+				{
+					writeDepth(buffer, objectX, objectY, radius, objectDepth);
+				}
+			}));
+			bytes += depthHeader.getPackedDataSize();
+		}
+		if (rgb && isChannelSubscribed("RGB"))
+		{
+			addChannel(new UniChannel(rgbHeader, new UniDataPacker()
+			{
+				public void writeDataIntoByteBuffer(ByteBuffer buffer)
+				{
+					writeRGB(buffer, frame, objectX, objectY, radius);
+				}
+			}));
+			bytes += rgbHeader.getPackedDataSize();
+		}
+		for (int user = 0; user < users; ++user)
+		{
+			if (!isChannelSubscribed(userHeaders[user].getName()))
+			{
+				continue;
+			}
+			final int index = user;
+			addChannel(new UniChannel(userHeaders[user], new UniDataPacker()
+			{
+				public void writeDataIntoByteBuffer(ByteBuffer buffer)
+				{
+					writeSkeleton(buffer, index, time);
+				}
+			}));
+			bytes += userHeaders[user].getPackedDataSize();
+		}
+		for (int i = 0; i < extras.length; ++i)
+		{
+			if (!isChannelSubscribed(extras[i].getName()))
+			{
+				continue;
+			}
+			final long seed = (frame * 31 + i) * 0x9E3779B97F4A7C15L;
+			final long size = extras[i].getPackedDataSize();
+			addChannel(new UniChannel(extras[i], new UniDataPacker()
+			{
+				public void writeDataIntoByteBuffer(ByteBuffer buffer)
+				{
+					writeNoise(buffer, seed, size);
+				}
+			}));
+			bytes += size;
+		}
+		if (clock && isChannelSubscribed("Clock"))
+		{
+			addChannel(new UniChannel(clockHeader, new UniDataPacker()
+			{
+				public void writeDataIntoByteBuffer(ByteBuffer buffer)
+				{
+					buffer.putLong(System.nanoTime());
+				}
+			}));
+			bytes += clockHeader.getPackedDataSize();
+		}
+		
+		generatedBytes += bytes;
+		frames = frame + 1;
+	}
+	
+	/**
+	 * Sleeps until the next frame is due. A device that has fallen more than
+	 * a frame behind starts its schedule over rather than catching up.
+	 */
+	private void waitForFrame()
+	{
+		nextFrameNanos += framePeriodNanos;
+		long wait = nextFrameNanos - System.nanoTime();
+		if (wait < -framePeriodNanos)
+		{
+			nextFrameNanos = System.nanoTime();
+			return;
+		}
+		if (wait > 0)
+		{
+			try
+			{
+				Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+	
+	/**
+	 * Retrieves the half width of the object's disc on a row.
+	 * @return the half width in pixels, -1 if the row misses the disc
+	 */
+	private static int getHalfWidth(int y, int objectY, int radius)
+	{
+		int dy = y - objectY;
+		int squared = radius * radius - dy * dy;
+		return (squared < 0) ? -1 : (int) Math.sqrt(squared);
+	}
+	
+	private void writeDepth(ByteBuffer buffer, int objectX, int objectY, int radius, int objectDepth)
+	{
+		for (int y = 0; y < height; ++y)
+		{
+			short wall = background[y];
+			int halfWidth = getHalfWidth(y, objectY, radius);
+			int left = (halfWidth < 0) ? width : objectX - halfWidth;
+			int right = (halfWidth < 0) ? width : objectX + halfWidth;
+			for (int x = 0; x < width; ++x)
+			{
+				short value = wall;
+				if (x >= left && x <= right)
+				{
+					// A sphere bulging towards the camera
+					int dx = x - objectX;
+					int dy = y - objectY;
+					value = (short) (objectDepth - (radius * radius - dx * dx - dy * dy) * 200 / (radius * radius));
+				}
+				else if (x > right && x <= right + SHADOW_WIDTH)
+				{
+					value = 0;
+				}
+				buffer.putShort(value);
+			}
+		}
+	}
+	
+	private void writeRGB(ByteBuffer buffer, long frame, int objectX, int objectY, int radius)
+	{
+		int shift = (int) frame;
+		for (int y = 0; y < height; ++y)
+		{
+			byte green = (byte) (y * 255 / height);
+			int halfWidth = getHalfWidth(y, objectY, radius);
+			int left = (halfWidth < 0) ? width : objectX - halfWidth;
+			int right = (halfWidth < 0) ? width : objectX + halfWidth;
+			for (int x = 0; x < width; ++x)
+			{
+				if (x >= left && x <= right)
+				{
+					buffer.put((byte) 200);
+					buffer.put((byte) 60);
+					buffer.put((byte) 40);
+				}
+				else
+				{
+					buffer.put((byte) (x * 255 / width + shift));
+					buffer.put(green);
+					buffer.put((byte) (2 * shift));
+				}
+			}
+		}
+	}
+	
+	private void writeSkeleton(ByteBuffer buffer, int user, double time)
+	{
+		// Users stand side by side and sway, each a little out of step
+		double phase = time * 2 * Math.PI * 0.5 + user;
+		float hipX = (float) ((user - (MAX_USERS - 1) / 2.0) * 700 + 150 * Math.sin(time * 0.3 + user));
+		float hipY = 0;
+		float hipZ = (float) (2200 + 300 * Math.sin(time * 0.2 + user));
+		double armAngle = 1.2 * Math.sin(phase);
+		double legAngle = 0.4 * Math.sin(phase);
+		
+		for (int joint = 0; joint < NUM_JOINTS; ++joint)
+		{
+			float x = BASE_POSE[joint][0];
+			float y = BASE_POSE[joint][1];
+			float z = 0;
+			int pivot = -1;
+			double angle = 0;
+			if (joint == 3 || joint == 4)
+			{
+				pivot = LEFT_SHOULDER;
+				angle = -armAngle;
+			}
+			else if (joint == 6 || joint == 7)
+			{
+				pivot = RIGHT_SHOULDER;
+				angle = armAngle;
+			}
+			else if (joint == 10 || joint == 11)
+			{
+				pivot = LEFT_HIP;
+				angle = legAngle;
+			}
+			else if (joint == 13 || joint == 14)
+			{
+				pivot = RIGHT_HIP;
+				angle = -legAngle;
+			}
+			if (pivot >= 0)
+			{
+				// Arms swing out to the side, legs swing forwards and back
+				float dx = x - BASE_POSE[pivot][0];
+				float dy = y - BASE_POSE[pivot][1];
+				boolean arm = pivot == LEFT_SHOULDER || pivot == RIGHT_SHOULDER;
+				double cos = Math.cos(angle);
+				double sin = Math.sin(angle);
+				if (arm)
+				{
+					x = BASE_POSE[pivot][0] + (float) (dx * cos - dy * sin);
+					y = BASE_POSE[pivot][1] + (float) (dx * sin + dy * cos);
+				}
+				else
+				{
+					y = BASE_POSE[pivot][1] + (float) (dy * cos);
+					z = (float) (dy * sin);
+				}
+			}
+			buffer.putFloat(hipX + x);
+			buffer.putFloat(hipY + y);
+			buffer.putFloat(hipZ + z);
+			buffer.putFloat(1.0f);
+		}
+	}
+	
+	/**
+	 * Writes pseudo-random bytes from a xorshift generator.
+	 */
+	private static void writeNoise(ByteBuffer buffer, long seed, long size)
+	{
+		long state = (seed == 0) ? 1 : seed;
+		long remaining = size;
+		while (remaining >= 8)
+		{
+			state ^= state << 13;
+			state ^= state >>> 7;
+			state ^= state << 17;
+			buffer.putLong(state);
+			remaining -= 8;
+		}
+		while (remaining > 0)
+		{
+			buffer.put((byte) state);
+			state >>>= 8;
+			--remaining;
+		}
+	}
+}
@@ -0,0 +1,100 @@
+/**************************************************************
+ This file is part of Kinect Sensor Architecture Development Project.
+
+    Kinect Sensor Architecture Development Project is free software:
+	you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Kinect Sensor Architecture Development Project is distributed in
+	the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with Kinect Sensor Architecture Development Project.  If
+	not, see <http://www.gnu.org/licenses/>.
+**************************************************************/
+/**************************************************************
+The work was done in joint collaboration with Cisco Systems Inc.
+Copyright © 2012, Cisco Systems, Inc. and UCLA
+*************************************************************/
+
+package UnifyingAPI;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Runs the parallel packing and decoding tasks of <code>UniDevice</code>
+ * and <code>Sensor</code>.
+ */
+final class UniTasks {
+	private UniTasks() {}
+	
+	/**
+	 * Runs tasks on an executor and waits for all of them, even if the 
+	 * calling thread is interrupted, so no task is still running when this 
+	 * returns. Tasks the executor rejects run on the calling thread. The 
+	 * interrupt, if any, is kept for the caller.
+	 * @throws RuntimeException if a task failed, once every task has finished
+	 */
+	static void runAll(ExecutorService executor, List<Callable<Object>> tasks, String failureMessage)
+	{
+		ArrayList<FutureTask<Object>> results = new ArrayList<FutureTask<Object>>(tasks.size());
+		for (int i = 0; i < tasks.size(); ++i)
+		{
+			FutureTask<Object> task = new FutureTask<Object>(tasks.get(i));
+			results.add(task);
+			try
+			{
+				executor.execute(task);
+			}
+			catch (RejectedExecutionException e)
+			{
+				task.run();
+			}
+		}
+		
+		boolean interrupted = false;
+		Throwable failure = null;
+		for (int i = 0; i < results.size(); ++i)
+		{
+			while (true)
+			{
+				try
+				{
+					results.get(i).get();
+					break;
+				}
+				catch (InterruptedException e)
+				{
+					interrupted = true;
+				}
+				catch (ExecutionException e)
+				{
+					if (failure == null)
+					{
+						failure = e.getCause();
+					}
+					break;
+				}
+			}
+		}
+		if (interrupted)
+		{
+			Thread.currentThread().interrupt();
+		}
+		if (failure != null)
+		{
+			throw new RuntimeException(failureMessage, failure);
+		}
+	}
+}
@@ -0,0 +1,276 @@
+/**************************************************************
+ This file is part of Kinect Sensor Architecture Development Project.
+
+    Kinect Sensor Architecture Development Project is free software:
+	you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Kinect Sensor Architecture Development Project is distributed in
+	the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with Kinect Sensor Architecture Development Project.  If
+	not, see <http://www.gnu.org/licenses/>.
+**************************************************************/
+/**************************************************************
+The work was done in joint collaboration with Cisco Systems Inc.
+Copyright © 2012, Cisco Systems, Inc. and UCLA
+*************************************************************/
+
+package UnifyingAPI;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Message framing shared by the network transports. Every message starts 
+ * with a type byte and an <code>int</code> payload length. A server sends the
+ * device's sensor header once, then one message per sensor packet; the 
+ * packet is sent as is. Clients send control messages that pass a 
+ * <code>Sensor</code>'s settings on to the device. Over UDP each control 
+ * message is a datagram of its own, and sensor packets are sent as 
+ * fragments with their own header (see <code>UniDatagramServer</code>).
+ */
+final class UniTransportProtocol {
+	static final int MESSAGE_HEADER_SIZE = 5;
+	static final int MAX_CONTROL_SIZE = 1 << 16;
+	
+	// Server to client
+	static final byte SENSOR_HEADER = 1;
+	static final byte SENSOR_PACKET = 2;
+	static final byte PACKET_FRAGMENT = 3;
+	
+	// Client to server
+	static final byte CONTROL_SUBSCRIPTION = 16;
+	static final byte CONTROL_LAYOUT_IDS = 17;
+	static final byte CONTROL_RESET_LAYOUT_IDS = 18;
+	static final byte CONTROL_DELTA_ENCODING = 19;
+	static final byte CONTROL_COMPRESSION = 20;
+	static final byte CONTROL_KEYFRAME = 21;
+	static final byte CONTROL_HELLO = 22;	// UDP only, registers the client and keeps it alive
+	
+	private UniTransportProtocol() { }
+	
+	/**
+	 * Writes a message header.
+	 * @param buffer the buffer to write into
+	 * @param type the message type
+	 * @param length the size of the payload in bytes
+	 */
+	static void putMessageHeader(ByteBuffer buffer, byte type, int length)
+	{
+		buffer.put(type);
+		buffer.putInt(length);
+	}
+	
+	/**
+	 * Packs a control message that subscribes to the channels of a 
+	 * subscription. A <code>null</code> subscription is sent as a count of -1.
+	 * @param subscription the subscription, <code>null</code> for every channel
+	 * @return the message, ready to be written
+	 */
+	static ByteBuffer packSubscription(UniSubscription subscription)
+	{
+		int size = 4;
+		if (subscription != null)
+		{
+			for (String name : subscription.getChannelNames())
+			{
+				int[] elements = subscription.getSubscribedElements(name);
+				size += getPackedSize(name) + 4 + ((elements != null) ? 4 * elements.length : 0);
+			}
+		}
+		
+		ByteBuffer message = ByteBuffer.allocate(MESSAGE_HEADER_SIZE + size);
+		putMessageHeader(message, CONTROL_SUBSCRIPTION, size);
+		if (subscription == null)
+		{
+			message.putInt(-1);
+		}
+		else
+		{
+			message.putInt(subscription.getChannelNames().size());
+			for (String name : subscription.getChannelNames())
+			{
+				int[] elements = subscription.getSubscribedElements(name);
+				putString(message, name);
+				message.putInt((elements != null) ? elements.length : -1);
+				if (elements != null)
+				{
+					for (int i = 0; i < elements.length; ++i)
+					{
+						message.putInt(elements[i]);
+					}
+				}
+			}
+		}
+		message.flip();
+		return message;
+	}
+	
+	/**
+	 * Reads the payload of a subscription control message. Counts are 
+	 * checked against the size of the payload before anything is allocated.
+	 * Element indices past a channel's last element are left for the device
+	 * to ignore, since only the device knows its channels.
+	 * @param payload the payload
+	 * @return the subscription, <code>null</code> for every channel
+	 * @throws IllegalArgumentException if a count does not fit in the 
+	 * payload or an element index is negative
+	 */
+	static UniSubscription unpackSubscription(ByteBuffer payload) throws IllegalArgumentException
+	{
+		int numChannels = payload.getInt();
+		if (numChannels < 0)
+		{
+			return null;
+		}
+		// Each channel has at least a name length and an element count
+		if (numChannels > payload.remaining() / 6)
+		{
+			String message = String.format("Subscription of %d channels in %d bytes\n",
+					numChannels, payload.remaining());
+			throw new IllegalArgumentException(message);
+		}
+		UniSubscription subscription = new UniSubscription();
+		for (int channel = 0; channel < numChannels; ++channel)
+		{
+			String name = getString(payload);
+			int numElements = payload.getInt();
+			if (numElements > payload.remaining() / 4)
+			{
+				String message = String.format("Subscription of %d elements of channel %s in %d bytes\n",
+						numElements, name, payload.remaining());
+				throw new IllegalArgumentException(message);
+			}
+			int[] elements = new int[Math.max(numElements, 0)];
+			for (int i = 0; i < elements.length; ++i)
+			{
+				elements[i] = payload.getInt();
+			}
+			subscription = subscription.with(name, elements);
+		}
+		return subscription;
+	}
+	
+	/**
+	 * Packs a control message with no payload.
+	 * @param type the message type
+	 * @return the message, ready to be written
+	 */
+	static ByteBuffer packControl(byte type)
+	{
+		ByteBuffer message = ByteBuffer.allocate(MESSAGE_HEADER_SIZE);
+		putMessageHeader(message, type, 0);
+		message.flip();
+		return message;
+	}
+	
+	/**
+	 * Packs a control message with an <code>int</code> payload.
+	 * @param type the message type
+	 * @param value the payload
+	 * @return the message, ready to be written
+	 */
+	static ByteBuffer packControl(byte type, int value)
+	{
+		ByteBuffer message = ByteBuffer.allocate(MESSAGE_HEADER_SIZE + 4);
+		putMessageHeader(message, type, 4);
+		message.putInt(value);
+		message.flip();
+		return message;
+	}
+	
+	/**
+	 * Packs a control message turning compression of a channel on or off.
+	 * @param channelName the name of the channel
+	 * @param compress true to compress the channel
+	 * @return the message, ready to be written
+	 */
+	static ByteBuffer packCompression(String channelName, boolean compress)
+	{
+		int size = 1 + getPackedSize(channelName);
+		ByteBuffer message = ByteBuffer.allocate(MESSAGE_HEADER_SIZE + size);
+		putMessageHeader(message, CONTROL_COMPRESSION, size);
+		message.put((byte) (compress ? 1 : 0));
+		putString(message, channelName);
+		message.flip();
+		return message;
+	}
+	
+	/**
+	 * Applies a control message to a device.
+	 * @param device the device
+	 * @param type the message type
+	 * @param payload the payload of the message
+	 * @throws IllegalArgumentException if the message is not a control message
+	 * or its payload is invalid
+	 */
+	static void applyControl(UniPacketSource device, byte type, ByteBuffer payload) 
+			throws IllegalArgumentException
+	{
+		try
+		{
+			switch (type)
+			{
+			case CONTROL_SUBSCRIPTION:
+				device.setSubscription(unpackSubscription(payload));
+				break;
+			case CONTROL_LAYOUT_IDS:
+				device.setLayoutIdsEnabled(payload.getInt() != 0);
+				break;
+			case CONTROL_RESET_LAYOUT_IDS:
+				device.resetLayoutIds();
+				break;
+			case CONTROL_DELTA_ENCODING:
+				device.setDeltaEncoding(payload.getInt());
+				break;
+			case CONTROL_COMPRESSION:
+				boolean compress = payload.get() != 0;
+				device.setCompression(getString(payload), compress);
+				break;
+			case CONTROL_KEYFRAME:
+				device.requestKeyframe();
+				break;
+			default:
+				throw new IllegalArgumentException(
+						String.format("Unknown control message type %d\n", type));
+			}
+		}
+		catch (BufferUnderflowException e)
+		{
+			throw new IllegalArgumentException(
+					String.format("Control message of type %d is truncated\n", type));
+		}
+	}
+	
+	private static int getPackedSize(String value)
+	{
+		return 2 + value.getBytes(StandardCharsets.UTF_8).length;
+	}
+	
+	private static void putString(ByteBuffer buffer, String value)
+	{
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		buffer.putShort((short) bytes.length);
+		buffer.put(bytes);
+	}
+	
+	private static String getString(ByteBuffer buffer)
+	{
+		int length = buffer.getShort() & 0xFFFF;
+		if (length > buffer.remaining())
+		{
+			throw new BufferUnderflowException();
+		}
+		byte[] bytes = new byte[length];
+		buffer.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+}
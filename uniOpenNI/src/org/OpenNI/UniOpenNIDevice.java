@@ -39,57 +39,65 @@ public class UniOpenNIDevice extends UniDevice {
 			e.printStackTrace();
 		}
 		
-		// Create depth channel header
+		// Create depth channel if the consumer wants it
 		String depthName = "Depth";
-		double depthFrequency = (double) depthMD.getFPS();
-		UniElementDescriptor[] depthDescriptors = new UniElementDescriptor[1];
-		depthDescriptors[0] = new UniElementDescriptor(true, true, (byte) depth.getBytesPerPixel());
-		long depthNumTuples = depth.getXRes() * depth.getYRes();
+		if (isChannelSubscribed(depthName))
+		{
+			// Create depth channel header
+			double depthFrequency = (double) depthMD.getFPS();
+			UniElementDescriptor[] depthDescriptors = new UniElementDescriptor[1];
+			depthDescriptors[0] = new UniElementDescriptor(true, true, (byte) depth.getBytesPerPixel());
+			long depthNumTuples = depth.getXRes() * depth.getYRes();
 
-		UniChannelHeader depthHeader = new UniChannelHeader(depthNumTuples, depthFrequency, depthDescriptors, depthName);
+			UniChannelHeader depthHeader = new UniChannelHeader(depthNumTuples, depthFrequency, depthDescriptors, depthName);
 
-		// Create depth data packer
-		UniDataPacker depthDataPacker = new UniDataPacker()
-				{
-					public void writeDataIntoByteBuffer(ByteBuffer buffer)
+			// Create depth data packer
+			UniDataPacker depthDataPacker = new UniDataPacker()
 					{
-						ShortBuffer depthBuffer = depth.createShortBuffer();
-						buffer.asShortBuffer().put(depthBuffer);
-					}
-				};
+						public void writeDataIntoByteBuffer(ByteBuffer buffer)
+						{
+							ShortBuffer depthBuffer = depth.createShortBuffer();
+							buffer.asShortBuffer().put(depthBuffer);
+						}
+					};
 		
-		// Create and add depth channel
-		UniChannel depthChannel = new UniChannel(depthHeader, depthDataPacker);
-		addChannel(depthChannel);
+			// Create and add depth channel
+			UniChannel depthChannel = new UniChannel(depthHeader, depthDataPacker);
+			addChannel(depthChannel);
+		}
 		
-		// Create RGB channel header
+		// Create RGB channel if the consumer wants it
 		String RGBName = "RGB";
-		double RGBFrequency = (double) imageMD.getFPS();
-		UniElementDescriptor[] RGBDescriptors = new UniElementDescriptor[3];
-		RGBDescriptors[0] = new UniElementDescriptor(true, true, (byte) 1);
-		RGBDescriptors[1] = new UniElementDescriptor(true, true, (byte) 1);
-		RGBDescriptors[2] = new UniElementDescriptor(true, true, (byte) 1);
-		long RGBNumTuples = image.getXRes() * image.getYRes();
+		if (isChannelSubscribed(RGBName))
+		{
+			// Create RGB channel header
+			double RGBFrequency = (double) imageMD.getFPS();
+			UniElementDescriptor[] RGBDescriptors = new UniElementDescriptor[3];
+			RGBDescriptors[0] = new UniElementDescriptor(true, true, (byte) 1);
+			RGBDescriptors[1] = new UniElementDescriptor(true, true, (byte) 1);
+			RGBDescriptors[2] = new UniElementDescriptor(true, true, (byte) 1);
+			long RGBNumTuples = image.getXRes() * image.getYRes();
 		
-		UniChannelHeader RGBHeader = new UniChannelHeader(RGBNumTuples, RGBFrequency, RGBDescriptors, RGBName);
+			UniChannelHeader RGBHeader = new UniChannelHeader(RGBNumTuples, RGBFrequency, RGBDescriptors, RGBName);
 		
-		// Create RGB data packer
-		UniDataPacker RGBDataPacker = new UniDataPacker()
-		{
-			public void writeDataIntoByteBuffer(ByteBuffer buffer)
+			// Create RGB data packer
+			UniDataPacker RGBDataPacker = new UniDataPacker()
 			{
-				ByteBuffer RGBBuffer = image.createByteBuffer();
-				buffer.put(RGBBuffer);
-			}
-		};
+				public void writeDataIntoByteBuffer(ByteBuffer buffer)
+				{
+					ByteBuffer RGBBuffer = image.createByteBuffer();
+					buffer.put(RGBBuffer);
+				}
+			};
 		
-		// Create and add RGB channel
-		UniChannel RGBChannel = new UniChannel(RGBHeader, RGBDataPacker);
-		addChannel(RGBChannel);
+			// Create and add RGB channel
+			UniChannel RGBChannel = new UniChannel(RGBHeader, RGBDataPacker);
+			addChannel(RGBChannel);
+		}
 		
 		// Check if User1 is actually tracking
 		HashMap<SkeletonJoint, SkeletonJointPosition> user1Skeleton = joints.get(1);
-		if (user1Skeleton != null)
+		if (user1Skeleton != null && isChannelSubscribed("User1"))
 		{
 			// Create User1 channel header
 			String user1Name = "User1";